@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Parcel;
+import android.os.PersistableBundle;
+import android.util.AtomicFile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary on-disk format for cached carrier configs.
+ *
+ * A file consists of a fixed header followed by the payload:
+ * <pre>
+ *     int   magic           {@link #MAGIC}
+ *     int   format version  {@link #FORMAT_VERSION}
+ *     int   payload length
+ *     long  CRC32 of the payload
+ *     byte[] payload        the marshalled {@link PersistableBundle}
+ * </pre>
+ *
+ * The payload uses the {@link Parcel} format, which is only stable within a single build. This
+ * is fine for a cache because {@link CarrierConfigLoader} deletes all cached configs whenever the
+ * build changes; the format version must still be bumped if the layout above changes.
+ *
+ * Files are replaced atomically with {@link AtomicFile}, so a crash while writing leaves either
+ * the old or the new file behind, and a file that fails the header or checksum check is treated
+ * as missing.
+ */
+public final class CarrierConfigCacheFile {
+    /** File name suffix of binary cached configs. */
+    public static final String FILE_SUFFIX = ".bin";
+
+    private static final int MAGIC = 0x43434647; // "CCFG"
+    private static final int FORMAT_VERSION = 1;
+    // Upper bound on the payload size, to avoid allocating huge buffers for corrupted files.
+    private static final int MAX_PAYLOAD_LENGTH = 4 * 1024 * 1024;
+
+    private CarrierConfigCacheFile() {}
+
+    /**
+     * Writes the bundle to the given file, replacing any existing file atomically.
+     *
+     * @throws IOException if the file could not be written, in which case the previous file, if
+     * any, is left unchanged.
+     */
+    public static void write(@NonNull File file, @NonNull PersistableBundle config)
+            throws IOException {
+        byte[] payload;
+        Parcel parcel = Parcel.obtain();
+        try {
+            config.writeToParcel(parcel, 0);
+            payload = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = atomicFile.startWrite();
+        try {
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(MAGIC);
+            dataOut.writeInt(FORMAT_VERSION);
+            dataOut.writeInt(payload.length);
+            dataOut.writeLong(crc.getValue());
+            dataOut.write(payload);
+            dataOut.flush();
+            // Syncs the file and renames it over the previous one.
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a bundle written by {@link #write}.
+     *
+     * @return the bundle, or null if the file does not exist or is not a valid cache file of the
+     * current format version.
+     * @throws IOException if the file exists but could not be read.
+     */
+    @Nullable
+    public static PersistableBundle read(@NonNull File file) throws IOException {
+        AtomicFile atomicFile = new AtomicFile(file);
+        byte[] payload;
+        long expectedCrc;
+        try (FileInputStream in = atomicFile.openRead();
+                DataInputStream dataIn = new DataInputStream(in)) {
+            if (dataIn.readInt() != MAGIC || dataIn.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int length = dataIn.readInt();
+            if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+                return null;
+            }
+            expectedCrc = dataIn.readLong();
+            payload = new byte[length];
+            dataIn.readFully(payload);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (EOFException e) {
+            // Truncated file.
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (crc.getValue() != expectedCrc) {
+            return null;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(payload, 0, payload.length);
+            parcel.setDataPosition(0);
+            return PersistableBundle.CREATOR.createFromParcel(parcel);
+        } catch (RuntimeException e) {
+            // The payload passed the checksum but could not be unparceled.
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.PersistableBundle;
+import android.util.ArraySet;
+
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Computes which keys differ between two carrier configs.
+ */
+public final class CarrierConfigDiff {
+
+    private CarrierConfigDiff() {}
+
+    /**
+     * Returns the keys whose value differs between the two configs, including keys that are only
+     * present in one of them. A null config is treated as an empty one. Array values are compared
+     * element by element and nested bundles are compared recursively.
+     */
+    @NonNull
+    public static Set<String> getChangedKeys(@Nullable PersistableBundle oldConfig,
+            @Nullable PersistableBundle newConfig) {
+        Set<String> changedKeys = new ArraySet<>();
+        if (oldConfig == newConfig) {
+            return changedKeys;
+        }
+        if (oldConfig == null || newConfig == null) {
+            PersistableBundle config = oldConfig != null ? oldConfig : newConfig;
+            changedKeys.addAll(config.keySet());
+            return changedKeys;
+        }
+        for (String key : newConfig.keySet()) {
+            if (!oldConfig.containsKey(key)
+                    || !valuesEqual(oldConfig.get(key), newConfig.get(key))) {
+                changedKeys.add(key);
+            }
+        }
+        for (String key : oldConfig.keySet()) {
+            if (!newConfig.containsKey(key)) {
+                changedKeys.add(key);
+            }
+        }
+        return changedKeys;
+    }
+
+    private static boolean valuesEqual(@Nullable Object a, @Nullable Object b) {
+        if (a instanceof PersistableBundle && b instanceof PersistableBundle) {
+            return getChangedKeys((PersistableBundle) a, (PersistableBundle) b).isEmpty();
+        }
+        return Objects.deepEquals(a, b);
+    }
+}
@@ -43,6 +43,7 @@ import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.service.carrier.CarrierIdentifier;
@@ -54,9 +55,13 @@ import android.telephony.TelephonyFrameworkInitializer;
 import android.telephony.TelephonyManager;
 import android.telephony.TelephonyRegistryManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.ICarrierConfigLoader;
@@ -74,7 +79,6 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -82,8 +86,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * CarrierConfigLoader binds to privileged carrier apps to fetch carrier config overlays.
@@ -91,6 +98,38 @@ import java.util.Set;
 public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final String LOG_TAG = "CarrierConfigLoader";
 
+    /**
+     * Listener for components in the phone process that only depend on some carrier config keys.
+     * Unlike {@link CarrierConfigManager#ACTION_CARRIER_CONFIG_CHANGED}, it is only invoked when
+     * the value of one of the keys the listener registered for actually changed.
+     */
+    public interface CarrierConfigKeysChangedListener {
+        /**
+         * Called after the carrier config of a phone changed.
+         *
+         * @param phoneId     the phone whose carrier config changed.
+         * @param subId       the subscription of the phone, or
+         *                    {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if there is none.
+         * @param changedKeys the registered keys whose value changed. If the subscription of the
+         *                    phone changed, all registered keys are reported.
+         */
+        void onCarrierConfigKeysChanged(int phoneId, int subId, @NonNull Set<String> changedKeys);
+    }
+
+    private static final class KeysChangedListenerRecord {
+        // Null means the listener is interested in all keys.
+        @Nullable final Set<String> keys;
+        @NonNull final Executor executor;
+        @NonNull final CarrierConfigKeysChangedListener listener;
+
+        KeysChangedListenerRecord(@Nullable Set<String> keys, @NonNull Executor executor,
+                @NonNull CarrierConfigKeysChangedListener listener) {
+            this.keys = keys;
+            this.executor = executor;
+            this.listener = listener;
+        }
+    }
+
     // Package name for platform carrier config app, bundled with system image.
     @NonNull private final String mPlatformCarrierConfigPackage;
 
@@ -125,6 +164,35 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     @NonNull private boolean[] mFromSystemUnlocked;
     // CarrierService change monitoring
     @NonNull private CarrierServiceChangeCallback[] mCarrierServiceChangeCallbacks;
+    // Snapshot of the platform defaults merged with all the config layers above, indexed by phone
+    // ID. A null entry means the snapshot is stale and is rebuilt on the next read. Must only be
+    // mutated while holding mMergedConfigLock.
+    @NonNull private PersistableBundle[] mMergedConfigs;
+    // Snapshot of the platform defaults merged with mNoSimConfig, guarded by mMergedConfigLock.
+    @Nullable private PersistableBundle mMergedNoSimConfig;
+    @NonNull private final Object mMergedConfigLock = new Object();
+    // Bindings to config packages shared by all phones, keyed by package name. Only modified on
+    // the handler thread, and guarded by itself so that dump can read it.
+    @NonNull private final Map<String, SharedServiceConnection> mSharedConnections =
+            new ArrayMap<>();
+    // Number of times a config package was bound, and number of times an existing binding was
+    // shared instead.
+    private int mNumBindings;
+    private int mNumSharedBindings;
+    @NonNull private final List<KeysChangedListenerRecord> mKeysChangedListeners =
+            new CopyOnWriteArrayList<>();
+    // The merged config and subscription ID that listeners were last notified about, per phone
+    // ID. Only accessed on the handler thread.
+    @NonNull private final SparseArray<PersistableBundle> mLastNotifiedConfigs =
+            new SparseArray<>();
+    @NonNull private final SparseIntArray mLastNotifiedSubIds = new SparseIntArray();
+    // Elapsed realtime of the latest occurrence of each loading stage (EVENT_*), per phone ID.
+    // Only accessed on the handler thread.
+    @NonNull private final SparseArray<SparseLongArray> mLoadingStageTimestamps =
+            new SparseArray<>();
+    // Platform default values from CarrierConfigManager, which never change at runtime. Loaded
+    // lazily and never modified.
+    @Nullable private volatile PersistableBundle mPlatformDefaultConfig;
 
     // Broadcast receiver for system events
     @NonNull
@@ -166,7 +234,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     // SubscriptionManagerService has finished updating the sub for the carrier config.
     private static final int EVENT_SUBSCRIPTION_INFO_UPDATED = 16;
     // Multi-SIM config changed.
-    private static final int EVENT_MULTI_SIM_CONFIG_CHANGED = 17;
+    @VisibleForTesting
+    static final int EVENT_MULTI_SIM_CONFIG_CHANGED = 17;
     // Attempt to fetch from default app or read from XML for no SIM case.
     private static final int EVENT_DO_FETCH_DEFAULT_FOR_NO_SIM_CONFIG = 18;
     // No SIM config has been loaded from default app (or cache).
@@ -186,6 +255,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     private static final String OVERRIDE_PACKAGE_ADDITION = "-override";
 
+    // File name suffix of configs cached in the legacy XML format, which are migrated to the
+    // binary format of CarrierConfigCacheFile when read.
+    private static final String XML_FILE_SUFFIX = ".xml";
+
     // SharedPreferences key for last known build fingerprint.
     private static final String KEY_FINGERPRINT = "build_fingerprint";
 
@@ -233,6 +306,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     && msg.what != EVENT_MULTI_SIM_CONFIG_CHANGED) {
                 return;
             }
+            recordLoadingStage(phoneId, msg.what);
             switch (msg.what) {
                 case EVENT_CLEAR_CONFIG: {
                     clearConfigForPhone(phoneId, true);
@@ -271,6 +345,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     if (mConfigFromCarrierApp[phoneId] != null
                             && getCarrierPackageForPhoneId(phoneId) == null) {
                         mConfigFromCarrierApp[phoneId] = null;
+                        invalidateMergedConfig(phoneId);
                     }
                     // Restore persistent override values.
                     PersistableBundle config = restoreConfigFromXml(
@@ -280,6 +355,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                 + mPlatformCarrierConfigPackage
                                 + " phoneId=" + phoneId);
                         mPersistentOverrideConfigs[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                     }
 
                     config = restoreConfigFromXml(mPlatformCarrierConfigPackage, "", phoneId);
@@ -290,6 +366,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromDefaultApp[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                         Message newMsg = obtainMessage(EVENT_FETCH_DEFAULT_DONE, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         mHandler.sendMessage(newMsg);
@@ -307,6 +384,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             // Put a stub bundle in place so that the rest of the logic continues
                             // smoothly.
                             mConfigFromDefaultApp[phoneId] = new PersistableBundle();
+                            invalidateMergedConfig(phoneId);
                             // Send broadcast if bind fails.
                             updateSubscriptionDatabase(phoneId);
                             // TODO: We *must* call unbindService even if bindService returns false.
@@ -351,6 +429,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                     saveConfigToXml(mPlatformCarrierConfigPackage, "", phoneId,
                                             carrierId, config);
                                     mConfigFromDefaultApp[phoneId] = config;
+                                    invalidateMergedConfig(phoneId);
                                     sendMessage(
                                             obtainMessage(
                                                     EVENT_FETCH_DEFAULT_DONE, phoneId, -1));
@@ -392,6 +471,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     }
                     // Put a stub bundle in place so that the rest of the logic continues smoothly.
                     mConfigFromDefaultApp[phoneId] = new PersistableBundle();
+                    invalidateMergedConfig(phoneId);
                     updateSubscriptionDatabase(phoneId);
                     break;
                 }
@@ -424,6 +504,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                         + " phoneId="
                                         + phoneId);
                         mConfigFromCarrierApp[phoneId] = config;
+                        invalidateMergedConfig(phoneId);
                         Message newMsg = obtainMessage(EVENT_FETCH_CARRIER_DONE, phoneId, -1);
                         newMsg.getData().putBoolean("loaded_from_xml", true);
                         sendMessage(newMsg);
@@ -439,6 +520,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             // Put a stub bundle in place so that the rest of the logic continues
                             // smoothly.
                             mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                            invalidateMergedConfig(phoneId);
                             // Send broadcast if bind fails.
                             broadcastConfigChangedIntent(phoneId);
                             loge("Bind to carrier app: " + carrierPackageName + " fails");
@@ -484,12 +566,14 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                             phoneId, carrierId, config);
                                     if (config != null) {
                                         mConfigFromCarrierApp[phoneId] = config;
+                                        invalidateMergedConfig(phoneId);
                                     } else {
                                         logdWithLocalLog("Config from carrier app is null "
                                                 + "for phoneId " + phoneId);
                                         // Put a stub bundle in place so that the rest of the logic
                                         // continues smoothly.
                                         mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                                        invalidateMergedConfig(phoneId);
                                     }
                                     sendMessage(
                                             obtainMessage(
@@ -532,6 +616,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     }
                     // Put a stub bundle in place so that the rest of the logic continues smoothly.
                     mConfigFromCarrierApp[phoneId] = new PersistableBundle();
+                    invalidateMergedConfig(phoneId);
                     updateSubscriptionDatabase(phoneId);
                     break;
                 }
@@ -580,6 +665,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         logd("Loaded no SIM config from XML. package="
                                 + mPlatformCarrierConfigPackage);
                         mNoSimConfig = config;
+                        invalidateMergedNoSimConfig();
                         sendMessage(
                                 obtainMessage(
                                         EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_DONE,
@@ -658,6 +744,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                             resultData.getParcelable(KEY_CONFIG_BUNDLE);
                                     saveNoSimConfigToXml(mPlatformCarrierConfigPackage, config);
                                     mNoSimConfig = config;
+                                    invalidateMergedNoSimConfig();
                                     sendMessage(
                                             obtainMessage(
                                                     EVENT_FETCH_DEFAULT_FOR_NO_SIM_CONFIG_DONE,
@@ -709,6 +796,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromCarrierApp = new PersistableBundle[mNumPhones];
         mPersistentOverrideConfigs = new PersistableBundle[mNumPhones];
         mOverrideConfigs = new PersistableBundle[mNumPhones];
+        mMergedConfigs = new PersistableBundle[mNumPhones];
         mNoSimConfig = new PersistableBundle();
         mServiceConnection = new CarrierServiceConnection[mNumPhones];
         mServiceBound = new boolean[mNumPhones];
@@ -767,6 +855,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         mConfigFromDefaultApp[phoneId] = null;
         mConfigFromCarrierApp[phoneId] = null;
+        invalidateMergedConfig(phoneId);
+        if (mServiceConnection[phoneId] != null) {
+            // Any fetch in flight is abandoned, so there is no need to keep its binding.
+            unbindIfBound(mContext, mServiceConnection[phoneId], phoneId);
+        }
         mServiceConnection[phoneId] = null;
         mHasSentConfigChange[phoneId] = false;
 
@@ -847,6 +940,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         mContext.sendBroadcastAsUser(intent, UserHandle.ALL);
+        notifyKeysChangedListeners(phoneId, subId);
 
         if (SubscriptionManager.isValidSubscriptionId(subId)) {
             logd("Broadcast CARRIER_CONFIG_CHANGED for phone " + phoneId + ", subId=" + subId);
@@ -857,6 +951,70 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mFromSystemUnlocked[phoneId] = false;
     }
 
+    /**
+     * Registers a listener that is notified when the value of any of the given carrier config
+     * keys changes for any phone.
+     *
+     * @param keys     the keys the listener depends on, or null to be notified of any change.
+     * @param executor the executor the listener is invoked on.
+     * @param listener the listener.
+     */
+    public void registerCarrierConfigKeysChangedListener(@Nullable Set<String> keys,
+            @NonNull Executor executor, @NonNull CarrierConfigKeysChangedListener listener) {
+        Objects.requireNonNull(executor, "Executor must be non-null");
+        Objects.requireNonNull(listener, "Listener must be non-null");
+        mKeysChangedListeners.add(new KeysChangedListenerRecord(
+                keys != null ? new ArraySet<>(keys) : null, executor, listener));
+    }
+
+    /** Unregisters a listener registered with {@link #registerCarrierConfigKeysChangedListener}. */
+    public void unregisterCarrierConfigKeysChangedListener(
+            @NonNull CarrierConfigKeysChangedListener listener) {
+        mKeysChangedListeners.removeIf(record -> record.listener == listener);
+    }
+
+    /**
+     * Compares the current merged config of the phone with the one listeners were last notified
+     * about, and notifies the listeners registered for any of the keys that changed.
+     */
+    private void notifyKeysChangedListeners(int phoneId, int subId) {
+        // Without a subscription, callers get the no SIM config.
+        PersistableBundle newConfig = getMergedConfigSnapshot(
+                SubscriptionManager.isValidSubscriptionId(subId)
+                        ? phoneId : SubscriptionManager.INVALID_PHONE_INDEX);
+        PersistableBundle oldConfig = mLastNotifiedConfigs.get(phoneId);
+        boolean subIdChanged = mLastNotifiedSubIds.get(phoneId,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID) != subId;
+        mLastNotifiedConfigs.put(phoneId, newConfig);
+        mLastNotifiedSubIds.put(phoneId, subId);
+
+        final Set<String> changedKeys;
+        if (subIdChanged || oldConfig == null) {
+            changedKeys = null;
+        } else {
+            changedKeys = CarrierConfigDiff.getChangedKeys(oldConfig, newConfig);
+            if (changedKeys.isEmpty()) return;
+        }
+        logd("notifyKeysChangedListeners: phoneId=" + phoneId + ", subId=" + subId
+                + ", changed " + (changedKeys == null ? "all" : changedKeys.size()) + " keys");
+
+        for (KeysChangedListenerRecord record : mKeysChangedListeners) {
+            final Set<String> keysToReport;
+            if (changedKeys == null) {
+                keysToReport = record.keys != null ? record.keys : newConfig.keySet();
+            } else if (record.keys == null) {
+                keysToReport = changedKeys;
+            } else {
+                keysToReport = new ArraySet<>(record.keys);
+                keysToReport.retainAll(changedKeys);
+            }
+            if (keysToReport.isEmpty()) continue;
+            final Set<String> reportedKeys = Collections.unmodifiableSet(keysToReport);
+            record.executor.execute(() -> record.listener.onCarrierConfigKeysChanged(
+                    phoneId, subId, reportedKeys));
+        }
+    }
+
     private int getSimApplicationStateForPhone(int phoneId) {
         int simApplicationState = TelephonyManager.SIM_STATE_UNKNOWN;
         int subId = SubscriptionManager.getSubscriptionId(phoneId);
@@ -868,33 +1026,95 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         return simApplicationState;
     }
 
-    /** Binds to the default or carrier config app. */
+    /**
+     * Binds to the default or carrier config app.
+     *
+     * All phones share a single binding per package, so when several phones fetch from the same
+     * package at the same time only the first one actually binds and the others attach to it.
+     */
     private boolean bindToConfigPackage(@NonNull String pkgName, int phoneId, int eventId) {
         logdWithLocalLog("Binding to " + pkgName + " for phone " + phoneId);
-        Intent carrierService = new Intent(CarrierService.CARRIER_SERVICE_INTERFACE);
-        carrierService.setPackage(pkgName);
         CarrierServiceConnection serviceConnection =  new CarrierServiceConnection(
                 phoneId, pkgName, eventId);
+        final CarrierServiceConnection previousConnection;
         if (eventId == EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG) {
+            previousConnection = mServiceConnectionForNoSimConfig[phoneId];
             mServiceConnectionForNoSimConfig[phoneId] = serviceConnection;
         } else {
+            previousConnection = mServiceConnection[phoneId];
             mServiceConnection[phoneId] = serviceConnection;
         }
-        try {
-            if (mContext.bindService(carrierService, serviceConnection,
-                    Context.BIND_AUTO_CREATE)) {
-                if (eventId == EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG) {
-                    mServiceBoundForNoSimConfig[phoneId] = true;
-                } else {
-                    mServiceBound[phoneId] = true;
+        // A new request supersedes the previous one of this phone, whose response will be ignored.
+        if (previousConnection != null) {
+            releaseSharedConnection(mContext, previousConnection);
+        }
+        if (!acquireSharedConnection(serviceConnection)) {
+            return false;
+        }
+        if (eventId == EVENT_CONNECTED_TO_DEFAULT_FOR_NO_SIM_CONFIG) {
+            mServiceBoundForNoSimConfig[phoneId] = true;
+        } else {
+            mServiceBound[phoneId] = true;
+        }
+        return true;
+    }
+
+    /**
+     * Attaches the connection to the shared binding of its package, binding to the package if no
+     * other connection is attached yet. If the shared binding is already connected, the connection
+     * is notified right away.
+     *
+     * @return false if binding to the package failed.
+     */
+    private boolean acquireSharedConnection(@NonNull CarrierServiceConnection conn) {
+        SharedServiceConnection shared = mSharedConnections.get(conn.pkgName);
+        if (shared == null) {
+            Intent carrierService = new Intent(CarrierService.CARRIER_SERVICE_INTERFACE);
+            carrierService.setPackage(conn.pkgName);
+            shared = new SharedServiceConnection(conn.pkgName);
+            try {
+                if (!mContext.bindService(carrierService, shared, Context.BIND_AUTO_CREATE)) {
+                    return false;
                 }
-                return true;
-            } else {
+            } catch (SecurityException ex) {
                 return false;
             }
-        } catch (SecurityException ex) {
+            synchronized (mSharedConnections) {
+                mSharedConnections.put(conn.pkgName, shared);
+                mNumBindings++;
+            }
+        } else {
+            synchronized (mSharedConnections) {
+                mNumSharedBindings++;
+            }
+            logdWithLocalLog("Sharing binding to " + conn.pkgName + " with phone " + conn.phoneId);
+        }
+        shared.clients.add(conn);
+        if (shared.service != null) {
+            conn.onServiceConnected(shared.name, shared.service);
+        }
+        return true;
+    }
+
+    /**
+     * Detaches the connection from the shared binding of its package, and unbinds from the
+     * package once no connection is attached anymore.
+     *
+     * @return true if the connection was attached.
+     */
+    private boolean releaseSharedConnection(@NonNull Context context,
+            @NonNull CarrierServiceConnection conn) {
+        SharedServiceConnection shared = mSharedConnections.get(conn.pkgName);
+        if (shared == null || !shared.clients.remove(conn)) {
             return false;
         }
+        if (shared.clients.isEmpty()) {
+            synchronized (mSharedConnections) {
+                mSharedConnections.remove(conn.pkgName);
+            }
+            context.unbindService(shared);
+        }
+        return true;
     }
 
     @VisibleForTesting
@@ -978,7 +1198,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Writes a bundle to an XML file.
+     * Writes a bundle to a cached config file.
+     *
+     * Despite the name, the bundle is written in the binary format of
+     * {@link CarrierConfigCacheFile}, replacing the file atomically.
      *
      * The bundle will be written to a file named after the package name, ICCID and
      * specific carrier id {@link TelephonyManager#getSimSpecificCarrierId()}. the same carrier
@@ -1045,13 +1268,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         logdWithLocalLog(
                 "Save config to xml, packagename: " + packageName + " phoneId: " + phoneId);
 
-        FileOutputStream outFile = null;
         try {
-            outFile = new FileOutputStream(new File(mContext.getFilesDir(), fileName));
             config.putString(KEY_VERSION, version);
-            config.writeToStream(outFile);
-            outFile.flush();
-            outFile.close();
+            CarrierConfigCacheFile.write(new File(mContext.getFilesDir(),
+                    fileName + CarrierConfigCacheFile.FILE_SUFFIX), config);
+            // The binary file supersedes any config cached in the legacy XML format.
+            new File(mContext.getFilesDir(), fileName + XML_FILE_SUFFIX).delete();
         } catch (IOException e) {
             loge(e.toString());
         }
@@ -1070,10 +1292,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Reads a bundle from an XML file.
+     * Reads a bundle from a cached config file.
      *
      * This restores a bundle that was written with {@link #saveConfigToXml}. This returns the saved
-     * config bundle for the given package and phone ID.
+     * config bundle for the given package and phone ID. A config cached in the legacy XML format is
+     * migrated to the binary format of {@link CarrierConfigCacheFile} the first time it is read.
      *
      * In case of errors, or if the saved config is from a different package version than the
      * current version, then null will be returned.
@@ -1117,42 +1340,67 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             fileName = getFilenameForConfig(packageName, extraString, iccid, cid);
         }
 
-        PersistableBundle restoredBundle = null;
-        File file = null;
-        FileInputStream inFile = null;
+        final File file = new File(mContext.getFilesDir(),
+                fileName + CarrierConfigCacheFile.FILE_SUFFIX);
+        PersistableBundle restoredBundle;
         try {
-            file = new File(mContext.getFilesDir(),fileName);
-            inFile = new FileInputStream(file);
-
-            restoredBundle = PersistableBundle.readFromStream(inFile);
-            String savedVersion = restoredBundle.getString(KEY_VERSION);
-            restoredBundle.remove(KEY_VERSION);
-
-            if (!version.equals(savedVersion)) {
-                loge("Saved version mismatch: " + version + " vs " + savedVersion);
-                restoredBundle = null;
+            restoredBundle = CarrierConfigCacheFile.read(file);
+            if (restoredBundle == null) {
+                restoredBundle = migrateConfigFromXml(
+                        new File(mContext.getFilesDir(), fileName + XML_FILE_SUFFIX), file);
             }
+        } catch (IOException e) {
+            loge(e.toString());
+            return null;
+        }
 
-            inFile.close();
-        } catch (FileNotFoundException e) {
+        if (restoredBundle == null) {
             // Missing file is normal occurrence that might occur with a new sim or when restoring
             // an override file during boot and should not be treated as an error.
-            if (file != null) {
-                if (isNoSimConfig) {
-                    logd("File not found: " + file.getPath());
-                } else {
-                    String filePath = file.getPath();
-                    filePath = getFilePathForLogging(filePath, iccid);
-                    logd("File not found : " + filePath);
-                }
+            if (isNoSimConfig) {
+                logd("File not found: " + file.getPath());
+            } else {
+                logd("File not found : " + getFilePathForLogging(file.getPath(), iccid));
             }
-        } catch (IOException e) {
-            loge(e.toString());
+            return null;
         }
 
+        String savedVersion = restoredBundle.getString(KEY_VERSION);
+        restoredBundle.remove(KEY_VERSION);
+        if (!version.equals(savedVersion)) {
+            loge("Saved version mismatch: " + version + " vs " + savedVersion);
+            return null;
+        }
         return restoredBundle;
     }
 
+    /**
+     * Reads a config cached in the legacy XML format and rewrites it in the binary format, so
+     * that later reads skip parsing the XML.
+     *
+     * @param xmlFile    the legacy XML file.
+     * @param binaryFile the binary file to migrate the config to.
+     * @return the config, or null if there is no legacy XML file.
+     */
+    @Nullable
+    private PersistableBundle migrateConfigFromXml(@NonNull File xmlFile,
+            @NonNull File binaryFile) throws IOException {
+        PersistableBundle config;
+        try (FileInputStream inFile = new FileInputStream(xmlFile)) {
+            config = PersistableBundle.readFromStream(inFile);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            CarrierConfigCacheFile.write(binaryFile, config);
+            xmlFile.delete();
+        } catch (IOException e) {
+            // Keep the XML file so that the migration is retried on the next restore.
+            loge("Failed to migrate cached config to binary format: " + e);
+        }
+        return config;
+    }
+
     /**
      * This method will mask most part of iccid in the filepath for logging on userbuild
      */
@@ -1221,7 +1469,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         return filePath;
     }
 
-    /** Builds a canonical file name for a config file. */
+    /**
+     * Builds a canonical file name for a config file. The name has no suffix; either
+     * {@link CarrierConfigCacheFile#FILE_SUFFIX} or {@link #XML_FILE_SUFFIX} is appended depending
+     * on the format.
+     */
     @NonNull
     private static String getFilenameForConfig(
             @NonNull String packageName, @NonNull String extraString,
@@ -1230,13 +1482,13 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         // However, it's still possible that platform doesn't recognize the current sim carrier,
         // we will use iccid + carrierid as the canonical file name. carrierid can also handle the
         // cases SIM OTA resolves to different carrier while iccid remains the same.
-        return "carrierconfig-" + packageName + extraString + "-" + iccid + "-" + cid + ".xml";
+        return "carrierconfig-" + packageName + extraString + "-" + iccid + "-" + cid;
     }
 
-    /** Builds a canonical file name for no SIM config file. */
+    /** Builds a canonical file name, without suffix, for no SIM config file. */
     @NonNull
     private String getFilenameForNoSimConfig(@NonNull String packageName) {
-        return "carrierconfig-" + packageName + "-" + "nosim" + ".xml";
+        return "carrierconfig-" + packageName + "-" + "nosim";
     }
 
     /** Return the current version code of a package, or null if the name is not found. */
@@ -1293,6 +1545,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromCarrierApp = Arrays.copyOf(mConfigFromCarrierApp, mNumPhones);
         mPersistentOverrideConfigs = Arrays.copyOf(mPersistentOverrideConfigs, mNumPhones);
         mOverrideConfigs = Arrays.copyOf(mOverrideConfigs, mNumPhones);
+        synchronized (mMergedConfigLock) {
+            // Snapshots are rebuilt on demand, so there is no need to keep them across resizing.
+            mMergedConfigs = new PersistableBundle[mNumPhones];
+        }
         mServiceConnection = Arrays.copyOf(mServiceConnection, mNumPhones);
         mServiceConnectionForNoSimConfig =
                 Arrays.copyOf(mServiceConnectionForNoSimConfig, mNumPhones);
@@ -1327,38 +1583,108 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
+        // Callers in the phone process receive this bundle without parceling, so hand out a deep
+        // copy of the shared snapshot, whose array and bundle values are shared with the
+        // platform defaults.
+        PersistableBundle retConfig = getMergedConfigSnapshot(phoneId).deepCopy();
         if (SubscriptionManager.isValidPhoneId(phoneId)) {
-            PersistableBundle config = mConfigFromDefaultApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-            }
-            config = mConfigFromCarrierApp[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
-            }
-            config = mPersistentOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
+            retConfig.putBoolean(
+                    CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+                    isAllConfigsApplied(phoneId));
+        }
+        return retConfig;
+    }
+
+    /**
+     * Returns whether the configs from the default app and, if there is one, the carrier app
+     * have both been loaded for the given valid phone ID.
+     */
+    private boolean isAllConfigsApplied(int phoneId) {
+        // Ignore the theoretical case of the default app not being present since that won't
+        // work in CarrierConfigLoader today.
+        return (mConfigFromCarrierApp[phoneId] != null
+                    || getCarrierPackageForPhoneId(phoneId) == null)
+                && mConfigFromDefaultApp[phoneId] != null;
+    }
+
+    /**
+     * Returns the shared copy of the CarrierConfigManager default values. Neither the bundle nor
+     * its array and bundle values may be modified or handed out to callers without a deep copy.
+     */
+    @NonNull
+    private PersistableBundle getPlatformDefaultConfig() {
+        PersistableBundle defaults = mPlatformDefaultConfig;
+        if (defaults == null) {
+            defaults = CarrierConfigManager.getDefaultConfig();
+            mPlatformDefaultConfig = defaults;
+        }
+        return defaults;
+    }
+
+    /**
+     * Resolves the value of a single key for the given phone without building the merged config.
+     *
+     * If a merged snapshot is available it is used directly, otherwise the layers are searched
+     * top-down: override, persistent override, carrier app, default app and finally the platform
+     * defaults. For an invalid phone ID the no SIM config and the platform defaults are searched.
+     * A layer that contains the key wins even if the value is null, which matches the result of
+     * merging the layers with {@link PersistableBundle#putAll}.
+     *
+     * @return a copy of the value that the caller may modify, or null if no layer provides one.
+     */
+    @Nullable
+    private Object resolveConfigValue(int phoneId, @NonNull String key) {
+        return copyConfigValue(findConfigValue(phoneId, key));
+    }
+
+    /** Looks up the value of the key in the shared config layers, without copying it. */
+    @Nullable
+    private Object findConfigValue(int phoneId, @NonNull String key) {
+        synchronized (mMergedConfigLock) {
+            if (!SubscriptionManager.isValidPhoneId(phoneId) || phoneId >= mMergedConfigs.length) {
+                if (mMergedNoSimConfig != null) {
+                    return mMergedNoSimConfig.get(key);
+                }
+                if (mNoSimConfig != null && mNoSimConfig.containsKey(key)) {
+                    return mNoSimConfig.get(key);
+                }
+                return getPlatformDefaultConfig().get(key);
             }
-            config = mOverrideConfigs[phoneId];
-            if (config != null) {
-                retConfig.putAll(config);
+            if (mMergedConfigs[phoneId] != null) {
+                return mMergedConfigs[phoneId].get(key);
             }
-            // Ignore the theoretical case of the default app not being present since that won't
-            // work in CarrierConfigLoader today.
-            final boolean allConfigsApplied =
-                    (mConfigFromCarrierApp[phoneId] != null
-                        || getCarrierPackageForPhoneId(phoneId) == null)
-                    && mConfigFromDefaultApp[phoneId] != null;
-            retConfig.putBoolean(
-                    CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL, allConfigsApplied);
-        } else {
-            if (mNoSimConfig != null) {
-                retConfig.putAll(mNoSimConfig);
+            PersistableBundle[][] layers = {mOverrideConfigs, mPersistentOverrideConfigs,
+                    mConfigFromCarrierApp, mConfigFromDefaultApp};
+            for (PersistableBundle[] layer : layers) {
+                PersistableBundle config = layer[phoneId];
+                if (config != null && config.containsKey(key)) {
+                    return config.get(key);
+                }
             }
+            return getPlatformDefaultConfig().get(key);
         }
-        return retConfig;
+    }
+
+    /**
+     * Returns a copy of a config value if it is mutable, so that a caller modifying the value does
+     * not change the shared config layers or platform defaults it came from.
+     */
+    @Nullable
+    private static Object copyConfigValue(@Nullable Object value) {
+        if (value instanceof PersistableBundle) {
+            return ((PersistableBundle) value).deepCopy();
+        } else if (value instanceof int[]) {
+            return ((int[]) value).clone();
+        } else if (value instanceof long[]) {
+            return ((long[]) value).clone();
+        } else if (value instanceof double[]) {
+            return ((double[]) value).clone();
+        } else if (value instanceof boolean[]) {
+            return ((boolean[]) value).clone();
+        } else if (value instanceof String[]) {
+            return ((String[]) value).clone();
+        }
+        return value;
     }
 
     @Override
@@ -1370,22 +1696,24 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         Objects.requireNonNull(keys, "Config keys must be non-null");
         enforceCallerIsSystemOrRequestingPackage(callingPackage);
 
-        // Permission check is performed inside and an empty bundle will return on failure.
+        // An empty bundle will return on permission check failure.
         // No SecurityException thrown here since most clients expect to retrieve the overridden
         // value if present or use default one if not
-        PersistableBundle allConfigs = getConfigForSubIdWithFeature(subscriptionId, callingPackage,
-                callingFeatureId);
-        if (allConfigs.isEmpty()) {
-            return allConfigs;
+        if (!TelephonyPermissions.checkCallingOrSelfReadPhoneState(mContext, subscriptionId,
+                callingPackage, callingFeatureId, "getCarrierConfig")) {
+            return new PersistableBundle();
         }
         for (String key : keys) {
             Objects.requireNonNull(key, "Config key must be non-null");
         }
 
+        // Resolve each requested key on its own so that the cost is proportional to the number
+        // of keys rather than to the size of the whole config.
+        int phoneId = SubscriptionManager.getPhoneId(subscriptionId);
         PersistableBundle configSubset = new PersistableBundle(
                 keys.length + CONFIG_SUBSET_METADATA_KEYS.length);
         for (String carrierConfigKey : keys) {
-            Object value = allConfigs.get(carrierConfigKey);
+            Object value = resolveConfigValue(phoneId, carrierConfigKey);
             if (value == null) {
                 // Filter out keys without values.
                 // In history, many AOSP or OEMs/carriers private configs didn't provide default
@@ -1402,7 +1730,11 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
         // Configs in CONFIG_SUBSET_ALWAYS_INCLUDED_KEYS should always be included
         for (String generalKey : CONFIG_SUBSET_METADATA_KEYS) {
-            configSubset.putObject(generalKey, allConfigs.get(generalKey));
+            configSubset.putObject(generalKey, resolveConfigValue(phoneId, generalKey));
+        }
+        if (SubscriptionManager.isValidPhoneId(phoneId)) {
+            configSubset.putBoolean(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL,
+                    isAllConfigsApplied(phoneId));
         }
 
         return configSubset;
@@ -1436,8 +1768,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     final int cid = getSpecificCarrierIdForPhoneId(phoneId);
                     String fileName = getFilenameForConfig(mPlatformCarrierConfigPackage,
                             OVERRIDE_PACKAGE_ADDITION, iccid, cid);
-                    File fileToDelete = new File(mContext.getFilesDir(), fileName);
-                    fileToDelete.delete();
+                    new File(mContext.getFilesDir(),
+                            fileName + CarrierConfigCacheFile.FILE_SUFFIX).delete();
+                    new File(mContext.getFilesDir(), fileName + XML_FILE_SUFFIX).delete();
                 }
             }
             updateSubscriptionDatabase(phoneId);
@@ -1453,6 +1786,70 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         } else {
             currentOverrides[phoneId].putAll(overrides);
         }
+        invalidateMergedConfig(phoneId);
+    }
+
+    /**
+     * Drops the merged config snapshot of the given phone. Must be called whenever one of the
+     * config layers of that phone changes.
+     */
+    private void invalidateMergedConfig(int phoneId) {
+        synchronized (mMergedConfigLock) {
+            if (phoneId >= 0 && phoneId < mMergedConfigs.length) {
+                mMergedConfigs[phoneId] = null;
+            }
+        }
+    }
+
+    /** Drops the merged no SIM config snapshot. Must be called whenever mNoSimConfig changes. */
+    private void invalidateMergedNoSimConfig() {
+        synchronized (mMergedConfigLock) {
+            mMergedNoSimConfig = null;
+        }
+    }
+
+    /**
+     * Returns the platform defaults merged with the default app, carrier app, persistent override
+     * and override configs of the given phone, or with the no SIM config if the phone ID is
+     * invalid. The snapshot is built once per change of any layer.
+     *
+     * The returned bundle is shared and must not be modified or handed out to callers.
+     */
+    @NonNull
+    private PersistableBundle getMergedConfigSnapshot(int phoneId) {
+        synchronized (mMergedConfigLock) {
+            if (!SubscriptionManager.isValidPhoneId(phoneId) || phoneId >= mMergedConfigs.length) {
+                if (mMergedNoSimConfig == null) {
+                    mMergedNoSimConfig = new PersistableBundle(getPlatformDefaultConfig());
+                    if (mNoSimConfig != null) {
+                        mMergedNoSimConfig.putAll(mNoSimConfig);
+                    }
+                }
+                return mMergedNoSimConfig;
+            }
+            PersistableBundle merged = mMergedConfigs[phoneId];
+            if (merged == null) {
+                merged = new PersistableBundle(getPlatformDefaultConfig());
+                PersistableBundle config = mConfigFromDefaultApp[phoneId];
+                if (config != null) {
+                    merged.putAll(config);
+                }
+                config = mConfigFromCarrierApp[phoneId];
+                if (config != null) {
+                    merged.putAll(config);
+                }
+                config = mPersistentOverrideConfigs[phoneId];
+                if (config != null) {
+                    merged.putAll(config);
+                }
+                config = mOverrideConfigs[phoneId];
+                if (config != null) {
+                    merged.putAll(config);
+                }
+                mMergedConfigs[phoneId] = merged;
+            }
+            return merged;
+        }
     }
 
     @Override
@@ -1544,17 +1941,54 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     // TODO(b/185129900): always call unbindService after bind, no matter if it succeeded
     private void unbindIfBound(@NonNull Context context, @NonNull CarrierServiceConnection conn,
             int phoneId) {
-        if (mServiceBound[phoneId]) {
+        // A stale connection may still be attached, so release it regardless of mServiceBound but
+        // only clear the flag for the current connection of the phone.
+        if (releaseSharedConnection(context, conn) && mServiceConnection[phoneId] == conn) {
             mServiceBound[phoneId] = false;
-            context.unbindService(conn);
         }
     }
 
     private void unbindIfBoundForNoSimConfig(@NonNull Context context,
             @NonNull CarrierServiceConnection conn, int phoneId) {
-        if (mServiceBoundForNoSimConfig[phoneId]) {
+        if (releaseSharedConnection(context, conn)
+                && mServiceConnectionForNoSimConfig[phoneId] == conn) {
             mServiceBoundForNoSimConfig[phoneId] = false;
-            context.unbindService(conn);
+        }
+    }
+
+    /** Records the time at which the given loading stage was reached for the phone. */
+    private void recordLoadingStage(int phoneId, int event) {
+        if (!SubscriptionManager.isValidPhoneId(phoneId)) return;
+        SparseLongArray timestamps = mLoadingStageTimestamps.get(phoneId);
+        if (timestamps == null) {
+            timestamps = new SparseLongArray();
+            mLoadingStageTimestamps.put(phoneId, timestamps);
+        }
+        timestamps.put(event, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Prints how long after the start of the latest config loading of each phone every stage
+     * was reached.
+     */
+    private void dumpLoadingStageTimings(@NonNull IndentingPrintWriter indentPW) {
+        synchronized (mSharedConnections) {
+            indentPW.println("Config package bindings=" + mNumBindings
+                    + " sharedBindings=" + mNumSharedBindings
+                    + " activeBindings=" + new ArrayList<>(mSharedConnections.keySet()));
+        }
+        for (int i = 0; i < mLoadingStageTimestamps.size(); i++) {
+            SparseLongArray timestamps = mLoadingStageTimestamps.valueAt(i);
+            long start = timestamps.get(EVENT_DO_FETCH_DEFAULT, -1);
+            if (start < 0) continue;
+            indentPW.println("Loading stages for phone " + mLoadingStageTimestamps.keyAt(i) + ":");
+            indentPW.increaseIndent();
+            for (int j = 0; j < timestamps.size(); j++) {
+                if (timestamps.valueAt(j) < start) continue;
+                indentPW.println(eventToString(timestamps.keyAt(j)) + " +"
+                        + (timestamps.valueAt(j) - start) + "ms");
+            }
+            indentPW.decreaseIndent();
         }
     }
 
@@ -1613,6 +2047,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
 
         printConfig(mNoSimConfig, indentPW, "mNoSimConfig");
+        dumpLoadingStageTimings(indentPW);
         indentPW.println("CarrierConfigLoadingLog=");
         mCarrierConfigLoadingLog.dump(fd, indentPW, args);
 
@@ -1813,6 +2248,71 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         }
     }
 
+    /**
+     * Binding to a config package shared by the {@link CarrierServiceConnection}s of all phones
+     * fetching from that package. Connection events are forwarded to the attached connections on
+     * the handler thread.
+     */
+    private class SharedServiceConnection implements ServiceConnection {
+        @NonNull final String pkgName;
+        @NonNull final List<CarrierServiceConnection> clients = new ArrayList<>();
+        @Nullable ComponentName name;
+        @Nullable IBinder service;
+
+        SharedServiceConnection(@NonNull String pkgName) {
+            this.pkgName = pkgName;
+        }
+
+        @Override
+        public void onServiceConnected(@NonNull ComponentName name, @NonNull IBinder service) {
+            mHandler.post(() -> {
+                this.name = name;
+                this.service = service;
+                for (CarrierServiceConnection client : new ArrayList<>(clients)) {
+                    client.onServiceConnected(name, service);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceDisconnected(@NonNull ComponentName name) {
+            mHandler.post(() -> {
+                this.service = null;
+                for (CarrierServiceConnection client : clients) {
+                    client.onServiceDisconnected(name);
+                }
+            });
+        }
+
+        @Override
+        public void onBindingDied(@NonNull ComponentName name) {
+            mHandler.post(() -> {
+                this.service = null;
+                for (CarrierServiceConnection client : clients) {
+                    client.onBindingDied(name);
+                }
+                // The binding will not reconnect, so let the next request bind again.
+                clients.clear();
+                if (mSharedConnections.get(pkgName) == this) {
+                    synchronized (mSharedConnections) {
+                        mSharedConnections.remove(pkgName);
+                    }
+                    mContext.unbindService(this);
+                }
+            });
+        }
+
+        @Override
+        public void onNullBinding(@NonNull ComponentName name) {
+            mHandler.post(() -> {
+                this.service = null;
+                for (CarrierServiceConnection client : clients) {
+                    client.onNullBinding(name);
+                }
+            });
+        }
+    }
+
     private class ConfigLoaderBroadcastReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(@NonNull Context context, @NonNull Intent intent) {
@@ -918,6 +918,9 @@ public class ImsProvisioningController {
         for (int i = 0; i < mProvisioningCallbackManagersSlotMap.size(); i++) {
             mProvisioningCallbackManagersSlotMap.get(i).clear();
         }
+
+        // Make sure that provisioning changes that are not written yet are not lost.
+        mImsProvisioningLoader.flush();
     }
 
     /**
@@ -24,6 +24,8 @@ import android.telephony.ims.ProvisioningManager;
 import android.telephony.ims.feature.ImsFeature;
 import android.telephony.ims.feature.MmTelFeature;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
+import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -34,9 +36,20 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a function to set/get Ims feature provisioning status in storage.
+ *
+ * Updates are applied to the in-memory cache immediately and written to storage behind the
+ * caller: all subscriptions changed within {@link #WRITE_DELAY_MS} of the first pending change
+ * are written together on a background thread. Each file is replaced atomically, so a crash
+ * while writing leaves the previous contents intact. {@link #flush()} writes pending changes
+ * synchronously.
  */
 public class ImsProvisioningLoader {
     private static final String LOG_TAG = ImsProvisioningLoader.class.getSimpleName();
@@ -53,16 +66,34 @@ public class ImsProvisioningLoader {
     private static final String PROVISIONING_FILE_NAME_PREF = "imsprovisioningstatus_";
     private static final String PREF_PROVISION_IMS_MMTEL_PREFIX = "provision_ims_mmtel_";
 
+    // Delay between the first pending change and the write, so that a burst of changes such as
+    // the initial provisioning keys of a subscription results in a single write per file.
+    @VisibleForTesting
+    static final long WRITE_DELAY_MS = 200;
+
     private Context mContext;
     private SharedPreferences mTelephonySharedPreferences;
     // key : sub Id, value : read from sub Id's xml and it's in-memory cache
-    private SparseArray<PersistableBundle> mSubIdBundleArray = new SparseArray<>();
+    private SparseArray<ImsProvisioningStatusTable> mSubIdStatusTables = new SparseArray<>();
     private final Object mLock = new Object();
+    // Serializes file writes between the background thread and flush().
+    private final Object mWriteLock = new Object();
+    private final ScheduledExecutorService mWriteExecutor;
+    // sub Ids whose in-memory cache has changes that are not written yet, guarded by mLock
+    private final ArraySet<Integer> mPendingWriteSubIds = new ArraySet<>();
+    private boolean mIsWriteScheduled = false;
+    private ScheduledFuture<?> mScheduledWrite;
 
     public ImsProvisioningLoader(Context context) {
+        this(context, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    @VisibleForTesting
+    public ImsProvisioningLoader(Context context, ScheduledExecutorService writeExecutor) {
         mContext = context;
         mTelephonySharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(context);
+        mWriteExecutor = writeExecutor;
     }
 
     /**
@@ -86,20 +117,33 @@ public class ImsProvisioningLoader {
                 isProvisioned);
     }
 
+    /**
+     * Write all pending provisioning changes to storage before returning.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            if (mScheduledWrite != null) {
+                mScheduledWrite.cancel(false);
+                mScheduledWrite = null;
+            }
+            mIsWriteScheduled = false;
+        }
+        writePendingChanges();
+    }
+
     private boolean isFileExist(int subId) {
-        File file = new File(mContext.getFilesDir(), getFileName(subId));
-        return file.exists();
+        return getAtomicFile(subId).exists();
     }
 
     private void initCache(int subId) {
         synchronized (mLock) {
-            PersistableBundle subIdBundle = mSubIdBundleArray.get(subId, null);
-            if (subIdBundle != null) {
+            if (mSubIdStatusTables.get(subId) != null) {
                 // initCache() has already been called for the subId
                 return;
             }
             if (isFileExist(subId)) {
-                subIdBundle = readSubIdBundleFromXml(subId);
+                mSubIdStatusTables.put(subId,
+                        ImsProvisioningStatusTable.fromBundle(readSubIdBundleFromXml(subId)));
             } else {
                 // It should read the MMTEL capability cache as part of shared prefs and migrate
                 // over any configs for UT.
@@ -107,31 +151,29 @@ public class ImsProvisioningLoader {
                         ImsRegistrationImplBase.REGISTRATION_TECH_IWLAN,
                         ImsRegistrationImplBase.REGISTRATION_TECH_CROSS_SIM,
                         ImsRegistrationImplBase.REGISTRATION_TECH_NR};
-                subIdBundle = new PersistableBundle();
+                ImsProvisioningStatusTable table = new ImsProvisioningStatusTable();
                 for (int tech : regTech) {
                     int UtProvisioningStatus = getUTProvisioningStatus(subId, tech);
                     logd("check UT provisioning status " + UtProvisioningStatus);
 
                     if (STATUS_PROVISIONED == UtProvisioningStatus) {
-                        setProvisioningStatusToSubIdBundle(ImsFeature.FEATURE_MMTEL, tech,
-                                MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_UT, subIdBundle,
+                        setProvisioningStatusToTable(ImsFeature.FEATURE_MMTEL, tech,
+                                MmTelFeature.MmTelCapabilities.CAPABILITY_TYPE_UT, table,
                                 UtProvisioningStatus);
                     }
                 }
-                saveSubIdBundleToXml(subId, subIdBundle);
+                mSubIdStatusTables.put(subId, table);
+                scheduleWrite(subId);
             }
-            mSubIdBundleArray.put(subId, subIdBundle);
         }
     }
 
     private int getImsProvisioningStatus(int subId, int imsFeature, int tech, int capability) {
-        PersistableBundle subIdBundle = null;
         synchronized (mLock) {
-            subIdBundle = mSubIdBundleArray.get(subId, null);
+            ImsProvisioningStatusTable table = mSubIdStatusTables.get(subId);
+            // If it doesn't exist in xml, return STATUS_NOT_SET
+            return table != null ? table.get(imsFeature, tech, capability) : STATUS_NOT_SET;
         }
-
-        return getProvisioningStatusFromSubIdBundle(imsFeature, tech,
-                capability, subIdBundle);
     }
 
     private boolean setImsFeatureProvisioning(int subId, int imsFeature, int tech, int capability,
@@ -145,112 +187,102 @@ public class ImsProvisioningLoader {
                 return false;
             }
 
-            PersistableBundle subIdBundle = mSubIdBundleArray.get(subId, null);
-            setProvisioningStatusToSubIdBundle(imsFeature, tech, capability, subIdBundle,
-                    newValue);
-            saveSubIdBundleToXml(subId, subIdBundle);
+            setProvisioningStatusToTable(imsFeature, tech, capability,
+                    mSubIdStatusTables.get(subId), newValue);
+            scheduleWrite(subId);
         }
         return true;
     }
 
-    private int getProvisioningStatusFromSubIdBundle(int imsFeature, int tech,
-            int capability, PersistableBundle subIdBundle) {
-        // If it doesn't exist in xml, return STATUS_NOT_SET
-        if (subIdBundle == null || subIdBundle.isEmpty()) {
-            logd("xml is empty");
-            return STATUS_NOT_SET;
-        }
-
-        PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(
-                String.valueOf(imsFeature));
-        if (regTechBundle == null) {
-            logd("ImsFeature " + imsFeature + " is not exist in xml");
-            return STATUS_NOT_SET;
-        }
-
-        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
-                String.valueOf(tech));
-        if (capabilityBundle == null) {
-            logd("RegistrationTech " + tech + " is not exist in xml");
-            return STATUS_NOT_SET;
-        }
-
-        return getIntValueFromBundle(String.valueOf(capability), capabilityBundle);
-    }
-
-    private void setProvisioningStatusToSubIdBundle(int imsFeature, int tech,
-            int capability, PersistableBundle subIdBundle, int newStatus) {
+    private void setProvisioningStatusToTable(int imsFeature, int tech,
+            int capability, ImsProvisioningStatusTable table, int newStatus) {
         logd("set provisioning status " + newStatus + " ImsFeature "
                 + imsFeature + " tech " + tech + " capa " + capability);
-
-        PersistableBundle regTechBundle = subIdBundle.getPersistableBundle(
-                String.valueOf(imsFeature));
-        if (regTechBundle == null) {
-            regTechBundle = new PersistableBundle();
-            subIdBundle.putPersistableBundle(String.valueOf(imsFeature), regTechBundle);
-        }
-
-        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
-                String.valueOf(tech));
-        if (capabilityBundle == null) {
-            capabilityBundle = new PersistableBundle();
-            regTechBundle.putPersistableBundle(String.valueOf(tech), capabilityBundle);
-        }
-
-        capabilityBundle.putInt(String.valueOf(capability), newStatus);
-    }
-
-    // Default value is STATUS_NOT_SET
-    private int getIntValueFromBundle(String key, PersistableBundle bundle) {
-        int value = bundle.getInt(key, STATUS_NOT_SET);
-        logd("get value " + value);
-        return value;
+        table.set(imsFeature, tech, capability, newStatus);
     }
 
     // Return subIdBundle from imsprovisioningstatus_{subId}.xml
     private PersistableBundle readSubIdBundleFromXml(int subId) {
-        String fileName = getFileName(subId);
-
         PersistableBundle subIdBundles = new PersistableBundle();
-        File file = null;
-        FileInputStream inFile = null;
-        synchronized (mLock) {
-            try {
-                file = new File(mContext.getFilesDir(), fileName);
-                inFile = new FileInputStream(file);
-                subIdBundles = PersistableBundle.readFromStream(inFile);
-                inFile.close();
-            } catch (FileNotFoundException e) {
-                logd(e.toString());
-            } catch (IOException e) {
-                loge(e.toString());
-            } catch (RuntimeException e) {
-                loge(e.toString());
-            }
+        // AtomicFile restores the previous file if a write was interrupted.
+        try (FileInputStream inFile = getAtomicFile(subId).openRead()) {
+            subIdBundles = PersistableBundle.readFromStream(inFile);
+        } catch (FileNotFoundException e) {
+            logd(e.toString());
+        } catch (IOException e) {
+            loge(e.toString());
+        } catch (RuntimeException e) {
+            loge(e.toString());
         }
 
         return subIdBundles;
     }
 
     private void saveSubIdBundleToXml(int subId, PersistableBundle subIdBundle) {
-        String fileName = getFileName(subId);
-
         if (subIdBundle == null || subIdBundle.isEmpty()) {
             logd("subIdBundle is empty");
             return;
         }
 
+        AtomicFile atomicFile = getAtomicFile(subId);
         FileOutputStream outFile = null;
-        synchronized (mLock) {
+        synchronized (mWriteLock) {
             try {
-                outFile = new FileOutputStream(new File(mContext.getFilesDir(), fileName));
+                outFile = atomicFile.startWrite();
                 subIdBundle.writeToStream(outFile);
-                outFile.flush();
-                outFile.close();
-            } catch (IOException e) {
-                loge(e.toString());
-            } catch (RuntimeException e) {
+                // Syncs the file to storage before renaming it over the previous one.
+                atomicFile.finishWrite(outFile);
+            } catch (IOException | RuntimeException e) {
                 loge(e.toString());
+                if (outFile != null) {
+                    atomicFile.failWrite(outFile);
+                }
+            }
+        }
+    }
+
+    // Must be called with mLock held.
+    private void scheduleWrite(int subId) {
+        mPendingWriteSubIds.add(subId);
+        if (mIsWriteScheduled) {
+            // The scheduled write will pick this change up.
+            return;
+        }
+        try {
+            mScheduledWrite = mWriteExecutor.schedule(this::onScheduledWrite, WRITE_DELAY_MS,
+                    TimeUnit.MILLISECONDS);
+            mIsWriteScheduled = true;
+        } catch (RejectedExecutionException e) {
+            loge("failed to schedule write: " + e);
+        }
+    }
+
+    private void onScheduledWrite() {
+        synchronized (mLock) {
+            mScheduledWrite = null;
+            mIsWriteScheduled = false;
+        }
+        writePendingChanges();
+    }
+
+    private void writePendingChanges() {
+        // Holding mWriteLock while taking the snapshot keeps an older snapshot from being written
+        // over a newer one by a concurrent flush().
+        synchronized (mWriteLock) {
+            SparseArray<PersistableBundle> pendingWrites = new SparseArray<>();
+            synchronized (mLock) {
+                for (int subId : mPendingWriteSubIds) {
+                    ImsProvisioningStatusTable table = mSubIdStatusTables.get(subId);
+                    if (table != null) {
+                        // The bundle is a copy, so the cache can keep changing while the file
+                        // is written.
+                        pendingWrites.put(subId, table.toBundle());
+                    }
+                }
+                mPendingWriteSubIds.clear();
+            }
+            for (int i = 0; i < pendingWrites.size(); i++) {
+                saveSubIdBundleToXml(pendingWrites.keyAt(i), pendingWrites.valueAt(i));
             }
         }
     }
@@ -276,6 +308,10 @@ public class ImsProvisioningLoader {
         return PREF_PROVISION_IMS_MMTEL_PREFIX + subId + "_" + tech;
     }
 
+    private AtomicFile getAtomicFile(int subId) {
+        return new AtomicFile(new File(mContext.getFilesDir(), getFileName(subId)));
+    }
+
     private String getFileName(int subId) {
         // Resulting name is imsprovisioningstatus_{subId}.xml
         return PROVISIONING_FILE_NAME_PREF + subId + ".xml";
@@ -284,20 +320,27 @@ public class ImsProvisioningLoader {
     @VisibleForTesting
     void clear() {
         synchronized (mLock) {
-            mSubIdBundleArray.clear();
+            mSubIdStatusTables.clear();
+            mPendingWriteSubIds.clear();
+            if (mScheduledWrite != null) {
+                mScheduledWrite.cancel(false);
+                mScheduledWrite = null;
+            }
+            mIsWriteScheduled = false;
         }
     }
 
     @VisibleForTesting
     void setProvisioningToXml(int subId, PersistableBundle subIdBundle,
             String[] infoArray) {
+        ImsProvisioningStatusTable table = ImsProvisioningStatusTable.fromBundle(subIdBundle);
         for (String info : infoArray) {
             String[] paramArray = info.split(",");
-            setProvisioningStatusToSubIdBundle(Integer.valueOf(paramArray[0]),
+            setProvisioningStatusToTable(Integer.valueOf(paramArray[0]),
                     Integer.valueOf(paramArray[1]), Integer.valueOf(paramArray[2]),
-                    subIdBundle, Integer.valueOf(paramArray[3]));
+                    table, Integer.valueOf(paramArray[3]));
         }
-        saveSubIdBundleToXml(subId, subIdBundle);
+        saveSubIdBundleToXml(subId, table.toBundle());
     }
 
     private void loge(String contents) {
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_PROVISIONED;
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_SET;
+import static com.android.phone.ImsProvisioningLoader.STATUS_PROVISIONED;
+
+import android.annotation.NonNull;
+import android.os.PersistableBundle;
+import android.telephony.ims.feature.ImsFeature;
+
+/**
+ * In-memory provisioning status of a single subscription.
+ *
+ * Statuses of the known features, registration techs and single-bit capabilities are packed into
+ * a table of 2-bit entries, so lookups neither allocate nor build keys. Any other combination,
+ * for example a capability or tech added after this class was written, is kept in an overflow
+ * bundle that uses the storage layout.
+ *
+ * The storage layout is a nested {@link PersistableBundle}: ImsFeature → registration tech →
+ * capability → status, with every key being the decimal string of the int value. It is only
+ * used to read and write the table, see {@link #fromBundle} and {@link #toBundle}.
+ */
+public final class ImsProvisioningStatusTable {
+    private static final int NUM_FEATURES = ImsFeature.FEATURE_MAX;
+    // REGISTRATION_TECH_LTE, REGISTRATION_TECH_IWLAN, REGISTRATION_TECH_CROSS_SIM and
+    // REGISTRATION_TECH_NR
+    private static final int NUM_TECHS = 4;
+    // Capabilities are bit flags, the table covers the ones using the lowest bits.
+    private static final int NUM_CAPABILITY_BITS = 8;
+
+    private static final int BITS_PER_ENTRY = 2;
+    private static final int ENTRIES_PER_WORD = Long.SIZE / BITS_PER_ENTRY;
+    private static final long ENTRY_MASK = (1L << BITS_PER_ENTRY) - 1;
+    private static final int NUM_ENTRIES = NUM_FEATURES * NUM_TECHS * NUM_CAPABILITY_BITS;
+
+    // Entry values, 0 must be STATUS_NOT_SET so that a new table is empty.
+    private static final long ENTRY_NOT_SET = 0;
+    private static final long ENTRY_NOT_PROVISIONED = 1;
+    private static final long ENTRY_PROVISIONED = 2;
+
+    private final long[] mTable = new long[(NUM_ENTRIES + ENTRIES_PER_WORD - 1)
+            / ENTRIES_PER_WORD];
+    // Entries that can not be packed, in the storage layout.
+    private final PersistableBundle mOverflow = new PersistableBundle();
+
+    /**
+     * @return the provisioning status, or {@link ImsProvisioningLoader#STATUS_NOT_SET} if it has
+     * not been set.
+     */
+    public int get(int imsFeature, int tech, int capability) {
+        int index = getIndex(imsFeature, tech, capability);
+        if (index < 0) {
+            return getFromBundle(mOverflow, imsFeature, tech, capability);
+        }
+        long entry = (mTable[index / ENTRIES_PER_WORD] >>> getShift(index)) & ENTRY_MASK;
+        if (entry == ENTRY_PROVISIONED) {
+            return STATUS_PROVISIONED;
+        } else if (entry == ENTRY_NOT_PROVISIONED) {
+            return STATUS_NOT_PROVISIONED;
+        }
+        return STATUS_NOT_SET;
+    }
+
+    /**
+     * Set the provisioning status, which must be {@link ImsProvisioningLoader#STATUS_PROVISIONED}
+     * or {@link ImsProvisioningLoader#STATUS_NOT_PROVISIONED}.
+     */
+    public void set(int imsFeature, int tech, int capability, int status) {
+        int index = getIndex(imsFeature, tech, capability);
+        if (index < 0) {
+            putToBundle(mOverflow, imsFeature, tech, capability, status);
+            return;
+        }
+        long entry = status == STATUS_PROVISIONED ? ENTRY_PROVISIONED : ENTRY_NOT_PROVISIONED;
+        int word = index / ENTRIES_PER_WORD;
+        int shift = getShift(index);
+        mTable[word] = (mTable[word] & ~(ENTRY_MASK << shift)) | (entry << shift);
+    }
+
+    /**
+     * @return true if no provisioning status has been set.
+     */
+    public boolean isEmpty() {
+        for (long word : mTable) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return mOverflow.isEmpty();
+    }
+
+    /**
+     * @return the table in the storage layout.
+     */
+    @NonNull
+    public PersistableBundle toBundle() {
+        PersistableBundle bundle = mOverflow.deepCopy();
+        for (int index = 0; index < NUM_ENTRIES; index++) {
+            long entry = (mTable[index / ENTRIES_PER_WORD] >>> getShift(index)) & ENTRY_MASK;
+            if (entry == ENTRY_NOT_SET) {
+                continue;
+            }
+            int capability = 1 << (index % NUM_CAPABILITY_BITS);
+            int tech = (index / NUM_CAPABILITY_BITS) % NUM_TECHS;
+            int imsFeature = index / (NUM_CAPABILITY_BITS * NUM_TECHS);
+            putToBundle(bundle, imsFeature, tech, capability,
+                    entry == ENTRY_PROVISIONED ? STATUS_PROVISIONED : STATUS_NOT_PROVISIONED);
+        }
+        return bundle;
+    }
+
+    /**
+     * @return a table holding the statuses of a bundle in the storage layout. Malformed entries
+     * are ignored.
+     */
+    @NonNull
+    public static ImsProvisioningStatusTable fromBundle(@NonNull PersistableBundle bundle) {
+        ImsProvisioningStatusTable table = new ImsProvisioningStatusTable();
+        for (String featureKey : bundle.keySet()) {
+            PersistableBundle regTechBundle = bundle.getPersistableBundle(featureKey);
+            if (regTechBundle == null) {
+                continue;
+            }
+            for (String techKey : regTechBundle.keySet()) {
+                PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(techKey);
+                if (capabilityBundle == null) {
+                    continue;
+                }
+                for (String capabilityKey : capabilityBundle.keySet()) {
+                    int status = capabilityBundle.getInt(capabilityKey, STATUS_NOT_SET);
+                    if (status != STATUS_PROVISIONED && status != STATUS_NOT_PROVISIONED) {
+                        continue;
+                    }
+                    try {
+                        table.set(Integer.parseInt(featureKey), Integer.parseInt(techKey),
+                                Integer.parseInt(capabilityKey), status);
+                    } catch (NumberFormatException e) {
+                        // Not written by this class, ignore it.
+                    }
+                }
+            }
+        }
+        return table;
+    }
+
+    // Return the index of the entry in the packed table, or -1 if it can not be packed.
+    private static int getIndex(int imsFeature, int tech, int capability) {
+        if (imsFeature < 0 || imsFeature >= NUM_FEATURES || tech < 0 || tech >= NUM_TECHS
+                || Integer.bitCount(capability) != 1) {
+            return -1;
+        }
+        int capabilityBit = Integer.numberOfTrailingZeros(capability);
+        if (capabilityBit >= NUM_CAPABILITY_BITS) {
+            return -1;
+        }
+        return (imsFeature * NUM_TECHS + tech) * NUM_CAPABILITY_BITS + capabilityBit;
+    }
+
+    private static int getShift(int index) {
+        return (index % ENTRIES_PER_WORD) * BITS_PER_ENTRY;
+    }
+
+    private static int getFromBundle(PersistableBundle bundle, int imsFeature, int tech,
+            int capability) {
+        PersistableBundle regTechBundle = bundle.getPersistableBundle(String.valueOf(imsFeature));
+        if (regTechBundle == null) {
+            return STATUS_NOT_SET;
+        }
+        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
+                String.valueOf(tech));
+        if (capabilityBundle == null) {
+            return STATUS_NOT_SET;
+        }
+        return capabilityBundle.getInt(String.valueOf(capability), STATUS_NOT_SET);
+    }
+
+    private static void putToBundle(PersistableBundle bundle, int imsFeature, int tech,
+            int capability, int status) {
+        PersistableBundle regTechBundle = bundle.getPersistableBundle(
+                String.valueOf(imsFeature));
+        if (regTechBundle == null) {
+            regTechBundle = new PersistableBundle();
+            bundle.putPersistableBundle(String.valueOf(imsFeature), regTechBundle);
+        }
+
+        PersistableBundle capabilityBundle = regTechBundle.getPersistableBundle(
+                String.valueOf(tech));
+        if (capabilityBundle == null) {
+            capabilityBundle = new PersistableBundle();
+            regTechBundle.putPersistableBundle(String.valueOf(tech), capabilityBundle);
+        }
+
+        capabilityBundle.putInt(String.valueOf(capability), status);
+    }
+}
@@ -482,6 +482,42 @@ public class ImsRcsController extends IImsRcsController.Stub {
         }
     }
 
+    /**
+     * @return The hit and miss statistics of the UCE capability cache, or {@code null} if the
+     * subscription does not support UCE.
+     */
+    // Used for SHELL command only right now.
+    public String getUceCapabilityCacheStatisticsShell(int subId) throws ImsException {
+        try {
+            UceControllerManager uceCtrlManager = getRcsFeatureController(subId, true).getFeature(
+                    UceControllerManager.class);
+            if (uceCtrlManager == null) {
+                return null;
+            }
+            return uceCtrlManager.getCapabilityCacheStatistics();
+        } catch (ServiceSpecificException e) {
+            throw new ImsException(e.getMessage(), e.errorCode);
+        }
+    }
+
+    /**
+     * Clear the UCE capability cache and reset its statistics.
+     * @return true if this command is successful.
+     */
+    // Used for SHELL command only right now.
+    public boolean clearUceCapabilityCacheShell(int subId) throws ImsException {
+        try {
+            UceControllerManager uceCtrlManager = getRcsFeatureController(subId, true).getFeature(
+                    UceControllerManager.class);
+            if (uceCtrlManager == null) {
+                return false;
+            }
+            return uceCtrlManager.clearCapabilityCache();
+        } catch (ServiceSpecificException e) {
+            throw new ImsException(e.getMessage(), e.errorCode);
+        }
+    }
+
     @Override
     public void registerUcePublishStateCallback(int subId, IRcsUcePublishStateCallback c) {
         enforceReadPrivilegedPermission("registerUcePublishStateCallback");
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import android.util.IndentingPrintWriter;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * Keeps per-command counters for requests dispatched to the main thread by
+ * {@link PhoneInterfaceManager}, so that "adb shell dumpsys phone" shows which commands are
+ * queuing up and how long callers wait for them.
+ */
+public final class MainThreadRequestStats {
+
+    /** Counters for a single command. */
+    @VisibleForTesting
+    public static final class CommandStats {
+        /** Number of requests posted to the main thread. */
+        public long posted;
+        /** Number of callers that joined an identical request which was already in flight. */
+        public long coalesced;
+        /** Number of requests that completed. */
+        public long completed;
+        /** Number of posted requests that have not completed yet. */
+        public int queueDepth;
+        /** Largest queue depth observed. */
+        public int maxQueueDepth;
+        /** Sum of the time between posting and completion for completed requests. */
+        public long totalWaitMillis;
+        /** Largest time between posting and completion. */
+        public long maxWaitMillis;
+
+        /** @return the average time from posting to completion, in milliseconds. */
+        public long getAverageWaitMillis() {
+            return completed == 0 ? 0 : totalWaitMillis / completed;
+        }
+    }
+
+    private final SparseArray<CommandStats> mStats = new SparseArray<>();
+
+    /** Record that a request for the given command has been posted to the main thread. */
+    public synchronized void onRequestPosted(int command) {
+        CommandStats stats = getOrCreate(command);
+        stats.posted++;
+        stats.queueDepth++;
+        stats.maxQueueDepth = Math.max(stats.maxQueueDepth, stats.queueDepth);
+    }
+
+    /** Record that a caller joined an identical in-flight request instead of posting its own. */
+    public synchronized void onRequestCoalesced(int command) {
+        getOrCreate(command).coalesced++;
+    }
+
+    /**
+     * Record that a request for the given command has completed.
+     * @param waitMillis The time between posting the request and its completion.
+     */
+    public synchronized void onRequestCompleted(int command, long waitMillis) {
+        CommandStats stats = getOrCreate(command);
+        stats.completed++;
+        if (stats.queueDepth > 0) stats.queueDepth--;
+        stats.totalWaitMillis += waitMillis;
+        stats.maxWaitMillis = Math.max(stats.maxWaitMillis, waitMillis);
+    }
+
+    /** @return a copy of the counters for the given command, or null if it was never posted. */
+    @VisibleForTesting
+    public synchronized CommandStats getStats(int command) {
+        CommandStats stats = mStats.get(command);
+        if (stats == null) return null;
+        CommandStats copy = new CommandStats();
+        copy.posted = stats.posted;
+        copy.coalesced = stats.coalesced;
+        copy.completed = stats.completed;
+        copy.queueDepth = stats.queueDepth;
+        copy.maxQueueDepth = stats.maxQueueDepth;
+        copy.totalWaitMillis = stats.totalWaitMillis;
+        copy.maxWaitMillis = stats.maxWaitMillis;
+        return copy;
+    }
+
+    /** Dump the counters of all commands that have been posted at least once. */
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("MainThreadRequestStats:");
+        pw.increaseIndent();
+        for (int i = 0; i < mStats.size(); i++) {
+            CommandStats stats = mStats.valueAt(i);
+            pw.println("cmd=" + mStats.keyAt(i)
+                    + " posted=" + stats.posted
+                    + " coalesced=" + stats.coalesced
+                    + " completed=" + stats.completed
+                    + " queueDepth=" + stats.queueDepth
+                    + " maxQueueDepth=" + stats.maxQueueDepth
+                    + " avgWaitMs=" + stats.getAverageWaitMillis()
+                    + " maxWaitMs=" + stats.maxWaitMillis);
+        }
+        pw.decreaseIndent();
+    }
+
+    private CommandStats getOrCreate(int command) {
+        CommandStats stats = mStats.get(command);
+        if (stats == null) {
+            stats = new CommandStats();
+            mStats.put(command, stats);
+        }
+        return stats;
+    }
+}
@@ -158,8 +158,10 @@ import android.telephony.satellite.SatelliteProvisionStateCallback;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.EventLog;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 
 import com.android.ims.ImsManager;
 import com.android.ims.internal.IImsServiceFeatureCallback;
@@ -263,7 +265,9 @@ import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
@@ -329,7 +333,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_SET_CDMA_ROAMING_MODE_DONE = 57;
     private static final int CMD_SET_CDMA_SUBSCRIPTION_MODE = 58;
     private static final int EVENT_SET_CDMA_SUBSCRIPTION_MODE_DONE = 59;
-    private static final int CMD_GET_ALL_CELL_INFO = 60;
+    @VisibleForTesting
+    static final int CMD_GET_ALL_CELL_INFO = 60;
     private static final int EVENT_GET_ALL_CELL_INFO_DONE = 61;
     private static final int CMD_GET_CELL_LOCATION = 62;
     private static final int EVENT_GET_CELL_LOCATION_DONE = 63;
@@ -389,6 +394,21 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int CMD_PURCHASE_PREMIUM_CAPABILITY = 117;
     private static final int EVENT_PURCHASE_PREMIUM_CAPABILITY_DONE = 118;
 
+    // Read-only commands for which a caller joins an identical request that is still in flight
+    // instead of posting another one, so that concurrent callers share one modem round-trip.
+    private static final Set<Integer> COALESCABLE_COMMANDS = Set.of(
+            CMD_GET_ALL_CELL_INFO,
+            CMD_GET_CELL_LOCATION,
+            CMD_GET_NETWORK_SELECTION_MODE,
+            CMD_GET_ALLOWED_NETWORK_TYPES_BITMASK,
+            CMD_GET_ALLOWED_CARRIERS,
+            CMD_GET_CDMA_ROAMING_MODE,
+            CMD_GET_CDMA_SUBSCRIPTION_MODE,
+            CMD_GET_MODEM_STATUS,
+            CMD_GET_SYSTEM_SELECTION_CHANNELS,
+            CMD_IS_NR_DUAL_CONNECTIVITY_ENABLED,
+            CMD_IS_VONR_ENABLED);
+
     // Parameters of select command.
     private static final int SELECT_COMMAND = 0xA4;
     private static final int SELECT_P1 = 0x04;
@@ -410,6 +430,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private final UserManager mUserManager;
     private final AppOpsManager mAppOps;
     private final MainThreadHandler mMainThreadHandler;
+    private final MainThreadRequestStats mMainThreadRequestStats = new MainThreadRequestStats();
+    // Coalescable requests that have been posted to the main thread and not completed yet.
+    private final Map<CoalescingKey, MainThreadRequest> mInFlightRequests = new HashMap<>();
+    // The last cell info received from the modem per phone ID, with its elapsed realtime.
+    private final SparseArray<Pair<Long, List<CellInfo>>> mRecentCellInfo = new SparseArray<>();
     private final SharedPreferences mTelephonySharedPreferences;
     private final PhoneConfigurationManager mPhoneConfigurationManager;
     private final RadioInterfaceCapabilityController mRadioInterfaceCapabilities;
@@ -450,6 +475,13 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
     private static final int SET_NETWORK_SELECTION_MODE_AUTOMATIC_TIMEOUT_MS = 2000; // 2 seconds
 
+    // Cell info received from the modem within this window is shared with legacy callers of
+    // getAllCellInfo instead of querying the modem again.
+    private static final long CELL_INFO_FRESHNESS_WINDOW_MS = 1000; // 1 second
+    // Bound on how long getAllCellInfo waits for the modems, above the cell info query timeout
+    // in Phone so that a modem which never answers does not park the binder thread.
+    private static final long GET_ALL_CELL_INFO_TIMEOUT_MS = 5000; // 5 seconds
+
     private static final int MODEM_ACTIVITY_TIME_OFFSET_CORRECTION_MS = 50;
 
     /**
@@ -532,6 +564,18 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
 
         public WorkSource workSource;
 
+        // The command this request was posted with, or -1 if it is not tracked.
+        public int command = -1;
+
+        // The time at which this request was posted to the main thread.
+        public long postTimeMillis;
+
+        // The key under which this request is registered as an in-flight coalescable read.
+        public CoalescingKey coalescingKey;
+
+        // Callbacks run on the main thread when the request completes.
+        public List<Consumer<Object>> completionCallbacks;
+
         public MainThreadRequest(Object argument) {
             this.argument = argument;
         }
@@ -553,6 +597,42 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
     }
 
+    /**
+     * Identifies a read-only request posted to the main thread, so that identical requests that
+     * are still in flight can be joined rather than issued again.
+     */
+    private static final class CoalescingKey {
+        private final int mCommand;
+        private final int mSubId;
+        private final int mPhoneId;
+        private final Object mArgument;
+        private final WorkSource mWorkSource;
+
+        CoalescingKey(int command, int subId, Phone phone, Object argument,
+                WorkSource workSource) {
+            mCommand = command;
+            mSubId = subId;
+            mPhoneId = phone != null ? phone.getPhoneId() : SubscriptionManager.INVALID_PHONE_INDEX;
+            mArgument = argument;
+            mWorkSource = workSource;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof CoalescingKey)) return false;
+            CoalescingKey that = (CoalescingKey) o;
+            return mCommand == that.mCommand && mSubId == that.mSubId
+                    && mPhoneId == that.mPhoneId && Objects.equals(mArgument, that.mArgument)
+                    && Objects.equals(mWorkSource, that.mWorkSource);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mCommand, mSubId, mPhoneId, mArgument, mWorkSource);
+        }
+    }
+
     private static final class IncomingThirdPartyCallArgs {
         public final ComponentName component;
         public final String callId;
@@ -1754,9 +1834,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     // If a timeout occurs, the response will be null
                     request.result = (ar.exception == null && ar.result != null)
                             ? ar.result : new ArrayList<CellInfo>();
-                    synchronized (request) {
-                        request.notifyAll();
+                    if (ar.exception == null && ar.result != null) {
+                        synchronized (mRecentCellInfo) {
+                            mRecentCellInfo.put(request.phone.getPhoneId(), new Pair<>(
+                                    SystemClock.elapsedRealtime(), Collections.unmodifiableList(
+                                            new ArrayList<>((List<CellInfo>) ar.result))));
+                        }
                     }
+                    notifyRequester(request);
                     break;
                 case CMD_REQUEST_CELL_INFO_UPDATE:
                     request = (MainThreadRequest) msg.obj;
@@ -1803,9 +1888,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                                 ? new CellIdentityCdma() : new CellIdentityGsm();
                     }
 
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
                 case CMD_MODEM_REBOOT:
@@ -2269,9 +2352,15 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         }
 
         private void notifyRequester(MainThreadRequest request) {
+            List<Consumer<Object>> callbacks = onRequestCompleted(request);
             synchronized (request) {
                 request.notifyAll();
             }
+            if (callbacks != null) {
+                for (Consumer<Object> callback : callbacks) {
+                    callback.accept(request.result);
+                }
+            }
         }
 
         private void handleNullReturnEvent(Message msg, String command) {
@@ -2371,9 +2460,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             request = new MainThreadRequest(argument, subId, workSource);
         }
 
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
-        msg.sendToTarget();
-
+        request = postRequest(command, request, null /* callback */);
 
         synchronized (request) {
             if (timeoutInMs >= 0) {
@@ -2401,12 +2488,94 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             }
         }
         if (request.result == null) {
+            // Do not let later callers join a request that is not making progress.
+            removeInFlightRequest(request);
             Log.wtf(LOG_TAG,
                     "sendRequest: Blocking command timed out. Something has gone terribly wrong.");
         }
         return request.result;
     }
 
+    /**
+     * Completion-based version of sendRequest(): posts the specified command to be executed on
+     * the main thread and returns immediately. {@code callback} is invoked on the main thread with
+     * the result of the request once it completes.
+     * @see #sendRequest
+     */
+    @VisibleForTesting
+    void sendRequestAsync(int command, Object argument, Integer subId, Phone phone,
+            WorkSource workSource, @NonNull Consumer<Object> callback) {
+        MainThreadRequest request = null;
+        if (subId != SubscriptionManager.INVALID_SUBSCRIPTION_ID && phone != null) {
+            throw new IllegalArgumentException("subId and phone cannot both be specified!");
+        } else if (phone != null) {
+            request = new MainThreadRequest(argument, phone, workSource);
+        } else {
+            request = new MainThreadRequest(argument, subId, workSource);
+        }
+        postRequest(command, request, callback);
+    }
+
+    /**
+     * Posts the request to the main thread, or joins an identical request that is already in
+     * flight if the command is read-only.
+     * @return the request whose completion the caller should wait for.
+     */
+    private MainThreadRequest postRequest(int command, MainThreadRequest request,
+            @Nullable Consumer<Object> callback) {
+        CoalescingKey key = COALESCABLE_COMMANDS.contains(command)
+                ? new CoalescingKey(command, request.subId, request.phone, request.argument,
+                        request.workSource)
+                : null;
+        synchronized (mInFlightRequests) {
+            MainThreadRequest inFlight = key != null ? mInFlightRequests.get(key) : null;
+            if (inFlight != null) {
+                mMainThreadRequestStats.onRequestCoalesced(command);
+                if (callback != null) inFlight.completionCallbacks.add(callback);
+                return inFlight;
+            }
+            request.command = command;
+            request.postTimeMillis = SystemClock.elapsedRealtime();
+            request.coalescingKey = key;
+            request.completionCallbacks = new ArrayList<>();
+            if (callback != null) request.completionCallbacks.add(callback);
+            if (key != null) mInFlightRequests.put(key, request);
+        }
+        mMainThreadRequestStats.onRequestPosted(command);
+        mMainThreadHandler.obtainMessage(command, request).sendToTarget();
+        return request;
+    }
+
+    /**
+     * Called on the main thread when a request completes. Records how long the request took and
+     * removes it from the in-flight table.
+     * @return the callbacks that need to be notified of the result, or null if there are none.
+     */
+    private @Nullable List<Consumer<Object>> onRequestCompleted(MainThreadRequest request) {
+        synchronized (mInFlightRequests) {
+            if (request.command < 0) return null;
+            mMainThreadRequestStats.onRequestCompleted(request.command,
+                    SystemClock.elapsedRealtime() - request.postTimeMillis);
+            request.command = -1;
+            if (request.coalescingKey != null
+                    && mInFlightRequests.get(request.coalescingKey) == request) {
+                mInFlightRequests.remove(request.coalescingKey);
+            }
+            List<Consumer<Object>> callbacks = request.completionCallbacks;
+            request.completionCallbacks = null;
+            return callbacks;
+        }
+    }
+
+    private void removeInFlightRequest(MainThreadRequest request) {
+        synchronized (mInFlightRequests) {
+            if (request.coalescingKey != null
+                    && mInFlightRequests.get(request.coalescingKey) == request) {
+                mInFlightRequests.remove(request.coalescingKey);
+            }
+        }
+    }
+
     /**
      * Asynchronous ("fire and forget") version of sendRequest():
      * Posts the specified command to be executed on the main thread, and
@@ -2475,6 +2644,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return mTelephonySharedPreferences;
     }
 
+    @VisibleForTesting
+    MainThreadRequestStats getMainThreadRequestStats() {
+        return mMainThreadRequestStats;
+    }
+
     /**
      * Get the default phone for this device.
      */
@@ -3411,6 +3585,77 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         return cellInfos;
     }
 
+    /**
+     * Queries cell info from the modem of every phone in parallel. Results received within the
+     * last {@link #CELL_INFO_FRESHNESS_WINDOW_MS} are reused, and callers arriving with the same
+     * work source while a query for a phone is outstanding join that query instead of issuing
+     * their own. Phones that do not answer within {@link #GET_ALL_CELL_INFO_TIMEOUT_MS} are left
+     * out of the result.
+     */
+    @SuppressWarnings("unchecked")
+    @VisibleForTesting
+    List<CellInfo> getAllCellInfoFromModem(WorkSource workSource) {
+        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
+            throw new RuntimeException("This method will deadlock if called from the main thread.");
+        }
+
+        Phone[] phones = PhoneFactory.getPhones();
+        List<CellInfo>[] results = new List[phones.length];
+        CountDownLatch latch = new CountDownLatch(phones.length);
+        for (int i = 0; i < phones.length; i++) {
+            final int index = i;
+            List<CellInfo> recent = getRecentCellInfo(phones[i].getPhoneId());
+            if (recent != null) {
+                results[index] = recent;
+                latch.countDown();
+                continue;
+            }
+            sendRequestAsync(CMD_GET_ALL_CELL_INFO, null,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID, phones[i], workSource,
+                    result -> {
+                        synchronized (results) {
+                            results[index] = (List<CellInfo>) result;
+                        }
+                        latch.countDown();
+                    });
+        }
+
+        try {
+            if (!latch.await(GET_ALL_CELL_INFO_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                loge("getAllCellInfoFromModem: timed out waiting for " + latch.getCount()
+                        + " phone(s)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Coalesced callers share the result list of the request they joined, so every caller
+        // builds its own list.
+        List<CellInfo> cellInfos = new ArrayList<CellInfo>();
+        synchronized (results) {
+            for (List<CellInfo> info : results) {
+                if (info != null) cellInfos.addAll(info);
+            }
+        }
+        return cellInfos;
+    }
+
+    /**
+     * @return the cell info last received from the modem for the given phone if it is within
+     * the freshness window, or null otherwise.
+     */
+    private @Nullable List<CellInfo> getRecentCellInfo(int phoneId) {
+        synchronized (mRecentCellInfo) {
+            Pair<Long, List<CellInfo>> recent = mRecentCellInfo.get(phoneId);
+            if (recent == null) return null;
+            if (SystemClock.elapsedRealtime() - recent.first > CELL_INFO_FRESHNESS_WINDOW_MS) {
+                mRecentCellInfo.remove(phoneId);
+                return null;
+            }
+            return recent.second;
+        }
+    }
+
     @Override
     public List<CellInfo> getAllCellInfo(String callingPackage, String callingFeatureId) {
         mApp.getSystemService(AppOpsManager.class)
@@ -3443,13 +3688,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         WorkSource workSource = getWorkSource(Binder.getCallingUid());
         final long identity = Binder.clearCallingIdentity();
         try {
-            List<CellInfo> cellInfos = new ArrayList<CellInfo>();
-            for (Phone phone : PhoneFactory.getPhones()) {
-                final List<CellInfo> info = (List<CellInfo>) sendRequest(
-                        CMD_GET_ALL_CELL_INFO, null, phone, workSource);
-                if (info != null) cellInfos.addAll(info);
-            }
-            return cellInfos;
+            return getAllCellInfoFromModem(workSource);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -8831,6 +9070,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             return;
         }
         DumpsysHandler.dump(mApp, fd, writer, args);
+        mMainThreadRequestStats.dump(new IndentingPrintWriter(writer, "  "));
     }
 
     @Override
@@ -31,29 +31,41 @@ import android.Manifest;
 import android.app.compat.CompatChanges;
 import android.compat.annotation.ChangeId;
 import android.compat.annotation.EnabledAfter;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MatrixCursor.RowBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Parcel;
 import android.telephony.LocationAccessPolicy;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.util.Log;
+import android.util.Pair;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.TelephonyPermissions;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The class to provide base facility to access ServiceState related content,
@@ -242,7 +254,99 @@ public class ServiceStateProvider extends ContentProvider {
     @VisibleForTesting
     /* package */ static final long ENFORCE_LOCATION_PERMISSION_CHECK = 191911306;
 
-    private final HashMap<Integer, ServiceState> mServiceStates = new HashMap<>();
+    /**
+     * The change notifications of the updates within this window are sent together, so a
+     * flapping radio doesn't wake the observers of the provider for every update.
+     */
+    private static final long NOTIFICATION_COALESCING_WINDOW_MS = 100;
+
+    // Written by insert and read by query, which are called on different binder threads.
+    private final Map<Integer, ServiceState> mServiceStates = new ConcurrentHashMap<>();
+
+    private final Object mPendingNotificationLock = new Object();
+    @GuardedBy("mPendingNotificationLock")
+    private final Set<Uri> mPendingNotificationUris = new LinkedHashSet<>();
+    @GuardedBy("mPendingNotificationLock")
+    private boolean mIsNotificationScheduled;
+    private final Runnable mNotifyPendingChangesRunnable = this::notifyPendingChanges;
+    private Handler mHandler;
+    private long mNotificationCoalescingWindowMs = NOTIFICATION_COALESCING_WINDOW_MS;
+
+    // The views of a ServiceState that are returned to callers depending on their permissions.
+    private static final int VIEW_PUBLIC_COLUMNS = 0;
+    private static final int VIEW_UNREDACTED = 1;
+    private static final int VIEW_LOCATION_REDACTED = 2;
+    private static final int VIEW_COUNT = 3;
+
+    // How the permissions of a caller limit the views of the ServiceState it can query.
+    // The caller can only query the public columns.
+    private static final int TIER_PUBLIC_COLUMNS = 0;
+    // The caller can query all the columns without location permissions.
+    private static final int TIER_UNREDACTED = 1;
+    // The location sensitive columns the caller can query depend on its location permissions,
+    // which are checked for every query since they can change at any time.
+    private static final int TIER_LOCATION_PERMISSION = 2;
+
+    /**
+     * The rows of the views of a ServiceState, built the first time each view is queried.
+     */
+    private static final class ServiceStateViews {
+        final ServiceState serviceState;
+        private final Object[][] mRows = new Object[VIEW_COUNT][];
+
+        ServiceStateViews(ServiceState serviceState) {
+            this.serviceState = serviceState;
+        }
+
+        synchronized Object[] get(int view) {
+            if (mRows[view] == null) {
+                switch (view) {
+                    case VIEW_PUBLIC_COLUMNS:
+                        mRows[view] = buildRowData(serviceState, true /*publicColumnsOnly*/);
+                        break;
+                    case VIEW_UNREDACTED:
+                        mRows[view] = buildRowData(serviceState, false /*publicColumnsOnly*/);
+                        break;
+                    default:
+                        mRows[view] = buildRowData(
+                                getLocationRedactedServiceState(serviceState),
+                                false /*publicColumnsOnly*/);
+                        break;
+                }
+            }
+            return mRows[view];
+        }
+    }
+
+    /**
+     * The permission related information of a caller which only changes when its package is
+     * updated.
+     */
+    private static final class CallerInfo {
+        final int tier;
+        final boolean targetingAtLeastS;
+
+        CallerInfo(int tier, boolean targetingAtLeastS) {
+            this.tier = tier;
+            this.targetingAtLeastS = targetingAtLeastS;
+        }
+    }
+
+    // The views of the last queried ServiceState of each subscription.
+    private final Map<Integer, ServiceStateViews> mServiceStateViews = new ConcurrentHashMap<>();
+    // The maximum number of callers whose permission related information is kept.
+    private static final int MAX_CALLER_INFOS = 64;
+    // The key is the (calling uid, calling package). Only the most recently used callers are
+    // kept, since any number of apps and users can query the provider.
+    private final Map<Pair<Integer, String>, CallerInfo> mCallerInfos =
+            Collections.synchronizedMap(new LinkedHashMap<Pair<Integer, String>, CallerInfo>(
+                    16, 0.75f, true /*accessOrder*/) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Pair<Integer, String>, CallerInfo> eldest) {
+                    return size() > MAX_CALLER_INFOS;
+                }
+            });
 
     @VisibleForTesting
     /* package */ static final String[] ALL_COLUMNS = {
@@ -304,6 +408,26 @@ public class ServiceStateProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
+        // Change notifications are sent from a background thread so that they are not delayed
+        // by, and do not delay, the work of the main thread.
+        HandlerThread handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+        // The target SDK and the READ_PRIVILEGED_PHONE_STATE permission, which is not a runtime
+        // permission, of a caller can only change when its package changes.
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        // Callers can belong to any user, so the package changes of all the users are needed.
+        getContext().registerReceiverForAllUsers(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                mCallerInfos.clear();
+            }
+        }, packageFilter, null /*broadcastPermission*/, null /*scheduler*/);
         return true;
     }
 
@@ -346,22 +470,29 @@ public class ServiceStateProvider extends ContentProvider {
                 subId = getDefaultSubId();
             }
 
+            // create the new service state
+            final ServiceState newSS;
             final Parcel p = Parcel.obtain();
-            final byte[] rawBytes = values.getAsByteArray(SERVICE_STATE);
-            p.unmarshall(rawBytes, 0, rawBytes.length);
-            p.setDataPosition(0);
+            try {
+                final byte[] rawBytes = values.getAsByteArray(SERVICE_STATE);
+                p.unmarshall(rawBytes, 0, rawBytes.length);
+                p.setDataPosition(0);
+                newSS = ServiceState.CREATOR.createFromParcel(p);
+            } finally {
+                p.recycle();
+            }
 
-            // create the new service state
-            final ServiceState newSS = ServiceState.CREATOR.createFromParcel(p);
+            // store the new service state
+            ServiceState ss = mServiceStates.put(subId, newSS);
+            mServiceStateViews.remove(subId);
 
             // notify listeners
             // if ss is null (e.g. first service state update) we will notify for all fields
-            ServiceState ss = getServiceState(subId);
-            notifyChangeForSubIdAndField(getContext(), ss, newSS, subId);
-            notifyChangeForSubId(getContext(), ss, newSS, subId);
-
-            // store the new service state
-            mServiceStates.put(subId, newSS);
+            List<Uri> changedFieldUris = getChangedFieldUris(ss, newSS, subId);
+            if (!changedFieldUris.isEmpty()) {
+                changedFieldUris.add(getUriForSubscriptionId(subId));
+                scheduleNotifyChange(changedFieldUris);
+            }
             return uri;
         }
         return null;
@@ -410,133 +541,173 @@ public class ServiceStateProvider extends ContentProvider {
                 return null;
             }
 
-            final boolean enforceLocationPermission =
-                    CompatChanges.isChangeEnabled(ENFORCE_LOCATION_PERMISSION_CHECK);
-            final boolean targetingAtLeastS = TelephonyPermissions.getTargetSdk(getContext(),
-                    getCallingPackage()) >= Build.VERSION_CODES.S;
-            final boolean canReadPrivilegedPhoneState = getContext().checkCallingOrSelfPermission(
-                    Manifest.permission.READ_PRIVILEGED_PHONE_STATE) == PERMISSION_GRANTED;
-
-            final String[] availableColumns;
-            final ServiceState ss;
-            if (enforceLocationPermission && targetingAtLeastS && !canReadPrivilegedPhoneState) {
+            final CallerInfo callerInfo = getCallerInfo();
+            final int view;
+            if (callerInfo.tier == TIER_PUBLIC_COLUMNS) {
                 // targetSdkVersion S+ without read privileged phone state permission can only
                 // access public columns which have no location sensitive info.
-                availableColumns = PUBLIC_COLUMNS;
-                ss = unredactedServiceState;
+                view = VIEW_PUBLIC_COLUMNS;
+            } else if (callerInfo.tier == TIER_UNREDACTED) {
+                // No matter the targetSdkVersion, return unredacted ServiceState if location
+                // permission enforcement is not introduced
+                view = VIEW_UNREDACTED;
             } else {
-                availableColumns = ALL_COLUMNS;
-                if (!enforceLocationPermission) {
-                    // No matter the targetSdkVersion, return unredacted ServiceState if location
-                    // permission enforcement is not introduced
-                    ss = unredactedServiceState;
-                } else {
-                    boolean implicitlyQueryLocation = projection == null;
-                    boolean explicitlyQueryLocation = false;
-                    if (projection != null) {
-                        for (String requiredColumn : projection) {
-                            if (LOCATION_PROTECTED_COLUMNS_SET.contains(requiredColumn)) {
-                                explicitlyQueryLocation = true;
-                                break;
-                            }
+                boolean implicitlyQueryLocation = projection == null;
+                boolean explicitlyQueryLocation = false;
+                if (projection != null) {
+                    for (String requiredColumn : projection) {
+                        if (LOCATION_PROTECTED_COLUMNS_SET.contains(requiredColumn)) {
+                            explicitlyQueryLocation = true;
+                            break;
                         }
                     }
+                }
 
-                    // Check location permission only when location sensitive info are queried
-                    // (either explicitly or implicitly) to avoid caller get blamed with location
-                    // permission when query non sensitive info.
-                    if (implicitlyQueryLocation || explicitlyQueryLocation) {
-                        if (hasLocationPermission()) {
-                            ss = unredactedServiceState;
+                // Check location permission only when location sensitive info are queried
+                // (either explicitly or implicitly) to avoid caller get blamed with location
+                // permission when query non sensitive info.
+                if (implicitlyQueryLocation || explicitlyQueryLocation) {
+                    if (hasLocationPermission()) {
+                        view = VIEW_UNREDACTED;
+                    } else {
+                        if (callerInfo.targetingAtLeastS) {
+                            // Throw SecurityException to fail loudly if caller is targetSDK S+
+                            throw new SecurityException(
+                                    "Querying location sensitive info requires location "
+                                            + "permissions");
                         } else {
-                            if (targetingAtLeastS) {
-                                // Throw SecurityException to fail loudly if caller is targetSDK S+
-                                throw new SecurityException(
-                                        "Querying location sensitive info requires location "
-                                                + "permissions");
-                            } else {
-                                // For backward compatibility, return redacted value for old SDK
-                                ss = getLocationRedactedServiceState(unredactedServiceState);
-                            }
+                            // For backward compatibility, return redacted value for old SDK
+                            view = VIEW_LOCATION_REDACTED;
                         }
-                    } else {
-                        // The caller is not interested in location sensitive info, return result
-                        // that scrub out all sensitive info. And no permission check is needed.
-                        ss = getLocationRedactedServiceState(unredactedServiceState);
                     }
+                } else {
+                    // The caller is not interested in location sensitive info, return result
+                    // that scrub out all sensitive info. And no permission check is needed.
+                    view = VIEW_LOCATION_REDACTED;
                 }
             }
 
-            // Build the result
-            final int voice_reg_state = ss.getState();
-            final int data_reg_state = ss.getDataRegistrationState();
-            final int voice_roaming_type = ss.getVoiceRoamingType();
-            final int data_roaming_type = ss.getDataRoamingType();
-            final String voice_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String voice_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String voice_operator_numeric = ss.getOperatorNumeric();
-            final String data_operator_alpha_long = ss.getOperatorAlphaLong();
-            final String data_operator_alpha_short = ss.getOperatorAlphaShort();
-            final String data_operator_numeric = ss.getOperatorNumeric();
-            final int is_manual_network_selection = (ss.getIsManualSelection()) ? 1 : 0;
-            final int ril_voice_radio_technology = ss.getRilVoiceRadioTechnology();
-            final int ril_data_radio_technology = ss.getRilDataRadioTechnology();
-            final int css_indicator = ss.getCssIndicator();
-            final int network_id = ss.getCdmaNetworkId();
-            final int system_id = ss.getCdmaSystemId();
-            final int cdma_roaming_indicator = ss.getCdmaRoamingIndicator();
-            final int cdma_default_roaming_indicator = ss.getCdmaDefaultRoamingIndicator();
-            final int cdma_eri_icon_index = ss.getCdmaEriIconIndex();
-            final int cdma_eri_icon_mode = ss.getCdmaEriIconMode();
-            final int is_emergency_only = (ss.isEmergencyOnly()) ? 1 : 0;
-            final int is_using_carrier_aggregation = (ss.isUsingCarrierAggregation()) ? 1 : 0;
-            final String operator_alpha_long_raw = ss.getOperatorAlphaLongRaw();
-            final String operator_alpha_short_raw = ss.getOperatorAlphaShortRaw();
-            final int data_network_type = ss.getDataNetworkType();
-            final int duplex_mode = ss.getDuplexMode();
-
-            Object[] data = availableColumns == ALL_COLUMNS ? new Object[]{
-                    // data for all columns
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_roaming_type,
-                    data_roaming_type,
-                    voice_operator_alpha_long,
-                    voice_operator_alpha_short,
-                    voice_operator_numeric,
-                    data_operator_alpha_long,
-                    data_operator_alpha_short,
-                    data_operator_numeric,
-                    is_manual_network_selection,
-                    ril_voice_radio_technology,
-                    ril_data_radio_technology,
-                    css_indicator,
-                    network_id,
-                    system_id,
-                    cdma_roaming_indicator,
-                    cdma_default_roaming_indicator,
-                    cdma_eri_icon_index,
-                    cdma_eri_icon_mode,
-                    is_emergency_only,
-                    is_using_carrier_aggregation,
-                    operator_alpha_long_raw,
-                    operator_alpha_short_raw,
-                    data_network_type,
-                    duplex_mode,
-            } : new Object[]{
-                    // data for public columns only
-                    voice_reg_state,
-                    data_reg_state,
-                    voice_operator_numeric,
-                    is_manual_network_selection,
-                    data_network_type,
-                    duplex_mode,
-            };
-
-            return buildSingleRowResult(projection, availableColumns, data);
+            final Object[] data = getServiceStateView(subId, unredactedServiceState, view);
+            return buildSingleRowResult(projection,
+                    view == VIEW_PUBLIC_COLUMNS ? PUBLIC_COLUMNS : ALL_COLUMNS, data);
         }
     }
 
+    /**
+     * Returns the row for the view of the ServiceState, building it only if the ServiceState
+     * changed since the view was last built.
+     */
+    private Object[] getServiceStateView(int subId, ServiceState serviceState, int view) {
+        ServiceStateViews views = mServiceStateViews.get(subId);
+        if (views == null || views.serviceState != serviceState) {
+            views = new ServiceStateViews(serviceState);
+            mServiceStateViews.put(subId, views);
+        }
+        return views.get(view);
+    }
+
+    /**
+     * Builds the values of the columns for the ServiceState.
+     *
+     * @param publicColumnsOnly whether to only build the values of {@link #PUBLIC_COLUMNS}
+     *         rather than of {@link #ALL_COLUMNS}.
+     */
+    private static Object[] buildRowData(ServiceState ss, boolean publicColumnsOnly) {
+        final int voice_reg_state = ss.getState();
+        final int data_reg_state = ss.getDataRegistrationState();
+        final int voice_roaming_type = ss.getVoiceRoamingType();
+        final int data_roaming_type = ss.getDataRoamingType();
+        final String voice_operator_alpha_long = ss.getOperatorAlphaLong();
+        final String voice_operator_alpha_short = ss.getOperatorAlphaShort();
+        final String voice_operator_numeric = ss.getOperatorNumeric();
+        final String data_operator_alpha_long = ss.getOperatorAlphaLong();
+        final String data_operator_alpha_short = ss.getOperatorAlphaShort();
+        final String data_operator_numeric = ss.getOperatorNumeric();
+        final int is_manual_network_selection = (ss.getIsManualSelection()) ? 1 : 0;
+        final int ril_voice_radio_technology = ss.getRilVoiceRadioTechnology();
+        final int ril_data_radio_technology = ss.getRilDataRadioTechnology();
+        final int css_indicator = ss.getCssIndicator();
+        final int network_id = ss.getCdmaNetworkId();
+        final int system_id = ss.getCdmaSystemId();
+        final int cdma_roaming_indicator = ss.getCdmaRoamingIndicator();
+        final int cdma_default_roaming_indicator = ss.getCdmaDefaultRoamingIndicator();
+        final int cdma_eri_icon_index = ss.getCdmaEriIconIndex();
+        final int cdma_eri_icon_mode = ss.getCdmaEriIconMode();
+        final int is_emergency_only = (ss.isEmergencyOnly()) ? 1 : 0;
+        final int is_using_carrier_aggregation = (ss.isUsingCarrierAggregation()) ? 1 : 0;
+        final String operator_alpha_long_raw = ss.getOperatorAlphaLongRaw();
+        final String operator_alpha_short_raw = ss.getOperatorAlphaShortRaw();
+        final int data_network_type = ss.getDataNetworkType();
+        final int duplex_mode = ss.getDuplexMode();
+
+        return !publicColumnsOnly ? new Object[]{
+                // data for all columns
+                voice_reg_state,
+                data_reg_state,
+                voice_roaming_type,
+                data_roaming_type,
+                voice_operator_alpha_long,
+                voice_operator_alpha_short,
+                voice_operator_numeric,
+                data_operator_alpha_long,
+                data_operator_alpha_short,
+                data_operator_numeric,
+                is_manual_network_selection,
+                ril_voice_radio_technology,
+                ril_data_radio_technology,
+                css_indicator,
+                network_id,
+                system_id,
+                cdma_roaming_indicator,
+                cdma_default_roaming_indicator,
+                cdma_eri_icon_index,
+                cdma_eri_icon_mode,
+                is_emergency_only,
+                is_using_carrier_aggregation,
+                operator_alpha_long_raw,
+                operator_alpha_short_raw,
+                data_network_type,
+                duplex_mode,
+        } : new Object[]{
+                // data for public columns only
+                voice_reg_state,
+                data_reg_state,
+                voice_operator_numeric,
+                is_manual_network_selection,
+                data_network_type,
+                duplex_mode,
+        };
+    }
+
+    /**
+     * Returns how the permissions of the caller limit the ServiceState it can query, reusing the
+     * result for the same calling uid and package.
+     */
+    private CallerInfo getCallerInfo() {
+        final Pair<Integer, String> key = Pair.create(Binder.getCallingUid(), getCallingPackage());
+        CallerInfo callerInfo = mCallerInfos.get(key);
+        if (callerInfo != null) {
+            return callerInfo;
+        }
+        final boolean enforceLocationPermission =
+                CompatChanges.isChangeEnabled(ENFORCE_LOCATION_PERMISSION_CHECK);
+        final boolean targetingAtLeastS = TelephonyPermissions.getTargetSdk(getContext(),
+                getCallingPackage()) >= Build.VERSION_CODES.S;
+        final boolean canReadPrivilegedPhoneState = getContext().checkCallingOrSelfPermission(
+                Manifest.permission.READ_PRIVILEGED_PHONE_STATE) == PERMISSION_GRANTED;
+        final int tier;
+        if (enforceLocationPermission && targetingAtLeastS && !canReadPrivilegedPhoneState) {
+            tier = TIER_PUBLIC_COLUMNS;
+        } else if (!enforceLocationPermission) {
+            tier = TIER_UNREDACTED;
+        } else {
+            tier = TIER_LOCATION_PERMISSION;
+        }
+        callerInfo = new CallerInfo(tier, targetingAtLeastS);
+        mCallerInfos.put(key, callerInfo);
+        return callerInfo;
+    }
+
     private static Cursor buildSingleRowResult(String[] projection, String[] availableColumns,
             Object[] data) {
         if (projection == null) {
@@ -575,30 +746,84 @@ public class ServiceStateProvider extends ContentProvider {
     @VisibleForTesting
     public static void notifyChangeForSubIdAndField(Context context, ServiceState oldSS,
             ServiceState newSS, int subId) {
-        final boolean firstUpdate = (oldSS == null) ? true : false;
-
         // for every field, if the field has changed values, notify via the provider
+        for (Uri uri : getChangedFieldUris(oldSS, newSS, subId)) {
+            context.getContentResolver().notifyChange(uri, /* observer= */ null,
+                    /* syncToNetwork= */ false);
+        }
+    }
+
+    /**
+     * Returns the Uris of the fields that apps can observe and that changed between the
+     * ServiceStates, see {@link #notifyChangeForSubIdAndField}.
+     */
+    @VisibleForTesting
+    /* package */ static List<Uri> getChangedFieldUris(ServiceState oldSS, ServiceState newSS,
+            int subId) {
+        final boolean firstUpdate = (oldSS == null) ? true : false;
+        // One more Uri may be added for the subscription
+        List<Uri> uris = new ArrayList<>(6);
         if (firstUpdate || voiceRegStateChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE),
-                    /* observer= */ null, /* syncToNetwork= */ false);
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_REG_STATE));
         }
         if (firstUpdate || dataRegStateChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_REG_STATE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_REG_STATE));
         }
         if (firstUpdate || voiceRoamingTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, VOICE_ROAMING_TYPE));
         }
         if (firstUpdate || dataRoamingTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_ROAMING_TYPE));
         }
         if (firstUpdate || dataNetworkTypeChanged(oldSS, newSS)) {
-            context.getContentResolver().notifyChange(
-                    getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE), null, false);
+            uris.add(getUriForSubscriptionIdAndField(subId, DATA_NETWORK_TYPE));
         }
+        return uris;
+    }
+
+    /**
+     * Adds the Uris to the pending change notification, which is sent once the coalescing window
+     * of the first pending change has elapsed.
+     */
+    private void scheduleNotifyChange(List<Uri> uris) {
+        synchronized (mPendingNotificationLock) {
+            mPendingNotificationUris.addAll(uris);
+            if (mIsNotificationScheduled) {
+                return;
+            }
+            mIsNotificationScheduled = true;
+        }
+        if (mHandler == null) {
+            notifyPendingChanges();
+        } else {
+            mHandler.postDelayed(mNotifyPendingChangesRunnable, mNotificationCoalescingWindowMs);
+        }
+    }
+
+    /**
+     * Sends the pending change notifications with a single call to the ContentResolver.
+     */
+    @VisibleForTesting
+    /* package */ void notifyPendingChanges() {
+        final List<Uri> uris;
+        synchronized (mPendingNotificationLock) {
+            if (mHandler != null) {
+                mHandler.removeCallbacks(mNotifyPendingChangesRunnable);
+            }
+            mIsNotificationScheduled = false;
+            if (mPendingNotificationUris.isEmpty()) {
+                return;
+            }
+            uris = new ArrayList<>(mPendingNotificationUris);
+            mPendingNotificationUris.clear();
+        }
+        getContext().getContentResolver().notifyChange(uris, /* observer= */ null,
+                /* flags= */ 0);
+    }
+
+    @VisibleForTesting
+    /* package */ void setNotificationCoalescingWindowMs(long windowMs) {
+        mNotificationCoalescingWindowMs = windowMs;
     }
 
     private static boolean voiceRegStateChanged(ServiceState oldSS, ServiceState newSS) {
@@ -639,9 +864,7 @@ public class ServiceStateProvider extends ContentProvider {
         // the provider.
         // If oldSS is null and newSS is not (e.g. first update of service state) this will also
         // notify
-        if (oldSS == null || voiceRegStateChanged(oldSS, newSS) || dataRegStateChanged(oldSS, newSS)
-                || voiceRoamingTypeChanged(oldSS, newSS) || dataRoamingTypeChanged(oldSS, newSS)
-                || dataNetworkTypeChanged(oldSS, newSS)) {
+        if (!getChangedFieldUris(oldSS, newSS, subId).isEmpty()) {
             context.getContentResolver().notifyChange(getUriForSubscriptionId(subId), null, false);
         }
     }
@@ -681,10 +904,14 @@ public class ServiceStateProvider extends ContentProvider {
     public static ContentValues getContentValuesForServiceState(ServiceState state) {
         ContentValues values = new ContentValues();
         final Parcel p = Parcel.obtain();
-        state.writeToParcel(p, 0);
-        // Turn the parcel to byte array. Safe to do this because the content values were never
-        // written into a persistent storage. ServiceStateProvider keeps values in the memory.
-        values.put(SERVICE_STATE, p.marshall());
+        try {
+            state.writeToParcel(p, 0);
+            // Turn the parcel to byte array. Safe to do this because the content values were never
+            // written into a persistent storage. ServiceStateProvider keeps values in the memory.
+            values.put(SERVICE_STATE, p.marshall());
+        } finally {
+            p.recycle();
+        }
         return values;
     }
 
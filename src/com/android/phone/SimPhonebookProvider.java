@@ -21,9 +21,16 @@ import static com.android.internal.telephony.IccProvider.STR_NEW_TAG;
 
 import android.Manifest;
 import android.annotation.TestApi;
+import android.content.BroadcastReceiver;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.database.ContentObserver;
@@ -33,6 +40,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.SimPhonebookContract;
 import android.provider.SimPhonebookContract.ElementaryFiles;
 import android.provider.SimPhonebookContract.SimRecords;
@@ -43,6 +51,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyFrameworkInitializer;
 import android.telephony.TelephonyManager;
 import android.util.ArraySet;
+import android.util.Pair;
 import android.util.SparseArray;
 
 import androidx.annotation.NonNull;
@@ -59,9 +68,13 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.MoreExecutors;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
@@ -104,6 +117,9 @@ public class SimPhonebookProvider extends ContentProvider {
     );
 
     private static final int WRITE_TIMEOUT_SECONDS = 30;
+    // The records can also be modified through other interfaces than this provider, e.g. the
+    // IccProvider, so the cached records are only used for a short time.
+    private static final long RECORD_CACHE_EXPIRATION_MS = 10_000;
 
     private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -132,6 +148,11 @@ public class SimPhonebookProvider extends ContentProvider {
     private SubscriptionManager mSubscriptionManager;
     private Supplier<IIccPhoneBook> mIccPhoneBookSupplier;
     private ContentNotifier mContentNotifier;
+    private final RecordCache mRecordCache = new RecordCache();
+    // Only accessed while holding mWriteLock. While a batch is applied the change notification
+    // is sent once at the end of the batch rather than for each of its operations.
+    private boolean mIsChangeNotificationDeferred;
+    private boolean mHasDeferredChange;
 
     static int efIdForEfType(@ElementaryFiles.EfType int efType) {
         switch (efType) {
@@ -173,6 +194,16 @@ public class SimPhonebookProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         ContentResolver resolver = getContext().getContentResolver();
+        IntentFilter simStateFilter = new IntentFilter();
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        simStateFilter.addAction(TelephonyManager.ACTION_SIM_APPLICATION_STATE_CHANGED);
+        getContext().registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                // The records are not readable or belong to another SIM after these changes.
+                mRecordCache.invalidateAll();
+            }
+        }, simStateFilter);
         return onCreate(getContext().getSystemService(SubscriptionManager.class),
                 SimPhonebookProvider::getIccPhoneBook,
                 uri -> resolver.notifyChange(uri, null));
@@ -187,6 +218,7 @@ public class SimPhonebookProvider extends ContentProvider {
         mSubscriptionManager = subscriptionManager;
         mIccPhoneBookSupplier = iccPhoneBookSupplier;
         mContentNotifier = notifier;
+        mRecordCache.invalidateAll();
 
         mSubscriptionManager.addOnSubscriptionsChangedListener(MoreExecutors.directExecutor(),
                 new SubscriptionManager.OnSubscriptionsChangedListener() {
@@ -200,6 +232,7 @@ public class SimPhonebookProvider extends ContentProvider {
                             return;
                         }
                         int[] activeSubIds = mSubscriptionManager.getActiveSubscriptionIdList();
+                        mRecordCache.retainSubscriptions(activeSubIds);
                         if (!Arrays.equals(mNotifiedSubIds, activeSubIds)) {
                             notifier.notifyChange(SimPhonebookContract.AUTHORITY_URI);
                             mNotifiedSubIds = Arrays.copyOf(activeSubIds, activeSubIds.length);
@@ -252,7 +285,8 @@ public class SimPhonebookProvider extends ContentProvider {
                 return queryElementaryFilesItem(PhonebookArgs.forElementaryFilesItem(uri),
                         projection);
             case SIM_RECORDS:
-                return querySimRecords(PhonebookArgs.forSimRecords(uri, queryArgs), projection);
+                return querySimRecords(PhonebookArgs.forSimRecords(uri, queryArgs), projection,
+                        queryArgs);
             case SIM_RECORDS_ITEM:
                 return querySimRecordsItem(PhonebookArgs.forSimRecordsItem(uri, queryArgs),
                         projection);
@@ -337,8 +371,8 @@ public class SimPhonebookProvider extends ContentProvider {
         // Have to load the existing records to get the size because there may be more than one
         // phonebook set in which case the total capacity is the sum of the capacity of EF_ADN for
         // all the phonebook sets whereas the recordsSize is just the size for a single EF.
-        List<AdnRecord> existingRecords = mIccPhoneBookSupplier.get()
-                .getAdnRecordsInEfForSubscriber(subscriptionInfo.getSubscriptionId(), efid);
+        List<AdnRecord> existingRecords =
+                loadRecordsForEfOrThrow(subscriptionInfo.getSubscriptionId(), efid);
         if (existingRecords == null) {
             existingRecords = ImmutableList.of();
         }
@@ -362,8 +396,11 @@ public class SimPhonebookProvider extends ContentProvider {
         }
     }
 
-    private Cursor querySimRecords(PhonebookArgs args, String[] projection) {
+    private Cursor querySimRecords(PhonebookArgs args, String[] projection,
+            @Nullable Bundle queryArgs) {
         validateProjection(SIM_RECORDS_COLUMNS_SET, projection);
+        int offset = getPagingArg(queryArgs, ContentResolver.QUERY_ARG_OFFSET, 0);
+        int limit = getPagingArg(queryArgs, ContentResolver.QUERY_ARG_LIMIT, Integer.MAX_VALUE);
         validateSubscriptionAndEf(args);
         if (projection == null) {
             projection = SIM_RECORDS_ALL_COLUMNS;
@@ -373,14 +410,22 @@ public class SimPhonebookProvider extends ContentProvider {
         if (records == null) {
             return new MatrixCursor(projection, 0);
         }
-        MatrixCursor result = new MatrixCursor(projection, records.size());
-        SparseArray<MatrixCursor.RowBuilder> rowBuilders = new SparseArray<>(records.size());
+        MatrixCursor result = new MatrixCursor(projection, Math.min(records.size(), limit));
+        SparseArray<MatrixCursor.RowBuilder> rowBuilders = new SparseArray<>();
+        // The offset and limit apply to the non-empty records since those are the only ones
+        // returned, so the total count is needed by clients that page through the records.
+        int totalCount = 0;
         for (int i = 0; i < records.size(); i++) {
             AdnRecord record = records.get(i);
-            if (!record.isEmpty()) {
+            if (record.isEmpty()) {
+                continue;
+            }
+            if (totalCount >= offset && rowBuilders.size() < limit) {
                 rowBuilders.put(i, result.newRow());
             }
+            totalCount++;
         }
+        setPagingExtras(result, queryArgs, totalCount);
         // This is kind of ugly but avoids looking up columns in an inner loop.
         for (String column : projection) {
             switch (column) {
@@ -445,6 +490,37 @@ public class SimPhonebookProvider extends ContentProvider {
         return result;
     }
 
+    private static int getPagingArg(@Nullable Bundle queryArgs, String key, int defaultValue) {
+        if (queryArgs == null || !queryArgs.containsKey(key)) {
+            return defaultValue;
+        }
+        int value = queryArgs.getInt(key, -1);
+        if (value < 0) {
+            throw new IllegalArgumentException(key + " must be a non-negative integer");
+        }
+        return value;
+    }
+
+    private static void setPagingExtras(MatrixCursor cursor, @Nullable Bundle queryArgs,
+            int totalCount) {
+        Bundle extras = new Bundle();
+        extras.putInt(ContentResolver.EXTRA_TOTAL_COUNT, totalCount);
+        if (queryArgs != null) {
+            List<String> honoredArgs = new ArrayList<>(2);
+            if (queryArgs.containsKey(ContentResolver.QUERY_ARG_OFFSET)) {
+                honoredArgs.add(ContentResolver.QUERY_ARG_OFFSET);
+            }
+            if (queryArgs.containsKey(ContentResolver.QUERY_ARG_LIMIT)) {
+                honoredArgs.add(ContentResolver.QUERY_ARG_LIMIT);
+            }
+            if (!honoredArgs.isEmpty()) {
+                extras.putStringArray(ContentResolver.EXTRA_HONORED_ARGS,
+                        honoredArgs.toArray(new String[0]));
+            }
+        }
+        cursor.setExtras(extras);
+    }
+
     @Nullable
     @Override
     public String getType(@NonNull Uri uri) {
@@ -496,7 +572,7 @@ public class SimPhonebookProvider extends ContentProvider {
 
         acquireWriteLockOrThrow();
         try {
-            List<AdnRecord> records = loadRecordsForEf(args);
+            List<AdnRecord> records = loadRecordsForWrite(args);
             if (records == null) {
                 Rlog.e(TAG, "Failed to load existing records for " + args.uri);
                 return null;
@@ -528,6 +604,161 @@ public class SimPhonebookProvider extends ContentProvider {
         }
     }
 
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        switch (URI_MATCHER.match(uri)) {
+            case SIM_RECORDS:
+                return bulkInsertSimRecords(PhonebookArgs.forSimRecords(uri, null), values);
+            case ELEMENTARY_FILES:
+            case ELEMENTARY_FILES_ITEM:
+            case SIM_RECORDS_ITEM:
+                throw new UnsupportedOperationException(uri + " does not support insert");
+            default:
+                throw new IllegalArgumentException("Unsupported Uri " + uri);
+        }
+    }
+
+    /**
+     * Inserts the records into the empty records of the elementary file in order.
+     *
+     * <p>All the values are validated, and the elementary file is checked to have enough empty
+     * records, before any record is written so that invalid input doesn't result in a partial
+     * insert. If writing a record to the SIM fails the remaining records are not written.
+     *
+     * @return the number of records that were written.
+     */
+    private int bulkInsertSimRecords(PhonebookArgs args, ContentValues[] values) {
+        validateWritableEf(args, "insert");
+        validateSubscriptionAndEf(args);
+
+        int maxNameLength = getMaxNameLength(args);
+        List<ContentValues> rows = new ArrayList<>(values.length);
+        for (ContentValues row : values) {
+            // Consistent with insert, which does nothing for empty values.
+            if (row == null || row.isEmpty()) {
+                continue;
+            }
+            validateValues(row, maxNameLength);
+            rows.add(row);
+        }
+        if (rows.isEmpty()) {
+            return 0;
+        }
+
+        acquireWriteLockOrThrow();
+        try {
+            List<AdnRecord> records = loadRecordsForWrite(args);
+            if (records == null) {
+                Rlog.e(TAG, "Failed to load existing records for " + args.uri);
+                return 0;
+            }
+            List<AdnRecord> emptyRecords = new ArrayList<>(rows.size());
+            for (AdnRecord record : records) {
+                if (record.isEmpty()) {
+                    emptyRecords.add(record);
+                }
+            }
+            if (emptyRecords.size() < rows.size()) {
+                throw new IllegalStateException(args.uri + " only has space for "
+                        + emptyRecords.size() + " records. Please delete records to add new ones.");
+            }
+            int insertedCount = 0;
+            for (ContentValues row : rows) {
+                String newName = Strings.nullToEmpty(row.getAsString(SimRecords.NAME));
+                String newPhoneNumber = Strings.nullToEmpty(
+                        row.getAsString(SimRecords.PHONE_NUMBER));
+                if (!updateRecord(args, emptyRecords.get(insertedCount), args.pin2, newName,
+                        newPhoneNumber)) {
+                    Rlog.e(TAG, "Bulk insert failed for " + args.uri + " after "
+                            + insertedCount + " of " + rows.size() + " records");
+                    break;
+                }
+                insertedCount++;
+            }
+            if (insertedCount > 0) {
+                notifyChange();
+            }
+            return insertedCount;
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Applies the operations while holding the write lock for the whole batch and sends a
+     * single change notification at the end.
+     *
+     * <p>The operations are validated before any of them is applied so a batch with an invalid
+     * operation doesn't modify the SIM. Since the SIM doesn't support transactions, if an
+     * operation fails while it is applied the operations before it are kept and the remaining
+     * operations are not applied.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull String authority,
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        validateOperations(operations);
+
+        acquireWriteLockOrThrow();
+        mIsChangeNotificationDeferred = true;
+        try {
+            return super.applyBatch(authority, operations);
+        } finally {
+            mIsChangeNotificationDeferred = false;
+            if (mHasDeferredChange) {
+                mHasDeferredChange = false;
+                notifyChange();
+            }
+            releaseWriteLock();
+        }
+    }
+
+    private void validateOperations(List<ContentProviderOperation> operations) {
+        Set<Uri> validatedEfs = new ArraySet<>();
+        Map<Uri, Integer> maxNameLengths = new HashMap<>();
+        for (ContentProviderOperation operation : operations) {
+            Uri uri = operation.getUri();
+            int match = URI_MATCHER.match(uri);
+            PhonebookArgs args;
+            String operationName;
+            if (operation.isInsert() && match == SIM_RECORDS) {
+                args = PhonebookArgs.forSimRecords(uri, null);
+                operationName = "insert";
+            } else if (operation.isUpdate() && match == SIM_RECORDS_ITEM) {
+                args = PhonebookArgs.forSimRecordsItem(uri, null);
+                operationName = "update";
+            } else if (operation.isDelete() && match == SIM_RECORDS_ITEM) {
+                args = PhonebookArgs.forSimRecordsItem(uri, null);
+                operationName = "delete";
+            } else if (match == UriMatcher.NO_MATCH) {
+                throw new IllegalArgumentException("Unsupported Uri " + uri);
+            } else {
+                throw new UnsupportedOperationException(uri + " does not support " + operation);
+            }
+            validateWritableEf(args, operationName);
+            Uri efUri = SimRecords.getContentUri(args.subscriptionId, args.efType);
+            if (validatedEfs.add(efUri)) {
+                validateSubscriptionAndEf(args);
+            }
+            if (operation.isDelete()) {
+                continue;
+            }
+            ContentValues values;
+            try {
+                values = operation.resolveValueBackReferences(new ContentProviderResult[0], 0);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // The values depend on the results of earlier operations so they are validated
+                // when the operation is applied.
+                continue;
+            }
+            if (values != null && !values.isEmpty()) {
+                validateValues(values, maxNameLengths.computeIfAbsent(efUri,
+                        unused -> getMaxNameLength(args)));
+            }
+        }
+    }
+
     @Override
     public int delete(@NonNull Uri uri, @Nullable String selection,
             @Nullable String[] selectionArgs) {
@@ -554,7 +785,7 @@ public class SimPhonebookProvider extends ContentProvider {
 
         acquireWriteLockOrThrow();
         try {
-            AdnRecord record = loadRecord(args);
+            AdnRecord record = loadRecordForWrite(args);
             if (record == null || record.isEmpty()) {
                 return 0;
             }
@@ -603,7 +834,7 @@ public class SimPhonebookProvider extends ContentProvider {
         acquireWriteLockOrThrow();
 
         try {
-            AdnRecord record = loadRecord(args);
+            AdnRecord record = loadRecordForWrite(args);
 
             // Note we allow empty records to be updated. This is a bit weird because they are
             // not returned by query methods but this allows a client application assign a name
@@ -693,6 +924,9 @@ public class SimPhonebookProvider extends ContentProvider {
                     pin2);
         } catch (RemoteException e) {
             return false;
+        } finally {
+            // Even a failed write may have modified the records so they must be reloaded.
+            mRecordCache.invalidate(args.subscriptionId, args.efid);
         }
     }
 
@@ -718,6 +952,10 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private void validateValues(PhonebookArgs args, ContentValues values) {
+        validateValues(values, getMaxNameLength(args));
+    }
+
+    private void validateValues(ContentValues values, int maxNameLength) {
         if (!SIM_RECORDS_WRITABLE_COLUMNS.containsAll(values.keySet())) {
             Set<String> unsupportedColumns = new ArraySet<>(values.keySet());
             unsupportedColumns.removeAll(SIM_RECORDS_WRITABLE_COLUMNS);
@@ -730,16 +968,18 @@ public class SimPhonebookProvider extends ContentProvider {
 
         String name = values.getAsString(SimRecords.NAME);
         int length = getEncodedNameLength(name);
+        if (length > maxNameLength) {
+            throw new IllegalArgumentException(SimRecords.NAME + " is too long.");
+        }
+    }
+
+    private int getMaxNameLength(PhonebookArgs args) {
         int[] recordsSize = getRecordsSizeForEf(args);
         if (recordsSize == null) {
             throw new IllegalStateException(
                     "Failed to get " + ElementaryFiles.NAME_MAX_LENGTH + " from SIM");
         }
-        int maxLength = AdnRecord.getMaxAlphaTagBytes(getRecordSize(recordsSize));
-
-        if (length > maxLength) {
-            throw new IllegalArgumentException(SimRecords.NAME + " is too long.");
-        }
+        return AdnRecord.getMaxAlphaTagBytes(getRecordSize(recordsSize));
     }
 
     private List<SubscriptionInfo> getActiveSubscriptionInfoList() {
@@ -765,6 +1005,48 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     private List<AdnRecord> loadRecordsForEf(PhonebookArgs args) {
+        try {
+            return loadRecordsForEfOrThrow(args.subscriptionId, args.efid);
+        } catch (RemoteException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the records of the elementary file, reading them from the SIM only if they are not
+     * already cached. The returned list is unmodifiable.
+     */
+    @Nullable
+    private List<AdnRecord> loadRecordsForEfOrThrow(int subscriptionId, int efid)
+            throws RemoteException {
+        List<AdnRecord> records = mRecordCache.get(subscriptionId, efid);
+        if (records != null) {
+            return records;
+        }
+        int generation = mRecordCache.getGeneration();
+        records = mIccPhoneBookSupplier.get().getAdnRecordsInEfForSubscriber(
+                subscriptionId, efid);
+        if (records == null) {
+            return null;
+        }
+        records = Collections.unmodifiableList(new ArrayList<>(records));
+        mRecordCache.put(subscriptionId, efid, records, generation);
+        return records;
+    }
+
+    private AdnRecord loadRecord(PhonebookArgs args) {
+        return getRecord(args, loadRecordsForEf(args));
+    }
+
+    /**
+     * Returns the records of the elementary file read from the SIM, bypassing the cache.
+     *
+     * <p>Writes pick the records to change from the result so this must be called while holding
+     * {@link #mWriteLock}. The cache may be stale if the SIM was written by another app and is
+     * only used for queries.
+     */
+    @Nullable
+    private List<AdnRecord> loadRecordsForWrite(PhonebookArgs args) {
         try {
             return mIccPhoneBookSupplier.get().getAdnRecordsInEfForSubscriber(
                     args.subscriptionId, args.efid);
@@ -773,8 +1055,11 @@ public class SimPhonebookProvider extends ContentProvider {
         }
     }
 
-    private AdnRecord loadRecord(PhonebookArgs args) {
-        List<AdnRecord> records = loadRecordsForEf(args);
+    private AdnRecord loadRecordForWrite(PhonebookArgs args) {
+        return getRecord(args, loadRecordsForWrite(args));
+    }
+
+    private static AdnRecord getRecord(PhonebookArgs args, @Nullable List<AdnRecord> records) {
         if (records == null || args.recordNumber > records.size()) {
             return null;
         }
@@ -791,6 +1076,10 @@ public class SimPhonebookProvider extends ContentProvider {
     }
 
     void notifyChange() {
+        if (mIsChangeNotificationDeferred) {
+            mHasDeferredChange = true;
+            return;
+        }
         mContentNotifier.notifyChange(SimPhonebookContract.AUTHORITY_URI);
     }
 
@@ -800,6 +1089,77 @@ public class SimPhonebookProvider extends ContentProvider {
         void notifyChange(Uri uri);
     }
 
+    /**
+     * Caches the records read from each elementary file so that reading a single record, or
+     * paging through the records, doesn't require all the records of the elementary file to be
+     * read from the SIM again.
+     *
+     * <p>The records of an elementary file are invalidated when it is written through this
+     * provider and all the records are invalidated when the SIM state or the active subscriptions
+     * change. Writes that race with a read cause the records of that read to not be cached.
+     * Only queries use the cache; writes read the records from the SIM.
+     */
+    private static final class RecordCache {
+        private static final class Entry {
+            final List<AdnRecord> records;
+            final long loadTimeMs;
+
+            Entry(List<AdnRecord> records, long loadTimeMs) {
+                this.records = records;
+                this.loadTimeMs = loadTimeMs;
+            }
+        }
+
+        // The key is the (subscription ID, efid)
+        private final Map<Pair<Integer, Integer>, Entry> mEntries = new HashMap<>();
+        // Incremented on every invalidation so that the records that were read before the
+        // invalidation are not cached.
+        private int mGeneration;
+
+        @Nullable
+        synchronized List<AdnRecord> get(int subscriptionId, int efid) {
+            Pair<Integer, Integer> key = Pair.create(subscriptionId, efid);
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (SystemClock.elapsedRealtime() - entry.loadTimeMs > RECORD_CACHE_EXPIRATION_MS) {
+                mEntries.remove(key);
+                return null;
+            }
+            return entry.records;
+        }
+
+        synchronized int getGeneration() {
+            return mGeneration;
+        }
+
+        synchronized void put(int subscriptionId, int efid, List<AdnRecord> records,
+                int generation) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mEntries.put(Pair.create(subscriptionId, efid),
+                    new Entry(records, SystemClock.elapsedRealtime()));
+        }
+
+        synchronized void invalidate(int subscriptionId, int efid) {
+            mGeneration++;
+            mEntries.remove(Pair.create(subscriptionId, efid));
+        }
+
+        synchronized void invalidateAll() {
+            mGeneration++;
+            mEntries.clear();
+        }
+
+        synchronized void retainSubscriptions(int[] activeSubscriptionIds) {
+            mGeneration++;
+            mEntries.keySet().removeIf(key -> Arrays.stream(activeSubscriptionIds)
+                    .noneMatch(subId -> subId == key.first));
+        }
+    }
+
     /**
      * Holds the arguments extracted from the Uri and query args for accessing the referenced
      * phonebook data on a SIM.
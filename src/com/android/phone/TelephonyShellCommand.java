@@ -165,6 +165,8 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
             "remove-request-disallowed-status";
     private static final String UCE_SET_CAPABILITY_REQUEST_TIMEOUT =
             "set-capabilities-request-timeout";
+    private static final String UCE_GET_CAPABILITY_CACHE_STATS = "get-capability-cache-stats";
+    private static final String UCE_CLEAR_CAPABILITY_CACHE = "clear-capability-cache";
 
     private static final String RADIO_SUBCOMMAND = "radio";
     private static final String RADIO_SET_MODEM_SERVICE = "set-modem-service";
@@ -547,6 +549,11 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         pw.println("    Remove the UCE is disallowed to execute UCE requests status");
         pw.println("  uce set-capabilities-request-timeout [-s SLOT_ID] [REQUEST_TIMEOUT_MS]");
         pw.println("    Set the timeout for contact capabilities request.");
+        pw.println("  uce get-capability-cache-stats [-s SLOT_ID]");
+        pw.println("    Get the size and the hit and miss counts of the cache of contact");
+        pw.println("    capabilities kept in front of the UCE requests.");
+        pw.println("  uce clear-capability-cache [-s SLOT_ID]");
+        pw.println("    Remove all contacts from the capability cache and reset its counts.");
     }
 
     private void onHelpNumberVerification() {
@@ -2428,6 +2435,10 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
                 return handleUceRemoveRequestDisallowedStatus();
             case UCE_SET_CAPABILITY_REQUEST_TIMEOUT:
                 return handleUceSetCapRequestTimeout();
+            case UCE_GET_CAPABILITY_CACHE_STATS:
+                return handleUceGetCapabilityCacheStats();
+            case UCE_CLEAR_CAPABILITY_CACHE:
+                return handleUceClearCapabilityCache();
         }
         return -1;
     }
@@ -2575,6 +2586,65 @@ public class TelephonyShellCommand extends BasicShellCommandHandler {
         return 0;
     }
 
+    private int handleUceGetCapabilityCacheStats() {
+        // The capability cache is only reachable from within the phone process.
+        if (!checkShellUid()) {
+            return -1;
+        }
+        int subId = getSubId("uce get-capability-cache-stats");
+        if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            Log.w(LOG_TAG, "uce get-capability-cache-stats, Invalid subscription ID");
+            return -1;
+        }
+        String result;
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            result = PhoneGlobals.getInstance().imsRcsController
+                    .getUceCapabilityCacheStatisticsShell(subId);
+        } catch (ImsException e) {
+            Log.w(LOG_TAG, "uce get-capability-cache-stats, error " + e);
+            getErrPrintWriter().println("Exception: " + e);
+            return -1;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+        if (result == null) {
+            getErrPrintWriter().println("Service not available");
+            return -1;
+        }
+        getOutPrintWriter().println(result);
+        return 0;
+    }
+
+    private int handleUceClearCapabilityCache() {
+        // The capability cache is only reachable from within the phone process.
+        if (!checkShellUid()) {
+            return -1;
+        }
+        int subId = getSubId("uce clear-capability-cache");
+        if (subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID) {
+            Log.w(LOG_TAG, "uce clear-capability-cache, Invalid subscription ID");
+            return -1;
+        }
+        boolean result;
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            result = PhoneGlobals.getInstance().imsRcsController
+                    .clearUceCapabilityCacheShell(subId);
+        } catch (ImsException e) {
+            Log.w(LOG_TAG, "uce clear-capability-cache, error " + e);
+            getErrPrintWriter().println("Exception: " + e);
+            return -1;
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+        if (VDBG) {
+            Log.v(LOG_TAG, "uce clear-capability-cache, returned: " + result);
+        }
+        getOutPrintWriter().println(result);
+        return 0;
+    }
+
     private int handleSrcSetTestEnabledCommand() {
         String enabledStr = getNextArg();
         if (enabledStr == null) {
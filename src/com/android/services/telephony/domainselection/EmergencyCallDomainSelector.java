@@ -65,6 +65,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.PersistableBundle;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.telephony.AccessNetworkConstants.AccessNetworkType;
 import android.telephony.AccessNetworkConstants.RadioAccessNetworkType;
@@ -212,18 +213,43 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
      */
     private boolean mDomainSelectionRequested = false;
 
+    /** The time when the domain selection was requested, used to measure the latency. */
+    private long mSelectDomainRequestedTimeMs;
+    /** Indicates whether the first transport has been selected. */
+    private boolean mFirstTransportSelected = false;
+    /** Indicates whether the carrier configuration had been fetched in advance. */
+    private boolean mCarrierConfigPrewarmed = false;
+
     private final PowerManager.WakeLock mPartialWakeLock;
     private final CrossSimRedialingController mCrossSimRedialingController;
+    private final EmergencyReadinessTracker mReadinessTracker;
 
     /** Constructor. */
     public EmergencyCallDomainSelector(Context context, int slotId, int subId,
             @NonNull Looper looper, @NonNull ImsStateTracker imsStateTracker,
             @NonNull DestroyListener destroyListener,
             @NonNull CrossSimRedialingController csrController) {
+        this(context, slotId, subId, looper, imsStateTracker, destroyListener, csrController,
+                null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param readinessTracker The tracker prefetching the carrier configuration and the active
+     *        modem count of the slot, or {@code null} if they shall be fetched when the domain
+     *        selection is requested.
+     */
+    public EmergencyCallDomainSelector(Context context, int slotId, int subId,
+            @NonNull Looper looper, @NonNull ImsStateTracker imsStateTracker,
+            @NonNull DestroyListener destroyListener,
+            @NonNull CrossSimRedialingController csrController,
+            EmergencyReadinessTracker readinessTracker) {
         super(context, slotId, subId, looper, imsStateTracker, destroyListener, TAG);
+        mReadinessTracker = readinessTracker;
 
-        mImsStateTracker.addBarringInfoListener(this);
-        mImsStateTracker.addImsStateListener(this);
+        mImsStateTracker.addBarringInfoListener(this, this);
+        mImsStateTracker.addImsStateListener(this, this);
 
         PowerManager pm = context.getSystemService(PowerManager.class);
         mPartialWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
@@ -423,12 +449,17 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
     @Override
     public void selectDomain(SelectionAttributes attr, TransportSelectorCallback cb) {
         logi("selectDomain attr=" + attr);
+        mSelectDomainRequestedTimeMs = SystemClock.elapsedRealtime();
         mTransportSelectorCallback = cb;
         mSelectionAttributes = attr;
         mIsTestEmergencyNumber = isTestEmergencyNumber(attr.getNumber());
 
-        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
-        mModemCount = tm.getActiveModemCount();
+        if (mReadinessTracker != null) {
+            mModemCount = mReadinessTracker.getModemCount();
+        } else {
+            TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+            mModemCount = tm.getActiveModemCount();
+        }
 
         sendEmptyMessage(MSG_START_DOMAIN_SELECTION);
     }
@@ -473,8 +504,19 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
      * Caches the configuration.
      */
     private void updateCarrierConfiguration() {
-        CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
-        PersistableBundle b = configMgr.getConfigForSubId(getSubId());
+        PersistableBundle b = null;
+        if (mReadinessTracker != null) {
+            b = mReadinessTracker.getCarrierConfig(getSubId());
+        }
+        mCarrierConfigPrewarmed = (b != null);
+        if (b == null) {
+            CarrierConfigManager configMgr =
+                    mContext.getSystemService(CarrierConfigManager.class);
+            b = configMgr.getConfigForSubId(getSubId());
+            if (b != null && mReadinessTracker != null) {
+                mReadinessTracker.putCarrierConfigIfAbsent(getSubId(), b);
+            }
+        }
         if (b == null) {
             b = CarrierConfigManager.getDefaultConfig();
         }
@@ -719,7 +761,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
                 logi("requestScan start scan timer");
                 // remove any pending timers.
                 removeMessages(MSG_NETWORK_SCAN_TIMEOUT);
-                sendEmptyMessageDelayed(MSG_NETWORK_SCAN_TIMEOUT, mScanTimeout);
+                startTimer(MSG_NETWORK_SCAN_TIMEOUT, mScanTimeout);
                 registerForConnectivityChanges();
             }
         }
@@ -1237,6 +1279,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
             return;
         }
 
+        notifyFirstTransportSelected();
         mDomainSelected = true;
         mLastTransportType = TRANSPORT_TYPE_WLAN;
         mVoWifiTrialCount++;
@@ -1253,6 +1296,7 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
             return;
         }
 
+        notifyFirstTransportSelected();
         mLastTransportType = TRANSPORT_TYPE_WWAN;
         mTransportSelectorCallback.onWwanSelected((callback) -> {
             mWwanSelectorCallback = callback;
@@ -1260,6 +1304,21 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
         });
     }
 
+    /**
+     * Records the time taken from the domain selection request to the first transport selection.
+     */
+    private void notifyFirstTransportSelected() {
+        if (mFirstTransportSelected) return;
+        mFirstTransportSelected = true;
+
+        long latencyMs = SystemClock.elapsedRealtime() - mSelectDomainRequestedTimeMs;
+        logi("notifyFirstTransportSelected latency=" + latencyMs + "ms, prewarmed="
+                + mCarrierConfigPrewarmed);
+        if (mReadinessTracker != null) {
+            mReadinessTracker.onFirstTransportSelected(latencyMs, mCarrierConfigPrewarmed);
+        }
+    }
+
     private void onWwanNetworkTypeSelected(@RadioAccessNetworkType int accessNetworkType) {
         logi("onWwanNetworkTypeSelected " + accessNetworkTypeToString(accessNetworkType));
         if (mWwanSelectorCallback == null) {
@@ -1319,11 +1378,23 @@ public class EmergencyCallDomainSelector extends DomainSelectorBase
                 && (mMaxCellularTimeout > 0)
                 && (mVoWifiTrialCount < mMaxNumOfVoWifiTries)) {
             logi("startMaxCellularTimer start timer");
-            sendEmptyMessageDelayed(MSG_MAX_CELLULAR_TIMEOUT, mMaxCellularTimeout);
+            startTimer(MSG_MAX_CELLULAR_TIMEOUT, mMaxCellularTimeout);
             registerForConnectivityChanges();
         }
     }
 
+    /**
+     * Starts a timer that sends the given message when it expires.
+     * The timer is stopped by removing the message.
+     *
+     * @param what The message to be sent when the timer expires.
+     * @param delayMillis The duration of the timer.
+     */
+    @VisibleForTesting
+    protected void startTimer(int what, long delayMillis) {
+        sendEmptyMessageDelayed(what, delayMillis);
+    }
+
     private boolean allowEmergencyCalls(EmergencyRegResult regResult) {
         if (mModemCount < 2) return true;
         if (regResult == null) {
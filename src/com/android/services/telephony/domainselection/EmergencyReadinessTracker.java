@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Prefetches the carrier configuration and the active modem count that
+ * {@link EmergencyCallDomainSelector} needs for an emergency call on a slot, so that the selector
+ * does not have to fetch them when the call is dialed.
+ * <p>
+ * The carrier configuration of the active subscription is fetched once when the tracker is
+ * created and again whenever it changes. The active modem count is fetched when the multi-SIM
+ * configuration or the carrier configuration changes. The time from the domain
+ * selection request to the first transport selection is recorded for every emergency call, split
+ * by whether the carrier configuration had been prefetched.
+ * <p>
+ * The tracker is updated on the looper of the slot, and it can be read from the looper on which
+ * the emergency call domain selector runs.
+ */
+public class EmergencyReadinessTracker {
+    private static final String TAG = "EmergencyReadinessTracker";
+
+    private final BroadcastReceiver mConfigChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED.equals(intent.getAction())) {
+                updateModemCount();
+                return;
+            }
+            if (!CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED.equals(intent.getAction())) {
+                return;
+            }
+            int slotId = intent.getIntExtra(CarrierConfigManager.EXTRA_SLOT_INDEX,
+                    SubscriptionManager.INVALID_SIM_SLOT_INDEX);
+            if (slotId != mSlotId) return;
+            int subId = intent.getIntExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX,
+                    SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            loadCarrierConfig(subId);
+        }
+    };
+
+    private final LocalLog mEventLog = new LocalLog(20);
+    private final Context mContext;
+    private final int mSlotId;
+
+    private int mCarrierConfigSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private PersistableBundle mCarrierConfig;
+    private int mModemCount;
+
+    // The time taken to select the first transport of an emergency call.
+    private final LatencyStats mWarmSelectionLatency = new LatencyStats();
+    private final LatencyStats mColdSelectionLatency = new LatencyStats();
+
+    public EmergencyReadinessTracker(@NonNull Context context, int slotId,
+            @NonNull Looper looper) {
+        mContext = context;
+        mSlotId = slotId;
+        mModemCount = fetchModemCount();
+
+        Handler handler = new Handler(looper);
+        IntentFilter filter = new IntentFilter(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED);
+        mContext.registerReceiver(mConfigChangedReceiver, filter, null, handler);
+        // The carrier configuration changed broadcast is not sticky, so the configuration that is
+        // already loaded is fetched once here.
+        handler.post(this::loadActiveCarrierConfig);
+    }
+
+    /**
+     * Destroys this tracker.
+     */
+    public void destroy() {
+        mContext.unregisterReceiver(mConfigChangedReceiver);
+    }
+
+    /**
+     * Returns the slot index for this tracker.
+     */
+    public int getSlotId() {
+        return mSlotId;
+    }
+
+    /**
+     * Returns the number of the active modems, fetched when the tracker was created and again
+     * whenever the multi-SIM configuration or the carrier configuration changes.
+     */
+    public synchronized int getModemCount() {
+        return mModemCount;
+    }
+
+    /**
+     * Returns the carrier configuration of the given subscription that was fetched in advance.
+     *
+     * @param subId The subscription index.
+     * @return The carrier configuration, or {@code null} if it was not fetched for the given
+     *         subscription.
+     */
+    public synchronized @Nullable PersistableBundle getCarrierConfig(int subId) {
+        if (mCarrierConfig == null || mCarrierConfigSubId != subId) return null;
+        return mCarrierConfig;
+    }
+
+    /**
+     * Caches the carrier configuration of the given subscription if no configuration is cached
+     * yet. It is called when the carrier configuration had not been fetched in advance, so that
+     * the next emergency call can use it. A cached configuration is never replaced, since the
+     * configuration loaded on the slot's looper when it changed may be newer than the given one.
+     *
+     * @return {@code true} if the configuration was cached.
+     */
+    public synchronized boolean putCarrierConfigIfAbsent(int subId,
+            @NonNull PersistableBundle config) {
+        if (mCarrierConfig != null) return false;
+        mCarrierConfigSubId = subId;
+        mCarrierConfig = config;
+        return true;
+    }
+
+    /**
+     * Called when the emergency call domain selector has selected the first transport, either
+     * WWAN or WLAN, for an emergency call.
+     *
+     * @param latencyMs The time from the domain selection request to the transport selection.
+     * @param prewarmed Whether the carrier configuration had been fetched in advance.
+     */
+    public synchronized void onFirstTransportSelected(long latencyMs, boolean prewarmed) {
+        if (prewarmed) {
+            mWarmSelectionLatency.add(latencyMs);
+        } else {
+            mColdSelectionLatency.add(latencyMs);
+        }
+        logi("onFirstTransportSelected latency=" + latencyMs + "ms, prewarmed=" + prewarmed
+                + ", readiness=" + readinessToString());
+    }
+
+    private int fetchModemCount() {
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        return (tm != null) ? tm.getActiveModemCount() : 1;
+    }
+
+    private void updateModemCount() {
+        int modemCount = fetchModemCount();
+        synchronized (this) {
+            mModemCount = modemCount;
+        }
+        logi("updateModemCount modemCount=" + modemCount);
+    }
+
+    private void loadCarrierConfig(int subId) {
+        int modemCount = fetchModemCount();
+
+        CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
+        PersistableBundle b = (configMgr != null) ? configMgr.getConfigForSubId(subId) : null;
+        if (b == null) {
+            b = CarrierConfigManager.getDefaultConfig();
+        }
+        synchronized (this) {
+            mModemCount = modemCount;
+            mCarrierConfigSubId = subId;
+            mCarrierConfig = b;
+        }
+        logi("loadCarrierConfig subId=" + subId + ", modemCount=" + modemCount);
+    }
+
+    private void loadActiveCarrierConfig() {
+        SubscriptionManager sm = mContext.getSystemService(SubscriptionManager.class);
+        SubscriptionInfo info =
+                (sm != null) ? sm.getActiveSubscriptionInfoForSimSlotIndex(mSlotId) : null;
+        if (info == null) return;
+
+        int subId = info.getSubscriptionId();
+        CarrierConfigManager configMgr = mContext.getSystemService(CarrierConfigManager.class);
+        PersistableBundle b = (configMgr != null) ? configMgr.getConfigForSubId(subId) : null;
+        // The configuration loaded by a carrier configuration changed broadcast is newer.
+        if (b != null && putCarrierConfigIfAbsent(subId, b)) {
+            logi("loadActiveCarrierConfig subId=" + subId);
+        }
+    }
+
+    private synchronized String readinessToString() {
+        return "{ configSubId=" + (mCarrierConfig == null ? "none" : mCarrierConfigSubId)
+                + ", modemCount=" + mModemCount + " }";
+    }
+
+    /**
+     * Dumps this instance into a readable format for dumpsys usage.
+     */
+    public synchronized void dump(@NonNull PrintWriter pw) {
+        IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ");
+        ipw.println("EmergencyReadinessTracker:");
+        ipw.increaseIndent();
+        ipw.println("SlotId: " + mSlotId);
+        ipw.println("Readiness: " + readinessToString());
+        ipw.println("First transport selection latency:");
+        ipw.increaseIndent();
+        ipw.println("prewarmed: " + mWarmSelectionLatency);
+        ipw.println("cold: " + mColdSelectionLatency);
+        ipw.decreaseIndent();
+        ipw.println("Event Log:");
+        ipw.increaseIndent();
+        mEventLog.dump(ipw);
+        ipw.decreaseIndent();
+        ipw.decreaseIndent();
+    }
+
+    private void logi(String s) {
+        Log.i(TAG, "[" + mSlotId + "] " + s);
+        mEventLog.log("[" + mSlotId + "] " + s);
+    }
+}
@@ -53,8 +53,8 @@ public class EmergencySmsDomainSelector extends SmsDomainSelector implements
         super(context, slotId, subId, looper, imsStateTracker, listener,
                 "DomainSelector-EmergencySMS");
 
-        mImsStateTracker.addServiceStateListener(this);
-        mImsStateTracker.addBarringInfoListener(this);
+        mImsStateTracker.addServiceStateListener(this, this);
+        mImsStateTracker.addBarringInfoListener(this, this);
     }
 
     @Override
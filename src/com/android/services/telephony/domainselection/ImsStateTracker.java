@@ -17,6 +17,7 @@
 package com.android.services.telephony.domainselection;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
@@ -35,6 +36,7 @@ import android.telephony.ims.ImsStateCallback.DisconnectedReason;
 import android.telephony.ims.RegistrationManager;
 import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
 import android.telephony.ims.stub.ImsRegistrationImplBase;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
 import android.util.LocalLog;
@@ -46,11 +48,16 @@ import com.android.internal.annotations.VisibleForTesting;
 import java.io.PrintWriter;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * A class for tracking the IMS related information like IMS registration state, MMTEL capabilities.
  * And, it also tracks the {@link ServiceState} and {@link BarringInfo} to identify the current
  * network state to which the device is attached.
+ * <p>
+ * The states are updated on the thread of the {@link Looper} given to the tracker. Listeners
+ * running on another thread can be added with the {@link Handler} of their thread, and the
+ * getters can be called from any thread.
  */
 @Keep
 public class ImsStateTracker {
@@ -109,30 +116,34 @@ public class ImsStateTracker {
     private final Context mContext;
     private final int mSlotId;
     private final Handler mHandler;
-    private int mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private volatile int mSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
 
+    // The listeners are mapped to the Handler used to notify them, or null if they are notified
+    // on the thread of this tracker.
     /** For tracking the ServiceState and its related listeners. */
-    private ServiceState mServiceState;
-    private final Set<ServiceStateListener> mServiceStateListeners = new ArraySet<>(2);
+    private volatile ServiceState mServiceState;
+    private final ArrayMap<ServiceStateListener, Handler> mServiceStateListeners =
+            new ArrayMap<>(2);
 
     /** For tracking the BarringInfo and its related listeners. */
-    private BarringInfo mBarringInfo;
-    private final Set<BarringInfoListener> mBarringInfoListeners = new ArraySet<>(2);
+    private volatile BarringInfo mBarringInfo;
+    private final ArrayMap<BarringInfoListener, Handler> mBarringInfoListeners =
+            new ArrayMap<>(2);
 
     /** For tracking IMS states and callbacks. */
-    private final Set<ImsStateListener> mImsStateListeners = new ArraySet<>(5);
+    private final ArrayMap<ImsStateListener, Handler> mImsStateListeners = new ArrayMap<>(5);
     private ImsMmTelManager mMmTelManager;
     private ImsStateCallback mImsStateCallback;
     private RegistrationManager.RegistrationCallback mImsRegistrationCallback;
     private ImsMmTelManager.CapabilityCallback mMmTelCapabilityCallback;
     /** The availability of MmTelFeature. */
-    private Boolean mMmTelFeatureAvailable;
+    private volatile Boolean mMmTelFeatureAvailable;
     /** The IMS registration state and the network type that performed IMS registration. */
-    private Boolean mImsRegistered;
-    private @RadioAccessNetworkType int mImsAccessNetworkType = AccessNetworkType.UNKNOWN;
-    private Boolean mImsRegisteredOverCrossSim;
+    private volatile Boolean mImsRegistered;
+    private volatile @RadioAccessNetworkType int mImsAccessNetworkType = AccessNetworkType.UNKNOWN;
+    private volatile Boolean mImsRegisteredOverCrossSim;
     /** The MMTEL capabilities - Voice, Video, SMS, and Ut. */
-    private MmTelCapabilities mMmTelCapabilities;
+    private volatile MmTelCapabilities mMmTelCapabilities;
     private final Runnable mMmTelFeatureUnavailableRunnable = new Runnable() {
         @Override
         public void run() {
@@ -214,8 +225,8 @@ public class ImsStateTracker {
     public void updateServiceState(ServiceState serviceState) {
         mServiceState = serviceState;
 
-        for (ServiceStateListener listener : mServiceStateListeners) {
-            listener.onServiceStateUpdated(serviceState);
+        for (ServiceStateListener listener : getListeners(mServiceStateListeners)) {
+            notifyServiceStateUpdated(listener, serviceState);
         }
     }
 
@@ -226,7 +237,22 @@ public class ImsStateTracker {
      * @param listener The listener to be added.
      */
     public void addServiceStateListener(@NonNull ServiceStateListener listener) {
-        mServiceStateListeners.add(listener);
+        addServiceStateListener(listener, null);
+    }
+
+    /**
+     * Adds a listener to be notified of the {@link ServiceState} change on the thread of the
+     * given Handler.
+     *
+     * @param listener The listener to be added.
+     * @param handler The Handler used to notify the listener, or {@code null} to notify it on
+     *        the thread of this tracker.
+     */
+    public void addServiceStateListener(@NonNull ServiceStateListener listener,
+            @Nullable Handler handler) {
+        synchronized (mServiceStateListeners) {
+            mServiceStateListeners.put(listener, handler);
+        }
 
         final ServiceState serviceState = mServiceState;
         if (serviceState != null) {
@@ -240,7 +266,9 @@ public class ImsStateTracker {
      * @param listener The listener to be removed.
      */
     public void removeServiceStateListener(@NonNull ServiceStateListener listener) {
-        mServiceStateListeners.remove(listener);
+        synchronized (mServiceStateListeners) {
+            mServiceStateListeners.remove(listener);
+        }
     }
 
     /**
@@ -251,7 +279,15 @@ public class ImsStateTracker {
      */
     private void notifyServiceStateUpdated(ServiceStateListener listener,
             ServiceState serviceState) {
-        if (!mServiceStateListeners.contains(listener)) {
+        Handler handler;
+        synchronized (mServiceStateListeners) {
+            if (!mServiceStateListeners.containsKey(listener)) {
+                return;
+            }
+            handler = mServiceStateListeners.get(listener);
+        }
+        if (handler != null && !handler.getLooper().isCurrentThread()) {
+            handler.post(() -> notifyServiceStateUpdated(listener, serviceState));
             return;
         }
         listener.onServiceStateUpdated(serviceState);
@@ -267,8 +303,8 @@ public class ImsStateTracker {
     public void updateBarringInfo(BarringInfo barringInfo) {
         mBarringInfo = barringInfo;
 
-        for (BarringInfoListener listener : mBarringInfoListeners) {
-            listener.onBarringInfoUpdated(barringInfo);
+        for (BarringInfoListener listener : getListeners(mBarringInfoListeners)) {
+            notifyBarringInfoUpdated(listener, barringInfo);
         }
     }
 
@@ -279,7 +315,22 @@ public class ImsStateTracker {
      * @param listener The listener to be added.
      */
     public void addBarringInfoListener(@NonNull BarringInfoListener listener) {
-        mBarringInfoListeners.add(listener);
+        addBarringInfoListener(listener, null);
+    }
+
+    /**
+     * Adds a listener to be notified of the {@link BarringInfo} change on the thread of the
+     * given Handler.
+     *
+     * @param listener The listener to be added.
+     * @param handler The Handler used to notify the listener, or {@code null} to notify it on
+     *        the thread of this tracker.
+     */
+    public void addBarringInfoListener(@NonNull BarringInfoListener listener,
+            @Nullable Handler handler) {
+        synchronized (mBarringInfoListeners) {
+            mBarringInfoListeners.put(listener, handler);
+        }
 
         final BarringInfo barringInfo = mBarringInfo;
         if (barringInfo != null) {
@@ -293,7 +344,9 @@ public class ImsStateTracker {
      * @param listener The listener to be removed.
      */
     public void removeBarringInfoListener(@NonNull BarringInfoListener listener) {
-        mBarringInfoListeners.remove(listener);
+        synchronized (mBarringInfoListeners) {
+            mBarringInfoListeners.remove(listener);
+        }
     }
 
     /**
@@ -303,7 +356,15 @@ public class ImsStateTracker {
      * @param barringInfo The {@link BarringInfo} to be reported.
      */
     private void notifyBarringInfoUpdated(BarringInfoListener listener, BarringInfo barringInfo) {
-        if (!mBarringInfoListeners.contains(listener)) {
+        Handler handler;
+        synchronized (mBarringInfoListeners) {
+            if (!mBarringInfoListeners.containsKey(listener)) {
+                return;
+            }
+            handler = mBarringInfoListeners.get(listener);
+        }
+        if (handler != null && !handler.getLooper().isCurrentThread()) {
+            handler.post(() -> notifyBarringInfoUpdated(listener, barringInfo));
             return;
         }
         listener.onBarringInfoUpdated(barringInfo);
@@ -317,7 +378,21 @@ public class ImsStateTracker {
      * @param listener The listener to be added.
      */
     public void addImsStateListener(@NonNull ImsStateListener listener) {
-        mImsStateListeners.add(listener);
+        addImsStateListener(listener, null);
+    }
+
+    /**
+     * Adds a listener to be notified of the IMS state change on the thread of the given Handler.
+     *
+     * @param listener The listener to be added.
+     * @param handler The Handler used to notify the listener, or {@code null} to notify it on
+     *        the thread of this tracker.
+     */
+    public void addImsStateListener(@NonNull ImsStateListener listener,
+            @Nullable Handler handler) {
+        synchronized (mImsStateListeners) {
+            mImsStateListeners.put(listener, handler);
+        }
         mHandler.post(() -> notifyImsStateChangeIfValid(listener));
     }
 
@@ -327,7 +402,9 @@ public class ImsStateTracker {
      * @param listener The listener to be removed.
      */
     public void removeImsStateListener(@NonNull ImsStateListener listener) {
-        mImsStateListeners.remove(listener);
+        synchronized (mImsStateListeners) {
+            mImsStateListeners.remove(listener);
+        }
     }
 
     /**
@@ -473,7 +550,15 @@ public class ImsStateTracker {
      * @param listener The {@link ImsStateListener} to be notified.
      */
     private void notifyImsStateChangeIfValid(@NonNull ImsStateListener listener) {
-        if (!mImsStateListeners.contains(listener)) {
+        Handler handler;
+        synchronized (mImsStateListeners) {
+            if (!mImsStateListeners.containsKey(listener)) {
+                return;
+            }
+            handler = mImsStateListeners.get(listener);
+        }
+        if (handler != null && !handler.getLooper().isCurrentThread()) {
+            handler.post(() -> notifyImsStateChangeIfValid(listener));
             return;
         }
 
@@ -494,8 +579,8 @@ public class ImsStateTracker {
      * Notifies the application that MMTEL feature connection state is changed.
      */
     private void notifyImsMmTelFeatureAvailableChanged() {
-        for (ImsStateListener l : mImsStateListeners) {
-            l.onImsMmTelFeatureAvailableChanged();
+        for (ImsStateListener l : getListeners(mImsStateListeners)) {
+            notifyImsStateListener(l, ImsStateListener::onImsMmTelFeatureAvailableChanged);
         }
     }
 
@@ -504,8 +589,8 @@ public class ImsStateTracker {
      */
     private void notifyImsRegistrationStateChanged() {
         logi("ImsState: " + imsStateToString());
-        for (ImsStateListener l : mImsStateListeners) {
-            l.onImsRegistrationStateChanged();
+        for (ImsStateListener l : getListeners(mImsStateListeners)) {
+            notifyImsStateListener(l, ImsStateListener::onImsRegistrationStateChanged);
         }
     }
 
@@ -514,8 +599,40 @@ public class ImsStateTracker {
      */
     private void notifyImsMmTelCapabilitiesChanged() {
         logi("ImsState: " + imsStateToString());
-        for (ImsStateListener l : mImsStateListeners) {
-            l.onImsMmTelCapabilitiesChanged();
+        for (ImsStateListener l : getListeners(mImsStateListeners)) {
+            notifyImsStateListener(l, ImsStateListener::onImsMmTelCapabilitiesChanged);
+        }
+    }
+
+    /**
+     * Notifies the specified listener of an IMS state change on the thread of its Handler.
+     *
+     * @param listener The {@link ImsStateListener} to be notified.
+     * @param notification The method of the listener to be called.
+     */
+    private void notifyImsStateListener(@NonNull ImsStateListener listener,
+            @NonNull Consumer<ImsStateListener> notification) {
+        Handler handler;
+        synchronized (mImsStateListeners) {
+            if (!mImsStateListeners.containsKey(listener)) {
+                return;
+            }
+            handler = mImsStateListeners.get(listener);
+        }
+        if (handler != null && !handler.getLooper().isCurrentThread()) {
+            handler.post(() -> notifyImsStateListener(listener, notification));
+            return;
+        }
+        notification.accept(listener);
+    }
+
+    /**
+     * Returns a copy of the given listeners, so that they can be notified without holding the
+     * lock while a listener adds or removes itself.
+     */
+    private static <T> Set<T> getListeners(@NonNull ArrayMap<T, Handler> listeners) {
+        synchronized (listeners) {
+            return new ArraySet<>(listeners.keySet());
         }
     }
 
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+/**
+ * Aggregates latency samples for dumpsys usage. It can be used from any thread.
+ */
+final class LatencyStats {
+    private int mCount;
+    private long mTotalMs;
+    private long mMaxMs;
+    private long mLastMs;
+
+    /**
+     * Adds a latency sample.
+     *
+     * @param latencyMs The latency in milliseconds.
+     */
+    synchronized void add(long latencyMs) {
+        mCount++;
+        mTotalMs += latencyMs;
+        mMaxMs = Math.max(mMaxMs, latencyMs);
+        mLastMs = latencyMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + mCount
+                + ", avg=" + (mCount == 0 ? 0 : (mTotalMs / mCount)) + "ms"
+                + ", max=" + mMaxMs + "ms"
+                + ", last=" + mLastMs + "ms";
+    }
+}
@@ -56,8 +56,8 @@ public class NormalCallDomainSelector extends DomainSelectorBase implements
 
         if (SubscriptionManager.isValidSubscriptionId(subId)) {
             logd("Subscribing to state callbacks. Subid:" + subId);
-            mImsStateTracker.addServiceStateListener(this);
-            mImsStateTracker.addImsStateListener(this);
+            mImsStateTracker.addServiceStateListener(this, this);
+            mImsStateTracker.addImsStateListener(this, this);
         } else {
             loge("Invalid Subscription. Subid:" + subId);
         }
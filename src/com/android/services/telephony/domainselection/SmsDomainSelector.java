@@ -112,7 +112,7 @@ public class SmsDomainSelector extends DomainSelectorBase implements
         mSelectionAttributes = attr;
         mTransportSelectorCallback = callback;
         setDomainSelectionRequested(true);
-        mImsStateTracker.addImsStateListener(this);
+        mImsStateTracker.addImsStateListener(this, this);
         obtainMessage(EVENT_SELECT_DOMAIN).sendToTarget();
     }
 
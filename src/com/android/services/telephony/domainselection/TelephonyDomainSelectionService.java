@@ -22,6 +22,8 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.telephony.BarringInfo;
 import android.telephony.DisconnectCause;
 import android.telephony.DomainSelectionService;
@@ -31,6 +33,7 @@ import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.telephony.TransportSelectorCallback;
+import android.util.ArrayMap;
 import android.util.IndentingPrintWriter;
 import android.util.LocalLog;
 import android.util.Log;
@@ -46,6 +49,15 @@ import java.util.concurrent.Executor;
 
 /**
  * Implements the telephony domain selection for various telephony features.
+ * <p>
+ * The requests from the framework are received on a dispatch thread and handed over to lanes, so
+ * that the domain selection for one slot does not wait for the work of another slot:
+ * <ul>
+ *     <li>A lane per slot runs the {@link ImsStateTracker} and {@link EmergencyReadinessTracker}
+ *     of the slot, and the domain selectors for normal calls and SMS on the slot.</li>
+ *     <li>An emergency lane with a higher thread priority runs the domain selectors for emergency
+ *     calls and emergency SMS of all slots, and the {@link CrossSimRedialingController}.</li>
+ * </ul>
  */
 public class TelephonyDomainSelectionService extends DomainSelectionService {
     /**
@@ -71,7 +83,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 @SelectorType int selectorType, boolean isEmergency, @NonNull Looper looper,
                 @NonNull ImsStateTracker imsStateTracker,
                 @NonNull DomainSelectorBase.DestroyListener listener,
-                @NonNull CrossSimRedialingController crossSimRedialingController);
+                @NonNull CrossSimRedialingController crossSimRedialingController,
+                @NonNull EmergencyReadinessTracker emergencyReadinessTracker);
     }
 
     private static final class DefaultDomainSelectorFactory implements DomainSelectorFactory {
@@ -80,7 +93,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 @SelectorType int selectorType, boolean isEmergency, @NonNull Looper looper,
                 @NonNull ImsStateTracker imsStateTracker,
                 @NonNull DomainSelectorBase.DestroyListener listener,
-                @NonNull CrossSimRedialingController crossSimRedialingController) {
+                @NonNull CrossSimRedialingController crossSimRedialingController,
+                @NonNull EmergencyReadinessTracker emergencyReadinessTracker) {
             DomainSelectorBase selector = null;
 
             logi("create-DomainSelector: slotId=" + slotId + ", subId=" + subId
@@ -91,7 +105,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 case SELECTOR_TYPE_CALLING:
                     if (isEmergency) {
                         selector = new EmergencyCallDomainSelector(context, slotId, subId, looper,
-                                imsStateTracker, listener, crossSimRedialingController);
+                                imsStateTracker, listener, crossSimRedialingController,
+                                emergencyReadinessTracker);
                     } else {
                         selector = new NormalCallDomainSelector(context, slotId, subId, looper,
                                 imsStateTracker, listener);
@@ -190,10 +205,18 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
     private final Context mContext;
     // Map of slotId -> ImsStateTracker
     private final SparseArray<ImsStateTracker> mImsStateTrackers = new SparseArray<>(2);
+    // Map of slotId -> EmergencyReadinessTracker
+    private final SparseArray<EmergencyReadinessTracker> mEmergencyReadinessTrackers =
+            new SparseArray<>(2);
     private final List<DomainSelectorContainer> mDomainSelectorContainers = new ArrayList<>();
     private final ImsStateTrackerFactory mImsStateTrackerFactory;
     private final DomainSelectorFactory mDomainSelectorFactory;
     private Handler mServiceHandler;
+    // Map of slotId -> the Handler of the lane for the slot
+    private final SparseArray<Handler> mSlotLanes = new SparseArray<>(2);
+    private Handler mEmergencyLane;
+    // Map of the selector type -> the time the domain selection requests waited for their lane
+    private final ArrayMap<String, LatencyStats> mQueueLatencies = new ArrayMap<>();
     private CrossSimRedialingController mCrossSimRedialingController;
 
     public TelephonyDomainSelectionService(Context context) {
@@ -214,7 +237,13 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
         int activeModemCount = (tm != null) ? tm.getActiveModemCount() : 1;
         for (int i = 0; i < activeModemCount; ++i) {
-            mImsStateTrackers.put(i, mImsStateTrackerFactory.create(mContext, i, getLooper()));
+            getImsStateTracker(i);
+        }
+        // Create the readiness tracker of every slot. It loads the carrier configuration of the
+        // slot in the background and keeps it updated, so that it is ready when an emergency
+        // call is dialed.
+        for (int i = 0; i < activeModemCount; ++i) {
+            getEmergencyReadinessTracker(i);
         }
 
         SubscriptionManager sm = mContext.getSystemService(SubscriptionManager.class);
@@ -224,7 +253,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             loge("Adding OnSubscriptionChangedListener failed");
         }
 
-        mCrossSimRedialingController = new CrossSimRedialingController(context, getLooper());
+        mCrossSimRedialingController = new CrossSimRedialingController(context,
+                getEmergencyLooper());
 
         logi("TelephonyDomainSelectionService created");
     }
@@ -258,6 +288,13 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             mImsStateTrackers.clear();
         }
 
+        synchronized (mEmergencyReadinessTrackers) {
+            for (int i = 0; i < mEmergencyReadinessTrackers.size(); ++i) {
+                mEmergencyReadinessTrackers.valueAt(i).destroy();
+            }
+            mEmergencyReadinessTrackers.clear();
+        }
+
         SubscriptionManager sm = mContext.getSystemService(SubscriptionManager.class);
         if (sm != null) {
             sm.removeOnSubscriptionsChangedListener(mSubscriptionsChangedListener);
@@ -268,6 +305,17 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             mCrossSimRedialingController = null;
         }
 
+        synchronized (mSlotLanes) {
+            for (int i = 0; i < mSlotLanes.size(); ++i) {
+                mSlotLanes.valueAt(i).getLooper().quit();
+            }
+            mSlotLanes.clear();
+            if (mEmergencyLane != null) {
+                mEmergencyLane.getLooper().quit();
+                mEmergencyLane = null;
+            }
+        }
+
         if (mServiceHandler != null) {
             mServiceHandler.getLooper().quit();
             mServiceHandler = null;
@@ -276,6 +324,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
 
     /**
      * Selects a domain for the given attributes and callback.
+     * The domain selection runs on the emergency lane for emergency services, and on the lane
+     * of the slot otherwise.
      *
      * @param attr required to determine the domain.
      * @param callback the callback instance being registered.
@@ -283,31 +333,60 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
     @Override
     public void onDomainSelection(@NonNull SelectionAttributes attr,
             @NonNull TransportSelectorCallback callback) {
+        final Handler lane = attr.isEmergency()
+                ? getEmergencyLane() : getSlotLane(attr.getSlotId());
+        final String queueName = queueNameOf(attr.getSelectorType(), attr.isEmergency());
+        final long requestTimeMs = SystemClock.uptimeMillis();
+        lane.post(() -> {
+            getQueueLatency(queueName).add(SystemClock.uptimeMillis() - requestTimeMs);
+            selectDomain(attr, callback, lane);
+        });
+    }
+
+    /**
+     * Creates the domain selector on the given lane and selects a domain on it.
+     */
+    private void selectDomain(@NonNull SelectionAttributes attr,
+            @NonNull TransportSelectorCallback callback, @NonNull Handler lane) {
         final int slotId = attr.getSlotId();
         final int subId = attr.getSubId();
         final int selectorType = attr.getSelectorType();
         final boolean isEmergency = attr.isEmergency();
         ImsStateTracker ist = getImsStateTracker(slotId);
         DomainSelectorBase selector = mDomainSelectorFactory.create(mContext, slotId, subId,
-                selectorType, isEmergency, getLooper(), ist, mDestroyListener,
-                mCrossSimRedialingController);
+                selectorType, isEmergency, lane.getLooper(), ist, mDestroyListener,
+                mCrossSimRedialingController, getEmergencyReadinessTracker(slotId));
 
-        if (selector != null) {
-            // Ensures that ImsStateTracker is started before selecting the domain if not started
-            // for the specified subscription index.
-            ist.start(subId);
-            addDomainSelector(slotId, selectorType, isEmergency, selector);
-        } else {
+        if (selector == null) {
             loge("No proper domain selector: " + selectorTypeToString(selectorType));
             callback.onSelectionTerminated(DisconnectCause.ERROR_UNSPECIFIED);
             return;
         }
 
-        // Notify the caller that the domain selector is created.
-        callback.onCreated(selector);
+        Runnable selection = () -> {
+            addDomainSelector(slotId, selectorType, isEmergency, selector);
+
+            // Notify the caller that the domain selector is created.
+            callback.onCreated(selector);
 
-        // Performs the domain selection.
-        selector.selectDomain(attr, callback);
+            // Performs the domain selection.
+            selector.selectDomain(attr, callback);
+        };
+
+        // Ensures that ImsStateTracker is started on the lane of the slot if not started
+        // for the specified subscription index, before the domain is selected. The emergency
+        // lane does not wait for the lane of the slot, the selection is posted back to it once
+        // the tracker has been started.
+        Handler slotLane = getSlotLane(slotId);
+        if (slotLane == lane) {
+            ist.start(subId);
+            selection.run();
+        } else {
+            slotLane.post(() -> {
+                ist.start(subId);
+                lane.post(selection);
+            });
+        }
     }
 
     /**
@@ -322,7 +401,7 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
     public void onServiceStateUpdated(int slotId, int subId, @NonNull ServiceState serviceState) {
         ImsStateTracker ist = getImsStateTracker(slotId);
         if (ist != null) {
-            ist.updateServiceState(serviceState);
+            runOnSlotLane(slotId, () -> ist.updateServiceState(serviceState));
         }
     }
 
@@ -338,7 +417,7 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
     public void onBarringInfoUpdated(int slotId, int subId, @NonNull BarringInfo barringInfo) {
         ImsStateTracker ist = getImsStateTracker(slotId);
         if (ist != null) {
-            ist.updateBarringInfo(barringInfo);
+            runOnSlotLane(slotId, () -> ist.updateBarringInfo(barringInfo));
         }
     }
 
@@ -358,7 +437,7 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
     }
 
     /**
-     * Returns a Looper instance.
+     * Returns the Looper of the thread receiving the requests from the framework.
      */
     @VisibleForTesting
     public Looper getLooper() {
@@ -366,6 +445,75 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         return mServiceHandler.getLooper();
     }
 
+    /**
+     * Returns the Looper of the lane for the specified slot.
+     * If the lane does not exist for the slot, it creates new one and returns.
+     */
+    @VisibleForTesting
+    public Looper getSlotLooper(int slotId) {
+        return getSlotLane(slotId).getLooper();
+    }
+
+    /**
+     * Returns the Looper of the lane for the emergency domain selectors.
+     */
+    @VisibleForTesting
+    public Looper getEmergencyLooper() {
+        return getEmergencyLane().getLooper();
+    }
+
+    private Handler getSlotLane(int slotId) {
+        synchronized (mSlotLanes) {
+            Handler lane = mSlotLanes.get(slotId);
+
+            if (lane == null) {
+                HandlerThread handlerThread = new HandlerThread(TAG + "-" + slotId);
+                handlerThread.start();
+                lane = new Handler(handlerThread.getLooper());
+                mSlotLanes.put(slotId, lane);
+            }
+
+            return lane;
+        }
+    }
+
+    private Handler getEmergencyLane() {
+        synchronized (mSlotLanes) {
+            if (mEmergencyLane == null) {
+                HandlerThread handlerThread = new HandlerThread(TAG + "-Emergency",
+                        Process.THREAD_PRIORITY_FOREGROUND);
+                handlerThread.start();
+                mEmergencyLane = new Handler(handlerThread.getLooper());
+            }
+
+            return mEmergencyLane;
+        }
+    }
+
+    /**
+     * Runs the task on the lane for the specified slot, immediately if the caller is already
+     * running on that lane.
+     */
+    private void runOnSlotLane(int slotId, @NonNull Runnable task) {
+        Handler lane = getSlotLane(slotId);
+        if (lane.getLooper().isCurrentThread()) {
+            task.run();
+        } else {
+            lane.post(task);
+        }
+    }
+
+    private LatencyStats getQueueLatency(String queueName) {
+        synchronized (mQueueLatencies) {
+            LatencyStats stats = mQueueLatencies.get(queueName);
+            if (stats == null) {
+                stats = new LatencyStats();
+                mQueueLatencies.put(queueName, stats);
+            }
+            return stats;
+        }
+    }
+
     /**
      * Handles the subscriptions change.
      */
@@ -386,7 +534,8 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             if (slotId != SubscriptionManager.INVALID_SIM_SLOT_INDEX) {
                 logd("handleSubscriptionsChanged: slotId=" + slotId);
                 ImsStateTracker ist = getImsStateTracker(slotId);
-                ist.start(subsInfo.getSubscriptionId());
+                int subId = subsInfo.getSubscriptionId();
+                runOnSlotLane(slotId, () -> ist.start(subId));
             }
         }
     }
@@ -451,7 +600,7 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
             ImsStateTracker ist = mImsStateTrackers.get(slotId);
 
             if (ist == null) {
-                ist = mImsStateTrackerFactory.create(mContext, slotId, getLooper());
+                ist = mImsStateTrackerFactory.create(mContext, slotId, getSlotLooper(slotId));
                 mImsStateTrackers.put(slotId, ist);
             }
 
@@ -459,6 +608,28 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         }
     }
 
+    /**
+     * Returns the {@link EmergencyReadinessTracker} instance for the specified slot.
+     * If the {@link EmergencyReadinessTracker} does not exist for the slot, it creates new
+     * instance and returns.
+     */
+    private EmergencyReadinessTracker getEmergencyReadinessTracker(int slotId) {
+        synchronized (mEmergencyReadinessTrackers) {
+            EmergencyReadinessTracker tracker = mEmergencyReadinessTrackers.get(slotId);
+
+            if (tracker == null) {
+                tracker = new EmergencyReadinessTracker(mContext, slotId, getSlotLooper(slotId));
+                mEmergencyReadinessTrackers.put(slotId, tracker);
+            }
+
+            return tracker;
+        }
+    }
+
+    private static String queueNameOf(@SelectorType int selectorType, boolean isEmergency) {
+        return (isEmergency ? "EMERGENCY_" : "") + selectorTypeToString(selectorType);
+    }
+
     private static String selectorTypeToString(@SelectorType int selectorType) {
         switch (selectorType) {
             case SELECTOR_TYPE_CALLING: return "CALLING";
@@ -501,6 +672,12 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
                 ist.dump(ipw);
             }
         }
+        ipw.println("EmergencyReadinessTrackers:");
+        synchronized (mEmergencyReadinessTrackers) {
+            for (int i = 0; i < mEmergencyReadinessTrackers.size(); ++i) {
+                mEmergencyReadinessTrackers.valueAt(i).dump(ipw);
+            }
+        }
         ipw.decreaseIndent();
         ipw.increaseIndent();
         synchronized (mDomainSelectorContainers) {
@@ -517,6 +694,16 @@ public class TelephonyDomainSelectionService extends DomainSelectionService {
         }
         ipw.decreaseIndent();
         ipw.increaseIndent();
+        ipw.println("Queue latency:");
+        ipw.increaseIndent();
+        synchronized (mQueueLatencies) {
+            for (int i = 0; i < mQueueLatencies.size(); ++i) {
+                ipw.println(mQueueLatencies.keyAt(i) + ": " + mQueueLatencies.valueAt(i));
+            }
+        }
+        ipw.decreaseIndent();
+        ipw.decreaseIndent();
+        ipw.increaseIndent();
         ipw.println("Event Log:");
         ipw.increaseIndent();
         sEventLog.dump(ipw);
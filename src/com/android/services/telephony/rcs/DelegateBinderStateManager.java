@@ -58,6 +58,12 @@ public interface DelegateBinderStateManager {
          * The SipDelegate has notified telephony that the IMS configuration has changed.
          */
         void onConfigurationChanged(SipDelegateConfiguration config);
+
+        /**
+         * The SipDelegate has been destroyed without telephony requesting it, for example because
+         * the ImsService died.
+         */
+        default void onDestroyed(int reason) {}
     }
 
     /** Allow for mocks to be created for testing. */
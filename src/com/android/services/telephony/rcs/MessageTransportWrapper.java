@@ -32,14 +32,14 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.RcsProvisioningMonitor;
+import com.android.services.telephony.rcs.validator.ParsedSipMessage;
 import com.android.services.telephony.rcs.validator.ValidationResult;
 
 import java.io.PrintWriter;
 import java.util.Set;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.function.Consumer;
 
@@ -47,13 +47,17 @@ import java.util.function.Consumer;
  * Wraps the SIP message path both from the IMS application to the SipDelegate and from the
  * SipDelegate back to the IMS Application.
  * <p>
- * Queues incoming and outgoing SIP messages on an Executor and deliver to IMS application and
- * SipDelegate in order. If there is an error delivering the message, the caller is notified.
- * Uses {@link TransportSipMessageValidator} to track ongoing SIP dialogs and verify outgoing
- * messages.
+ * Queues incoming and outgoing SIP messages on a {@link SipMessageLane} and deliver to IMS
+ * application and SipDelegate in order. If there is an error delivering the message, the caller is
+ * notified. Uses {@link TransportSipMessageValidator} to track ongoing SIP dialogs and verify
+ * outgoing messages.
  * <p>
  * Note: This handles incoming binder calls, so all calls from other processes should be handled on
- * the provided Executor.
+ * the lane. Each instance has its own lane, so the messages of different SipDelegates are handled
+ * in parallel. Calls from the SipTransportController's Executor are also posted to the lane
+ * without waiting for them, so the state of the transport is only ever accessed on the lane and a
+ * slow lane does not hold up the controller. Closing the transport returns a CompletableFuture
+ * that the lane completes, so the controller can chain the steps that must follow the close.
  */
 public class MessageTransportWrapper implements DelegateBinderStateManager.StateCallback {
     private static final String TAG = "MessageTW";
@@ -69,7 +73,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void notifyMessageReceived(String viaTransactionId) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                mLane.execute(() -> {
                     if (mSipDelegate == null) {
                         logw("notifyMessageReceived called when SipDelegate is not associated for "
                                 + "transaction id: " + viaTransactionId);
@@ -97,7 +101,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void notifyMessageReceiveError(String viaTransactionId, int reason) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                mLane.execute(() -> {
                     if (mSipDelegate == null) {
                         logw("notifyMessageReceiveError called when SipDelegate is not associated "
                                 + "for transaction id: " + viaTransactionId);
@@ -124,27 +128,29 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void sendMessage(SipMessage sipMessage, long configVersion) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                mLane.execute(() -> {
+                    // Parsed once and shared by the validators, the session tracker and metrics.
+                    ParsedSipMessage parsedMessage = new ParsedSipMessage(sipMessage);
                     ValidationResult result =
-                            mSipSessionTracker.verifyOutgoingMessage(sipMessage, configVersion);
+                            mSipSessionTracker.verifyOutgoingMessage(parsedMessage, configVersion);
                     result = maybeOverrideValidationForTesting(result);
                     if (!result.isValidated) {
                         notifyDelegateSendError("Outgoing - " + result.logReason,
-                                sipMessage, result.restrictedReason);
+                                parsedMessage, result.restrictedReason);
                         return;
                     }
                     try {
                         if (mSipDelegate == null) {
                             logw("sendMessage called when SipDelegate is not associated."
                                     + sipMessage);
-                            notifyDelegateSendError("No SipDelegate", sipMessage,
+                            notifyDelegateSendError("No SipDelegate", parsedMessage,
                                     SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
 
                             return;
                         }
                         mSipDelegate.sendMessage(sipMessage, configVersion);
                     } catch (RemoteException e) {
-                        notifyDelegateSendError("RemoteException: " + e, sipMessage,
+                        notifyDelegateSendError("RemoteException: " + e, parsedMessage,
                                 SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
                     }
                 });
@@ -161,7 +167,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void cleanupSession(String callId) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> cleanupSessionInternal(callId));
+                mLane.execute(() -> cleanupSessionInternal(callId));
             } finally {
                 Binder.restoreCallingIdentity(token);
             }
@@ -182,17 +188,20 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void onMessageReceived(SipMessage message) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
-                    ValidationResult result = mSipSessionTracker.verifyIncomingMessage(message);
+                mLane.execute(() -> {
+                    // Parsed once and shared by the validators, the session tracker and metrics.
+                    ParsedSipMessage parsedMessage = new ParsedSipMessage(message);
+                    ValidationResult result =
+                            mSipSessionTracker.verifyIncomingMessage(parsedMessage);
                     if (!result.isValidated) {
-                        notifyAppReceiveError("Incoming - " + result.logReason, message,
+                        notifyAppReceiveError("Incoming - " + result.logReason, parsedMessage,
                                 result.restrictedReason);
                         return;
                     }
                     try {
                         mAppCallback.onMessageReceived(message);
                     } catch (RemoteException e) {
-                        notifyAppReceiveError("RemoteException: " + e, message,
+                        notifyAppReceiveError("RemoteException: " + e, parsedMessage,
                                 SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
                     }
                 });
@@ -209,7 +218,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void onMessageSent(String viaTransactionId) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                mLane.execute(() -> {
                     if (mSipDelegate == null) {
                         logw("Unexpected state, onMessageSent called when SipDelegate is not "
                                 + "associated");
@@ -235,7 +244,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         public void onMessageSendFailure(String viaTransactionId, int reason) {
             long token = Binder.clearCallingIdentity();
             try {
-                mExecutor.execute(() -> {
+                mLane.execute(() -> {
                     if (mSipDelegate == null) {
                         logw("Unexpected state, onMessageSendFailure called when SipDelegate is not"
                                 + "associated");
@@ -269,10 +278,12 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
 
     private final ValidatorOverride mValidatorOverride;
     private final ISipDelegateMessageCallback mAppCallback;
-    private final Executor mExecutor;
+    private final SipMessageLane mLane;
     private final int mSubId;
     private final TransportSipMessageValidator mSipSessionTracker;
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
+    private final SipTransportEventLog mEventLog = new SipTransportEventLog(
+            SipTransportController.EVENT_LOG_SIZE, SipTransportController.REDACT_SIP_MESSAGES);
 
     private ISipDelegate mSipDelegate;
 
@@ -280,8 +291,8 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             ISipDelegateMessageCallback appMessageCallback) {
         mSubId = subId;
         mAppCallback = appMessageCallback;
-        mExecutor = executor;
-        mSipSessionTracker = new TransportSipMessageValidator(subId, executor);
+        mLane = new SipMessageLane(SipMessageLane.getSharedExecutor());
+        mSipSessionTracker = new TransportSipMessageValidator(subId, executor, mLane);
         mValidatorOverride = () -> RcsProvisioningMonitor.getInstance()
                 .getImsFeatureValidationOverride(mSubId);
     }
@@ -295,7 +306,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             TransportSipMessageValidator sipSessionTracker) {
         mSubId = subId;
         mAppCallback = appMessageCallback;
-        mExecutor = executor;
+        mLane = new SipMessageLane(executor);
         mSipSessionTracker = sipSessionTracker;
         // Remove links to static methods calls querying overrides for testing.
         mValidatorOverride = () -> null;
@@ -303,21 +314,21 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
 
     @Override
     public void onRegistrationStateChanged(DelegateRegistrationState registrationState) {
-        mSipSessionTracker.onRegistrationStateChanged((callIds) -> {
+        mLane.execute(() -> mSipSessionTracker.onRegistrationStateChanged((callIds) -> {
             for (String id : callIds)  {
                 cleanupSessionInternal(id);
             }
-        }, registrationState);
+        }, registrationState));
     }
 
     @Override
     public void onImsConfigurationChanged(SipDelegateImsConfiguration config) {
-        mSipSessionTracker.onImsConfigurationChanged(config);
+        mLane.execute(() -> mSipSessionTracker.onImsConfigurationChanged(config));
     }
 
     @Override
     public void onConfigurationChanged(SipDelegateConfiguration config) {
-        mSipSessionTracker.onConfigurationChanged(config);
+        mLane.execute(() -> mSipSessionTracker.onConfigurationChanged(config));
     }
 
     /**
@@ -332,8 +343,10 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
             Set<FeatureTagState> deniedFeatureTags) {
         logi("openTransport: delegate=" + delegate + ", supportedTags=" + supportedFeatureTags
                 + ", deniedTags=" + deniedFeatureTags);
-        mSipSessionTracker.onTransportOpened(supportedFeatureTags, deniedFeatureTags);
-        mSipDelegate = delegate;
+        mLane.execute(() -> {
+            mSipSessionTracker.onTransportOpened(supportedFeatureTags, deniedFeatureTags);
+            mSipDelegate = delegate;
+        });
     }
 
     /** Dump state about this tracker that should be included in the dumpsys */
@@ -342,6 +355,14 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         pw.println("Most recent logs:");
         mLocalLog.dump(printWriter);
         pw.println();
+        pw.println("Most recent message events:");
+        mEventLog.dump(printWriter);
+        pw.println();
+        pw.println("Message lane:");
+        pw.increaseIndent();
+        mLane.dump(pw);
+        pw.decreaseIndent();
+        pw.println();
         pw.println("Dialog Tracker:");
         pw.increaseIndent();
         mSipSessionTracker.dump(pw);
@@ -393,18 +414,29 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
      *         return {@code true} if the procedure completed successfully or {@link false} if the
      *         transport needed to be closed forcefully due to the application not responding before
      *         a timeout occurred.
+     * @return A CompletableFuture that completes on the lane once the transport has started to
+     *         close. If there were no open SIP sessions, the resultConsumer has already been called
+     *         when it completes.
      */
-    public void closeGracefully(int delegateClosingReason, int closedReason,
+    public CompletableFuture<Void> closeGracefully(int delegateClosingReason, int closedReason,
             Consumer<Boolean> resultConsumer) {
         logi("closeGracefully: closingReason=" + delegateClosingReason + ", closedReason="
                 + closedReason + ", resultConsumer(" + resultConsumer.hashCode() + ")");
-        mSipSessionTracker.closeSessionsGracefully((openCallIds) -> {
-            logi("closeGracefully resultConsumer(" + resultConsumer.hashCode()
-                    + "): open call IDs:{" + openCallIds + "}");
-            closeTransport(openCallIds);
-            // propagate event to the consumer
-            resultConsumer.accept(openCallIds.isEmpty() /*successfullyClosed*/);
-        }, delegateClosingReason, closedReason);
+        CompletableFuture<Void> pendingClosing = new CompletableFuture<>();
+        mLane.execute(() -> {
+            try {
+                mSipSessionTracker.closeSessionsGracefully((openCallIds) -> {
+                    logi("closeGracefully resultConsumer(" + resultConsumer.hashCode()
+                            + "): open call IDs:{" + openCallIds + "}");
+                    closeTransport(openCallIds);
+                    // propagate event to the consumer
+                    resultConsumer.accept(openCallIds.isEmpty() /*successfullyClosed*/);
+                }, delegateClosingReason, closedReason);
+            } finally {
+                pendingClosing.complete(null);
+            }
+        });
+        return pendingClosing;
     }
 
     /**
@@ -412,11 +444,21 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
      * the provided reason.
      * @param closedReason The failure reason to provide to incoming/outgoing SIP messages
      *         if an attempt is made to send/receive a message after this method is called.
+     * @return A CompletableFuture that completes on the lane once the transport has been closed.
      */
-    public void close(int closedReason) {
-        Set<String> openSessions = mSipSessionTracker.closeSessions(closedReason);
-        logi("close: closedReason=" + closedReason + "open call IDs:{" + openSessions + "}");
-        closeTransport(openSessions);
+    public CompletableFuture<Void> close(int closedReason) {
+        CompletableFuture<Void> pendingClose = new CompletableFuture<>();
+        mLane.execute(() -> {
+            try {
+                Set<String> openSessions = mSipSessionTracker.closeSessions(closedReason);
+                logi("close: closedReason=" + closedReason + "open call IDs:{" + openSessions
+                        + "}");
+                closeTransport(openSessions);
+            } finally {
+                pendingClose.complete(null);
+            }
+        });
+        return pendingClose;
     }
 
     // Clean up all state related to the existing SipDelegate immediately.
@@ -459,10 +501,11 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         return result;
     }
 
-    private void notifyDelegateSendError(String logReason, SipMessage message, int reasonCode) {
-        String transactionId = SipMessageParsingUtils.getTransactionId(message.getHeaderSection());
-        logi("Error sending SipMessage[id: " + transactionId + ", code: " + reasonCode
-                + "] -> SipDelegate for reason: " + logReason);
+    private void notifyDelegateSendError(String logReason, ParsedSipMessage message,
+            int reasonCode) {
+        String transactionId = message.getTransactionId();
+        mEventLog.logTransaction(SipTransportEventLog.EVENT_DELEGATE_SEND_ERROR, transactionId,
+                reasonCode, logReason);
         try {
             mAppCallback.onMessageSendFailure(transactionId, reasonCode);
         } catch (RemoteException e) {
@@ -470,10 +513,11 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
         }
     }
 
-    private void notifyAppReceiveError(String logReason, SipMessage message, int reasonCode) {
-        String transactionId = SipMessageParsingUtils.getTransactionId(message.getHeaderSection());
-        logi("Error sending SipMessage[id: " + transactionId + ", code: " + reasonCode + "] -> "
-                + "SipDelegateConnection for reason: " + logReason);
+    private void notifyAppReceiveError(String logReason, ParsedSipMessage message,
+            int reasonCode) {
+        String transactionId = message.getTransactionId();
+        mEventLog.logTransaction(SipTransportEventLog.EVENT_APP_RECEIVE_ERROR, transactionId,
+                reasonCode, logReason);
         try {
             mSipDelegate.notifyMessageReceiveError(transactionId, reasonCode);
         } catch (RemoteException e) {
@@ -488,7 +532,7 @@ public class MessageTransportWrapper implements DelegateBinderStateManager.State
      */
     public void setSipDialogsListener(SipDialogsStateListener listener,
             boolean isNeedNotify) {
-        mSipSessionTracker.setSipDialogsListener(listener, isNeedNotify);
+        mLane.execute(() -> mSipSessionTracker.setSipDialogsListener(listener, isNeedNotify));
     }
 
     private void logi(String log) {
@@ -236,7 +236,13 @@ public class SipDelegateBinderConnection implements DelegateBinderStateManager,
     private void notifySipDelegateDestroyed(int reason) {
         logi("Delegate Destroyed, reason: " + reason);
         mDelegateBinder = null;
-        if (mPendingDestroyedConsumer == null) return;
+        if (mPendingDestroyedConsumer == null) {
+            // Not requested by destroy, which clears mStateCallbacks.
+            for (StateCallback c : mStateCallbacks) {
+                c.onDestroyed(reason);
+            }
+            return;
+        }
         mPendingDestroyedConsumer.accept(reason);
         mPendingDestroyedConsumer = null;
     }
@@ -19,7 +19,9 @@ package com.android.services.telephony.rcs;
 import android.telephony.ims.DelegateRegistrationState;
 import android.telephony.ims.DelegateRequest;
 import android.telephony.ims.FeatureTagState;
+import android.telephony.ims.SipDelegateConfiguration;
 import android.telephony.ims.SipDelegateConnection;
+import android.telephony.ims.SipDelegateImsConfiguration;
 import android.telephony.ims.SipDelegateManager;
 import android.telephony.ims.aidl.IImsRegistration;
 import android.telephony.ims.aidl.ISipDelegate;
@@ -89,6 +91,34 @@ public class SipDelegateController {
 
     private DelegateBinderStateManager mBinderConnection;
     private Set<String> mTrackedFeatureTags;
+    private Runnable mDelegateDestroyedListener;
+
+    // Notified when the SipDelegate is destroyed without a request from this controller.
+    private final DelegateBinderStateManager.StateCallback mDelegateDestroyedCallback =
+            new DelegateBinderStateManager.StateCallback() {
+                @Override
+                public void onRegistrationStateChanged(
+                        DelegateRegistrationState registrationState) {
+                }
+
+                @Override
+                public void onImsConfigurationChanged(SipDelegateImsConfiguration config) {
+                }
+
+                @Override
+                public void onConfigurationChanged(SipDelegateConfiguration config) {
+                }
+
+                @Override
+                public void onDestroyed(int reason) {
+                    logw("SipDelegate destroyed unexpectedly, reason: " + reason);
+                    // The feature tags need to be applied again to recreate the SipDelegate.
+                    mTrackedFeatureTags = null;
+                    if (mDelegateDestroyedListener != null) {
+                        mDelegateDestroyedListener.run();
+                    }
+                }
+            };
 
     public SipDelegateController(int subId, int uid, DelegateRequest initialRequest,
             String packageName, ISipTransport transportImpl, IImsRegistration registrationImpl,
@@ -157,6 +187,14 @@ public class SipDelegateController {
         return mMessageTransportWrapper.getAppMessageCallback();
     }
 
+    /**
+     * Set a listener that is called on the executor when the underlying SipDelegate is destroyed
+     * without being requested by this controller, for example because its binder died.
+     */
+    public void setDelegateDestroyedListener(Runnable listener) {
+        mDelegateDestroyedListener = listener;
+    }
+
     /**
      * Create the underlying SipDelegate.
      * <p>
@@ -331,27 +369,30 @@ public class SipDelegateController {
             logi("destroySipDelegate, called when binder connection is already null");
             return CompletableFuture.completedFuture(delegateDestroyedReason);
         }
-        // First, bring down the message transport.
+        // First, bring down the message transport. This happens on the lane of the transport, so
+        // wait for the lane before checking whether there are open SIP dialogs.
         CompletableFuture<Boolean> pendingTransportClosed = new CompletableFuture<>();
+        CompletableFuture<Void> pendingClosing;
         if (force) {
             logi("destroySipDelegate, forced");
-            mMessageTransportWrapper.close(messageDestroyedReason);
-            pendingTransportClosed.complete(true);
+            pendingClosing = mMessageTransportWrapper.close(messageDestroyedReason)
+                    .thenRun(() -> pendingTransportClosed.complete(true));
         } else {
-            mMessageTransportWrapper.closeGracefully(messageDestroyingReason,
+            pendingClosing = mMessageTransportWrapper.closeGracefully(messageDestroyingReason,
                     messageDestroyedReason, pendingTransportClosed::complete);
         }
 
-        // Do not send an intermediate pending state to app if there are no open SIP dialogs to
-        // worry about.
-        if (!pendingTransportClosed.isDone()) {
-            mDelegateStateTracker.sipDelegateChanging(deregisteringReason);
-        } else {
-            logi("destroySipDelegate, skip DEREGISTERING_REASON_DESTROY_PENDING");
-        }
-
-        // Next, destroy the SipDelegate.
-        return pendingTransportClosed.thenComposeAsync((wasGraceful) -> {
+        return pendingClosing.thenComposeAsync((ignore) -> {
+            // Do not send an intermediate pending state to app if there are no open SIP dialogs
+            // to worry about.
+            if (!pendingTransportClosed.isDone()) {
+                mDelegateStateTracker.sipDelegateChanging(deregisteringReason);
+            } else {
+                logi("destroySipDelegate, skip DEREGISTERING_REASON_DESTROY_PENDING");
+            }
+            return pendingTransportClosed;
+        }, mExecutorService).thenComposeAsync((wasGraceful) -> {
+            // Next, destroy the SipDelegate.
             logi("destroySipDelegate, transport gracefully closed = " + wasGraceful);
             CompletableFuture<Integer> pendingDestroy = new CompletableFuture<>();
             mBinderConnection.destroy(delegateDestroyedReason, pendingDestroy::complete);
@@ -382,9 +423,10 @@ public class SipDelegateController {
     private DelegateBinderStateManager createBinderConnection(Set<String> supportedSet,
             Set<FeatureTagState> deniedSet) {
 
-        List<DelegateBinderStateManager.StateCallback> stateCallbacks = new ArrayList<>(2);
+        List<DelegateBinderStateManager.StateCallback> stateCallbacks = new ArrayList<>(3);
         stateCallbacks.add(mDelegateStateTracker);
         stateCallbacks.add(mMessageTransportWrapper);
+        stateCallbacks.add(mDelegateDestroyedCallback);
 
         return mBinderConnectionFactory.create(mSubId,
                 new DelegateRequest(supportedSet), deniedSet, mExecutorService, stateCallbacks);
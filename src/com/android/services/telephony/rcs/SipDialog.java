@@ -19,7 +19,7 @@ package com.android.services.telephony.rcs;
 import android.telephony.ims.SipMessage;
 import android.text.TextUtils;
 
-import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.validator.ParsedSipMessage;
 
 import java.time.Instant;
 import java.util.Objects;
@@ -71,12 +71,16 @@ public class SipDialog {
      * @return A SipDialog instance representing the SIP request.
      */
     public static SipDialog fromSipMessage(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) return null;
-        String fromTag = SipMessageParsingUtils.getFromTag(m.getHeaderSection());
-        Set<String> acceptContactTags = SipMessageParsingUtils.getAcceptContactFeatureTags(
-                m.getHeaderSection());
-        return new SipDialog(m.getViaBranchParameter(), m.getCallIdParameter(), fromTag,
-                acceptContactTags);
+        return fromSipMessage(new ParsedSipMessage(m));
+    }
+
+    /**
+     * @return A SipDialog instance representing the SIP request.
+     */
+    public static SipDialog fromSipMessage(ParsedSipMessage m) {
+        if (!m.isRequest()) return null;
+        return new SipDialog(m.getViaBranchParameter(), m.getCallId(), m.getFromTag(),
+                m.getAcceptContactFeatureTags());
     }
 
     /**
@@ -180,10 +184,16 @@ public class SipDialog {
      * forking.
      */
     public boolean isResponseAssociatedWithDialog(SipMessage m) {
+        return isResponseAssociatedWithDialog(new ParsedSipMessage(m));
+    }
+
+    /**
+     * @see #isResponseAssociatedWithDialog(SipMessage)
+     */
+    public boolean isResponseAssociatedWithDialog(ParsedSipMessage m) {
         if (!mBranchId.equals(m.getViaBranchParameter())) return false;
-        if (!mCallId.equals(m.getCallIdParameter())) return false;
-        String fromTag = SipMessageParsingUtils.getFromTag(m.getHeaderSection());
-        return mFromTag.equals(fromTag);
+        if (!mCallId.equals(m.getCallId())) return false;
+        return mFromTag.equals(m.getFromTag());
     }
 
     /**
@@ -191,9 +201,16 @@ public class SipDialog {
      * not.
      */
     public boolean isRequestAssociatedWithDialog(SipMessage m) {
-        if (!mCallId.equals(m.getCallIdParameter())) return false;
-        String fromTag = SipMessageParsingUtils.getFromTag(m.getHeaderSection());
-        String toTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+        return isRequestAssociatedWithDialog(new ParsedSipMessage(m));
+    }
+
+    /**
+     * @see #isRequestAssociatedWithDialog(SipMessage)
+     */
+    public boolean isRequestAssociatedWithDialog(ParsedSipMessage m) {
+        if (!mCallId.equals(m.getCallId())) return false;
+        String fromTag = m.getFromTag();
+        String toTag = m.getToTag();
         // Requests can only be associated if both to and from tag of message are populated. The
         // dialog's to tag must also be non-null meaning we got a response from the remote.
         if (fromTag == null || toTag == null || mToTag == null) return false;
@@ -203,22 +220,26 @@ public class SipDialog {
                 && (mToTag.equals(toTag) || mToTag.equals(fromTag));
     }
 
-    @Override
-    public String toString() {
-        StringBuilder b = new StringBuilder("SipDialog[");
-        switch (mState) {
+    /**
+     * @return A human readable form of a dialog state, see {@link #getState()}.
+     */
+    public static String getStateString(int state) {
+        switch (state) {
             case STATE_EARLY:
-                b.append("early");
-                break;
+                return "early";
             case STATE_CONFIRMED:
-                b.append("confirmed");
-                break;
+                return "confirmed";
             case STATE_CLOSED:
-                b.append("closed");
-                break;
+                return "closed";
             default:
-                b.append(mState);
+                return String.valueOf(state);
         }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder("SipDialog[");
+        b.append(getStateString(mState));
         b.append("] bId=");
         b.append(mBranchId);
         b.append(", cId=");
@@ -30,8 +30,10 @@ public interface SipDialogsStateListener {
      * @param key This is an ID of SipSessionTracker for distinguishing whose delegate is
      *               during dialog mapping.
      * @param dialogStates This is dialog state information of delegate
+     * @param force Whether the callbacks should be notified even if the state of the dialogs has
+     *               not changed since they were last notified.
      */
-    void reMappingSipDelegateState(String key, List<SipDialogState> dialogStates);
+    void reMappingSipDelegateState(String key, List<SipDialogState> dialogStates, boolean force);
 
     /**
      * Notify SipDialogState information with
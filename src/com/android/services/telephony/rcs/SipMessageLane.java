@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks of a single SipDelegate's message transport in order, on a thread pool that is
+ * shared by all SipDelegates.
+ * <p>
+ * Each {@link MessageTransportWrapper} has its own lane, so a slow SIP message for one SipDelegate
+ * only delays the messages of that SipDelegate instead of every SipDelegate on the device. Tasks
+ * submitted to the same lane never run concurrently and run in the order they were submitted.
+ * <p>
+ * The depth of the queue when a task is submitted and the time a task waited before running are
+ * recorded in histograms that are included in the dumpsys.
+ */
+public class SipMessageLane implements Executor {
+    private static final String LOG_TAG = "SipMessageLane";
+
+    // The maximum number of lanes that can run at the same time.
+    private static final int SHARED_POOL_SIZE = 4;
+    private static final long SHARED_POOL_KEEP_ALIVE_MS = 30000;
+    private static final String THREAD_NAME_PREFIX = "SipMessageLane-";
+
+    // Upper bounds (inclusive) of the queue depth histogram buckets, the last bucket is unbounded.
+    private static final int[] QUEUE_DEPTH_BUCKETS = new int[] {0, 1, 4, 16, 64};
+    // Upper bounds (exclusive) of the latency histogram buckets, the last bucket is unbounded.
+    private static final long[] LATENCY_BUCKETS_MS = new long[] {1, 5, 20, 100, 500};
+
+    private static ThreadPoolExecutor sSharedExecutor;
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private static final class Task {
+        final Runnable runnable;
+        final long enqueueTimeNs;
+
+        Task(Runnable r, long timeNs) {
+            runnable = r;
+            enqueueTimeNs = timeNs;
+        }
+    }
+
+    private final Executor mExecutor;
+    private final ArrayDeque<Task> mTasks = new ArrayDeque<>();
+    private final long[] mQueueDepthHistogram = new long[QUEUE_DEPTH_BUCKETS.length + 1];
+    private final long[] mLatencyHistogram = new long[LATENCY_BUCKETS_MS.length + 1];
+    private boolean mIsScheduled;
+    private int mMaxQueueDepth;
+    private long mMaxLatencyNs;
+
+    /**
+     * @return The thread pool shared by all lanes that are not created for testing.
+     */
+    public static synchronized Executor getSharedExecutor() {
+        if (sSharedExecutor == null) {
+            sSharedExecutor = new ThreadPoolExecutor(SHARED_POOL_SIZE, SHARED_POOL_SIZE,
+                    SHARED_POOL_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(r, THREAD_NAME_PREFIX + sThreadCount.incrementAndGet()));
+            sSharedExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sSharedExecutor;
+    }
+
+    /**
+     * @param executor The executor that runs the tasks of this lane, usually
+     *         {@link #getSharedExecutor()}.
+     */
+    public SipMessageLane(Executor executor) {
+        mExecutor = executor;
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        boolean shouldSchedule;
+        synchronized (mTasks) {
+            int depth = mTasks.size();
+            mQueueDepthHistogram[getQueueDepthBucket(depth)]++;
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, depth);
+            mTasks.add(new Task(runnable, System.nanoTime()));
+            shouldSchedule = !mIsScheduled;
+            mIsScheduled = true;
+        }
+        if (shouldSchedule) {
+            mExecutor.execute(this::runNext);
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting to be run on this lane.
+     */
+    @VisibleForTesting
+    public int getQueueDepth() {
+        synchronized (mTasks) {
+            return mTasks.size();
+        }
+    }
+
+    // Run one task and then yield the thread to the other lanes sharing the executor.
+    private void runNext() {
+        Task task;
+        synchronized (mTasks) {
+            task = mTasks.poll();
+            if (task == null) {
+                mIsScheduled = false;
+                return;
+            }
+            long latencyNs = System.nanoTime() - task.enqueueTimeNs;
+            mLatencyHistogram[getLatencyBucket(TimeUnit.NANOSECONDS.toMillis(latencyNs))]++;
+            mMaxLatencyNs = Math.max(mMaxLatencyNs, latencyNs);
+        }
+        try {
+            task.runnable.run();
+        } catch (RuntimeException e) {
+            Log.e(SipTransportController.LOG_TAG, LOG_TAG + ": task failed", e);
+        } finally {
+            boolean hasNext;
+            synchronized (mTasks) {
+                hasNext = !mTasks.isEmpty();
+                if (!hasNext) mIsScheduled = false;
+            }
+            if (hasNext) {
+                mExecutor.execute(this::runNext);
+            }
+        }
+    }
+
+    /** Dump the queue depth and latency histograms of this lane. */
+    public void dump(IndentingPrintWriter pw) {
+        synchronized (mTasks) {
+            pw.println("Queue depth: current=" + mTasks.size() + ", max=" + mMaxQueueDepth);
+            pw.increaseIndent();
+            for (int i = 0; i < mQueueDepthHistogram.length; i++) {
+                String bucket = (i < QUEUE_DEPTH_BUCKETS.length)
+                        ? "<=" + QUEUE_DEPTH_BUCKETS[i] : ">" + QUEUE_DEPTH_BUCKETS[i - 1];
+                pw.println(bucket + ": " + mQueueDepthHistogram[i]);
+            }
+            pw.decreaseIndent();
+            pw.println("Queue latency: max="
+                    + TimeUnit.NANOSECONDS.toMillis(mMaxLatencyNs) + "ms");
+            pw.increaseIndent();
+            for (int i = 0; i < mLatencyHistogram.length; i++) {
+                String bucket = (i < LATENCY_BUCKETS_MS.length)
+                        ? "<" + LATENCY_BUCKETS_MS[i] + "ms"
+                        : ">=" + LATENCY_BUCKETS_MS[i - 1] + "ms";
+                pw.println(bucket + ": " + mLatencyHistogram[i]);
+            }
+            pw.decreaseIndent();
+        }
+    }
+
+    private static int getQueueDepthBucket(int depth) {
+        for (int i = 0; i < QUEUE_DEPTH_BUCKETS.length; i++) {
+            if (depth <= QUEUE_DEPTH_BUCKETS[i]) return i;
+        }
+        return QUEUE_DEPTH_BUCKETS.length;
+    }
+
+    private static int getLatencyBucket(long latencyMs) {
+        for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+            if (latencyMs < LATENCY_BUCKETS_MS[i]) return i;
+        }
+        return LATENCY_BUCKETS_MS.length;
+    }
+}
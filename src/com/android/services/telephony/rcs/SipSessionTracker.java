@@ -24,15 +24,18 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.services.telephony.rcs.validator.ParsedSipMessage;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -45,6 +48,11 @@ import java.util.stream.Collectors;
  * CLOSED.
  * <p>
  * The SIP session will be closed once all of the associated dialogs are closed.
+ * <p>
+ * Dialogs are indexed by call-ID and by the feature tags of their Accept-Contact headers.
+ * Sessions whose dialogs are all closed are kept until {@link #cleanupSession(String)} is called,
+ * but at most {@link #MAX_CLOSED_SESSIONS} of them; beyond that, the session that was closed
+ * first is dropped.
  */
 public class SipSessionTracker {
     private static final String TAG = "SessionT";
@@ -62,8 +70,22 @@ public class SipSessionTracker {
      */
     private static final String SIP_CLOSE_DIALOG_REQUEST_METHOD = "bye";
 
+    /**
+     * The maximum number of closed SIP sessions that are kept while waiting for
+     * {@link #cleanupSession(String)}.
+     */
+    @VisibleForTesting
+    public static final int MAX_CLOSED_SESSIONS = 32;
+
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
-    private final ArrayList<SipDialog> mTrackedDialogs = new ArrayList<>();
+    private final SipTransportEventLog mEventLog = new SipTransportEventLog(
+            SipTransportController.EVENT_LOG_SIZE, SipTransportController.REDACT_SIP_MESSAGES);
+    // Maps the call-ID of a session to its dialog and any forks of it.
+    private final HashMap<String, List<SipDialog>> mDialogsByCallId = new HashMap<>();
+    // Maps the lower case Accept-Contact feature tags to the call-IDs of the associated sessions.
+    private final HashMap<String, Set<String>> mCallIdsByFeatureTag = new HashMap<>();
+    // Call-IDs of the sessions whose dialogs are all closed, oldest first.
+    private final LinkedHashSet<String> mClosedCallIds = new LinkedHashSet<>();
     // Operations that are pending an ack from the remote application processing the message before
     // they can be applied here. Maps the via header branch parameter of the message to the
     // associated pending operation.
@@ -72,11 +94,17 @@ public class SipSessionTracker {
     private final RcsStats mRcsStats;
     int mSubId;
     private SipDialogsStateListener mSipDialogsListener;
+    // The number of dialogs in each state, indexed by SipDialog state.
+    private final int[] mDialogStateCounts = new int[SipDialog.STATE_CLOSED + 1];
+    // The number of dialogs in each state when the listener was last notified, or -1 if the
+    // listener has not been notified.
+    private final int[] mNotifiedDialogStateCounts = new int[SipDialog.STATE_CLOSED + 1];
     private String mDelegateKey;
 
     public SipSessionTracker(int subId, RcsStats rcsStats) {
         mSubId = subId;
         mRcsStats = rcsStats;
+        Arrays.fill(mNotifiedDialogStateCounts, -1);
         mDelegateKey = String.valueOf(UUID.randomUUID());
     }
 
@@ -88,12 +116,19 @@ public class SipSessionTracker {
      * @param message The Incoming SIP message.
      */
     public void filterSipMessage(int direction, SipMessage message) {
+        filterSipMessage(direction, new ParsedSipMessage(message));
+    }
+
+    /**
+     * @see #filterSipMessage(int, SipMessage)
+     */
+    public void filterSipMessage(int direction, ParsedSipMessage message) {
         final Runnable r;
         if (startsEarlyDialog(message)) {
             r = getCreateDialogRunnable(direction, message);
         } else if (closesDialog(message)) {
             r = getCloseDialogRunnable(message);
-        } else if (SipMessageParsingUtils.isSipResponse(message.getStartLine())) {
+        } else if (message.isResponse()) {
             r = getDialogStateChangeRunnable(message);
         } else {
             r = null;
@@ -145,18 +180,9 @@ public class SipSessionTracker {
      * @param callId The callId of the SIP session that has been closed.
      */
     public void cleanupSession(String callId) {
-        List<SipDialog> dialogsToCleanup = mTrackedDialogs.stream()
-                .filter(d -> d.getCallId().equals(callId))
-                .collect(Collectors.toList());
-        if (dialogsToCleanup.isEmpty()) return;
+        if (!mDialogsByCallId.containsKey(callId)) return;
         logi("Cleanup dialogs associated with call id: " + callId);
-        for (SipDialog d : dialogsToCleanup) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, callId, 0,
-                    d.getState() == d.STATE_CLOSED);
-            d.close();
-            logi("Dialog closed: " + d);
-        }
-        mTrackedDialogs.removeAll(dialogsToCleanup);
+        removeSession(callId);
         notifySipDialogState();
     }
 
@@ -167,11 +193,8 @@ public class SipSessionTracker {
         if (featureTags.isEmpty()) return Collections.emptySet();
         Set<String> associatedIds = new ArraySet<>();
         for (String featureTag : featureTags) {
-            for (SipDialog dialog : mTrackedDialogs) {
-                boolean isAssociated = dialog.getAcceptContactFeatureTags().stream().anyMatch(
-                        d -> d.equalsIgnoreCase(featureTag));
-                if (isAssociated) associatedIds.add(dialog.getCallId());
-            }
+            Set<String> callIds = mCallIdsByFeatureTag.get(featureTag.toLowerCase(Locale.ROOT));
+            if (callIds != null) associatedIds.addAll(callIds);
         }
         return associatedIds;
     }
@@ -180,16 +203,14 @@ public class SipSessionTracker {
      * @return All dialogs that have not received a final response yet 2XX or 3XX+.
      */
     public Set<SipDialog> getEarlyDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_EARLY)
-                .collect(Collectors.toSet());
+        return getDialogsInState(SipDialog.STATE_EARLY);
     }
 
     /**
      * @return All confirmed dialogs that have received a 2XX response and are active.
      */
     public Set<SipDialog> getConfirmedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CONFIRMED)
-                .collect(Collectors.toSet());
+        return getDialogsInState(SipDialog.STATE_CONFIRMED);
     }
 
     /**
@@ -198,8 +219,7 @@ public class SipSessionTracker {
      */
     @VisibleForTesting
     public Set<SipDialog> getClosedDialogs() {
-        return mTrackedDialogs.stream().filter(d -> d.getState() == SipDialog.STATE_CLOSED)
-                .collect(Collectors.toSet());
+        return getDialogsInState(SipDialog.STATE_CLOSED);
     }
 
     /**
@@ -207,17 +227,25 @@ public class SipSessionTracker {
      * {@link #cleanupSession(String)} has not been called.
      */
     public Set<SipDialog> getTrackedDialogs() {
-        return new ArraySet<>(mTrackedDialogs);
+        Set<SipDialog> dialogs = new ArraySet<>();
+        for (List<SipDialog> callDialogs : mDialogsByCallId.values()) {
+            dialogs.addAll(callDialogs);
+        }
+        return dialogs;
     }
 
     /**
      * Clears all tracked sessions.
      */
     public void clearAllSessions() {
-        for (SipDialog d : mTrackedDialogs) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0, false);
+        for (List<SipDialog> callDialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : callDialogs) {
+                mRcsStats.onSipTransportSessionClosed(mSubId, d.getCallId(), 0, false);
+            }
         }
-        mTrackedDialogs.clear();
+        mDialogsByCallId.clear();
+        mCallIdsByFeatureTag.clear();
+        mClosedCallIds.clear();
         mPendingAck.clear();
         notifySipDialogState();
     }
@@ -240,13 +268,18 @@ public class SipSessionTracker {
                 .collect(Collectors.toSet()));
         pw.println("Tracked Dialogs:");
         pw.increaseIndent();
-        for (SipDialog d : mTrackedDialogs) {
-            pw.println(d);
+        for (List<SipDialog> callDialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : callDialogs) {
+                pw.println(d);
+            }
         }
         pw.decreaseIndent();
         pw.println();
         pw.println("Local Logs");
         mLocalLog.dump(pw);
+        pw.println();
+        pw.println("Dialog Events");
+        mEventLog.dump(pw);
         pw.decreaseIndent();
     }
 
@@ -254,79 +287,63 @@ public class SipSessionTracker {
      * @return {@code true}, if the SipMessage passed in should start a new SIP dialog,
      * {@code false} if it should not.
      */
-    private boolean startsEarlyDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
-        }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
+    private boolean startsEarlyDialog(ParsedSipMessage m) {
+        String method = m.getMethod();
+        if (method == null) {
             return false;
         }
-        return Arrays.stream(SIP_REQUEST_DIALOG_START_METHODS)
-                .anyMatch(r -> r.equalsIgnoreCase(startLineSegments[0]));
+        return Arrays.stream(SIP_REQUEST_DIALOG_START_METHODS).anyMatch(method::equals);
     }
 
     /**
      * @return {@code true}, if the SipMessage passed in should close a confirmed dialog,
      * {@code false} if it should not.
      */
-    private boolean closesDialog(SipMessage m) {
-        if (!SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
-            return false;
-        }
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            return false;
-        }
-        return SIP_CLOSE_DIALOG_REQUEST_METHOD.equalsIgnoreCase(startLineSegments[0]);
+    private boolean closesDialog(ParsedSipMessage m) {
+        return SIP_CLOSE_DIALOG_REQUEST_METHOD.equals(m.getMethod());
     }
 
-    private Runnable getCreateDialogRunnable(int direction, SipMessage m) {
+    private Runnable getCreateDialogRunnable(int direction, ParsedSipMessage m) {
         return () -> {
-            List<SipDialog> duplicateDialogs = mTrackedDialogs.stream()
-                    .filter(d -> d.getCallId().equals(m.getCallIdParameter()))
-                    .collect(Collectors.toList());
-            if (duplicateDialogs.size() > 0) {
+            List<SipDialog> duplicateDialogs = mDialogsByCallId.get(m.getCallId());
+            if (duplicateDialogs != null) {
                 logi("trying to create a dialog for a call ID that already exists, skip: "
                         + duplicateDialogs);
                 return;
             }
             SipDialog dialog = SipDialog.fromSipMessage(m);
-            String[] startLineSegments =
-                    SipMessageParsingUtils.splitStartLineAndVerify(m.getStartLine());
-            mRcsStats.earlySipTransportSession(startLineSegments[0], dialog.getCallId(),
+            mRcsStats.earlySipTransportSession(m.getStartLineSegments()[0], dialog.getCallId(),
                     direction);
             logi("Starting new SipDialog: " + dialog);
-            mTrackedDialogs.add(dialog);
+            addSession(dialog);
         };
     }
 
-    private Runnable getCloseDialogRunnable(SipMessage m) {
+    private Runnable getCloseDialogRunnable(ParsedSipMessage m) {
         return () -> {
-            List<SipDialog> dialogsToClose = mTrackedDialogs.stream()
+            List<SipDialog> dialogsToClose = getDialogsForCallId(m.getCallId()).stream()
                     .filter(d -> d.isRequestAssociatedWithDialog(m))
                     .collect(Collectors.toList());
             if (dialogsToClose.isEmpty()) return;
-            logi("Closing dialogs associated with: " + m);
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), 0, true);
+            logi("Closing dialogs associated with call id: " + m.getCallId());
+            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), 0, true);
             for (SipDialog d : dialogsToClose) {
                 d.close();
                 logi("Dialog closed: " + d);
             }
+            updateClosedSessions(m.getCallId());
             notifySipDialogState();
         };
     }
 
-    private Runnable getDialogStateChangeRunnable(SipMessage m) {
+    private Runnable getDialogStateChangeRunnable(ParsedSipMessage m) {
         return () -> {
             // This will return a dialog and all of its potential forks
-            List<SipDialog> associatedDialogs = mTrackedDialogs.stream()
+            List<SipDialog> associatedDialogs = getDialogsForCallId(m.getCallId()).stream()
                     .filter(d -> d.isResponseAssociatedWithDialog(m))
                     .collect(Collectors.toList());
             if (associatedDialogs.isEmpty()) return;
-            String messageToTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
+            String messageToTag = m.getToTag();
             // If the to tag matches (or message to tag doesn't exist in dialog yet because this is
             // the first response), then we are done.
             SipDialog match = associatedDialogs.stream()
@@ -338,47 +355,45 @@ public class SipSessionTracker {
                 // so simply use the first one in the returned list.
                 logi("Dialog forked");
                 match = associatedDialogs.get(0).forkDialog();
-                mTrackedDialogs.add(match);
+                mDialogsByCallId.get(match.getCallId()).add(match);
+                // The fork is early, so the session is not closed anymore.
+                updateClosedSessions(match.getCallId());
             }
             if (match != null) {
-                logi("Dialog: " + match + " is associated with: " + m);
                 updateSipDialogState(match, m);
-                logi("Dialog state updated to " + match);
+                mEventLog.logDialog(match.getCallId(), m.getStatusCode(), match.getState());
             } else {
-                logi("No Dialogs are associated with: " + m);
+                logi("No Dialogs are associated with call id: " + m.getCallId());
             }
         };
     }
 
-    private void updateSipDialogState(SipDialog d, SipMessage m) {
-        String[] startLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
-                m.getStartLine());
-        if (startLineSegments == null) {
-            logw("Could not parse start line for SIP message: " + m.getStartLine());
+    private void updateSipDialogState(SipDialog d, ParsedSipMessage m) {
+        if (m.getStartLineSegments() == null) {
+            logw("Could not parse start line for SIP message: " + m.getMessage().getStartLine());
             return;
         }
-        int statusCode = 0;
-        try {
-            statusCode = Integer.parseInt(startLineSegments[1]);
-        } catch (NumberFormatException e) {
-            logw("Could not parse status code for SIP message: " + m.getStartLine());
+        int statusCode = m.getStatusCode();
+        if (statusCode == ParsedSipMessage.STATUS_CODE_INVALID) {
+            logw("Could not parse status code for SIP message: " + m.getMessage().getStartLine());
             return;
         }
-        String toTag = SipMessageParsingUtils.getToTag(m.getHeaderSection());
-        logi("updateSipDialogState: message has statusCode: " + statusCode + ", and to tag: "
-                + toTag);
+        String toTag = m.getToTag();
         // If specifically 100 Trying, then do not do anything.
         if (statusCode <= 100) return;
         // If 300+, then this dialog has received an error response and should move to closed state.
         if (statusCode >= 300) {
-            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallIdParameter(), statusCode, true);
+            mRcsStats.onSipTransportSessionClosed(mSubId, m.getCallId(), statusCode, true);
             d.close();
+            updateClosedSessions(d.getCallId());
             notifySipDialogState();
             return;
         }
-        if (toTag == null) logw("updateSipDialogState: No to tag for message: " + m);
+        if (toTag == null) {
+            logw("updateSipDialogState: No to tag for message with call id: " + m.getCallId());
+        }
         if (statusCode >= 200) {
-            mRcsStats.confirmedSipTransportSession(m.getCallIdParameter(), statusCode);
+            mRcsStats.confirmedSipTransportSession(m.getCallId(), statusCode);
             d.confirm(toTag);
             notifySipDialogState();
             return;
@@ -388,6 +403,79 @@ public class SipSessionTracker {
         notifySipDialogState();
     }
 
+    private List<SipDialog> getDialogsForCallId(String callId) {
+        List<SipDialog> dialogs = mDialogsByCallId.get(callId);
+        return dialogs != null ? dialogs : Collections.emptyList();
+    }
+
+    private Set<SipDialog> getDialogsInState(int state) {
+        Set<SipDialog> dialogs = new ArraySet<>();
+        for (List<SipDialog> callDialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : callDialogs) {
+                if (d.getState() == state) dialogs.add(d);
+            }
+        }
+        return dialogs;
+    }
+
+    private void addSession(SipDialog dialog) {
+        List<SipDialog> dialogs = new ArrayList<>(1);
+        dialogs.add(dialog);
+        mDialogsByCallId.put(dialog.getCallId(), dialogs);
+        for (String featureTag : dialog.getAcceptContactFeatureTags()) {
+            String key = featureTag.toLowerCase(Locale.ROOT);
+            Set<String> callIds = mCallIdsByFeatureTag.get(key);
+            if (callIds == null) {
+                callIds = new ArraySet<>();
+                mCallIdsByFeatureTag.put(key, callIds);
+            }
+            callIds.add(dialog.getCallId());
+        }
+    }
+
+    /**
+     * Stop tracking the dialogs of a session, closing any that are still open.
+     */
+    private void removeSession(String callId) {
+        List<SipDialog> dialogs = mDialogsByCallId.remove(callId);
+        mClosedCallIds.remove(callId);
+        if (dialogs == null) return;
+        for (SipDialog d : dialogs) {
+            mRcsStats.onSipTransportSessionClosed(mSubId, callId, 0,
+                    d.getState() == SipDialog.STATE_CLOSED);
+            d.close();
+            logi("Dialog closed: " + d);
+        }
+        // Forks share the feature tags of the original dialog.
+        for (String featureTag : dialogs.get(0).getAcceptContactFeatureTags()) {
+            String key = featureTag.toLowerCase(Locale.ROOT);
+            Set<String> callIds = mCallIdsByFeatureTag.get(key);
+            if (callIds == null) continue;
+            callIds.remove(callId);
+            if (callIds.isEmpty()) mCallIdsByFeatureTag.remove(key);
+        }
+    }
+
+    /**
+     * Track whether all of the dialogs of a session are closed and drop the oldest closed sessions
+     * if there are more than {@link #MAX_CLOSED_SESSIONS}.
+     */
+    private void updateClosedSessions(String callId) {
+        boolean isClosed = getDialogsForCallId(callId).stream()
+                .allMatch(d -> d.getState() == SipDialog.STATE_CLOSED);
+        if (!isClosed) {
+            mClosedCallIds.remove(callId);
+            return;
+        }
+        if (!mClosedCallIds.add(callId)) return;
+        while (mClosedCallIds.size() > MAX_CLOSED_SESSIONS) {
+            String evictedCallId = mClosedCallIds.iterator().next();
+            logi("Too many closed sessions, dropping: " + evictedCallId);
+            // Also removes the call-ID from mClosedCallIds.
+            removeSession(evictedCallId);
+        }
+    }
+
     /**
      * This is a listener to handle SipDialog state of delegate
      * @param listener {@link SipDialogsStateListener}
@@ -397,23 +485,49 @@ public class SipSessionTracker {
             boolean isNeedNotify) {
         mSipDialogsListener = listener;
         if (listener == null) {
+            // The next listener does not know about any state reported to this one.
+            Arrays.fill(mNotifiedDialogStateCounts, -1);
             return;
         }
         if (isNeedNotify) {
-            notifySipDialogState();
+            notifySipDialogState(true /*force*/);
         }
     }
 
     private void notifySipDialogState() {
+        notifySipDialogState(false /*force*/);
+    }
+
+    /**
+     * Notify the listener of the state of the dialogs. The listener only receives the state of
+     * each dialog, so unless forced, the listener is only notified if the number of dialogs in any
+     * state has changed since the last notification.
+     */
+    private void notifySipDialogState(boolean force) {
         if (mSipDialogsListener == null) {
             return;
         }
-        List<SipDialogState> dialogStates = new ArrayList<>();
-        for (SipDialog d : mTrackedDialogs) {
-            SipDialogState dialog = new SipDialogState.Builder(d.getState()).build();
-            dialogStates.add(dialog);
+        Arrays.fill(mDialogStateCounts, 0);
+        int numDialogs = 0;
+        for (List<SipDialog> callDialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : callDialogs) {
+                mDialogStateCounts[d.getState()]++;
+                numDialogs++;
+            }
+        }
+        if (!force && Arrays.equals(mDialogStateCounts, mNotifiedDialogStateCounts)) {
+            return;
+        }
+        System.arraycopy(mDialogStateCounts, 0, mNotifiedDialogStateCounts, 0,
+                mDialogStateCounts.length);
+        List<SipDialogState> dialogStates = new ArrayList<>(numDialogs);
+        for (List<SipDialog> callDialogs : mDialogsByCallId.values()) {
+            for (SipDialog d : callDialogs) {
+                SipDialogState dialog = new SipDialogState.Builder(d.getState()).build();
+                dialogStates.add(dialog);
+            }
         }
-        mSipDialogsListener.reMappingSipDelegateState(mDelegateKey, dialogStates);
+        mSipDialogsListener.reMappingSipDelegateState(mDelegateKey, dialogStates, force);
     }
 
     private void logi(String log) {
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.os.PersistableBundle;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ims.DelegateRequest;
@@ -42,6 +43,7 @@ import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.LocalLog;
 import android.util.Log;
+import android.util.Pair;
 
 import androidx.annotation.NonNull;
 
@@ -49,6 +51,7 @@ import com.android.ims.RcsFeatureManager;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.ISipDialogStateCallback;
 import com.android.internal.telephony.util.RemoteCallbackListExt;
+import com.android.internal.telephony.util.TelephonyUtils;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.phone.RcsProvisioningMonitor;
 
@@ -56,6 +59,7 @@ import com.google.common.base.Objects;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -63,15 +67,15 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -93,11 +97,17 @@ public class SipTransportController implements RcsFeatureController.Feature,
         OnRoleHoldersChangedListener {
     public static final String LOG_TAG = "SipTransportC";
     static final int LOG_SIZE = 50;
+    // Number of per message events kept by each SipTransportEventLog.
+    static final int EVENT_LOG_SIZE = 200;
+    // Only keep the method or status code of SIP messages in the event logs on user builds.
+    static final boolean REDACT_SIP_MESSAGES = !TelephonyUtils.IS_DEBUGGABLE;
 
     /**See {@link TimerAdapter#getReevaluateThrottleTimerMilliseconds()}.*/
     private static final int REEVALUATE_THROTTLE_DEFAULT_MS = 1000;
     /**See {@link TimerAdapter#getUpdateRegistrationDelayMilliseconds()}.*/
     private static final int TRIGGER_UPDATE_REGISTRATION_DELAY_DEFAULT_MS = 1000;
+    /**See {@link TimerAdapter#getSipDialogStateNotifyIntervalMilliseconds()}.*/
+    private static final int SIP_DIALOG_STATE_NOTIFY_INTERVAL_DEFAULT_MS = 200;
 
     /**
      * {@link RoleManager} is final so we have to wrap the implementation for testing.
@@ -137,6 +147,13 @@ public class SipTransportController implements RcsFeatureController.Feature,
          * a registration update.
          */
         int getUpdateRegistrationDelayMilliseconds();
+
+        /**
+         * The minimum time between two notifications of SIP dialog state changes to the
+         * registered {@link ISipDialogStateCallback}s. Changes that happen during this time are
+         * coalesced into the next notification.
+         */
+        int getSipDialogStateNotifyIntervalMilliseconds();
     }
 
     private static class TimerAdapterImpl implements TimerAdapter {
@@ -150,6 +167,11 @@ public class SipTransportController implements RcsFeatureController.Feature,
         public int getUpdateRegistrationDelayMilliseconds() {
             return TRIGGER_UPDATE_REGISTRATION_DELAY_DEFAULT_MS;
         }
+
+        @Override
+        public int getSipDialogStateNotifyIntervalMilliseconds() {
+            return SIP_DIALOG_STATE_NOTIFY_INTERVAL_DEFAULT_MS;
+        }
     }
 
     private static class RoleManagerAdapterImpl implements RoleManagerAdapter {
@@ -248,19 +270,32 @@ public class SipTransportController implements RcsFeatureController.Feature,
      */
     private final class SipDialogsStateHandle implements SipDialogsStateListener {
 
-        private Executor mExecutor = Runnable::run;
         Map<String, List<SipDialogState>> mMapDialogState = new HashMap<>();
+        // The pending flush of dialog state changes to the callbacks, if any.
+        private ScheduledFuture<?> mPendingFlush;
+        // Whether the next flush should notify the callbacks even if the state has not changed.
+        private boolean mIsFlushForced;
+        private long mLastFlushTimeMs;
+        // The number of dialogs in each state that the callbacks were last notified of, or -1 if
+        // the callbacks have not been notified.
+        private final int[] mNotifiedStateCounts = new int[SipDialog.STATE_CLOSED + 1];
+
+        SipDialogsStateHandle() {
+            Arrays.fill(mNotifiedStateCounts, -1);
+        }
 
         /**
          * This will be called using the {@link SipDialogsStateListener}
          * @param key This is the ID of the SipSessionTracker for handling the dialogs of
          *               each created delegates.
          * @param dialogStates This is a list of dialog states tracked in SipSessionTracker.
+         * @param force Whether the callbacks should be notified even if the state has not changed.
          */
         @Override
         public void reMappingSipDelegateState(String key,
-                List<SipDialogState> dialogStates) {
-            mExecutor.execute(()->processReMappingSipDelegateState(key, dialogStates));
+                List<SipDialogState> dialogStates, boolean force) {
+            mExecutorService.execute(
+                    () -> processReMappingSipDelegateState(key, dialogStates, force));
         }
 
         /**
@@ -269,28 +304,70 @@ public class SipTransportController implements RcsFeatureController.Feature,
          */
         @Override
         public void notifySipDialogState() {
-            mExecutor.execute(()->processNotifySipDialogState());
+            mExecutorService.execute(() -> scheduleFlush(true /*force*/));
+        }
+
+        /**
+         * Forget the state the callbacks were last notified of, so that the next flush notifies
+         * the callbacks that are registered by then.
+         */
+        void resetNotifiedState() {
+            Arrays.fill(mNotifiedStateCounts, -1);
         }
 
         private void processReMappingSipDelegateState(String key,
-                List<SipDialogState> dialogStates) {
+                List<SipDialogState> dialogStates, boolean force) {
             if (dialogStates.isEmpty()) {
                 mMapDialogState.remove(key);
             } else {
                 mMapDialogState.put(key, dialogStates);
             }
-            notifySipDialogState();
+            scheduleFlush(force);
+        }
+
+        /**
+         * Changes are coalesced and flushed to the callbacks at most once per
+         * {@link TimerAdapter#getSipDialogStateNotifyIntervalMilliseconds()}.
+         */
+        private void scheduleFlush(boolean force) {
+            mIsFlushForced |= force;
+            if (mPendingFlush != null && !mPendingFlush.isDone()) {
+                return;
+            }
+            long delayMs = Math.max(0, mLastFlushTimeMs
+                    + mTimerAdapter.getSipDialogStateNotifyIntervalMilliseconds()
+                    - SystemClock.elapsedRealtime());
+            if (delayMs == 0) {
+                mPendingFlush = null;
+                processNotifySipDialogState();
+            } else {
+                mPendingFlush = mExecutorService.schedule(this::processNotifySipDialogState,
+                        delayMs, TimeUnit.MILLISECONDS);
+            }
         }
 
         private void processNotifySipDialogState() {
+            mLastFlushTimeMs = SystemClock.elapsedRealtime();
+            boolean isForced = mIsFlushForced;
+            mIsFlushForced = false;
+            if (mSipDialogStateCallbacks.getRegisteredCallbackCount() == 0) {
+                return;
+            }
             List<SipDialogState> finalDialogStates = new ArrayList<>();
+            int[] stateCounts = new int[mNotifiedStateCounts.length];
             for (List<SipDialogState> d : mMapDialogState.values()) {
                 finalDialogStates.addAll(d);
+                for (SipDialogState state : d) {
+                    int s = state.getState();
+                    if (s >= 0 && s < stateCounts.length) stateCounts[s]++;
+                }
             }
-
-            if (mSipDialogStateCallbacks.getRegisteredCallbackCount() == 0) {
+            // The callbacks only receive the state of each dialog, so there is nothing new to
+            // report if the number of dialogs in each state is the same.
+            if (!isForced && Arrays.equals(stateCounts, mNotifiedStateCounts)) {
                 return;
             }
+            System.arraycopy(stateCounts, 0, mNotifiedStateCounts, 0, stateCounts.length);
             mSipDialogStateCallbacks.broadcastAction((c) -> {
                 try {
                     c.onActiveSipDialogsChanged(finalDialogStates);
@@ -315,6 +392,58 @@ public class SipTransportController implements RcsFeatureController.Feature,
                 ISipDelegateMessageCallback messageCallback);
     }
 
+    /**
+     * An immutable snapshot of the state of this controller, which binder threads can read without
+     * waiting for mExecutorService. mExecutorService may be busy for a long time while the
+     * SipDelegates are reevaluated, so read-only queries should use the snapshot instead.
+     * <p>
+     * The snapshot only holds plain values, which are all computed on mExecutorService. A new
+     * snapshot is published every time one of them changes.
+     */
+    @VisibleForTesting
+    static final class StateSnapshot {
+        /** The subscription ID associated with the controller. */
+        final int subId;
+        /** Whether or not the controller is connected to the ImsService. */
+        final boolean isRcsConnected;
+        /** Whether or not the connected ImsService supports SipTransports. */
+        final boolean isSipTransportSupported;
+        /**
+         * The code of the ImsException thrown when querying the SipTransport of the connected
+         * ImsService, or {@link #NO_ERROR} if the query succeeded.
+         */
+        final int sipTransportErrorCode;
+        /** The feature tags that the carrier config allows, in lower case. */
+        final Set<String> featureTagsAllowed;
+        /** The package name of the default SMS app, or an empty string if there is none. */
+        final String smsRolePackageName;
+
+        StateSnapshot(int subId, boolean isRcsConnected, boolean isSipTransportSupported,
+                int sipTransportErrorCode, Set<String> featureTagsAllowed,
+                String smsRolePackageName) {
+            this.subId = subId;
+            this.isRcsConnected = isRcsConnected;
+            this.isSipTransportSupported = isSipTransportSupported;
+            this.sipTransportErrorCode = sipTransportErrorCode;
+            this.featureTagsAllowed = Collections.unmodifiableSet(
+                    new ArraySet<>(featureTagsAllowed));
+            this.smsRolePackageName = smsRolePackageName;
+        }
+
+        @Override
+        public String toString() {
+            return "StateSnapshot{subId=" + subId
+                    + ", rcsConnected=" + isRcsConnected
+                    + ", sipTransportSupported=" + isSipTransportSupported
+                    + ", sipTransportErrorCode=" + sipTransportErrorCode
+                    + ", featureTagsAllowed=" + featureTagsAllowed
+                    + ", smsRolePackageName=" + smsRolePackageName + "}";
+        }
+    }
+
+    // Used in StateSnapshot#sipTransportErrorCode when the SipTransport query succeeded.
+    private static final int NO_ERROR = 0;
+
     private SipDelegateControllerFactory mDelegateControllerFactory = SipDelegateController::new;
     private final int mSlotId;
     private final ScheduledExecutorService mExecutorService;
@@ -334,7 +463,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private final RemoteCallbackListExt<ISipDialogStateCallback> mSipDialogStateCallbacks =
             new RemoteCallbackListExt<>();
     // To listen the state information if the dialog status is changed from the SipSessionTracker.
-    private final SipDialogsStateListener mSipDialogsListener = new SipDialogsStateHandle();
+    private final SipDialogsStateHandle mSipDialogsListener = new SipDialogsStateHandle();
 
     // Cache of Binders to remote IMS applications for tracking their potential death
     private final TrackedAppBinders mActiveAppBinders = new TrackedAppBinders();
@@ -360,6 +489,25 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private CarrierConfigManager mCarrierConfigManager;
     // Cached allowed feature tags from carrier config
     private ArraySet<String> mFeatureTagsAllowed = new ArraySet<>();
+    // Whether or not the connected ImsService supports SipTransports, queried when it connects.
+    private boolean mIsSipTransportSupported;
+    // The code of the ImsException thrown by the last SipTransport query, or NO_ERROR.
+    private int mSipTransportErrorCode = NO_ERROR;
+    // The state read by binder threads, see StateSnapshot.
+    private volatile StateSnapshot mStateSnapshot;
+    // The supported and denied feature tags last applied to each SipDelegateController, used to
+    // skip the SipDelegates whose feature tags do not change during a reevaluate. Updated from the
+    // threads completing the changes, so this needs to be thread safe.
+    private final Map<SipDelegateController, Pair<Set<String>, Set<FeatureTagState>>>
+            mAppliedFeatureTags = new ConcurrentHashMap<>();
+    // true if a pending IMS registration update was cancelled or a deregistration was sent, so an
+    // update must be sent after the next reevaluate even if no SipDelegate changed.
+    private volatile boolean mIsRegistrationUpdateNeeded;
+    // Number of SipDelegates whose feature tags were not changed again because they were the same.
+    private final AtomicInteger mSkippedDelegateChangeCount = new AtomicInteger();
+    // Number of reevaluates that did not change any SipDelegate, so the IMS registration was not
+    // updated.
+    private final AtomicInteger mAvoidedRegistrationUpdateCount = new AtomicInteger();
 
     /**
      * Create an instance of SipTransportController.
@@ -375,6 +523,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         mTimerAdapter = new TimerAdapterImpl();
         mExecutorService = Executors.newSingleThreadScheduledExecutor();
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
+        publishStateSnapshot();
     }
 
     /**
@@ -392,6 +541,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         mDelegateControllerFactory = delegateFactory;
         mExecutorService = executor;
         mCarrierConfigManager = context.getSystemService(CarrierConfigManager.class);
+        publishStateSnapshot();
         logi("created");
     }
 
@@ -412,7 +562,16 @@ public class SipTransportController implements RcsFeatureController.Feature,
 
     @Override
     public void onCarrierConfigChanged() {
-        mExecutorService.submit(this::onCarrierConfigChangedInternal);
+        mExecutorService.submit(() -> {
+            ArraySet<String> previousFeatureTagsAllowed = new ArraySet<>(mFeatureTagsAllowed);
+            onCarrierConfigChangedInternal();
+            if (!mDelegatePriorityQueue.isEmpty()
+                    && !previousFeatureTagsAllowed.equals(mFeatureTagsAllowed)) {
+                // Only the SipDelegates affected by the new allowed feature tags will change.
+                logi("onCarrierConfigChanged: allowed feature tags changed, reevaluating");
+                scheduleThrottledReevaluate();
+            }
+        });
     }
 
     @Override
@@ -420,6 +579,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         mExecutorService.submit(()-> {
             // Ensure new create/destroy requests are denied.
             mSubId = -1;
+            publishStateSnapshot();
             triggerDeregistrationEvent();
             scheduleDestroyDelegates(
                     SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN)
@@ -484,15 +644,19 @@ public class SipTransportController implements RcsFeatureController.Feature,
     /**
      * @return Whether or not SipTransports are supported on the connected ImsService. This can
      * change based on the capabilities of the ImsService.
+     * <p>
+     * This is answered from the {@link StateSnapshot} on the calling thread, so it does not wait
+     * for a pending reevaluation of the SipDelegates.
      * @throws ImsException if the ImsService connected to this controller is currently down.
      */
     public boolean isSupported(int subId) throws ImsException {
-        Boolean result = waitForMethodToComplete(() -> isSupportedInternal(subId));
-        if (result == null) {
-            logw("isSupported, unexpected null result, returning false");
-            return false;
+        StateSnapshot state = mStateSnapshot;
+        checkStateOfController(state, subId);
+        if (state.sipTransportErrorCode != NO_ERROR) {
+            throw new ImsException("Unable to query the SipTransport of the ImsService",
+                    state.sipTransportErrorCode);
         }
-        return result;
+        return state.isSipTransportSupported;
     }
 
     private void createSipDelegateInternal(int subId, int uid, DelegateRequest request,
@@ -527,6 +691,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
                 delegateMessage);
         logi("createSipDelegateInternal: request= " + request + ", packageName= " + packageName
                 + ", controller created: " + c);
+        c.setDelegateDestroyedListener(() -> onDelegateDestroyed(c));
         addPendingCreateAndEvaluate(c);
         // If SipDialogStateCallback is registered, listener will be set.
         if (mSipDialogStateCallbacks.getRegisteredCallbackCount() > 0) {
@@ -534,6 +699,15 @@ public class SipTransportController implements RcsFeatureController.Feature,
         }
     }
 
+    /**
+     * The SipDelegate of the controller was destroyed without being requested, so its feature tags
+     * need to be applied again during the next reevaluate.
+     */
+    private void onDelegateDestroyed(SipDelegateController c) {
+        logi("onDelegateDestroyed: " + c.getPackageName());
+        mAppliedFeatureTags.remove(c);
+    }
+
     private void destroySipDelegateInternal(int subId, ISipDelegate connection, int reason) {
         if (subId != mSubId) {
             logw("destroySipDelegateInternal: ignoring destroy, as this is about to be destroyed "
@@ -597,6 +771,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
     private void triggerDeregistrationEvent() {
         logi("triggerDeregistrationEvent: Sending deregister event to ImsService");
         cancelPendingUpdateRegistration();
+        mIsRegistrationUpdateNeeded = true;
 
         IImsRegistration registrationImpl = mRcsManager.getImsRegistration();
         if (registrationImpl != null) {
@@ -623,6 +798,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
                 mTimerAdapter.getUpdateRegistrationDelayMilliseconds(), TimeUnit.MILLISECONDS);
         logi("scheduleUpdateRegistration: scheduling new event: " + f);
         mPendingUpdateRegistrationFuture = f;
+        mIsRegistrationUpdateNeeded = false;
     }
 
     /**
@@ -635,6 +811,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         }
         // Cancel the old pending operation and reschedule again.
         mPendingUpdateRegistrationFuture.cancel(false);
+        mIsRegistrationUpdateNeeded = true;
         logi("scheduleUpdateRegistration: cancelling existing reg update event: "
                 + mPendingUpdateRegistrationFuture);
     }
@@ -655,19 +832,6 @@ public class SipTransportController implements RcsFeatureController.Feature,
         }
     }
 
-    /**
-     * Returns whether or not the ImsService implementation associated with the supplied subId
-     * supports the SipTransport APIs.
-     * <p>
-     * This should only be called on the ExecutorService.
-     * @return true if SipTransport is supported on this subscription, false otherwise.
-     * @throws ImsException thrown if there was an error determining the state of the ImsService.
-     */
-    private boolean isSupportedInternal(int subId) throws ImsException {
-        checkStateOfController(subId);
-        return (mRcsManager.getSipTransport() != null);
-    }
-
     private boolean addPendingDestroy(SipDelegateController c, int reason) {
         DestroyRequest request = new DestroyRequest(c, reason);
         if (!mDelegatePendingDestroy.contains(request)) {
@@ -758,6 +922,10 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * mDelegatePriorityQueue and loop through all in the queue, applying feature tags to the
      * appropriate SipDelegateController if they pass role checks and have not already been claimed
      * by another delegate higher in the priority queue.
+     *
+     * The evaluation is incremental: SipDelegateControllers whose supported and denied feature tags
+     * are the same as the ones last applied are not changed again, and if no SipDelegate was
+     * created, destroyed or changed, the IMS registration is not updated.
      */
     private void reevaluateDelegates() {
         // We need to cancel the pending update now and reschedule IMS registration update for
@@ -775,7 +943,11 @@ public class SipTransportController implements RcsFeatureController.Feature,
         for (DestroyRequest d : mDelegatePendingDestroy) {
             logi("reevaluateDelegates: starting destroy for: " + d.controller.getPackageName());
             mActiveAppBinders.unregister(d.controller.getAppMessageCallback());
+            mAppliedFeatureTags.remove(d.controller);
         }
+        // Destroyed and created SipDelegates always change the IMS registration.
+        final AtomicInteger changedCount = new AtomicInteger(
+                mDelegatePendingDestroy.size() + mDelegatePendingCreate.size());
         // Destroy all pending destroy delegates first. Order doesn't matter.
         List<CompletableFuture<Void>> pendingDestroyList = mDelegatePendingDestroy.stream()
                 .map(d -> triggerDestroy(d.controller, d.reason)).collect(
@@ -815,7 +987,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
                     // destroyed.
                     return CompletableFuture.completedFuture(null /*failed*/);
                 }
-                return changeSupportedFeatureTags(c, cachedSmsRolePackage, takenTags);
+                return changeSupportedFeatureTags(c, cachedSmsRolePackage, takenTags,
+                        changedCount);
             }, mExecutorService);
         }
 
@@ -827,8 +1000,14 @@ public class SipTransportController implements RcsFeatureController.Feature,
                     }
                 }).thenAccept((associatedFeatures) -> {
                     logi("reevaluateDelegates: reevaluate complete, feature tags associated: "
-                            + associatedFeatures);
-                    scheduleUpdateRegistration();
+                            + associatedFeatures + ", changed delegates: " + changedCount.get());
+                    if (changedCount.get() > 0 || mIsRegistrationUpdateNeeded) {
+                        scheduleUpdateRegistration();
+                    } else {
+                        int avoided = mAvoidedRegistrationUpdateCount.incrementAndGet();
+                        logi("reevaluateDelegates: no delegate changed, skipping registration "
+                                + "update, total avoided: " + avoided);
+                    }
                 });
         logi("reevaluateDelegates: future created.");
     }
@@ -911,6 +1090,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
             return false;
         }
         mCachedSmsRolePackageName = newSmsRolePackageName;
+        publishStateSnapshot();
         return true;
     }
 
@@ -919,6 +1099,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * applied to that SipDelegateController.
      * @param controller Controller to attribute feature tags to.
      * @param alreadyRequestedTags The feature tags that were already granted to other SipDelegates.
+     * @param changedCount Incremented if the feature tags of the controller have changed.
      * @return Once complete, contains the set of feature tags that the SipDelegate now has
      * associated with it along with the feature tags that previous SipDelegates had.
      *
@@ -926,7 +1107,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
      */
     private CompletableFuture<Set<String>> changeSupportedFeatureTags(
             SipDelegateController controller, String smsRolePackageName,
-            Set<String> alreadyRequestedTags) {
+            Set<String> alreadyRequestedTags, AtomicInteger changedCount) {
         Set<String> requestedFeatureTags = controller.getInitialRequest().getFeatureTags();
         String packageName = controller.getPackageName();
         if (!smsRolePackageName.equals(packageName)) {
@@ -936,8 +1117,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
                 deniedTags.add(new FeatureTagState(s,
                         SipDelegateManager.DENIED_REASON_NOT_ALLOWED));
             }
-            CompletableFuture<Boolean> pendingDeny = controller.changeSupportedFeatureTags(
-                    Collections.emptySet(), deniedTags);
+            CompletableFuture<Boolean> pendingDeny = applyFeatureTagsIfChanged(controller,
+                    Collections.emptySet(), deniedTags, changedCount);
             logi("changeSupportedFeatureTags pendingDeny=" + pendingDeny);
             // do not worry about executor used here, this stage used to interpret result + add log.
             return pendingDeny.thenApply((completedSuccessfully) ->  {
@@ -955,8 +1136,8 @@ public class SipTransportController implements RcsFeatureController.Feature,
 
         // Add newly granted tags to the already requested tags list.
         previouslyGrantedTags.addAll(candidateFeatureTags);
-        CompletableFuture<Boolean> pendingChange = controller.changeSupportedFeatureTags(
-                candidateFeatureTags, deniedTags);
+        CompletableFuture<Boolean> pendingChange = applyFeatureTagsIfChanged(controller,
+                candidateFeatureTags, deniedTags, changedCount);
         logi("changeSupportedFeatureTags pendingChange=" + pendingChange);
         // do not worry about executor used here, this stage used to interpret result + add log.
         return pendingChange.thenApply((completedSuccessfully) ->  {
@@ -966,6 +1147,46 @@ public class SipTransportController implements RcsFeatureController.Feature,
         });
     }
 
+    /**
+     * Change the feature tags of the controller, unless they are the same as the feature tags
+     * last applied to it.
+     * @return A future that completes with whether or not the change completed successfully.
+     */
+    private CompletableFuture<Boolean> applyFeatureTagsIfChanged(SipDelegateController controller,
+            Set<String> supportedTags, Set<FeatureTagState> deniedTags,
+            AtomicInteger changedCount) {
+        Pair<Set<String>, Set<FeatureTagState>> applied = mAppliedFeatureTags.get(controller);
+        if (applied != null && applied.first.equals(supportedTags)
+                && applied.second.equals(deniedTags)) {
+            int skipped = mSkippedDelegateChangeCount.incrementAndGet();
+            logi("applyFeatureTagsIfChanged: feature tags unchanged for " + controller
+                    + ", skipping, total skipped: " + skipped);
+            return CompletableFuture.completedFuture(true);
+        }
+        changedCount.incrementAndGet();
+        mAppliedFeatureTags.put(controller,
+                new Pair<>(new ArraySet<>(supportedTags), new ArraySet<>(deniedTags)));
+        CompletableFuture<Boolean> pendingChange = controller.changeSupportedFeatureTags(
+                supportedTags, deniedTags);
+        // Executor doesn't matter here, make sure the change is applied again next time if it
+        // failed.
+        return pendingChange.thenApply((completedSuccessfully) -> {
+            if (!Boolean.TRUE.equals(completedSuccessfully)) {
+                mAppliedFeatureTags.remove(controller);
+            }
+            return completedSuccessfully;
+        });
+    }
+
+    /**
+     * @return The number of reevaluates that did not update the IMS registration because no
+     * SipDelegate changed.
+     */
+    @VisibleForTesting
+    public int getAvoidedRegistrationUpdateCount() {
+        return mAvoidedRegistrationUpdateCount.get();
+    }
+
     /**
      * Update candidate feature tags according to feature tags allowed by carrier config,
      * and previously granted by other SipDelegates.
@@ -1011,29 +1232,6 @@ public class SipTransportController implements RcsFeatureController.Feature,
         return deniedTags;
     }
 
-    /**
-     * Run a Callable on the ExecutorService Thread and wait for the result.
-     * If an ImsException is thrown, catch it and rethrow it to caller.
-     */
-    private <T> T waitForMethodToComplete(Callable<T> callable) throws ImsException {
-        Future<T> r = mExecutorService.submit(callable);
-        T result;
-        try {
-            result = r.get();
-        } catch (InterruptedException e) {
-            result = null;
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof ImsException) {
-                // Rethrow the exception
-                throw (ImsException) cause;
-            }
-            logw("Unexpected Exception, returning null: " + cause);
-            result = null;
-        }
-        return result;
-    }
-
     /**
      * Throw an ImsException for common scenarios where the state of the controller is not ready
      * for communication.
@@ -1041,21 +1239,70 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * This should only be called while running on the on the ExecutorService.
      */
     private void checkStateOfController(int subId) throws ImsException {
-        if (mSubId != subId) {
+        checkStateOfController(mSubId, mRcsManager, subId);
+    }
+
+    /**
+     * Same as {@link #checkStateOfController(int)}, using a snapshot of the state that can be read
+     * from any thread.
+     */
+    private static void checkStateOfController(StateSnapshot state, int subId)
+            throws ImsException {
+        checkStateOfController(state.subId, state.isRcsConnected, subId);
+    }
+
+    private static void checkStateOfController(int currentSubId, RcsFeatureManager rcsManager,
+            int subId) throws ImsException {
+        checkStateOfController(currentSubId, rcsManager != null, subId);
+    }
+
+    private static void checkStateOfController(int currentSubId, boolean isRcsConnected,
+            int subId) throws ImsException {
+        if (currentSubId != subId) {
             // sub ID has changed while this was in the queue.
             throw new ImsException("subId is no longer valid for this request.",
                     ImsException.CODE_ERROR_INVALID_SUBSCRIPTION);
         }
-        if (mRcsManager == null) {
+        if (!isRcsConnected) {
             throw new ImsException("Connection to ImsService is not available",
                     ImsException.CODE_ERROR_SERVICE_UNAVAILABLE);
         }
     }
 
+    /**
+     * Publish a new snapshot of the state read by binder threads.
+     * <p>
+     * This should only be called while running on the ExecutorService, or from the constructor.
+     */
+    private void publishStateSnapshot() {
+        mStateSnapshot = new StateSnapshot(mSubId, mRcsManager != null, mIsSipTransportSupported,
+                mSipTransportErrorCode, mFeatureTagsAllowed, mCachedSmsRolePackageName);
+    }
+
+    /**
+     * Query whether or not the connected ImsService supports SipTransports, so that binder
+     * threads do not need to call into the ImsService.
+     * <p>
+     * This should only be called while running on the ExecutorService.
+     */
+    private void updateSipTransportSupported() {
+        mIsSipTransportSupported = false;
+        mSipTransportErrorCode = NO_ERROR;
+        if (mRcsManager == null) return;
+        try {
+            mIsSipTransportSupported = (mRcsManager.getSipTransport() != null);
+        } catch (ImsException e) {
+            logw("updateSipTransportSupported: exception=" + e);
+            mSipTransportErrorCode = e.getCode();
+        }
+    }
+
     private void onRcsManagerChanged(RcsFeatureManager m) {
         logi("manager changed, " + mRcsManager + "->" + m);
         if (mRcsManager == m) return;
         mRcsManager = m;
+        updateSipTransportSupported();
+        publishStateSnapshot();
         if (mRcsManager == null) {
             logi("onRcsManagerChanged: lost connection to ImsService, tearing down...");
             unregisterListeners();
@@ -1078,6 +1325,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
 
     private void unregisterListeners() {
         mCachedSmsRolePackageName = "";
+        publishStateSnapshot();
         mRoleManagerAdapter.removeOnRoleHoldersChangedListenerAsUser(this, UserHandle.SYSTEM);
     }
 
@@ -1089,6 +1337,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         if (mSubId != newSubId) {
             // Swap subId, any pending create/destroy on old subId will be denied.
             mSubId = newSubId;
+            publishStateSnapshot();
             scheduleDestroyDelegates(
                     SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_SUBSCRIPTION_TORN_DOWN);
         }
@@ -1110,6 +1359,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
                 mFeatureTagsAllowed.add(tag.trim().toLowerCase(Locale.ROOT));
             }
         }
+        publishStateSnapshot();
     }
 
     /**
@@ -1138,13 +1388,15 @@ public class SipTransportController implements RcsFeatureController.Feature,
      *          when Dialog status has changed.
      */
     public void addCallbackForSipDialogState(int subId, ISipDialogStateCallback cb) {
-        if (subId != mSubId) {
+        if (subId != mStateSnapshot.subId) {
             logw("addCallbackForSipDialogState the subId is not supported");
             return;
         }
         // callback register and no delegate : register this callback / notify (empty state)
         // callback register and delegates : register this callback / release listener / notify
         mSipDialogStateCallbacks.register(cb);
+        // The new callback has not been notified of anything yet.
+        mSipDialogsListener.resetNotifiedState();
         if (!mDelegatePriorityQueue.isEmpty()) {
             for (SipDelegateController dc : mDelegatePriorityQueue) {
                 dc.setSipDialogsListener(mSipDialogsListener, true);
@@ -1160,7 +1412,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
      * @param cb A {@link android.telephony.ims.SipDialogStateCallback} that will be unregistering.
      */
     public void removeCallbackForSipDialogState(int subId, ISipDialogStateCallback cb) {
-        if (subId != mSubId) {
+        if (subId != mStateSnapshot.subId) {
             logw("addCallbackForSipDialogState the subId is not supported");
             return;
         }
@@ -1173,6 +1425,7 @@ public class SipTransportController implements RcsFeatureController.Feature,
         // unregister this callback and setListener(null)
         mSipDialogStateCallbacks.unregister(cb);
         if (mSipDialogStateCallbacks.getRegisteredCallbackCount() == 0) {
+            mSipDialogsListener.resetNotifiedState();
             if (!mDelegatePriorityQueue.isEmpty()) {
                 for (SipDelegateController dc : mDelegatePriorityQueue) {
                     dc.setSipDialogsListener(null, false);
@@ -1181,11 +1434,31 @@ public class SipTransportController implements RcsFeatureController.Feature,
         }
     }
 
+    /**
+     * @return The latest snapshot of the state of this controller.
+     */
+    @VisibleForTesting
+    StateSnapshot getStateSnapshot() {
+        return mStateSnapshot;
+    }
+
+    /**
+     * @return The listener that collects the SipDialog states of all SipDelegates and notifies
+     * the registered callbacks.
+     */
+    @VisibleForTesting
+    SipDialogsStateListener getSipDialogsStateListener() {
+        return mSipDialogsListener;
+    }
+
     @Override
     public void dump(PrintWriter printWriter) {
         IndentingPrintWriter pw = new IndentingPrintWriter(printWriter, "  ");
         pw.println("SipTransportController" + "[" + mSlotId  + "->" + mSubId + "]:");
         pw.increaseIndent();
+        pw.println(mStateSnapshot);
+        pw.println("Skipped delegate changes: " + mSkippedDelegateChangeCount.get()
+                + ", avoided registration updates: " + mAvoidedRegistrationUpdateCount.get());
         pw.println("LocalLog:");
         pw.increaseIndent();
         mLocalLog.dump(pw);
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.telephony.ims.SipMessage;
+
+import com.android.internal.telephony.SipMessageParsingUtils;
+import com.android.services.telephony.rcs.validator.ParsedSipMessage;
+
+import java.io.PrintWriter;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * A fixed size ring buffer of the events that happen for every SIP message on the transport.
+ * <p>
+ * Unlike {@link android.util.LocalLog}, no log line is built when an event is logged. The fields
+ * of the event are written into preallocated arrays, keeping references to strings that the SIP
+ * message already holds, and the log lines are only formatted when the log is dumped.
+ * <p>
+ * If messages are redacted, only the method or status code of a message is kept and dumped.
+ * Otherwise a reference to the message is kept and the message is dumped using
+ * {@link SipMessage#toString()}.
+ */
+public class SipTransportEventLog {
+
+    /** An outgoing message has been verified, see {@link #logMessage}. */
+    public static final int EVENT_VERIFY_OUTGOING = 0;
+    /** An incoming message has been verified, see {@link #logMessage}. */
+    public static final int EVENT_VERIFY_INCOMING = 1;
+    /** A pending message has been acknowledged, see {@link #logTransaction}. */
+    public static final int EVENT_ACKNOWLEDGED = 2;
+    /** A pending message has failed, see {@link #logTransaction}. */
+    public static final int EVENT_PENDING_FAILED = 3;
+    /** A message could not be sent to the SipDelegate, see {@link #logTransaction}. */
+    public static final int EVENT_DELEGATE_SEND_ERROR = 4;
+    /** A message could not be sent to the remote application, see {@link #logTransaction}. */
+    public static final int EVENT_APP_RECEIVE_ERROR = 5;
+    /** A response has updated the state of a SIP dialog, see {@link #logDialog}. */
+    public static final int EVENT_DIALOG_UPDATED = 6;
+
+    private static final String[] EVENT_NAMES = new String[] {
+            "verifyOutgoingMessage",
+            "verifyIncomingMessage",
+            "acknowledgePendingMessage",
+            "notifyPendingMessageFailed",
+            "delegateSendError",
+            "appReceiveError",
+            "dialogUpdated"
+    };
+
+    private final boolean mRedactMessages;
+    private final long[] mTimestamps;
+    private final int[] mEvents;
+    // Failure reason of verify and error events, status code of dialog events.
+    private final int[] mCodes;
+    // Whether verify events were validated, the new state of dialog events.
+    private final int[] mValues;
+    private final String[] mCallIds;
+    // Via branch parameter of verify events, transaction ID of transaction events.
+    private final String[] mIds;
+    private final String[] mDetails;
+    private final String[] mStartLines;
+    private final SipMessage[] mMessages;
+    private int mNext;
+    private int mSize;
+
+    /**
+     * @param capacity The maximum number of events kept, older events are overwritten.
+     * @param redactMessages {@code true} if only the method or status code of messages should be
+     *         kept, {@code false} if the whole message should be kept and dumped.
+     */
+    public SipTransportEventLog(int capacity, boolean redactMessages) {
+        mRedactMessages = redactMessages;
+        mTimestamps = new long[capacity];
+        mEvents = new int[capacity];
+        mCodes = new int[capacity];
+        mValues = new int[capacity];
+        mCallIds = new String[capacity];
+        mIds = new String[capacity];
+        mDetails = new String[capacity];
+        mStartLines = new String[capacity];
+        mMessages = new SipMessage[capacity];
+    }
+
+    /**
+     * Log that a SIP message has been verified.
+     * @param event {@link #EVENT_VERIFY_OUTGOING} or {@link #EVENT_VERIFY_INCOMING}.
+     * @param message The message that was verified.
+     * @param isValidated Whether or not the message passed validation.
+     * @param restrictedReason The reason the message failed validation.
+     * @param logReason The human readable reason the message failed validation.
+     */
+    public synchronized void logMessage(int event, ParsedSipMessage message, boolean isValidated,
+            int restrictedReason, String logReason) {
+        int i = nextIndex(event);
+        SipMessage m = message.getMessage();
+        mCodes[i] = restrictedReason;
+        mValues[i] = isValidated ? 1 : 0;
+        mCallIds[i] = m.getCallIdParameter();
+        mIds[i] = m.getViaBranchParameter();
+        mDetails[i] = logReason;
+        mStartLines[i] = m.getStartLine();
+        mMessages[i] = mRedactMessages ? null : m;
+    }
+
+    /**
+     * Log an event for a pending SIP message.
+     * @param event {@link #EVENT_ACKNOWLEDGED}, {@link #EVENT_PENDING_FAILED},
+     *         {@link #EVENT_DELEGATE_SEND_ERROR} or {@link #EVENT_APP_RECEIVE_ERROR}.
+     * @param transactionId The transaction ID of the message.
+     * @param reason The failure reason for error events.
+     * @param logReason The human readable reason for error events, may be {@code null}.
+     */
+    public synchronized void logTransaction(int event, String transactionId, int reason,
+            String logReason) {
+        int i = nextIndex(event);
+        mCodes[i] = reason;
+        mValues[i] = 0;
+        mCallIds[i] = null;
+        mIds[i] = transactionId;
+        mDetails[i] = logReason;
+        mStartLines[i] = null;
+        mMessages[i] = null;
+    }
+
+    /**
+     * Log that a SIP response has updated a SIP dialog.
+     * @param callId The Call-ID of the dialog.
+     * @param statusCode The status code of the response.
+     * @param state The state of the dialog after the update, see {@link SipDialog#getState()}.
+     */
+    public synchronized void logDialog(String callId, int statusCode, int state) {
+        int i = nextIndex(EVENT_DIALOG_UPDATED);
+        mCodes[i] = statusCode;
+        mValues[i] = state;
+        mCallIds[i] = callId;
+        mIds[i] = null;
+        mDetails[i] = null;
+        mStartLines[i] = null;
+        mMessages[i] = null;
+    }
+
+    /**
+     * @return The number of events in the log.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Dump the events in the log, oldest first.
+     */
+    public synchronized void dump(PrintWriter pw) {
+        int capacity = mTimestamps.length;
+        int first = (mNext - mSize + capacity) % capacity;
+        for (int n = 0; n < mSize; n++) {
+            pw.println(formatEvent((first + n) % capacity));
+        }
+    }
+
+    private int nextIndex(int event) {
+        int i = mNext;
+        mTimestamps[i] = System.currentTimeMillis();
+        mEvents[i] = event;
+        mNext = (mNext + 1) % mTimestamps.length;
+        if (mSize < mTimestamps.length) mSize++;
+        return i;
+    }
+
+    private String formatEvent(int i) {
+        StringBuilder b = new StringBuilder();
+        b.append(LocalDateTime.ofInstant(Instant.ofEpochMilli(mTimestamps[i]),
+                ZoneId.systemDefault()));
+        b.append(" - ");
+        int event = mEvents[i];
+        b.append(EVENT_NAMES[event]);
+        b.append(": ");
+        switch (event) {
+            case EVENT_VERIFY_OUTGOING:
+            case EVENT_VERIFY_INCOMING:
+                b.append("validated=").append(mValues[i] == 1);
+                if (mValues[i] == 0) {
+                    b.append(", restrictedReason=").append(mCodes[i]);
+                    b.append(", logReason=").append(mDetails[i]);
+                }
+                b.append(", callId=").append(mCallIds[i]);
+                b.append(", branch=").append(mIds[i]);
+                if (mMessages[i] != null) {
+                    b.append(", message=").append(mMessages[i]);
+                } else {
+                    b.append(", message=").append(getRedactedStartLine(mStartLines[i]));
+                }
+                break;
+            case EVENT_DIALOG_UPDATED:
+                b.append("callId=").append(mCallIds[i]);
+                b.append(", statusCode=").append(mCodes[i]);
+                b.append(", state=").append(SipDialog.getStateString(mValues[i]));
+                break;
+            default:
+                b.append("id=").append(mIds[i]);
+                if (event != EVENT_ACKNOWLEDGED && event != EVENT_PENDING_FAILED) {
+                    b.append(", code=").append(mCodes[i]);
+                    b.append(", reason=").append(mDetails[i]);
+                }
+        }
+        return b.toString();
+    }
+
+    // Only keep the method of a request or the status code of a response.
+    private static String getRedactedStartLine(String startLine) {
+        String[] segments = SipMessageParsingUtils.splitStartLineAndVerify(startLine);
+        if (segments == null) {
+            return "[malformed]";
+        }
+        if (SipMessageParsingUtils.isSipResponse(startLine)) {
+            return "[" + segments[1] + "]";
+        }
+        return "[" + segments[0] + "]";
+    }
+}
@@ -29,12 +29,12 @@ import android.util.LocalLog;
 import android.util.Log;
 
 import com.android.internal.annotations.VisibleForTesting;
-import com.android.internal.telephony.SipMessageParsingUtils;
 import com.android.internal.telephony.metrics.RcsStats;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.services.telephony.rcs.validator.IncomingTransportStateValidator;
 import com.android.services.telephony.rcs.validator.MalformedSipMessageValidator;
 import com.android.services.telephony.rcs.validator.OutgoingTransportStateValidator;
+import com.android.services.telephony.rcs.validator.ParsedSipMessage;
 import com.android.services.telephony.rcs.validator.RestrictedOutgoingSipRequestValidator;
 import com.android.services.telephony.rcs.validator.RestrictedOutgoingSubscribeValidator;
 import com.android.services.telephony.rcs.validator.SipMessageValidator;
@@ -43,6 +43,7 @@ import com.android.services.telephony.rcs.validator.ValidationResult;
 import java.io.PrintWriter;
 import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -105,9 +106,22 @@ public class TransportSipMessageValidator {
     private abstract static class PendingTask implements Runnable {
 
         private ScheduledFuture<?> mFuture;
+        // Set on the controller executor and read on the lane, which may be another thread.
+        private volatile boolean mIsCancelled;
 
-        public void scheduleDelayed(ScheduledExecutorService executor, int timeMs) {
-            mFuture = executor.schedule(this, timeMs, TimeUnit.MILLISECONDS);
+        /**
+         * Schedule this task on the scheduler and run it on the task executor once the delay has
+         * passed, or on the scheduler if the task executor is {@code null}.
+         */
+        public void scheduleDelayed(ScheduledExecutorService scheduler, Executor taskExecutor,
+                int timeMs) {
+            if (taskExecutor == null) {
+                mFuture = scheduler.schedule(this::runIfNotCancelled, timeMs,
+                        TimeUnit.MILLISECONDS);
+            } else {
+                mFuture = scheduler.schedule(() -> taskExecutor.execute(this::runIfNotCancelled),
+                        timeMs, TimeUnit.MILLISECONDS);
+            }
         }
 
         public boolean isDone() {
@@ -115,9 +129,14 @@ public class TransportSipMessageValidator {
         }
 
         public void cancel() {
+            mIsCancelled = true;
             if (mFuture == null) return;
             mFuture.cancel(false /*interrupt*/);
         }
+
+        private void runIfNotCancelled() {
+            if (!mIsCancelled) run();
+        }
     }
 
     /**
@@ -135,7 +154,11 @@ public class TransportSipMessageValidator {
 
     private final int mSubId;
     private final ScheduledExecutorService mExecutor;
+    // If not null, the executor the timeouts scheduled on mExecutor are run on.
+    private final Executor mTaskExecutor;
     private final LocalLog mLocalLog = new LocalLog(SipTransportController.LOG_SIZE);
+    private final SipTransportEventLog mEventLog = new SipTransportEventLog(
+            SipTransportController.EVENT_LOG_SIZE, SipTransportController.REDACT_SIP_MESSAGES);
     private final SipSessionTracker mSipSessionTracker;
     // Validators
     private final IncomingTransportStateValidator mIncomingTransportStateValidator;
@@ -153,8 +176,19 @@ public class TransportSipMessageValidator {
     private final RcsStats mRcsStats;
 
     public TransportSipMessageValidator(int subId, ScheduledExecutorService executor) {
+        this(subId, executor, null);
+    }
+
+    /**
+     * @param executor The executor used to schedule timeouts.
+     * @param taskExecutor The executor that this validator is used on, which the timeouts will be
+     *         run on. If {@code null}, the timeouts are run on {@code executor}.
+     */
+    public TransportSipMessageValidator(int subId, ScheduledExecutorService executor,
+            Executor taskExecutor) {
         mSubId = subId;
         mExecutor = executor;
+        mTaskExecutor = taskExecutor;
         mRcsStats = RcsStats.getInstance();
         mSipSessionTracker = new SipSessionTracker(subId, mRcsStats);
         mOutgoingTransportStateValidator = new OutgoingTransportStateValidator(mSipSessionTracker);
@@ -173,6 +207,7 @@ public class TransportSipMessageValidator {
             IncomingTransportStateValidator incomingStateValidator, RcsStats rcsStats) {
         mSubId = subId;
         mExecutor = executor;
+        mTaskExecutor = null;
         mSipSessionTracker = sipSessionTracker;
         mOutgoingTransportStateValidator = outgoingStateValidator;
         mIncomingTransportStateValidator = incomingStateValidator;
@@ -331,7 +366,7 @@ public class TransportSipMessageValidator {
                 closeSessions(closingReason);
             }
         };
-        mPendingClose.scheduleDelayed(mExecutor, PENDING_CLOSE_TIMEOUT_MS);
+        mPendingClose.scheduleDelayed(mExecutor, mTaskExecutor, PENDING_CLOSE_TIMEOUT_MS);
     }
 
     /**
@@ -365,6 +400,13 @@ public class TransportSipMessageValidator {
      */
 
     public ValidationResult verifyOutgoingMessage(SipMessage message, long configVersion) {
+        return verifyOutgoingMessage(new ParsedSipMessage(message), configVersion);
+    }
+
+    /**
+     * @see #verifyOutgoingMessage(SipMessage, long)
+     */
+    public ValidationResult verifyOutgoingMessage(ParsedSipMessage message, long configVersion) {
         if (mConfigVersion != configVersion) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_STALE_IMS_CONFIGURATION,
@@ -372,7 +414,8 @@ public class TransportSipMessageValidator {
                             + mConfigVersion);
         }
         ValidationResult result = mOutgoingMessageValidator.validate(message);
-        logi("verifyOutgoingMessage: " + result + ", message=" + message);
+        mEventLog.logMessage(SipTransportEventLog.EVENT_VERIFY_OUTGOING, message,
+                result.isValidated, result.restrictedReason, result.logReason);
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
                     SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__OUTGOING, message);
@@ -388,8 +431,16 @@ public class TransportSipMessageValidator {
      * @return The result of verifying the incoming message.
      */
     public ValidationResult verifyIncomingMessage(SipMessage message) {
+        return verifyIncomingMessage(new ParsedSipMessage(message));
+    }
+
+    /**
+     * @see #verifyIncomingMessage(SipMessage)
+     */
+    public ValidationResult verifyIncomingMessage(ParsedSipMessage message) {
         ValidationResult result = mIncomingMessageValidator.validate(message);
-        logi("verifyIncomingMessage: " + result + ", message=" + message);
+        mEventLog.logMessage(SipTransportEventLog.EVENT_VERIFY_INCOMING, message,
+                result.isValidated, result.restrictedReason, result.logReason);
         if (result.isValidated) {
             mSipSessionTracker.filterSipMessage(
                     SIP_TRANSPORT_SESSION__SIP_MESSAGE_DIRECTION__INCOMING, message);
@@ -404,7 +455,7 @@ public class TransportSipMessageValidator {
      * @param transactionId The transaction ID associated with the message.
      */
     public void acknowledgePendingMessage(String transactionId) {
-        logi("acknowledgePendingMessage: id=" + transactionId);
+        mEventLog.logTransaction(SipTransportEventLog.EVENT_ACKNOWLEDGED, transactionId, 0, null);
         mSipSessionTracker.acknowledgePendingMessage(transactionId);
         onCallIdsChanged();
     }
@@ -414,7 +465,8 @@ public class TransportSipMessageValidator {
      * @param transactionId The transaction ID associated with the message.
      */
     public void notifyPendingMessageFailed(String transactionId) {
-        logi("notifyPendingMessageFailed: id=" + transactionId);
+        mEventLog.logTransaction(SipTransportEventLog.EVENT_PENDING_FAILED, transactionId, 0,
+                null);
         mSipSessionTracker.pendingMessageFailed(transactionId);
     }
 
@@ -432,6 +484,9 @@ public class TransportSipMessageValidator {
         pw.println();
         pw.println("Most recent logs:");
         mLocalLog.dump(printWriter);
+        pw.println();
+        pw.println("Most recent message events:");
+        mEventLog.dump(printWriter);
     }
 
     /**
@@ -508,7 +563,8 @@ public class TransportSipMessageValidator {
             }
         };
         logi("updatePendingRegCleanupTask: scheduling for call ids: " + pendingCallIds);
-        mPendingRegCleanup.scheduleDelayed(mExecutor, PENDING_REGISTRATION_CHANGE_TIMEOUT_MS);
+        mPendingRegCleanup.scheduleDelayed(mExecutor, mTaskExecutor,
+                PENDING_REGISTRATION_CHANGE_TIMEOUT_MS);
     }
 
     /**
@@ -555,22 +611,20 @@ public class TransportSipMessageValidator {
                 .collect(Collectors.toSet());
     }
 
-    private void updateForMetrics(int direction, SipMessage m, ValidationResult result) {
-        String[] startLineSegments = SipMessageParsingUtils
-                .splitStartLineAndVerify(m.getStartLine());
-        if (SipMessageParsingUtils.isSipRequest(m.getStartLine())) {
+    private void updateForMetrics(int direction, ParsedSipMessage m, ValidationResult result) {
+        String[] startLineSegments = m.getStartLineSegments();
+        if (m.isRequest()) {
             if (result.isValidated) {
                 // SipMessage add to list for Metrics stats
-                mRcsStats.onSipMessageRequest(m.getCallIdParameter(), startLineSegments[0],
+                mRcsStats.onSipMessageRequest(m.getCallId(), startLineSegments[0],
                         direction);
             } else {
                 //Message sending fail and there is no response.
                 mRcsStats.invalidatedMessageResult(mSubId, startLineSegments[0], direction,
                         result.restrictedReason);
             }
-        } else if (SipMessageParsingUtils.isSipResponse(m.getStartLine())) {
-            int statusCode = Integer.parseInt(startLineSegments[1]);
-            mRcsStats.onSipMessageResponse(mSubId, m.getCallIdParameter(), statusCode,
+        } else if (m.isResponse()) {
+            mRcsStats.onSipMessageResponse(mSubId, m.getCallId(), m.getStatusCode(),
                     result.restrictedReason);
         } else {
             logw("Message is Restricted");
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.ims.RcsContactUceCapability;
+import android.telephony.ims.SipDetails;
+import android.telephony.ims.aidl.IRcsUceControllerCallback;
+import android.util.IndentingPrintWriter;
+import android.util.LocalLog;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A short lived cache of the contact capabilities received from the {@link
+ * com.android.ims.rcs.uce.UceController}, used to answer the capabilities requests that several
+ * applications make for the same contacts without sending a new request to the UceController.
+ * <p>
+ * Capabilities are keyed by the normalized contact URI, see {@link #getCacheKey(Uri)}, and expire
+ * after a time that depends on whether the contact was found to be RCS capable. The least recently
+ * used capabilities are evicted when the cache is full. The whole cache is invalidated when the
+ * state of the subscription or of the device's own PUBLISH changes, since the network may answer
+ * differently afterwards.
+ */
+public class UceCapabilityCache {
+    private static final String LOG_TAG = "UceCapabilityCache";
+
+    private static final class Entry {
+        final RcsContactUceCapability capability;
+        final long expiryTimeMs;
+
+        Entry(RcsContactUceCapability c, long expiryMs) {
+            capability = c;
+            expiryTimeMs = expiryMs;
+        }
+    }
+
+    /**
+     * Adds the capabilities received for a request to the cache before forwarding them to the
+     * callback of the request.
+     */
+    private final class CachingCallback extends IRcsUceControllerCallback.Stub {
+        private final IRcsUceControllerCallback mCallback;
+        private final int mGeneration;
+
+        CachingCallback(IRcsUceControllerCallback callback, int generation) {
+            mCallback = callback;
+            mGeneration = generation;
+        }
+
+        @Override
+        public void onCapabilitiesReceived(List<RcsContactUceCapability> contactCapabilities)
+                throws RemoteException {
+            put(contactCapabilities, mGeneration);
+            mCallback.onCapabilitiesReceived(contactCapabilities);
+        }
+
+        @Override
+        public void onComplete(SipDetails details) throws RemoteException {
+            mCallback.onComplete(details);
+        }
+
+        @Override
+        public void onError(int errorCode, long retryAfterMilliseconds, SipDetails details)
+                throws RemoteException {
+            mCallback.onError(errorCode, retryAfterMilliseconds, details);
+        }
+    }
+
+    private final int mMaxSize;
+    private final LongSupplier mClock;
+    // Access ordered, so the first entry is the least recently used one.
+    private final LinkedHashMap<String, Entry> mEntries;
+    private final LocalLog mInvalidationLog = new LocalLog(10);
+    private long mCapableExpirationMs;
+    private long mNonCapableExpirationMs;
+    // Incremented on every invalidation, so that the capabilities of requests sent before the
+    // invalidation are not cached.
+    private int mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private long mExpiredCount;
+    private long mEvictionCount;
+    private long mInvalidationCount;
+
+    /**
+     * @param maxSize The maximum number of contacts in the cache.
+     * @param capableExpirationMs How long the capabilities of a contact that was found are cached.
+     * @param nonCapableExpirationMs How long the capabilities of a contact that was not found are
+     *         cached.
+     */
+    public UceCapabilityCache(int maxSize, long capableExpirationMs, long nonCapableExpirationMs) {
+        this(maxSize, capableExpirationMs, nonCapableExpirationMs, SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * Constructor to inject the clock for testing.
+     */
+    @VisibleForTesting
+    public UceCapabilityCache(int maxSize, long capableExpirationMs, long nonCapableExpirationMs,
+            LongSupplier clock) {
+        mMaxSize = maxSize;
+        mClock = clock;
+        mCapableExpirationMs = capableExpirationMs;
+        mNonCapableExpirationMs = nonCapableExpirationMs;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true /*accessOrder*/) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= mMaxSize) return false;
+                mEvictionCount++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Update how long capabilities are cached, for example after the carrier config has changed.
+     * Capabilities that are already cached keep their expiration time.
+     */
+    public synchronized void setExpiration(long capableExpirationMs, long nonCapableExpirationMs) {
+        mCapableExpirationMs = capableExpirationMs;
+        mNonCapableExpirationMs = nonCapableExpirationMs;
+    }
+
+    /**
+     * Get the cached capabilities of the given contacts.
+     * @param contacts The contacts to look up.
+     * @param outMissingContacts Filled with the contacts that are not cached or have expired.
+     * @return The cached capabilities of the other contacts.
+     */
+    public synchronized List<RcsContactUceCapability> get(List<Uri> contacts,
+            List<Uri> outMissingContacts) {
+        List<RcsContactUceCapability> capabilities = new ArrayList<>(contacts.size());
+        for (Uri contact : contacts) {
+            RcsContactUceCapability capability = getLocked(contact);
+            if (capability != null) {
+                capabilities.add(withContactUri(capability, contact));
+            } else {
+                outMissingContacts.add(contact);
+            }
+        }
+        return capabilities;
+    }
+
+    /**
+     * @return The cached capabilities of the contact, or {@code null} if they are not cached or
+     * have expired.
+     */
+    public synchronized RcsContactUceCapability get(Uri contact) {
+        RcsContactUceCapability capability = getLocked(contact);
+        return (capability != null) ? withContactUri(capability, contact) : null;
+    }
+
+    /**
+     * Wrap the callback of a capabilities request sent to the UceController, so that the
+     * capabilities received for the request are cached.
+     */
+    public synchronized IRcsUceControllerCallback wrapCallback(IRcsUceControllerCallback c) {
+        return new CachingCallback(c, mGeneration);
+    }
+
+    /**
+     * Remove all the capabilities from the cache.
+     * @param reason The reason for the invalidation, included in the dumpsys.
+     */
+    public synchronized void invalidate(String reason) {
+        mGeneration++;
+        if (mEntries.isEmpty()) return;
+        mInvalidationLog.log(reason + ", removed " + mEntries.size() + " contacts");
+        mInvalidationCount++;
+        mEntries.clear();
+    }
+
+    /**
+     * @return The number of contacts in the cache, including the expired ones that have not been
+     * removed yet.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return A single line summary of the size of the cache and its hit and miss counts.
+     */
+    public synchronized String getStatistics() {
+        long lookups = mHitCount + mMissCount;
+        return "size=" + mEntries.size() + "/" + mMaxSize
+                + ", hits=" + mHitCount
+                + ", misses=" + mMissCount
+                + ", hitRate=" + (lookups == 0 ? 0 : (mHitCount * 100 / lookups)) + "%"
+                + ", expired=" + mExpiredCount
+                + ", evictions=" + mEvictionCount
+                + ", invalidations=" + mInvalidationCount;
+    }
+
+    /**
+     * Reset the hit and miss counts.
+     */
+    public synchronized void resetStatistics() {
+        mHitCount = 0;
+        mMissCount = 0;
+        mExpiredCount = 0;
+        mEvictionCount = 0;
+        mInvalidationCount = 0;
+    }
+
+    /**
+     * Dump the statistics and the recent invalidations of the cache.
+     */
+    public synchronized void dump(IndentingPrintWriter pw) {
+        pw.println("UceCapabilityCache:");
+        pw.increaseIndent();
+        pw.println(getStatistics());
+        pw.println("expiration: capable=" + mCapableExpirationMs + "ms, nonCapable="
+                + mNonCapableExpirationMs + "ms");
+        pw.println("Invalidations:");
+        pw.increaseIndent();
+        mInvalidationLog.dump(pw);
+        pw.decreaseIndent();
+        pw.decreaseIndent();
+    }
+
+    /**
+     * Normalize a contact URI, so that the different ways an application can write the same
+     * contact map to the same cache entry:
+     * <ul>
+     *     <li>The scheme is case insensitive.</li>
+     *     <li>The visual separators and parameters of tel URIs are removed.</li>
+     *     <li>The host of SIP URIs is case insensitive.</li>
+     * </ul>
+     */
+    @VisibleForTesting
+    public static String getCacheKey(Uri contact) {
+        String scheme = contact.getScheme();
+        String ssp = contact.getSchemeSpecificPart();
+        if (scheme == null || ssp == null) {
+            return contact.toString();
+        }
+        scheme = scheme.toLowerCase(Locale.ROOT);
+        if ("tel".equals(scheme)) {
+            int paramsIndex = ssp.indexOf(';');
+            String number = (paramsIndex < 0) ? ssp : ssp.substring(0, paramsIndex);
+            return scheme + ":" + PhoneNumberUtils.normalizeNumber(number);
+        }
+        int hostIndex = ssp.lastIndexOf('@');
+        if (hostIndex >= 0) {
+            ssp = ssp.substring(0, hostIndex + 1)
+                    + ssp.substring(hostIndex + 1).toLowerCase(Locale.ROOT);
+        }
+        return scheme + ":" + ssp;
+    }
+
+    /**
+     * @return The capability with its contact URI replaced by the given one. Capabilities are
+     * shared between contact URIs that have the same cache key, so callers are given back the URI
+     * they asked for.
+     */
+    public static RcsContactUceCapability withContactUri(RcsContactUceCapability capability,
+            Uri contact) {
+        if (contact.equals(capability.getContactUri())) {
+            return capability;
+        }
+        if (capability.getCapabilityMechanism()
+                == RcsContactUceCapability.CAPABILITY_MECHANISM_PRESENCE) {
+            RcsContactUceCapability.PresenceBuilder builder =
+                    new RcsContactUceCapability.PresenceBuilder(contact,
+                            capability.getSourceType(), capability.getRequestResult());
+            builder.addCapabilityTuples(capability.getCapabilityTuples());
+            if (capability.getEntityUri() != null) {
+                builder.setEntityUri(capability.getEntityUri());
+            }
+            return builder.build();
+        }
+        RcsContactUceCapability.OptionsBuilder builder =
+                new RcsContactUceCapability.OptionsBuilder(contact, capability.getSourceType());
+        builder.setRequestResult(capability.getRequestResult());
+        builder.addFeatureTags(capability.getFeatureTags());
+        return builder.build();
+    }
+
+    private RcsContactUceCapability getLocked(Uri contact) {
+        String key = getCacheKey(contact);
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            mMissCount++;
+            return null;
+        }
+        if (entry.expiryTimeMs <= mClock.getAsLong()) {
+            mEntries.remove(key);
+            mExpiredCount++;
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return entry.capability;
+    }
+
+    private synchronized void put(List<RcsContactUceCapability> capabilities, int generation) {
+        if (generation != mGeneration) {
+            Log.d(LOG_TAG, "put: ignoring capabilities requested before the last invalidation");
+            return;
+        }
+        long now = mClock.getAsLong();
+        for (RcsContactUceCapability c : capabilities) {
+            long expirationMs;
+            switch (c.getRequestResult()) {
+                case RcsContactUceCapability.REQUEST_RESULT_FOUND:
+                    expirationMs = mCapableExpirationMs;
+                    break;
+                case RcsContactUceCapability.REQUEST_RESULT_NOT_FOUND:
+                    expirationMs = mNonCapableExpirationMs;
+                    break;
+                default:
+                    // The network did not give a definitive answer, do not cache it.
+                    continue;
+            }
+            if (expirationMs <= 0 || c.getContactUri() == null) continue;
+            mEntries.put(getCacheKey(c.getContactUri()), new Entry(c, now + expirationMs));
+        }
+    }
+}
@@ -19,13 +19,20 @@ package com.android.services.telephony.rcs;
 import android.annotation.Nullable;
 import android.content.Context;
 import android.net.Uri;
+import android.os.PersistableBundle;
+import android.os.RemoteException;
+import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.ims.ImsException;
+import android.telephony.ims.PublishAttributes;
 import android.telephony.ims.RcsContactUceCapability;
 import android.telephony.ims.RcsUceAdapter;
 import android.telephony.ims.RcsUceAdapter.PublishState;
+import android.telephony.ims.SipDetails;
 import android.telephony.ims.aidl.IRcsUceControllerCallback;
 import android.telephony.ims.aidl.IRcsUcePublishStateCallback;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 
@@ -34,25 +41,184 @@ import com.android.ims.rcs.uce.UceController;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Responsible for managing the creation and destruction of UceController. It also received the
  * requests from {@link com.android.phone.ImsRcsController} and pass these requests to
  * {@link UceController}
+ * <p>
+ * All requests are handled on a single thread. Most requests have a blocking variant, which waits
+ * for the request to be handled, and a non-blocking variant, which returns immediately and
+ * reports the result to a {@link RequestCallback}.
+ * <p>
+ * The capabilities received for recent requests are kept in a {@link UceCapabilityCache}, so that
+ * the requests of several applications for the same contacts are only sent to the UceController
+ * once.
  */
 public class UceControllerManager implements RcsFeatureController.Feature {
 
     private static final String LOG_TAG = "UceControllerManager";
 
+    /**
+     * The maximum number of contacts in a capabilities request that is merged from the requests
+     * of several callers.
+     */
+    @VisibleForTesting
+    public static final int MAX_MERGED_REQUEST_CONTACTS = 100;
+
+    // The maximum number of contacts in the capability cache.
+    private static final int CAPABILITY_CACHE_SIZE = 500;
+    // The capabilities of RCS contacts can change whenever the contact registers again, so they
+    // are only cached for a short time, or less if the carrier caches non-RCS contacts for less.
+    private static final long MAX_CAPABLE_CACHE_EXPIRATION_MS = 60 * 1000;
+    // The UceController keeps its own long lived cache, the carrier config of non-RCS contacts is
+    // capped so that this cache stays short lived.
+    private static final long MAX_NON_CAPABLE_CACHE_EXPIRATION_MS = 5 * 60 * 1000;
+
+    /**
+     * Receives the result of a non-blocking request. The result is reported on the thread of this
+     * manager, so implementations should not block.
+     * @param <T> The type of the result.
+     */
+    public interface RequestCallback<T> {
+        /**
+         * The request has completed successfully.
+         */
+        void onResult(T result);
+
+        /**
+         * The request has failed, for example because the ImsService is currently down.
+         */
+        void onError(ImsException e);
+    }
+
+    // A pending capabilities request of a caller.
+    private static final class CapabilitiesRequest {
+        final List<Uri> contacts;
+        final IRcsUceControllerCallback callback;
+        final RequestCallback<Void> requestCallback;
+
+        CapabilitiesRequest(List<Uri> c, IRcsUceControllerCallback cb,
+                RequestCallback<Void> requestCb) {
+            contacts = c;
+            callback = cb;
+            requestCallback = requestCb;
+        }
+    }
+
+    /**
+     * Sends the result of a capabilities request that was merged from several callers back to
+     * each caller. Capabilities are only sent to the callers that requested the contact, where
+     * contacts are matched by {@link UceCapabilityCache#getCacheKey(Uri)}.
+     */
+    private static final class MergedCapabilitiesCallback extends IRcsUceControllerCallback.Stub {
+        private final List<CapabilitiesRequest> mRequests;
+        // The contacts of each request keyed by their cache key, in the same order as mRequests.
+        private final List<Map<String, Uri>> mRequestContacts;
+
+        MergedCapabilitiesCallback(List<CapabilitiesRequest> requests) {
+            mRequests = requests;
+            mRequestContacts = new ArrayList<>(requests.size());
+            for (CapabilitiesRequest r : requests) {
+                Map<String, Uri> contacts = new ArrayMap<>(r.contacts.size());
+                for (Uri contact : r.contacts) {
+                    contacts.put(UceCapabilityCache.getCacheKey(contact), contact);
+                }
+                mRequestContacts.add(contacts);
+            }
+        }
+
+        @Override
+        public void onCapabilitiesReceived(List<RcsContactUceCapability> contactCapabilities) {
+            List<String> capabilityKeys = new ArrayList<>(contactCapabilities.size());
+            for (RcsContactUceCapability c : contactCapabilities) {
+                Uri contact = c.getContactUri();
+                capabilityKeys.add(
+                        contact != null ? UceCapabilityCache.getCacheKey(contact) : null);
+            }
+            for (int i = 0; i < mRequests.size(); i++) {
+                CapabilitiesRequest r = mRequests.get(i);
+                Map<String, Uri> contacts = mRequestContacts.get(i);
+                List<RcsContactUceCapability> capabilities = new ArrayList<>();
+                for (int j = 0; j < contactCapabilities.size(); j++) {
+                    Uri contact = contacts.get(capabilityKeys.get(j));
+                    if (contact != null) {
+                        // Report the contact as the caller wrote it.
+                        capabilities.add(UceCapabilityCache.withContactUri(
+                                contactCapabilities.get(j), contact));
+                    }
+                }
+                if (capabilities.isEmpty()) continue;
+                try {
+                    r.callback.onCapabilitiesReceived(capabilities);
+                } catch (RemoteException e) {
+                    Log.w(LOG_TAG, "onCapabilitiesReceived exception: " + e);
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(SipDetails details) {
+            for (CapabilitiesRequest r : mRequests) {
+                try {
+                    r.callback.onComplete(details);
+                } catch (RemoteException e) {
+                    Log.w(LOG_TAG, "onComplete exception: " + e);
+                }
+            }
+        }
+
+        @Override
+        public void onError(int errorCode, long retryAfterMilliseconds, SipDetails details) {
+            for (CapabilitiesRequest r : mRequests) {
+                try {
+                    r.callback.onError(errorCode, retryAfterMilliseconds, details);
+                } catch (RemoteException e) {
+                    Log.w(LOG_TAG, "onError exception: " + e);
+                }
+            }
+        }
+    }
+
     private final int mSlotId;
     private final Context mContext;
     private final ExecutorService mExecutorService;
+    // Capabilities requests waiting to be sent to the UceController. Requests made before the
+    // pending requests are handled on the executor are sent together, see
+    // flushCapabilitiesRequests.
+    private final Object mPendingRequestsLock = new Object();
+    private List<CapabilitiesRequest> mPendingCapabilitiesRequests = new ArrayList<>();
+
+    // null if capabilities are not cached.
+    private final @Nullable UceCapabilityCache mCapabilityCache;
+    // The last publish state reported to mPublishStateCallback, only accessed on the executor.
+    private int mLastPublishState = RcsUceAdapter.PUBLISH_STATE_NOT_PUBLISHED;
+    // Registered with the UceController when capabilities are cached. It is registered without
+    // the PUBLISHING state, so every publish state change is reported in the same form.
+    private final IRcsUcePublishStateCallback mPublishStateCallback =
+            new IRcsUcePublishStateCallback.Stub() {
+                @Override
+                public void onPublishUpdated(PublishAttributes attributes) {
+                    int publishState = attributes.getPublishState();
+                    try {
+                        mExecutorService.execute(() -> onPublishStateChanged(publishState));
+                    } catch (RejectedExecutionException e) {
+                        Log.w(LOG_TAG, "onPublishUpdated: manager has been destroyed");
+                    }
+                }
+            };
 
     private volatile @Nullable UceController mUceController;
     private volatile @Nullable RcsFeatureManager mRcsFeatureManager;
@@ -62,7 +228,10 @@ public class UceControllerManager implements RcsFeatureController.Feature {
         mSlotId = slotId;
         mContext = context;
         mExecutorService = Executors.newSingleThreadExecutor();
+        mCapabilityCache = new UceCapabilityCache(CAPABILITY_CACHE_SIZE,
+                MAX_CAPABLE_CACHE_EXPIRATION_MS, MAX_NON_CAPABLE_CACHE_EXPIRATION_MS);
         initUceController(subId);
+        updateCapabilityCacheExpiration(subId);
     }
 
     /**
@@ -71,16 +240,28 @@ public class UceControllerManager implements RcsFeatureController.Feature {
     @VisibleForTesting
     public UceControllerManager(Context context, int slotId, ExecutorService executor,
             UceController uceController) {
+        this(context, slotId, executor, uceController, null);
+    }
+
+    /**
+     * Constructor to inject dependencies, including the capability cache, for testing.
+     */
+    @VisibleForTesting
+    public UceControllerManager(Context context, int slotId, ExecutorService executor,
+            UceController uceController, UceCapabilityCache capabilityCache) {
         mSlotId = slotId;
         mContext = context;
         mExecutorService = executor;
         mUceController = uceController;
+        mCapabilityCache = capabilityCache;
+        registerCachePublishStateCallback();
     }
 
     @Override
     public void onRcsConnected(RcsFeatureManager manager) {
         mExecutorService.submit(() -> {
             mRcsFeatureManager = manager;
+            invalidateCapabilityCache("onRcsConnected");
             if (mUceController != null) {
                 mUceController.onRcsConnected(manager);
             } else {
@@ -93,6 +274,7 @@ public class UceControllerManager implements RcsFeatureController.Feature {
     public void onRcsDisconnected() {
         mExecutorService.submit(() -> {
             mRcsFeatureManager = null;
+            invalidateCapabilityCache("onRcsDisconnected");
             if (mUceController != null) {
                 mUceController.onRcsDisconnected();
             } else {
@@ -125,6 +307,8 @@ public class UceControllerManager implements RcsFeatureController.Feature {
 
             // Check and create the UceController with the new updated subscription ID.
             initUceController(newSubId);
+            invalidateCapabilityCache("onAssociatedSubscriptionUpdated: subId=" + newSubId);
+            updateCapabilityCacheExpiration(newSubId);
 
             // The RCS should be connected when the mRcsFeatureManager is not null. Set it to the
             // new UceController instance.
@@ -143,6 +327,8 @@ public class UceControllerManager implements RcsFeatureController.Feature {
         mExecutorService.submit(() -> {
             Log.i(LOG_TAG, "onCarrierConfigChanged");
             if (mUceController != null) {
+                invalidateCapabilityCache("onCarrierConfigChanged");
+                updateCapabilityCacheExpiration(mUceController.getSubId());
                 mUceController.onCarrierConfigChanged();
             } else {
                 Log.d(LOG_TAG, "onCarrierConfigChanged: UceController is null");
@@ -159,10 +345,17 @@ public class UceControllerManager implements RcsFeatureController.Feature {
      */
     public void requestCapabilities(List<Uri> contactNumbers, IRcsUceControllerCallback c)
             throws ImsException {
-        Future future = mExecutorService.submit(() -> {
-            checkUceControllerState();
-            mUceController.requestCapabilities(contactNumbers, c);
-            return true;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        requestCapabilitiesAsync(contactNumbers, c, new RequestCallback<Void>() {
+            @Override
+            public void onResult(Void result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onError(ImsException e) {
+                future.completeExceptionally(e);
+            }
         });
 
         try {
@@ -177,7 +370,124 @@ public class UceControllerManager implements RcsFeatureController.Feature {
     }
 
     /**
-     * Request the capabilities for the given contact.
+     * Request the capabilities for contacts without blocking.
+     * <p>
+     * Requests made by several callers before the pending requests are handled are batched:
+     * requests for overlapping contacts are merged into one request to the UceController and the
+     * capabilities are sent back to each caller that requested them. Contacts whose capabilities
+     * are cached are not requested again.
+     *
+     * @param contactNumbers A list of numbers that the capabilities are being requested for.
+     * @param c A callback for when the request for capabilities completes.
+     * @param requestCallback Notified once the request has been sent to the UceController, or
+     *         with an {@link ImsException} if the ImsService connected to this controller is
+     *         currently down.
+     */
+    public void requestCapabilitiesAsync(List<Uri> contactNumbers, IRcsUceControllerCallback c,
+            RequestCallback<Void> requestCallback) {
+        boolean isFlushNeeded;
+        synchronized (mPendingRequestsLock) {
+            isFlushNeeded = mPendingCapabilitiesRequests.isEmpty();
+            mPendingCapabilitiesRequests.add(
+                    new CapabilitiesRequest(contactNumbers, c, requestCallback));
+        }
+        if (!isFlushNeeded) {
+            return;
+        }
+        try {
+            mExecutorService.submit(this::flushCapabilitiesRequests);
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "requestCapabilitiesAsync: manager has been destroyed");
+            List<CapabilitiesRequest> requests;
+            synchronized (mPendingRequestsLock) {
+                requests = mPendingCapabilitiesRequests;
+                mPendingCapabilitiesRequests = new ArrayList<>();
+            }
+            for (CapabilitiesRequest r : requests) {
+                r.requestCallback.onError(new ImsException(
+                        "UceControllerManager has been destroyed",
+                        ImsException.CODE_ERROR_SERVICE_UNAVAILABLE));
+            }
+        }
+    }
+
+    /**
+     * Get the UCE publish state without blocking.
+     * @see #getUcePublishState(boolean)
+     */
+    public void getUcePublishStateAsync(boolean isSupportPublishingState,
+            RequestCallback<Integer> callback) {
+        submitAsync("getUcePublishStateAsync", () -> {
+            checkUceControllerState();
+            return mUceController.getUcePublishState(isSupportPublishingState);
+        }, callback);
+    }
+
+    /**
+     * Add new feature tags to the Set used to calculate the capabilities in PUBLISH without
+     * blocking.
+     * @see #addUceRegistrationOverride(Set)
+     */
+    public void addUceRegistrationOverrideAsync(Set<String> featureTags,
+            RequestCallback<RcsContactUceCapability> callback) {
+        submitAsync("addUceRegistrationOverrideAsync", () -> {
+            checkUceControllerState();
+            return mUceController.addRegistrationOverrideCapabilities(featureTags);
+        }, callback);
+    }
+
+    /**
+     * Remove existing feature tags to the Set used to calculate the capabilities in PUBLISH
+     * without blocking.
+     * @see #removeUceRegistrationOverride(Set)
+     */
+    public void removeUceRegistrationOverrideAsync(Set<String> featureTags,
+            RequestCallback<RcsContactUceCapability> callback) {
+        submitAsync("removeUceRegistrationOverrideAsync", () -> {
+            checkUceControllerState();
+            return mUceController.removeRegistrationOverrideCapabilities(featureTags);
+        }, callback);
+    }
+
+    /**
+     * Clear all overrides in the Set used to calculate the capabilities in PUBLISH without
+     * blocking.
+     * @see #clearUceRegistrationOverride()
+     */
+    public void clearUceRegistrationOverrideAsync(
+            RequestCallback<RcsContactUceCapability> callback) {
+        submitAsync("clearUceRegistrationOverrideAsync", () -> {
+            checkUceControllerState();
+            return mUceController.clearRegistrationOverrideCapabilities();
+        }, callback);
+    }
+
+    /**
+     * Get the RcsContactUceCapability instance that will be used for PUBLISH without blocking.
+     * @see #getLatestRcsContactUceCapability()
+     */
+    public void getLatestRcsContactUceCapabilityAsync(
+            RequestCallback<RcsContactUceCapability> callback) {
+        submitAsync("getLatestRcsContactUceCapabilityAsync", () -> {
+            checkUceControllerState();
+            return mUceController.getLatestRcsContactUceCapability();
+        }, callback);
+    }
+
+    /**
+     * Get the last PIDF XML sent to the IMS stack to be published without blocking.
+     * @see #getLastPidfXml()
+     */
+    public void getLastPidfXmlAsync(RequestCallback<String> callback) {
+        submitAsync("getLastPidfXmlAsync", () -> {
+            checkUceControllerState();
+            return mUceController.getLastPidfXml();
+        }, callback);
+    }
+
+    /**
+     * Request the capabilities for the given contact. The request is always sent to the network,
+     * since the caller is asking for a fresh answer, so the capability cache is not used.
      * @param contactNumber The contact of the capabilities are being requested for.
      * @param c A callback for when the request for capabilities completes.
      * @throws ImsException if the ImsService connected to this controller is currently down.
@@ -386,6 +696,27 @@ public class UceControllerManager implements RcsFeatureController.Feature {
         }
     }
 
+    /**
+     * @return The statistics of the capability cache, or {@code null} if capabilities are not
+     * cached.
+     */
+    public String getCapabilityCacheStatistics() {
+        return (mCapabilityCache != null) ? mCapabilityCache.getStatistics() : null;
+    }
+
+    /**
+     * Remove all capabilities from the capability cache and reset its statistics.
+     * @return true if capabilities are cached.
+     */
+    public boolean clearCapabilityCache() {
+        if (mCapabilityCache == null) {
+            return false;
+        }
+        mCapabilityCache.invalidate("clearCapabilityCache");
+        mCapabilityCache.resetStatistics();
+        return true;
+    }
+
     /**
      * Register the Publish state changed callback.
      *
@@ -441,18 +772,237 @@ public class UceControllerManager implements RcsFeatureController.Feature {
             // Create new UceController only when the subscription ID is valid.
             if (SubscriptionManager.isValidSubscriptionId(newSubId)) {
                 mUceController = new UceController(mContext, newSubId);
+                registerCachePublishStateCallback();
             }
         } else if (mUceController.getSubId() != newSubId) {
             // The subscription ID is updated. Remove the old UceController instance.
+            if (mCapabilityCache != null) {
+                mUceController.unregisterPublishStateCallback(mPublishStateCallback);
+            }
             mUceController.onDestroy();
             mUceController = null;
             // Create new UceController only when the subscription ID is valid.
             if (SubscriptionManager.isValidSubscriptionId(newSubId)) {
                 mUceController = new UceController(mContext, newSubId);
+                registerCachePublishStateCallback();
             }
         }
     }
 
+    // Listen to the publish state of the UceController, so that the capability cache is
+    // invalidated as soon as it changes.
+    private void registerCachePublishStateCallback() {
+        if (mCapabilityCache == null || mUceController == null) {
+            return;
+        }
+        mUceController.registerPublishStateCallback(mPublishStateCallback,
+                false /*supportPublishingState*/);
+    }
+
+    /**
+     * Run a task on the executor and report its result to the callback.
+     */
+    private <T> void submitAsync(String logPrefix, Callable<T> task, RequestCallback<T> callback) {
+        try {
+            mExecutorService.submit(() -> {
+                T result;
+                try {
+                    result = task.call();
+                } catch (ImsException e) {
+                    callback.onError(e);
+                    return;
+                } catch (Exception e) {
+                    Log.w(LOG_TAG, logPrefix + " exception: " + e);
+                    callback.onError(new ImsException(e.toString(),
+                            ImsException.CODE_ERROR_UNSPECIFIED));
+                    return;
+                }
+                callback.onResult(result);
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, logPrefix + ": manager has been destroyed");
+            callback.onError(new ImsException("UceControllerManager has been destroyed",
+                    ImsException.CODE_ERROR_SERVICE_UNAVAILABLE));
+        }
+    }
+
+    /**
+     * Send all pending capabilities requests to the UceController, merging the requests that have
+     * overlapping contacts.
+     */
+    private void flushCapabilitiesRequests() {
+        List<CapabilitiesRequest> requests;
+        synchronized (mPendingRequestsLock) {
+            requests = mPendingCapabilitiesRequests;
+            mPendingCapabilitiesRequests = new ArrayList<>();
+        }
+        try {
+            checkUceControllerState();
+        } catch (ImsException e) {
+            for (CapabilitiesRequest r : requests) {
+                r.requestCallback.onError(e);
+            }
+            return;
+        }
+        if (mCapabilityCache != null) {
+            requests = handleCachedCapabilities(requests);
+        }
+        for (List<CapabilitiesRequest> group : groupOverlappingRequests(requests)) {
+            try {
+                if (group.size() == 1) {
+                    CapabilitiesRequest r = group.get(0);
+                    mUceController.requestCapabilities(r.contacts,
+                            wrapForCapabilityCache(r.callback));
+                } else {
+                    // Keep the contacts in the order they were requested, and only request
+                    // contacts that have the same cache key once.
+                    Map<String, Uri> contacts = new LinkedHashMap<>();
+                    for (CapabilitiesRequest r : group) {
+                        for (Uri contact : r.contacts) {
+                            contacts.putIfAbsent(UceCapabilityCache.getCacheKey(contact), contact);
+                        }
+                    }
+                    Log.d(LOG_TAG, "flushCapabilitiesRequests: merged " + group.size()
+                            + " requests for " + contacts.size() + " contacts");
+                    mUceController.requestCapabilities(new ArrayList<>(contacts.values()),
+                            wrapForCapabilityCache(new MergedCapabilitiesCallback(group)));
+                }
+            } catch (Exception e) {
+                Log.w(LOG_TAG, "flushCapabilitiesRequests exception: " + e);
+                for (CapabilitiesRequest r : group) {
+                    r.requestCallback.onError(new ImsException(e.toString(),
+                            ImsException.CODE_ERROR_UNSPECIFIED));
+                }
+                continue;
+            }
+            for (CapabilitiesRequest r : group) {
+                r.requestCallback.onResult(null);
+            }
+        }
+    }
+
+    /**
+     * Send the cached capabilities of the requested contacts to the callers.
+     * @return The requests for the contacts that are not cached. Requests for which all contacts
+     *         are cached are completed.
+     */
+    private List<CapabilitiesRequest> handleCachedCapabilities(
+            List<CapabilitiesRequest> requests) {
+        List<CapabilitiesRequest> uncachedRequests = new ArrayList<>(requests.size());
+        for (CapabilitiesRequest r : requests) {
+            List<Uri> uncachedContacts = new ArrayList<>();
+            List<RcsContactUceCapability> capabilities =
+                    mCapabilityCache.get(r.contacts, uncachedContacts);
+            if (capabilities.isEmpty()) {
+                uncachedRequests.add(r);
+                continue;
+            }
+            try {
+                r.callback.onCapabilitiesReceived(capabilities);
+                if (uncachedContacts.isEmpty()) {
+                    r.callback.onComplete(null);
+                }
+            } catch (RemoteException e) {
+                Log.w(LOG_TAG, "handleCachedCapabilities exception: " + e);
+            }
+            if (uncachedContacts.isEmpty()) {
+                r.requestCallback.onResult(null);
+            } else {
+                uncachedRequests.add(
+                        new CapabilitiesRequest(uncachedContacts, r.callback, r.requestCallback));
+            }
+        }
+        return uncachedRequests;
+    }
+
+    private IRcsUceControllerCallback wrapForCapabilityCache(IRcsUceControllerCallback c) {
+        return (mCapabilityCache != null) ? mCapabilityCache.wrapCallback(c) : c;
+    }
+
+    private void invalidateCapabilityCache(String reason) {
+        if (mCapabilityCache != null) {
+            mCapabilityCache.invalidate(reason);
+        }
+    }
+
+    // A change of the device's own publish state may change how the network answers capabilities
+    // requests, so cached capabilities are invalidated.
+    private void onPublishStateChanged(int publishState) {
+        if (publishState == mLastPublishState) {
+            return;
+        }
+        invalidateCapabilityCache("publish state " + mLastPublishState + " -> " + publishState);
+        mLastPublishState = publishState;
+    }
+
+    /**
+     * Update how long capabilities are cached from the carrier config of the subscription.
+     */
+    private void updateCapabilityCacheExpiration(int subId) {
+        if (mCapabilityCache == null || !SubscriptionManager.isValidSubscriptionId(subId)) {
+            return;
+        }
+        String key = CarrierConfigManager.Ims.KEY_NON_RCS_CAPABILITIES_CACHE_EXPIRATION_SEC_INT;
+        CarrierConfigManager configManager = mContext.getSystemService(CarrierConfigManager.class);
+        PersistableBundle config = (configManager != null)
+                ? configManager.getConfigForSubId(subId, key) : null;
+        if (config == null) {
+            return;
+        }
+        long nonCapableExpirationMs = Math.min(MAX_NON_CAPABLE_CACHE_EXPIRATION_MS,
+                1000L * config.getInt(key));
+        long capableExpirationMs = Math.min(MAX_CAPABLE_CACHE_EXPIRATION_MS,
+                nonCapableExpirationMs);
+        mCapabilityCache.setExpiration(capableExpirationMs, nonCapableExpirationMs);
+    }
+
+    /**
+     * Group the requests so that each request is in the same group as the earlier requests it
+     * shares a contact with, as long as a group does not exceed
+     * {@link #MAX_MERGED_REQUEST_CONTACTS}.
+     */
+    private static List<List<CapabilitiesRequest>> groupOverlappingRequests(
+            List<CapabilitiesRequest> requests) {
+        List<List<CapabilitiesRequest>> groups = new ArrayList<>();
+        List<Set<String>> groupContacts = new ArrayList<>();
+        for (CapabilitiesRequest r : requests) {
+            Set<String> requestKeys = getCacheKeys(r.contacts);
+            int groupIndex = -1;
+            for (int i = 0; i < groups.size(); i++) {
+                Set<String> contacts = groupContacts.get(i);
+                boolean overlaps = false;
+                int newContacts = 0;
+                for (String key : requestKeys) {
+                    if (contacts.contains(key)) {
+                        overlaps = true;
+                    } else {
+                        newContacts++;
+                    }
+                }
+                if (overlaps && contacts.size() + newContacts <= MAX_MERGED_REQUEST_CONTACTS) {
+                    groupIndex = i;
+                    break;
+                }
+            }
+            if (groupIndex < 0) {
+                groups.add(new ArrayList<>());
+                groupContacts.add(new ArraySet<>());
+                groupIndex = groups.size() - 1;
+            }
+            groups.get(groupIndex).add(r);
+            groupContacts.get(groupIndex).addAll(requestKeys);
+        }
+        return groups;
+    }
+
+    private static Set<String> getCacheKeys(List<Uri> contacts) {
+        Set<String> keys = new ArraySet<>(contacts.size());
+        for (Uri contact : contacts) {
+            keys.add(UceCapabilityCache.getCacheKey(contact));
+        }
+        return keys;
+    }
+
     private boolean checkUceControllerState() throws ImsException {
         if (mUceController == null || mUceController.isUnavailable()) {
             throw new ImsException("UCE controller is unavailable",
@@ -481,6 +1031,9 @@ public class UceControllerManager implements RcsFeatureController.Feature {
         } else {
             pw.println("UceController is null.");
         }
+        if (mCapabilityCache != null) {
+            mCapabilityCache.dump(pw);
+        }
         pw.decreaseIndent();
     }
 }
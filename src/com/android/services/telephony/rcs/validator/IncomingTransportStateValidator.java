@@ -17,7 +17,6 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
 import android.util.ArrayMap;
 
 /**
@@ -63,7 +62,7 @@ public class IncomingTransportStateValidator implements SipMessageValidator {
     }
 
     @Override
-    public ValidationResult validate(SipMessage message) {
+    public ValidationResult validate(ParsedSipMessage message) {
         if (mState != STATE_OPEN) {
             return new ValidationResult(mReason,
                     "incoming transport closed");
@@ -17,9 +17,6 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
-
-import com.android.internal.telephony.SipMessageParsingUtils;
 
 /**
  * Validates that the SipMessage is not malformed before sending the message to the vendor
@@ -29,13 +26,12 @@ import com.android.internal.telephony.SipMessageParsingUtils;
 public class MalformedSipMessageValidator implements SipMessageValidator {
 
     @Override
-    public ValidationResult validate(SipMessage message) {
+    public ValidationResult validate(ParsedSipMessage message) {
         // Verify the request and response start lines are valid.
-        if (!SipMessageParsingUtils.isSipRequest(message.getStartLine())
-                && !SipMessageParsingUtils.isSipResponse(message.getStartLine())) {
+        if (!message.isRequest() && !message.isResponse()) {
             return new ValidationResult(
                     SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                    "malformed start line: " + message.getStartLine());
+                    "malformed start line: " + message.getMessage().getStartLine());
         }
         return ValidationResult.SUCCESS;
     }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs.validator;
+
+import android.telephony.ims.SipMessage;
+
+import com.android.internal.telephony.SipMessageParsingUtils;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A view of a {@link SipMessage} that parses each part of the message at most once.
+ * <p>
+ * A message passes through several validators, the SIP session tracker and metrics, which all
+ * need the same parts of the message. The view is created once per message and handed to all of
+ * them, and each part is only parsed when it is first requested.
+ * <p>
+ * This class is not thread safe, it is expected to be used on a single thread while the message
+ * is processed.
+ */
+public final class ParsedSipMessage {
+
+    /**
+     * Returned by {@link #getStatusCode()} if the message is not a SIP response or the status code
+     * could not be parsed.
+     */
+    public static final int STATUS_CODE_INVALID = -1;
+
+    private static final int UNKNOWN = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+
+    private final SipMessage mMessage;
+
+    private int mIsRequest = UNKNOWN;
+    private int mIsResponse = UNKNOWN;
+    private boolean mIsStartLineSplit;
+    private String[] mStartLineSegments;
+    private String mMethod;
+    private boolean mIsStatusCodeParsed;
+    private int mStatusCode = STATUS_CODE_INVALID;
+    private boolean mAreTagsParsed;
+    private String mFromTag;
+    private String mToTag;
+    private Set<String> mAcceptContactFeatureTags;
+    private String mTransactionId;
+
+    public ParsedSipMessage(SipMessage message) {
+        mMessage = message;
+    }
+
+    /**
+     * @return The underlying SIP message.
+     */
+    public SipMessage getMessage() {
+        return mMessage;
+    }
+
+    /**
+     * @return {@code true} if the start line is a valid SIP request line.
+     */
+    public boolean isRequest() {
+        if (mIsRequest == UNKNOWN) {
+            mIsRequest = SipMessageParsingUtils.isSipRequest(mMessage.getStartLine())
+                    ? TRUE : FALSE;
+        }
+        return mIsRequest == TRUE;
+    }
+
+    /**
+     * @return {@code true} if the start line is a valid SIP status line.
+     */
+    public boolean isResponse() {
+        if (mIsResponse == UNKNOWN) {
+            mIsResponse = SipMessageParsingUtils.isSipResponse(mMessage.getStartLine())
+                    ? TRUE : FALSE;
+        }
+        return mIsResponse == TRUE;
+    }
+
+    /**
+     * @return The segments of the start line, see
+     * {@link SipMessageParsingUtils#splitStartLineAndVerify(String)}, or {@code null} if the start
+     * line is malformed. The returned array must not be modified.
+     */
+    public String[] getStartLineSegments() {
+        if (!mIsStartLineSplit) {
+            mStartLineSegments = SipMessageParsingUtils.splitStartLineAndVerify(
+                    mMessage.getStartLine());
+            mIsStartLineSplit = true;
+        }
+        return mStartLineSegments;
+    }
+
+    /**
+     * @return The request method in lower case, or {@code null} if this message is not a valid
+     * SIP request.
+     */
+    public String getMethod() {
+        if (mMethod == null && isRequest()) {
+            String[] segments = getStartLineSegments();
+            if (segments != null) {
+                mMethod = segments[0].trim().toLowerCase(Locale.ROOT);
+            }
+        }
+        return mMethod;
+    }
+
+    /**
+     * @return The status code of a SIP response or {@link #STATUS_CODE_INVALID} if this message
+     * is not a valid SIP response.
+     */
+    public int getStatusCode() {
+        if (!mIsStatusCodeParsed) {
+            mIsStatusCodeParsed = true;
+            String[] segments = isResponse() ? getStartLineSegments() : null;
+            if (segments != null) {
+                try {
+                    mStatusCode = Integer.parseInt(segments[1]);
+                } catch (NumberFormatException e) {
+                    mStatusCode = STATUS_CODE_INVALID;
+                }
+            }
+        }
+        return mStatusCode;
+    }
+
+    /**
+     * @return The Call-ID of the message.
+     */
+    public String getCallId() {
+        return mMessage.getCallIdParameter();
+    }
+
+    /**
+     * @return The branch parameter of the top Via header.
+     */
+    public String getViaBranchParameter() {
+        return mMessage.getViaBranchParameter();
+    }
+
+    /**
+     * @return The transaction ID of the message, see
+     * {@link SipMessageParsingUtils#getTransactionId(String)}.
+     */
+    public String getTransactionId() {
+        if (mTransactionId == null) {
+            mTransactionId = SipMessageParsingUtils.getTransactionId(mMessage.getHeaderSection());
+        }
+        return mTransactionId;
+    }
+
+    /**
+     * @return The tag parameter of the From header, or {@code null} if there is none.
+     */
+    public String getFromTag() {
+        parseTags();
+        return mFromTag;
+    }
+
+    /**
+     * @return The tag parameter of the To header, or {@code null} if there is none.
+     */
+    public String getToTag() {
+        parseTags();
+        return mToTag;
+    }
+
+    /**
+     * @return The feature tags of the Accept-Contact headers. The returned set must not be
+     * modified.
+     */
+    public Set<String> getAcceptContactFeatureTags() {
+        if (mAcceptContactFeatureTags == null) {
+            mAcceptContactFeatureTags = SipMessageParsingUtils.getAcceptContactFeatureTags(
+                    mMessage.getHeaderSection());
+        }
+        return mAcceptContactFeatureTags;
+    }
+
+    private void parseTags() {
+        if (mAreTagsParsed) return;
+        mFromTag = SipMessageParsingUtils.getFromTag(mMessage.getHeaderSection());
+        mToTag = SipMessageParsingUtils.getToTag(mMessage.getHeaderSection());
+        mAreTagsParsed = true;
+    }
+
+    @Override
+    public String toString() {
+        return mMessage.toString();
+    }
+}
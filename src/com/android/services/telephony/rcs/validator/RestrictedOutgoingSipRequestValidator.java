@@ -17,12 +17,7 @@
 package com.android.services.telephony.rcs.validator;
 
 import android.telephony.ims.SipDelegateManager;
-import android.telephony.ims.SipMessage;
-
-import com.android.internal.telephony.SipMessageParsingUtils;
-
 import java.util.Arrays;
-import java.util.Locale;
 
 /**
  * Validate that any outgoing SIP request message does not contain methods that are only generated
@@ -38,20 +33,18 @@ public class RestrictedOutgoingSipRequestValidator implements SipMessageValidato
             "register", "options", "publish"};
 
     @Override
-    public ValidationResult validate(SipMessage message) {
-        String startLine = message.getStartLine();
-        if (SipMessageParsingUtils.isSipRequest(startLine)) {
-            String[] segments = SipMessageParsingUtils.splitStartLineAndVerify(startLine);
-            if (segments == null) {
+    public ValidationResult validate(ParsedSipMessage message) {
+        if (message.isRequest()) {
+            String method = message.getMethod();
+            if (method == null) {
                 return new ValidationResult(
                         SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                        "malformed start line: " + message.getStartLine());
+                        "malformed start line: " + message.getMessage().getStartLine());
             }
-            if (Arrays.stream(IMS_SERVICE_HANDLED_REQUEST_METHODS).anyMatch(
-                    s -> segments[0].toLowerCase(Locale.ROOT).contains(s))) {
+            if (Arrays.stream(IMS_SERVICE_HANDLED_REQUEST_METHODS).anyMatch(method::contains)) {
                 return new ValidationResult(
                         SipDelegateManager.MESSAGE_FAILURE_REASON_INVALID_START_LINE,
-                        "restricted method: " + segments[0]);
+                        "restricted method: " + message.getStartLineSegments()[0]);
             }
         }
         return ValidationResult.SUCCESS;
@@ -28,7 +28,19 @@ public interface SipMessageValidator {
      * @return A {@link ValidationResult} that represents whether or not the message was validated.
      * If not validated, it also returns a reason why the SIP message was not validated.
      */
-    ValidationResult validate(SipMessage message);
+    ValidationResult validate(ParsedSipMessage message);
+
+    /**
+     * Validate that the SipMessage is allowed to be sent to the remote.
+     * <p>
+     * Callers that pass the same message to other components should create a
+     * {@link ParsedSipMessage} once and use {@link #validate(ParsedSipMessage)} instead.
+     * @param message The SipMessage being validated.
+     * @return A {@link ValidationResult} that represents whether or not the message was validated.
+     */
+    default ValidationResult validate(SipMessage message) {
+        return validate(new ParsedSipMessage(message));
+    }
 
     /**
      * Compose a SipMessageValidator out of two validators, this validator running before the next
@@ -38,7 +50,7 @@ public interface SipMessageValidator {
      * @return A new SipMessageValidator composed of this validator and the next one.
      */
     default SipMessageValidator andThen(SipMessageValidator next) {
-        return (SipMessage m) -> {
+        return (ParsedSipMessage m) -> {
             ValidationResult result = validate(m);
             if (!result.isValidated) return result;
             return next.validate(m);
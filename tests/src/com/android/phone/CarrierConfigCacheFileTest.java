@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Unit Test for CarrierConfigCacheFile.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarrierConfigCacheFileTest {
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "carrierconfig-cache-file-test" + CarrierConfigCacheFile.FILE_SUFFIX);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt(CarrierConfigManager.KEY_CARRIER_USSD_METHOD_INT,
+                CarrierConfigManager.USSD_OVER_CS_PREFERRED);
+        config.putStringArray(CarrierConfigManager.KEY_CARRIER_CERTIFICATE_STRING_ARRAY,
+                new String[] {"a", "b"});
+        PersistableBundle nested = new PersistableBundle();
+        nested.putBoolean("nested_bool", true);
+        config.putPersistableBundle("nested", nested);
+
+        CarrierConfigCacheFile.write(mFile, config);
+        PersistableBundle restored = CarrierConfigCacheFile.read(mFile);
+
+        assertThat(restored).isNotNull();
+        assertThat(restored.getInt(CarrierConfigManager.KEY_CARRIER_USSD_METHOD_INT))
+                .isEqualTo(CarrierConfigManager.USSD_OVER_CS_PREFERRED);
+        assertThat(restored.getStringArray(
+                CarrierConfigManager.KEY_CARRIER_CERTIFICATE_STRING_ARRAY))
+                .asList().containsExactly("a", "b");
+        assertThat(restored.getPersistableBundle("nested").getBoolean("nested_bool")).isTrue();
+    }
+
+    @Test
+    public void testRead_missingFile() throws Exception {
+        assertThat(CarrierConfigCacheFile.read(mFile)).isNull();
+    }
+
+    @Test
+    public void testRead_corruptedPayload() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putString("key", "value");
+        CarrierConfigCacheFile.write(mFile, config);
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+
+        assertThat(CarrierConfigCacheFile.read(mFile)).isNull();
+    }
+
+    @Test
+    public void testRead_truncatedFile() throws Exception {
+        PersistableBundle config = new PersistableBundle();
+        config.putString("key", "value");
+        CarrierConfigCacheFile.write(mFile, config);
+
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        assertThat(CarrierConfigCacheFile.read(mFile)).isNull();
+    }
+}
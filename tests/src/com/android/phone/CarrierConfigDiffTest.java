@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit Test for CarrierConfigDiff.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CarrierConfigDiffTest {
+
+    @Test
+    public void testGetChangedKeys_identicalConfigs() {
+        assertThat(CarrierConfigDiff.getChangedKeys(createConfig(), createConfig())).isEmpty();
+    }
+
+    @Test
+    public void testGetChangedKeys_changedAddedAndRemovedKeys() {
+        PersistableBundle oldConfig = createConfig();
+        oldConfig.putString("removed", "value");
+        PersistableBundle newConfig = createConfig();
+        newConfig.putInt("int", 2);
+        newConfig.putBoolean("added", true);
+
+        assertThat(CarrierConfigDiff.getChangedKeys(oldConfig, newConfig))
+                .containsExactly("int", "added", "removed");
+    }
+
+    @Test
+    public void testGetChangedKeys_comparesArraysAndNestedBundles() {
+        PersistableBundle oldConfig = createConfig();
+        PersistableBundle newConfig = createConfig();
+        newConfig.putIntArray("int_array", new int[] {1, 2, 4});
+        newConfig.getPersistableBundle("nested").putString("string", "other");
+
+        assertThat(CarrierConfigDiff.getChangedKeys(oldConfig, newConfig))
+                .containsExactly("int_array", "nested");
+    }
+
+    @Test
+    public void testGetChangedKeys_nullConfig() {
+        assertThat(CarrierConfigDiff.getChangedKeys(null, createConfig()))
+                .containsExactly("int", "int_array", "string_array", "nested");
+    }
+
+    private static PersistableBundle createConfig() {
+        PersistableBundle config = new PersistableBundle();
+        config.putInt("int", 1);
+        config.putIntArray("int_array", new int[] {1, 2, 3});
+        config.putStringArray("string_array", new String[] {"a", "b"});
+        PersistableBundle nested = new PersistableBundle();
+        nested.putString("string", "value");
+        config.putPersistableBundle("nested", nested);
+        return config;
+    }
+}
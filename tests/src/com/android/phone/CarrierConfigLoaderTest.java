@@ -25,8 +25,13 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -61,6 +66,7 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -68,6 +74,7 @@ import org.mockito.MockitoAnnotations;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Set;
 
 /**
  * Unit Test for CarrierConfigLoader.
@@ -302,6 +309,154 @@ public class CarrierConfigLoaderTest extends TelephonyTestBase {
                 any(PersistableBundle.class), any(Runnable.class));
     }
 
+    /**
+     * Verifies that the merged config snapshot is rebuilt after a config layer changes and that
+     * modifying a returned config does not affect later reads.
+     */
+    @Test
+    public void testGetConfigForSubId_snapshotInvalidatedOnOverride() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+
+        PersistableBundle before = mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE);
+        before.putInt(CARRIER_CONFIG_EXAMPLE_KEY, -1);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isNotEqualTo(-1);
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig() /*overrides*/,
+                false/*persistent*/);
+        mTestableLooper.processAllMessages();
+
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE);
+    }
+
+    /**
+     * Verifies that #getConfigSubsetForSubIdWithFeature resolves each requested key from the
+     * highest config layer that provides it and always includes the metadata keys.
+     */
+    @Test
+    public void testGetConfigSubset_resolvesKeysTopDown() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, getTestConfig() /*overrides*/,
+                false/*persistent*/);
+        mTestableLooper.processAllMessages();
+
+        PersistableBundle subset = mCarrierConfigLoader.getConfigSubsetForSubIdWithFeature(
+                DEFAULT_SUB_ID, PLATFORM_CARRIER_CONFIG_PACKAGE, null /*callingFeatureId*/,
+                new String[] {CARRIER_CONFIG_EXAMPLE_KEY,
+                        CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL});
+
+        assertThat(subset.getInt(CARRIER_CONFIG_EXAMPLE_KEY))
+                .isEqualTo(CARRIER_CONFIG_EXAMPLE_VALUE);
+        assertThat(subset.getBoolean(CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL))
+                .isEqualTo(CarrierConfigManager.getDefaultConfig().getBoolean(
+                        CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL));
+        assertThat(subset.containsKey(CarrierConfigManager.KEY_CARRIER_CONFIG_APPLIED_BOOL))
+                .isTrue();
+        assertThat(subset.containsKey(CarrierConfigManager.KEY_CARRIER_CONFIG_VERSION_STRING))
+                .isTrue();
+        assertThat(subset.size()).isEqualTo(4);
+    }
+
+    /**
+     * Verifies that modifying an array value of a returned config does not change the platform
+     * defaults shared by later reads.
+     */
+    @Test
+    public void testGetConfig_arrayValueModificationDoesNotLeak() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        String key = CarrierConfigManager.KEY_CARRIER_NR_AVAILABILITIES_INT_ARRAY;
+        int[] defaultValue = CarrierConfigManager.getDefaultConfig().getIntArray(key);
+
+        mCarrierConfigLoader.getConfigSubsetForSubIdWithFeature(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE, null /*callingFeatureId*/, new String[] {key})
+                .getIntArray(key)[0] = -1;
+        mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID, PLATFORM_CARRIER_CONFIG_PACKAGE)
+                .getIntArray(key)[0] = -1;
+
+        assertThat(mCarrierConfigLoader.getConfigSubsetForSubIdWithFeature(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE, null /*callingFeatureId*/, new String[] {key})
+                .getIntArray(key)).isEqualTo(defaultValue);
+        assertThat(mCarrierConfigLoader.getConfigForSubId(DEFAULT_SUB_ID,
+                PLATFORM_CARRIER_CONFIG_PACKAGE).getIntArray(key)).isEqualTo(defaultValue);
+    }
+
+    /**
+     * Verifies that a registered CarrierConfigKeysChangedListener is only notified of the keys it
+     * registered for that actually changed.
+     */
+    @Test
+    public void testKeysChangedListener_receivesChangedKeys() throws Exception {
+        // Bypass case if default subId is not supported by device to reduce flakiness
+        if (!SubscriptionManager.isValidPhoneId(SubscriptionManager.getPhoneId(DEFAULT_SUB_ID))) {
+            return;
+        }
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+        doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        CarrierConfigLoader.CarrierConfigKeysChangedListener listener =
+                mock(CarrierConfigLoader.CarrierConfigKeysChangedListener.class);
+        mCarrierConfigLoader.registerCarrierConfigKeysChangedListener(
+                Set.of(CARRIER_CONFIG_EXAMPLE_KEY,
+                        CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL),
+                Runnable::run, listener);
+
+        // The first notification reports all registered keys.
+        overrideConfigAndNotify(getTestConfig());
+        verify(listener).onCarrierConfigKeysChanged(eq(DEFAULT_PHONE_ID), anyInt(),
+                eq(Set.of(CARRIER_CONFIG_EXAMPLE_KEY,
+                        CarrierConfigManager.KEY_CARRIER_VOLTE_AVAILABLE_BOOL)));
+        clearInvocations(listener);
+
+        // Only the registered key that changed is reported.
+        PersistableBundle config = new PersistableBundle();
+        config.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CarrierConfigManager.USSD_OVER_IMS_ONLY);
+        config.putString(CarrierConfigManager.KEY_CARRIER_NAME_STRING, "test");
+        overrideConfigAndNotify(config);
+        verify(listener).onCarrierConfigKeysChanged(eq(DEFAULT_PHONE_ID), anyInt(),
+                eq(Set.of(CARRIER_CONFIG_EXAMPLE_KEY)));
+        clearInvocations(listener);
+
+        // Nothing is reported if no value changed.
+        overrideConfigAndNotify(config);
+        verify(listener, never()).onCarrierConfigKeysChanged(anyInt(), anyInt(), any());
+
+        mCarrierConfigLoader.unregisterCarrierConfigKeysChangedListener(listener);
+        config.putInt(CARRIER_CONFIG_EXAMPLE_KEY, CARRIER_CONFIG_EXAMPLE_VALUE);
+        overrideConfigAndNotify(config);
+        verify(listener, never()).onCarrierConfigKeysChanged(anyInt(), anyInt(), any());
+    }
+
+    /**
+     * Overrides the config of the default subscription and completes the subscription update
+     * that triggers the config changed notification.
+     */
+    private void overrideConfigAndNotify(PersistableBundle config) {
+        mCarrierConfigLoader.overrideConfig(DEFAULT_SUB_ID, config, false /*persistent*/);
+        mTestableLooper.processAllMessages();
+        ArgumentCaptor<Runnable> callback = ArgumentCaptor.forClass(Runnable.class);
+        verify(mSubscriptionManagerService, atLeastOnce()).updateSubscriptionByCarrierConfig(
+                eq(DEFAULT_PHONE_ID), anyString(), any(PersistableBundle.class),
+                callback.capture());
+        callback.getValue().run();
+        mTestableLooper.processAllMessages();
+    }
+
     /**
      * Verifies that IllegalArgumentException should throw when calling
      * #notifyConfigChangedForSubId() with invalid subId.
@@ -424,10 +579,32 @@ public class CarrierConfigLoaderTest extends TelephonyTestBase {
         doReturn(true).when(mContext).bindService(
                 any(Intent.class), any(ServiceConnection.class), anyInt());
         doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
-        mHandler.sendMessage(mHandler.obtainMessage(17 /* EVENT_MULTI_SIM_CONFIG_CHANGED */));
+        mHandler.sendMessage(mHandler.obtainMessage(
+                CarrierConfigLoader.EVENT_MULTI_SIM_CONFIG_CHANGED));
         mTestableLooper.processAllMessages();
 
         mCarrierConfigLoader.updateConfigForPhoneId(1, IccCardConstants.INTENT_VALUE_ICC_ABSENT);
         mTestableLooper.processAllMessages();
     }
+
+    /**
+     * Verifies that when several phones fetch config from the same package at the same time, the
+     * package is only bound once.
+     */
+    @Test
+    public void testMultiSimConfigChanged_sharesBindingToDefaultPackage() throws Exception {
+        replaceInstance(TelephonyManager.class, "sInstance", null, mTelephonyManager);
+        mContext.grantPermission(STUB_PERMISSION_ENABLE_ALL);
+
+        doReturn(2).when(mTelephonyManager).getActiveModemCount();
+        doReturn(true).when(mContext).bindService(
+                any(Intent.class), any(ServiceConnection.class), anyInt());
+        doNothing().when(mContext).sendBroadcastAsUser(any(Intent.class), any(UserHandle.class));
+        mHandler.sendMessage(mHandler.obtainMessage(
+                CarrierConfigLoader.EVENT_MULTI_SIM_CONFIG_CHANGED));
+        mTestableLooper.processAllMessages();
+
+        verify(mContext, times(1)).bindService(
+                any(Intent.class), any(ServiceConnection.class), anyInt());
+    }
 }
@@ -17,10 +17,16 @@
 package com.android.phone;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -43,6 +49,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit Test for ImsProvisioningLoader.
@@ -74,6 +82,8 @@ public class ImsProvisioningLoaderTest {
     Context mContext;
     @Mock
     SharedPreferences mSharedPreferences;
+    @Mock
+    ScheduledExecutorService mWriteExecutor;
     private ImsProvisioningLoader mImsProvisioningLoader;
 
     @Before
@@ -83,7 +93,7 @@ public class ImsProvisioningLoaderTest {
         doReturn(InstrumentationRegistry.getTargetContext().getFilesDir()).when(
                 mContext).getFilesDir();
 
-        mImsProvisioningLoader = new ImsProvisioningLoader(mContext);
+        mImsProvisioningLoader = new ImsProvisioningLoader(mContext, mWriteExecutor);
     }
 
     @After
@@ -200,6 +210,37 @@ public class ImsProvisioningLoaderTest {
         assertEquals(getXmlContents(SUB_ID_1), getInt(false), curValue);
     }
 
+    @Test
+    @SmallTest
+    public void testSetProvisioningStatus_WritesAreBatched() {
+        mImsProvisioningLoader.setProvisioningStatus(SUB_ID_1, IMS_FEATURE_MMTEL, CAPA_VOICE,
+                TECH_LTE, true);
+        mImsProvisioningLoader.setProvisioningStatus(SUB_ID_1, IMS_FEATURE_MMTEL, CAPA_VIDEO,
+                TECH_LTE, false);
+        mImsProvisioningLoader.setProvisioningStatus(SUB_ID_2, IMS_FEATURE_RCS, CAPA_PRESENCE,
+                TECH_IWLAN, true);
+
+        // All changes are covered by a single scheduled write and nothing is written yet.
+        verify(mWriteExecutor, times(1)).schedule(any(Runnable.class),
+                eq(ImsProvisioningLoader.WRITE_DELAY_MS), eq(TimeUnit.MILLISECONDS));
+        assertFalse(new File(mContext.getFilesDir(), getFileName(SUB_ID_1)).exists());
+        assertEquals(getInt(true), mImsProvisioningLoader.getProvisioningStatus(SUB_ID_1,
+                IMS_FEATURE_MMTEL, CAPA_VOICE, TECH_LTE));
+
+        mImsProvisioningLoader.flush();
+        assertTrue(new File(mContext.getFilesDir(), getFileName(SUB_ID_1)).exists());
+        assertTrue(new File(mContext.getFilesDir(), getFileName(SUB_ID_2)).exists());
+
+        // A new loader reads the flushed values back from storage.
+        ImsProvisioningLoader loader = new ImsProvisioningLoader(mContext, mWriteExecutor);
+        assertEquals(getXmlContents(SUB_ID_1), getInt(true), loader.getProvisioningStatus(
+                SUB_ID_1, IMS_FEATURE_MMTEL, CAPA_VOICE, TECH_LTE));
+        assertEquals(getXmlContents(SUB_ID_1), getInt(false), loader.getProvisioningStatus(
+                SUB_ID_1, IMS_FEATURE_MMTEL, CAPA_VIDEO, TECH_LTE));
+        assertEquals(getXmlContents(SUB_ID_2), getInt(true), loader.getProvisioningStatus(
+                SUB_ID_2, IMS_FEATURE_RCS, CAPA_PRESENCE, TECH_IWLAN));
+    }
+
     private boolean getBooleanFromProvisioningStatus(int subId, int imsFeature, int capa,
             int tech) {
         // Return provisioning status to bool
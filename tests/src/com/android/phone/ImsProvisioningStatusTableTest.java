@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_PROVISIONED;
+import static com.android.phone.ImsProvisioningLoader.STATUS_NOT_SET;
+import static com.android.phone.ImsProvisioningLoader.STATUS_PROVISIONED;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.os.PersistableBundle;
+import android.telephony.ims.feature.ImsFeature;
+import android.telephony.ims.feature.MmTelFeature.MmTelCapabilities;
+import android.telephony.ims.feature.RcsFeature.RcsImsCapabilities;
+import android.telephony.ims.stub.ImsRegistrationImplBase;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Unit Test for ImsProvisioningStatusTable.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ImsProvisioningStatusTableTest {
+    private static final int MMTEL = ImsFeature.FEATURE_MMTEL;
+    private static final int RCS = ImsFeature.FEATURE_RCS;
+    private static final int LTE = ImsRegistrationImplBase.REGISTRATION_TECH_LTE;
+    private static final int NR = ImsRegistrationImplBase.REGISTRATION_TECH_NR;
+    private static final int VOICE = MmTelCapabilities.CAPABILITY_TYPE_VOICE;
+    private static final int SMS = MmTelCapabilities.CAPABILITY_TYPE_SMS;
+    private static final int PRESENCE = RcsImsCapabilities.CAPABILITY_TYPE_PRESENCE_UCE;
+    private static final int UNKNOWN = Integer.MAX_VALUE;
+
+    @Test
+    public void testSetAndGet() {
+        ImsProvisioningStatusTable table = new ImsProvisioningStatusTable();
+        assertThat(table.isEmpty()).isTrue();
+        assertThat(table.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_NOT_SET);
+
+        table.set(MMTEL, LTE, VOICE, STATUS_PROVISIONED);
+        table.set(MMTEL, NR, SMS, STATUS_NOT_PROVISIONED);
+        table.set(RCS, NR, PRESENCE, STATUS_PROVISIONED);
+
+        assertThat(table.isEmpty()).isFalse();
+        assertThat(table.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(table.get(MMTEL, NR, SMS)).isEqualTo(STATUS_NOT_PROVISIONED);
+        assertThat(table.get(RCS, NR, PRESENCE)).isEqualTo(STATUS_PROVISIONED);
+        // Neighbouring entries are not affected.
+        assertThat(table.get(MMTEL, NR, VOICE)).isEqualTo(STATUS_NOT_SET);
+        assertThat(table.get(RCS, LTE, PRESENCE)).isEqualTo(STATUS_NOT_SET);
+
+        table.set(MMTEL, LTE, VOICE, STATUS_NOT_PROVISIONED);
+        assertThat(table.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_NOT_PROVISIONED);
+    }
+
+    @Test
+    public void testUnknownTechAndCapability() {
+        ImsProvisioningStatusTable table = new ImsProvisioningStatusTable();
+        table.set(MMTEL, UNKNOWN, VOICE, STATUS_PROVISIONED);
+        table.set(MMTEL, LTE, UNKNOWN, STATUS_NOT_PROVISIONED);
+
+        assertThat(table.isEmpty()).isFalse();
+        assertThat(table.get(MMTEL, UNKNOWN, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(table.get(MMTEL, LTE, UNKNOWN)).isEqualTo(STATUS_NOT_PROVISIONED);
+        assertThat(table.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_NOT_SET);
+    }
+
+    @Test
+    public void testBundleRoundTrip() {
+        ImsProvisioningStatusTable table = new ImsProvisioningStatusTable();
+        table.set(MMTEL, LTE, VOICE, STATUS_PROVISIONED);
+        table.set(RCS, NR, PRESENCE, STATUS_NOT_PROVISIONED);
+        table.set(MMTEL, UNKNOWN, UNKNOWN, STATUS_PROVISIONED);
+
+        PersistableBundle bundle = table.toBundle();
+        // The storage layout is feature -> tech -> capability -> status.
+        assertThat(bundle.getPersistableBundle(String.valueOf(MMTEL))
+                .getPersistableBundle(String.valueOf(LTE))
+                .getInt(String.valueOf(VOICE))).isEqualTo(STATUS_PROVISIONED);
+
+        ImsProvisioningStatusTable restored = ImsProvisioningStatusTable.fromBundle(bundle);
+        assertThat(restored.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(restored.get(RCS, NR, PRESENCE)).isEqualTo(STATUS_NOT_PROVISIONED);
+        assertThat(restored.get(MMTEL, UNKNOWN, UNKNOWN)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(restored.get(MMTEL, NR, VOICE)).isEqualTo(STATUS_NOT_SET);
+    }
+
+    @Test
+    public void testFromBundle_ignoresMalformedEntries() {
+        PersistableBundle capabilityBundle = new PersistableBundle();
+        capabilityBundle.putInt(String.valueOf(VOICE), STATUS_PROVISIONED);
+        capabilityBundle.putInt("not_a_capability", STATUS_PROVISIONED);
+        capabilityBundle.putInt(String.valueOf(SMS), 5);
+        PersistableBundle regTechBundle = new PersistableBundle();
+        regTechBundle.putPersistableBundle(String.valueOf(LTE), capabilityBundle);
+        regTechBundle.putString(String.valueOf(NR), "value");
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putPersistableBundle(String.valueOf(MMTEL), regTechBundle);
+
+        ImsProvisioningStatusTable table = ImsProvisioningStatusTable.fromBundle(bundle);
+        assertThat(table.get(MMTEL, LTE, VOICE)).isEqualTo(STATUS_PROVISIONED);
+        assertThat(table.get(MMTEL, LTE, SMS)).isEqualTo(STATUS_NOT_SET);
+        assertThat(table.get(MMTEL, NR, VOICE)).isEqualTo(STATUS_NOT_SET);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.util.IndentingPrintWriter;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.StringWriter;
+
+@RunWith(JUnit4.class)
+public class MainThreadRequestStatsTest {
+    private static final int CMD_A = 1;
+    private static final int CMD_B = 2;
+
+    @Test
+    public void testQueueDepthAndWaitTime() {
+        MainThreadRequestStats stats = new MainThreadRequestStats();
+        stats.onRequestPosted(CMD_A);
+        stats.onRequestPosted(CMD_A);
+        stats.onRequestCoalesced(CMD_A);
+        stats.onRequestCompleted(CMD_A, 10);
+
+        MainThreadRequestStats.CommandStats a = stats.getStats(CMD_A);
+        assertEquals(2, a.posted);
+        assertEquals(1, a.coalesced);
+        assertEquals(1, a.completed);
+        assertEquals(1, a.queueDepth);
+        assertEquals(2, a.maxQueueDepth);
+        assertEquals(10, a.maxWaitMillis);
+
+        stats.onRequestCompleted(CMD_A, 30);
+        a = stats.getStats(CMD_A);
+        assertEquals(0, a.queueDepth);
+        assertEquals(20, a.getAverageWaitMillis());
+        assertEquals(30, a.maxWaitMillis);
+        assertNull(stats.getStats(CMD_B));
+    }
+
+    @Test
+    public void testDump() {
+        MainThreadRequestStats stats = new MainThreadRequestStats();
+        stats.onRequestPosted(CMD_B);
+        StringWriter sw = new StringWriter();
+        stats.dump(new IndentingPrintWriter(sw, "  "));
+        assertTrue(sw.toString().contains("cmd=" + CMD_B + " posted=1"));
+    }
+}
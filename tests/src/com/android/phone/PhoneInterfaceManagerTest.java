@@ -16,25 +16,38 @@
 
 package com.android.phone;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.AsyncResult;
+import android.os.Message;
+import android.os.WorkSource;
+import android.telephony.CellInfo;
 import android.telephony.RadioAccessFamily;
+import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 
 import androidx.test.annotation.UiThreadTest;
@@ -43,21 +56,33 @@ import androidx.test.ext.junit.runners.AndroidJUnit4;
 import com.android.TelephonyTestBase;
 import com.android.internal.telephony.IIntegerConsumer;
 import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.RILConstants;
 import com.android.internal.telephony.subscription.SubscriptionManagerService;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Unit Test for PhoneInterfaceManager.
  */
 @RunWith(AndroidJUnit4.class)
 public class PhoneInterfaceManagerTest extends TelephonyTestBase {
+    private static final long TIMEOUT_MS = 1000;
+
     private PhoneInterfaceManager mPhoneInterfaceManager;
     private SharedPreferences mSharedPreferences;
     private IIntegerConsumer mIIntegerConsumer;
@@ -283,4 +308,162 @@ public class PhoneInterfaceManagerTest extends TelephonyTestBase {
         mPhoneInterfaceManager.getCarrierRestrictionStatus(mIIntegerConsumer,
                 "com.test.package");
     }
+
+    /**
+     * Verify that an identical request made while one is in flight joins it instead of being
+     * posted again, and that every caller is notified of the result.
+     */
+    @Test
+    public void sendRequestAsync_identicalRequestInFlight_coalesced() throws Exception {
+        MainThreadRequestStats.CommandStats before = getCellInfoStats();
+        WorkSource workSource = new WorkSource(1000);
+        CountDownLatch latch = new CountDownLatch(2);
+        AtomicReference<Object> first = new AtomicReference<>();
+        AtomicReference<Object> second = new AtomicReference<>();
+
+        requestAllCellInfo(workSource, result -> {
+            first.set(result);
+            latch.countDown();
+        });
+        requestAllCellInfo(workSource, result -> {
+            second.set(result);
+            latch.countDown();
+        });
+        List<CellInfo> cellInfos = new ArrayList<>();
+        sendCellInfoResponse(verifyCellInfoRequested(1), cellInfos, null);
+
+        assertTrue(latch.await(TIMEOUT_MS, MILLISECONDS));
+        assertSame(cellInfos, first.get());
+        assertSame(cellInfos, second.get());
+        MainThreadRequestStats.CommandStats after = getCellInfoStats();
+        assertEquals(1, after.posted - before.posted);
+        assertEquals(1, after.coalesced - before.coalesced);
+        assertEquals(1, after.completed - before.completed);
+    }
+
+    /**
+     * Verify that a request which failed is no longer in flight, so that the next caller posts a
+     * new request rather than joining the failed one.
+     */
+    @Test
+    public void sendRequestAsync_requestFailed_removedFromInFlight() throws Exception {
+        MainThreadRequestStats.CommandStats before = getCellInfoStats();
+        WorkSource workSource = new WorkSource(1000);
+        CountDownLatch failed = new CountDownLatch(1);
+        requestAllCellInfo(workSource, result -> failed.countDown());
+        sendCellInfoResponse(verifyCellInfoRequested(1), null, new RuntimeException());
+        assertTrue(failed.await(TIMEOUT_MS, MILLISECONDS));
+
+        CountDownLatch completed = new CountDownLatch(1);
+        requestAllCellInfo(workSource, result -> completed.countDown());
+        sendCellInfoResponse(verifyCellInfoRequested(2), new ArrayList<CellInfo>(), null);
+
+        assertTrue(completed.await(TIMEOUT_MS, MILLISECONDS));
+        MainThreadRequestStats.CommandStats after = getCellInfoStats();
+        assertEquals(2, after.posted - before.posted);
+        assertEquals(0, after.coalesced - before.coalesced);
+        assertEquals(0, after.queueDepth);
+    }
+
+    /**
+     * Verify that requests with different work sources are not coalesced, so that each caller is
+     * blamed for its own modem query.
+     */
+    @Test
+    public void sendRequestAsync_differentWorkSources_notCoalesced() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        requestAllCellInfo(new WorkSource(1000), result -> latch.countDown());
+        requestAllCellInfo(new WorkSource(1001), result -> latch.countDown());
+
+        verify(mPhone, timeout(TIMEOUT_MS)).requestCellInfoUpdate(eq(new WorkSource(1000)), any());
+        verify(mPhone, timeout(TIMEOUT_MS)).requestCellInfoUpdate(eq(new WorkSource(1001)), any());
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(mPhone, times(2)).requestCellInfoUpdate(any(), captor.capture());
+        for (Message response : captor.getAllValues()) {
+            sendCellInfoResponse(response, null, new RuntimeException());
+        }
+        assertTrue(latch.await(TIMEOUT_MS, MILLISECONDS));
+    }
+
+    /**
+     * Verify that callers which share a modem query each receive their own list.
+     */
+    @Test
+    public void getAllCellInfoFromModem_coalescedCallers_receiveOwnLists() throws Exception {
+        doReturn(10).when(mPhone).getPhoneId();
+        replaceInstance(PhoneFactory.class, "sPhones", null, new Phone[] {mPhone});
+        MainThreadRequestStats.CommandStats before = getCellInfoStats();
+        WorkSource workSource = new WorkSource(1000);
+        CellInfo cellInfo = mock(CellInfo.class);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<List<CellInfo>> first = executor.submit(
+                    () -> mPhoneInterfaceManager.getAllCellInfoFromModem(workSource));
+            Future<List<CellInfo>> second = executor.submit(
+                    () -> mPhoneInterfaceManager.getAllCellInfoFromModem(workSource));
+            Message response = verifyCellInfoRequested(1);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (getCellInfoStats().coalesced == before.coalesced
+                    && System.currentTimeMillis() < deadline) {
+                waitForMs(10);
+            }
+            sendCellInfoResponse(response, new ArrayList<>(List.of(cellInfo)), null);
+
+            List<CellInfo> firstResult = first.get(TIMEOUT_MS, MILLISECONDS);
+            List<CellInfo> secondResult = second.get(TIMEOUT_MS, MILLISECONDS);
+            assertEquals(List.of(cellInfo), firstResult);
+            assertNotSame(firstResult, secondResult);
+            firstResult.clear();
+            assertEquals(List.of(cellInfo), secondResult);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Verify that an interrupted caller stops waiting for the modem and keeps its interrupt
+     * status.
+     */
+    @Test
+    public void getAllCellInfoFromModem_interrupted_restoresInterrupt() throws Exception {
+        doReturn(11).when(mPhone).getPhoneId();
+        replaceInstance(PhoneFactory.class, "sPhones", null, new Phone[] {mPhone});
+
+        List<CellInfo> cellInfos;
+        Thread.currentThread().interrupt();
+        try {
+            cellInfos = mPhoneInterfaceManager.getAllCellInfoFromModem(new WorkSource(1000));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+
+        assertTrue(cellInfos.isEmpty());
+        // Answer the query so that it does not stay in flight for other tests.
+        sendCellInfoResponse(verifyCellInfoRequested(1), null, new RuntimeException());
+    }
+
+    private void requestAllCellInfo(WorkSource workSource,
+            Consumer<Object> callback) {
+        mPhoneInterfaceManager.sendRequestAsync(PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID, mPhone, workSource, callback);
+    }
+
+    private Message verifyCellInfoRequested(int times) {
+        ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(mPhone, timeout(TIMEOUT_MS).times(times))
+                .requestCellInfoUpdate(any(), captor.capture());
+        return captor.getValue();
+    }
+
+    private static void sendCellInfoResponse(Message response, Object result, Throwable e) {
+        AsyncResult.forMessage(response, result, e);
+        response.sendToTarget();
+    }
+
+    private MainThreadRequestStats.CommandStats getCellInfoStats() {
+        MainThreadRequestStats.CommandStats stats = mPhoneInterfaceManager
+                .getMainThreadRequestStats().getStats(PhoneInterfaceManager.CMD_GET_ALL_CELL_INFO);
+        return stats != null ? stats : new MainThreadRequestStats.CommandStats();
+    }
 }
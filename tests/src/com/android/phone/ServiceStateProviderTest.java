@@ -25,6 +25,7 @@ import static android.provider.Telephony.ServiceStateTable.DUPLEX_MODE;
 import static android.provider.Telephony.ServiceStateTable.VOICE_OPERATOR_NUMERIC;
 import static android.provider.Telephony.ServiceStateTable.VOICE_REG_STATE;
 import static android.provider.Telephony.ServiceStateTable.getUriForSubscriptionId;
+import static android.provider.Telephony.ServiceStateTable.getUriForSubscriptionIdAndField;
 import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_HOME;
 
 import static com.android.phone.ServiceStateProvider.ENFORCE_LOCATION_PERMISSION_CHECK;
@@ -42,13 +43,18 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.Manifest;
 import android.app.AppOpsManager;
 import android.compat.testing.PlatformCompatChangeRule;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
@@ -57,6 +63,7 @@ import android.database.Cursor;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
 import android.os.UserHandle;
 import android.telephony.AccessNetworkConstants;
 import android.telephony.NetworkRegistrationInfo;
@@ -77,9 +84,21 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestRule;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Tests for simple queries of ServiceStateProvider.
  *
@@ -91,6 +110,7 @@ public class ServiceStateProviderTest {
     private static final String TAG = "ServiceStateProviderTest";
     private static final int TEST_NETWORK_ID = 123;
     private static final int TEST_SYSTEM_ID = 123;
+    private static final int TIMEOUT_MS = 10000;
 
     private MockContentResolver mContentResolver;
     private ServiceState mTestServiceState;
@@ -416,6 +436,72 @@ public class ServiceStateProviderTest {
         verify(mAppOpsManager, never()).noteOpNoThrow(any(), anyInt(), any(), any(), any());
     }
 
+    /**
+     * Verify that the permissions of a caller are only checked again after a package changed.
+     */
+    @Test
+    @CoreCompatChangeRule.EnableCompatChanges({ENFORCE_LOCATION_PERMISSION_CHECK})
+    public void testQuery_callerPermissionsCachedUntilPackageChanged() {
+        ArgumentCaptor<BroadcastReceiver> receiverCaptor =
+                ArgumentCaptor.forClass(BroadcastReceiver.class);
+        verify(mContext).registerReceiverForAllUsers(receiverCaptor.capture(),
+                any(IntentFilter.class), nullable(String.class), nullable(Handler.class));
+        setTargetSdkVersion(Build.VERSION_CODES.R);
+        setLocationPermissions(true);
+        String[] projection = new String[]{"data_roaming_type"};
+
+        verifyServiceStateWithPublicColumns(mTestServiceState, null /*projection*/);
+        try (Cursor cursor = mContentResolver.query(ServiceStateTable.CONTENT_URI, projection,
+                null, null)) {
+            assertNotNull(cursor);
+        }
+        verify(mContext, times(1)).checkCallingOrSelfPermission(
+                Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
+
+        // The app is updated to target S, so it can only query the public columns.
+        setTargetSdkVersion(Build.VERSION_CODES.S);
+        receiverCaptor.getValue().onReceive(mContext, new Intent(Intent.ACTION_PACKAGE_REPLACED));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> mContentResolver.query(ServiceStateTable.CONTENT_URI, projection, null,
+                        null));
+        verify(mContext, times(2)).checkCallingOrSelfPermission(
+                Manifest.permission.READ_PRIVILEGED_PHONE_STATE);
+    }
+
+    /**
+     * Verify that a query returns the inserted ServiceState after the views of the previous one
+     * were cached.
+     */
+    @Test
+    public void testQuery_afterInsert_returnsInsertedServiceState() {
+        setLocationPermissions(true);
+        createProviderWithNotificationRecorder(
+                Collections.synchronizedList(new ArrayList<>()));
+        MockContentResolver resolver = (MockContentResolver) mContext.getContentResolver();
+        ServiceState outOfService = new ServiceState();
+        outOfService.setStateOutOfService();
+        ServiceState powerOff = new ServiceState();
+        powerOff.setStateOff();
+        Uri uri = getUriForSubscriptionId(0);
+
+        resolver.insert(uri, ServiceStateProvider.getContentValuesForServiceState(outOfService));
+        assertEquals(outOfService.getState(), queryVoiceRegState(resolver, uri));
+        assertEquals(outOfService.getState(), queryVoiceRegState(resolver, uri));
+
+        resolver.insert(uri, ServiceStateProvider.getContentValuesForServiceState(powerOff));
+        assertEquals(powerOff.getState(), queryVoiceRegState(resolver, uri));
+    }
+
+    private static int queryVoiceRegState(MockContentResolver resolver, Uri uri) {
+        try (Cursor cursor = resolver.query(uri, new String[]{VOICE_REG_STATE}, null, null,
+                null)) {
+            assertNotNull(cursor);
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        }
+    }
+
     private void verifyServiceStateWithLocationColumns(ServiceState ss) {
         // NETWORK_ID is a location-sensitive column
         try (Cursor cursor = mContentResolver.query(ServiceStateTable.CONTENT_URI,
@@ -618,6 +704,135 @@ public class ServiceStateProviderTest {
         assertTrue(notifyChangeCalledForSubIdAndField(oldSS, newSS, subId));
     }
 
+    /**
+     * Verify that the changes of several updates are notified with a single call to the
+     * ContentResolver.
+     */
+    @Test
+    @SmallTest
+    public void testInsert_coalescesChangeNotifications() {
+        List<Collection<Uri>> notifications = Collections.synchronizedList(new ArrayList<>());
+        ServiceStateProvider provider = createProviderWithNotificationRecorder(notifications);
+        // Only notify when the test flushes the pending notifications.
+        provider.setNotificationCoalescingWindowMs(TimeUnit.HOURS.toMillis(1));
+
+        ServiceState outOfService = new ServiceState();
+        outOfService.setStateOutOfService();
+        ServiceState powerOff = new ServiceState();
+        powerOff.setStateOff();
+        provider.insert(getUriForSubscriptionId(0),
+                ServiceStateProvider.getContentValuesForServiceState(outOfService));
+        provider.insert(getUriForSubscriptionId(0),
+                ServiceStateProvider.getContentValuesForServiceState(powerOff));
+        provider.insert(getUriForSubscriptionId(1),
+                ServiceStateProvider.getContentValuesForServiceState(powerOff));
+        assertTrue(notifications.isEmpty());
+
+        provider.notifyPendingChanges();
+
+        assertEquals(1, notifications.size());
+        Set<Uri> notifiedUris = new HashSet<>(notifications.get(0));
+        assertEquals(notifications.get(0).size(), notifiedUris.size());
+        assertTrue(notifiedUris.contains(getUriForSubscriptionId(0)));
+        assertTrue(notifiedUris.contains(getUriForSubscriptionId(1)));
+        assertTrue(notifiedUris.contains(getUriForSubscriptionIdAndField(1, VOICE_REG_STATE)));
+
+        // Nothing is notified when the ServiceState doesn't change.
+        provider.insert(getUriForSubscriptionId(1),
+                ServiceStateProvider.getContentValuesForServiceState(powerOff));
+        provider.notifyPendingChanges();
+        assertEquals(1, notifications.size());
+    }
+
+    /**
+     * Verify that ServiceStates can be inserted and queried concurrently from many threads.
+     */
+    @Test
+    public void testConcurrentInsertAndQuery() throws Exception {
+        setLocationPermissions(true);
+        List<Collection<Uri>> notifications = Collections.synchronizedList(new ArrayList<>());
+        ServiceStateProvider provider = createProviderWithNotificationRecorder(notifications);
+        MockContentResolver resolver = (MockContentResolver) mContext.getContentResolver();
+
+        ServiceState outOfService = new ServiceState();
+        outOfService.setStateOutOfService();
+        ServiceState powerOff = new ServiceState();
+        powerOff.setStateOff();
+        ContentValues[] values = {
+                ServiceStateProvider.getContentValuesForServiceState(outOfService),
+                ServiceStateProvider.getContentValuesForServiceState(powerOff)
+        };
+
+        final int threadCount = 8;
+        final int iterations = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount * 2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                final Uri uri = getUriForSubscriptionId(t % 2);
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        resolver.insert(uri, values[i % 2]);
+                    }
+                }));
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < iterations; i++) {
+                        try (Cursor cursor = resolver.query(uri, ServiceStateProvider.ALL_COLUMNS,
+                                null, null, null)) {
+                            // The ServiceState may not be inserted yet.
+                            if (cursor == null) {
+                                continue;
+                            }
+                            assertTrue(cursor.moveToFirst());
+                            int voiceRegState = cursor.getInt(0);
+                            assertTrue(voiceRegState == outOfService.getState()
+                                    || voiceRegState == powerOff.getState());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        resolver.insert(getUriForSubscriptionId(0), values[1]);
+        resolver.insert(getUriForSubscriptionId(1), values[1]);
+        assertEquals(powerOff.getState(), provider.getServiceState(0).getState());
+        assertEquals(powerOff.getState(), provider.getServiceState(1).getState());
+
+        provider.notifyPendingChanges();
+        Set<Uri> notifiedUris = new HashSet<>();
+        synchronized (notifications) {
+            for (Collection<Uri> uris : notifications) {
+                notifiedUris.addAll(uris);
+            }
+        }
+        assertTrue(notifiedUris.contains(getUriForSubscriptionId(0)));
+        assertTrue(notifiedUris.contains(getUriForSubscriptionId(1)));
+        // The updates were coalesced rather than notified one by one.
+        assertTrue(notifications.size() < threadCount * iterations);
+    }
+
+    private ServiceStateProvider createProviderWithNotificationRecorder(
+            List<Collection<Uri>> notifications) {
+        MockContentResolver resolver = new MockContentResolver() {
+            @Override
+            public void notifyChange(Collection<Uri> uris, ContentObserver observer, int flags) {
+                notifications.add(new ArrayList<>(uris));
+            }
+        };
+        doReturn(resolver).when(mContext).getContentResolver();
+        ServiceStateProvider provider = new ServiceStateProvider();
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = "service-state";
+        provider.attachInfoForTesting(mContext, providerInfo);
+        resolver.addProvider("service-state", provider);
+        return provider;
+    }
+
     // Check if notifyChange was called by notifyChangeForSubId
     private boolean notifyChangeCalledForSubId(ServiceState oldSS,
             ServiceState newSS, int subId) {
@@ -29,16 +29,20 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.SimPhonebookContract;
 import android.provider.SimPhonebookContract.ElementaryFiles;
 import android.provider.SimPhonebookContract.SimRecords;
@@ -630,6 +634,102 @@ public final class SimPhonebookProviderTest {
         }
     }
 
+    @Test
+    public void query_adnRecordsWithLimitAndOffset_returnsPage() {
+        setupSimsWithSubscriptionIds(1);
+        // Record 2 is empty so it isn't counted by the offset.
+        for (int recordNumber : new int[]{1, 3, 4, 5, 6}) {
+            mIccPhoneBook.addRecord(1, new AdnRecord(IccConstants.EF_ADN, recordNumber,
+                    "Name" + recordNumber, "800555010" + recordNumber));
+        }
+
+        Bundle queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, 2);
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, 2);
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), new String[]{
+                SimRecords.RECORD_NUMBER, SimRecords.NAME}, queryArgs, null)) {
+            assertThat(cursor).hasData(new Object[][]{{4, "Name4"}, {5, "Name5"}});
+            Bundle extras = Objects.requireNonNull(cursor).getExtras();
+            assertThat(extras.getInt(ContentResolver.EXTRA_TOTAL_COUNT)).isEqualTo(5);
+            assertThat(extras.getStringArray(ContentResolver.EXTRA_HONORED_ARGS)).asList()
+                    .containsExactly(ContentResolver.QUERY_ARG_OFFSET,
+                            ContentResolver.QUERY_ARG_LIMIT);
+        }
+
+        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, 4);
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), new String[]{
+                SimRecords.RECORD_NUMBER}, queryArgs, null)) {
+            assertThat(cursor).hasData(new Object[][]{{6}});
+        }
+    }
+
+    @Test
+    public void query_adnRecordsWithNegativeOffset_throwsCorrectException() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+
+        Bundle queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, -1);
+        assertThrows(IllegalArgumentException.class, () ->
+                mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, queryArgs, null));
+    }
+
+    @Test
+    public void query_itemUris_readsElementaryFileOnceUntilWritten() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.addAdnRecord(1, "Name1", "8005550101");
+        mIccPhoneBook.addAdnRecord(1, "Name2", "8005550102");
+        FakeIccPhoneBook iccPhoneBook = spy(mIccPhoneBook);
+        TestableSimPhonebookProvider.setup(mResolver, mMockSubscriptionManager, iccPhoneBook);
+
+        try (Cursor item1 = mResolver.query(SimRecords.getItemUri(1, EF_ADN, 1), null, null,
+                null);
+             Cursor item2 = mResolver.query(SimRecords.getItemUri(1, EF_ADN, 2), null, null,
+                     null)) {
+            assertThat(item1).hasSingleRow(1, EF_ADN, 1, "Name1", "8005550101");
+            assertThat(item2).hasSingleRow(1, EF_ADN, 2, "Name2", "8005550102");
+        }
+        verify(iccPhoneBook, times(1)).getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN);
+
+        ContentValues values = new ContentValues();
+        values.put(SimRecords.NAME, "Updated");
+        values.put(SimRecords.PHONE_NUMBER, "8005550103");
+        mResolver.update(SimRecords.getItemUri(1, EF_ADN, 2), values, null);
+        // The write reads the records from the SIM instead of the cache.
+        verify(iccPhoneBook, times(2)).getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN);
+
+        // The write invalidates the cached records so the updated record is read.
+        try (Cursor item2 = mResolver.query(SimRecords.getItemUri(1, EF_ADN, 2), null, null,
+                null)) {
+            assertThat(item2).hasSingleRow(1, EF_ADN, 2, "Updated", "8005550103");
+        }
+        verify(iccPhoneBook, times(3)).getAdnRecordsInEfForSubscriber(1, IccConstants.EF_ADN);
+    }
+
+    @Test
+    public void insert_recordsCachedBeforeExternalWrite_usesEmptyRecordOnSim() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.addAdnRecord(1, "Name1", "8005550101");
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN), null, null,
+                null)) {
+            assertThat(cursor).hasCount(1);
+        }
+        // The SIM is written without going through the provider so the cached records are stale.
+        mIccPhoneBook.addAdnRecord(1, "Name2", "8005550102");
+
+        ContentValues values = new ContentValues();
+        values.put(SimRecords.NAME, "Name3");
+        values.put(SimRecords.PHONE_NUMBER, "8005550103");
+        Uri uri = mResolver.insert(SimRecords.getContentUri(1, EF_ADN), values);
+
+        assertThat(uri).isEqualTo(SimRecords.getItemUri(1, EF_ADN, 3));
+        try (Cursor cursor = mResolver.query(SimRecords.getContentUri(1, EF_ADN),
+                new String[]{SimRecords.RECORD_NUMBER, SimRecords.NAME}, null, null)) {
+            assertThat(cursor).hasData(new Object[][]{
+                    {1, "Name1"}, {2, "Name2"}, {3, "Name3"}});
+        }
+    }
+
     @Test
     public void query_itemUriNullProjection_returnsCursorWithAllColumns() {
         setupSimsWithSubscriptionIds(1);
@@ -1310,6 +1410,178 @@ public final class SimPhonebookProviderTest {
         verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
     }
 
+    @Test
+    public void bulkInsert_addsRecordsAndCallsNotifyChangeOnce() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.addAdnRecord(1, "Existing", "8005550100");
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        int count = mResolver.bulkInsert(SimRecords.getContentUri(1, EF_ADN), new ContentValues[]{
+                createValues("Name1", "8005550101"),
+                createValues("Name2", "8005550102"),
+                createValues("Name3", "8005550103")});
+
+        assertThat(count).isEqualTo(3);
+        assertThat(mIccPhoneBook.getAllValidRecords())
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "Existing", "8005550100"),
+                        new AdnRecord(IccConstants.EF_ADN, 2, "Name1", "8005550101"),
+                        new AdnRecord(IccConstants.EF_ADN, 3, "Name2", "8005550102"),
+                        new AdnRecord(IccConstants.EF_ADN, 4, "Name3", "8005550103"));
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
+    @Test
+    public void bulkInsert_invalidRow_insertsNoRecords() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        assertThrows(IllegalArgumentException.class, () -> mResolver.bulkInsert(
+                SimRecords.getContentUri(1, EF_ADN), new ContentValues[]{
+                        createValues("Name1", "8005550101"),
+                        createValues("Name2", "(800)555-0102")}));
+
+        assertThat(mIccPhoneBook.getAllValidRecords()).isEmpty();
+        verify(mockNotifier, times(0)).notifyChange(any());
+    }
+
+    @Test
+    public void bulkInsert_notEnoughEmptyRecords_insertsNoRecords() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.setupEfWithSizes(1, IccConstants.EF_ADN, 2, 30);
+        mIccPhoneBook.addAdnRecord(1, "Existing", "8005550100");
+
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+                () -> mResolver.bulkInsert(SimRecords.getContentUri(1, EF_ADN),
+                        new ContentValues[]{
+                                createValues("Name1", "8005550101"),
+                                createValues("Name2", "8005550102")}));
+
+        assertThat(e).hasMessageThat().isEqualTo(SimRecords.getContentUri(1, EF_ADN)
+                + " only has space for 1 records. Please delete records to add new ones.");
+        assertThat(mIccPhoneBook.getAllValidRecords()).hasSize(1);
+    }
+
+    @Test
+    public void bulkInsert_writeFails_returnsCountOfInsertedRecords() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.makeAllEfsSupported(1);
+        FakeIccPhoneBook iccPhoneBook = spy(mIccPhoneBook);
+        doReturn(false).when(iccPhoneBook).updateAdnRecordsInEfByIndexForSubscriber(
+                eq(1), eq(IccConstants.EF_ADN), any(), eq(2), any());
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, iccPhoneBook, mockNotifier);
+
+        int count = mResolver.bulkInsert(SimRecords.getContentUri(1, EF_ADN), new ContentValues[]{
+                createValues("Name1", "8005550101"),
+                createValues("Name2", "8005550102"),
+                createValues("Name3", "8005550103")});
+
+        // The records after the failed write are not written.
+        assertThat(count).isEqualTo(1);
+        assertThat(mIccPhoneBook.getAllValidRecords())
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(new AdnRecord(IccConstants.EF_ADN, 1, "Name1", "8005550101"));
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
+    @Test
+    public void applyBatch_appliesOperationsAndCallsNotifyChangeOnce() throws Exception {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial1", "8005550101");
+        mIccPhoneBook.addAdnRecord(1, "Initial2", "8005550102");
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newUpdate(SimRecords.getItemUri(1, EF_ADN, 1))
+                .withValues(createValues("Updated", "8005550103")).build());
+        operations.add(ContentProviderOperation.newDelete(SimRecords.getItemUri(1, EF_ADN, 2))
+                .build());
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValues(createValues("Inserted", "8005550104")).build());
+        ContentProviderResult[] results = mResolver.applyBatch(SimPhonebookContract.AUTHORITY,
+                operations);
+
+        assertThat(results).hasLength(3);
+        assertThat(results[0].count).isEqualTo(1);
+        assertThat(results[1].count).isEqualTo(1);
+        assertThat(results[2].uri).isEqualTo(SimRecords.getItemUri(1, EF_ADN, 2));
+        assertThat(mIccPhoneBook.getAllValidRecords())
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(
+                        new AdnRecord(IccConstants.EF_ADN, 1, "Updated", "8005550103"),
+                        new AdnRecord(IccConstants.EF_ADN, 2, "Inserted", "8005550104"));
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
+    @Test
+    public void applyBatch_invalidOperation_appliesNoOperations() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.addAdnRecord(1, "Initial", "8005550101");
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newDelete(SimRecords.getItemUri(1, EF_ADN, 1))
+                .build());
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValues(createValues("Name", "invalid")).build());
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_SDN))
+                .withValues(createValues("Name", "8005550102")).build());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> mResolver.applyBatch(SimPhonebookContract.AUTHORITY,
+                        new ArrayList<>(operations.subList(0, 2))));
+        assertThrows(UnsupportedOperationException.class,
+                () -> mResolver.applyBatch(SimPhonebookContract.AUTHORITY,
+                        new ArrayList<>(List.of(operations.get(0), operations.get(2)))));
+
+        assertThat(mIccPhoneBook.getAllValidRecords())
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(new AdnRecord(IccConstants.EF_ADN, 1, "Initial", "8005550101"));
+        verify(mockNotifier, times(0)).notifyChange(any());
+    }
+
+    @Test
+    public void applyBatch_operationFails_keepsEarlierOperations() {
+        setupSimsWithSubscriptionIds(1);
+        mIccPhoneBook.setupEfWithSizes(1, IccConstants.EF_ADN, 1, 30);
+        SimPhonebookProvider.ContentNotifier mockNotifier = mock(
+                SimPhonebookProvider.ContentNotifier.class);
+        TestableSimPhonebookProvider.setup(
+                mResolver, mMockSubscriptionManager, mIccPhoneBook, mockNotifier);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValues(createValues("Name1", "8005550101")).build());
+        operations.add(ContentProviderOperation.newInsert(SimRecords.getContentUri(1, EF_ADN))
+                .withValues(createValues("Name2", "8005550102")).build());
+
+        // The second insert fails because the first one filled the EF.
+        assertThrows(IllegalStateException.class,
+                () -> mResolver.applyBatch(SimPhonebookContract.AUTHORITY, operations));
+
+        assertThat(mIccPhoneBook.getAllValidRecords())
+                .comparingElementsUsing(ADN_RECORD_IS_EQUAL)
+                .containsExactly(new AdnRecord(IccConstants.EF_ADN, 1, "Name1", "8005550101"));
+        verify(mockNotifier).notifyChange(eq(SimPhonebookContract.AUTHORITY_URI));
+    }
+
     @Test
     public void getEncodedNameLength_returnsValueIsCorrect() {
         String name = "";
@@ -1333,6 +1605,13 @@ public final class SimPhonebookProviderTest {
         assertThat(length).isEqualTo(name.length() * 2 + 1);
     }
 
+    private static ContentValues createValues(String name, String phoneNumber) {
+        ContentValues values = new ContentValues();
+        values.put(SimRecords.NAME, name);
+        values.put(SimRecords.PHONE_NUMBER, phoneNumber);
+        return values;
+    }
+
     private void setupSimsWithSubscriptionIds(int... subscriptionIds) {
         when(mMockSubscriptionManager.getActiveSubscriptionIdList()).thenReturn(subscriptionIds);
         when(mMockSubscriptionManager.getActiveSubscriptionInfoCount())
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.EUTRAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.GERAN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.UNKNOWN;
+import static android.telephony.AccessNetworkConstants.AccessNetworkType.UTRAN;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_CALL_SETUP_TIMER_ON_CURRENT_NETWORK_SEC_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_NETWORK_SCAN_TYPE_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_SCAN_TIMER_SEC_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_MAXIMUM_CELLULAR_SEARCH_TIMER_SEC_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT;
+import static android.telephony.CarrierConfigManager.ImsEmergency.SCAN_TYPE_NO_PREFERENCE;
+import static android.telephony.CarrierConfigManager.ImsEmergency.VOWIFI_REQUIRES_NONE;
+import static android.telephony.CarrierConfigManager.ImsWfc.KEY_EMERGENCY_CALL_OVER_EMERGENCY_PDN_BOOL;
+import static android.telephony.NetworkRegistrationInfo.DOMAIN_CS;
+import static android.telephony.NetworkRegistrationInfo.DOMAIN_PS;
+import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_HOME;
+import static android.telephony.NetworkRegistrationInfo.REGISTRATION_STATE_UNKNOWN;
+
+import static junit.framework.Assert.assertEquals;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.DisconnectCause;
+import android.telephony.EmergencyRegResult;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.services.telephony.domainselection.EmergencyCallDomainSelectorReplayer.Result;
+import com.android.services.telephony.domainselection.EmergencyCallDomainSelectorReplayer.Trace;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Unit tests for EmergencyCallDomainSelectorReplayer.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EmergencyCallDomainSelectorReplayTest {
+    private static final EmergencyRegResult IN_SERVICE_LTE = new EmergencyRegResult(EUTRAN,
+            REGISTRATION_STATE_HOME, DOMAIN_CS | DOMAIN_PS, true, true, 0, 0, "", "", "");
+    private static final EmergencyRegResult IN_SERVICE_LTE_PS_ONLY = new EmergencyRegResult(
+            EUTRAN, REGISTRATION_STATE_HOME, DOMAIN_PS, true, true, 0, 0, "", "", "");
+    private static final EmergencyRegResult NO_SERVICE = new EmergencyRegResult(UNKNOWN,
+            REGISTRATION_STATE_UNKNOWN, 0, false, false, 0, 0, "", "", "");
+
+    private EmergencyCallDomainSelectorReplayer mReplayer;
+
+    @Before
+    public void setUp() throws Exception {
+        mReplayer = new EmergencyCallDomainSelectorReplayer();
+    }
+
+    @Test
+    @SmallTest
+    public void testReplayPsFailedThenCsfb() throws Exception {
+        Result result = mReplayer.replay(createPsFailedThenCsfbTrace());
+
+        // PS is dialed first as IMS is registered, then CS is dialed without a scan.
+        assertEquals(List.of("100: WWAN", "100: PS emergencyPdn=true",
+                "600: CS emergencyPdn=false"), result.getDecisions());
+        assertEquals(0, result.getTimeToDialMs());
+    }
+
+    @Test
+    @SmallTest
+    public void testReplayScanInLimitedService() throws Exception {
+        Result result = mReplayer.replay(createScanTrace());
+
+        assertEquals(List.of("0: WWAN", "0: SCAN [EUTRAN, UTRAN, GERAN] NO_PREFERENCE",
+                "3000: PS emergencyPdn=true"), result.getDecisions());
+        assertEquals(3000, result.getTimeToDialMs());
+    }
+
+    @Test
+    @SmallTest
+    public void testReplayScanTimeoutSelectsWlan() throws Exception {
+        Result result = mReplayer.replay(createScanTimeoutTrace());
+
+        // The scan result after the scan timer expired is ignored.
+        assertEquals(List.of("0: WWAN", "0: SCAN [EUTRAN, UTRAN, GERAN] NO_PREFERENCE",
+                "10000: WLAN emergencyPdn=false"), result.getDecisions());
+        assertEquals(10000, result.getTimeToDialMs());
+    }
+
+    @Test
+    @SmallTest
+    public void testReplayMaxCellularTimeoutSelectsWlan() throws Exception {
+        Result result = mReplayer.replay(createMaxCellularTimeoutTrace());
+
+        // IMS is not registered over Wi-Fi when the scan timer expires.
+        assertEquals(List.of("0: WWAN", "0: SCAN [EUTRAN, UTRAN, GERAN] NO_PREFERENCE",
+                "20000: WLAN emergencyPdn=false"), result.getDecisions());
+        assertEquals(20000, result.getTimeToDialMs());
+    }
+
+    @Test
+    @SmallTest
+    public void testReplayIsDeterministic() throws Exception {
+        List<Trace> traces = List.of(createPsFailedThenCsfbTrace(), createScanTrace(),
+                createScanTimeoutTrace(), createMaxCellularTimeoutTrace());
+
+        List<Result> results = mReplayer.replay(traces);
+
+        assertEquals(results.toString(), mReplayer.replay(traces).toString());
+        assertEquals("traces=4, timeToDial={ count=4, avg=8250ms, max=20000ms, last=20000ms }",
+                EmergencyCallDomainSelectorReplayer.summarize(results));
+    }
+
+    private static Trace createPsFailedThenCsfbTrace() {
+        return new Trace("PsFailedThenCsfb", getCarrierConfig(10, 0))
+                .barringInfo(0, false)
+                .imsState(0, true, false, true)
+                .dial(100, IN_SERVICE_LTE)
+                .callFailed(600, DisconnectCause.NOT_VALID);
+    }
+
+    private static Trace createScanTrace() {
+        return new Trace("Scan", getCarrierConfig(10, 0))
+                .barringInfo(0, false)
+                .imsState(0, false, false, false)
+                .dial(0, NO_SERVICE)
+                .scanResult(3000, IN_SERVICE_LTE_PS_ONLY);
+    }
+
+    private static Trace createScanTimeoutTrace() {
+        return new Trace("ScanTimeout", getCarrierConfig(10, 0))
+                .barringInfo(0, false)
+                .imsState(0, true, true, true)
+                .dial(0, NO_SERVICE)
+                .scanResult(12000, IN_SERVICE_LTE_PS_ONLY);
+    }
+
+    private static Trace createMaxCellularTimeoutTrace() {
+        return new Trace("MaxCellularTimeout", getCarrierConfig(10, 20))
+                .barringInfo(0, false)
+                .imsState(0, false, false, false)
+                .dial(0, NO_SERVICE)
+                .imsState(15000, true, true, true)
+                .scanResult(25000, IN_SERVICE_LTE_PS_ONLY);
+    }
+
+    private static PersistableBundle getCarrierConfig(int scanTimerSec,
+            int maxCellularTimerSec) {
+        int[] domainPreference = new int[] {
+                CarrierConfigManager.ImsEmergency.DOMAIN_PS_3GPP,
+                CarrierConfigManager.ImsEmergency.DOMAIN_CS,
+                CarrierConfigManager.ImsEmergency.DOMAIN_PS_NON_3GPP
+                };
+
+        PersistableBundle bundle = new PersistableBundle();
+        bundle.putIntArray(KEY_EMERGENCY_OVER_IMS_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY,
+                new int[] { EUTRAN });
+        bundle.putIntArray(KEY_EMERGENCY_OVER_IMS_ROAMING_SUPPORTED_3GPP_NETWORK_TYPES_INT_ARRAY,
+                new int[] { EUTRAN });
+        bundle.putIntArray(KEY_EMERGENCY_OVER_CS_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY,
+                new int[] { UTRAN, GERAN });
+        bundle.putIntArray(KEY_EMERGENCY_OVER_CS_ROAMING_SUPPORTED_ACCESS_NETWORK_TYPES_INT_ARRAY,
+                new int[] { UTRAN, GERAN });
+        bundle.putIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_INT_ARRAY, domainPreference);
+        bundle.putIntArray(KEY_EMERGENCY_DOMAIN_PREFERENCE_ROAMING_INT_ARRAY, domainPreference);
+        bundle.putInt(KEY_EMERGENCY_VOWIFI_REQUIRES_CONDITION_INT, VOWIFI_REQUIRES_NONE);
+        bundle.putInt(KEY_MAXIMUM_NUMBER_OF_EMERGENCY_TRIES_OVER_VOWIFI_INT, 1);
+        bundle.putInt(KEY_EMERGENCY_SCAN_TIMER_SEC_INT, scanTimerSec);
+        bundle.putInt(KEY_MAXIMUM_CELLULAR_SEARCH_TIMER_SEC_INT, maxCellularTimerSec);
+        bundle.putBoolean(KEY_EMERGENCY_CALL_OVER_EMERGENCY_PDN_BOOL, false);
+        bundle.putInt(KEY_EMERGENCY_NETWORK_SCAN_TYPE_INT, SCAN_TYPE_NO_PREFERENCE);
+        bundle.putInt(KEY_EMERGENCY_CALL_SETUP_TIMER_ON_CURRENT_NETWORK_SEC_INT, 0);
+        bundle.putStringArray(KEY_EMERGENCY_CDMA_PREFERRED_NUMBERS_STRING_ARRAY, new String[] {});
+        return bundle;
+    }
+}
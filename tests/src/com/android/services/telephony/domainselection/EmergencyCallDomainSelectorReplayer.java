@@ -0,0 +1,541 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static android.telephony.BarringInfo.BARRING_SERVICE_TYPE_EMERGENCY;
+import static android.telephony.BarringInfo.BarringServiceInfo.BARRING_TYPE_UNCONDITIONAL;
+import static android.telephony.DomainSelectionService.SELECTOR_TYPE_CALLING;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.annotation.NonNull;
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkRequest;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IPowerManager;
+import android.os.IThermalService;
+import android.os.Looper;
+import android.os.PersistableBundle;
+import android.os.PowerManager;
+import android.telephony.BarringInfo;
+import android.telephony.CarrierConfigManager;
+import android.telephony.CellIdentityLte;
+import android.telephony.DomainSelectionService;
+import android.telephony.DomainSelectionService.SelectionAttributes;
+import android.telephony.EmergencyRegResult;
+import android.telephony.NetworkRegistrationInfo;
+import android.telephony.TelephonyManager;
+import android.telephony.TransportSelectorCallback;
+import android.telephony.WwanSelectorCallback;
+import android.telephony.ims.ImsManager;
+import android.telephony.ims.ImsMmTelManager;
+import android.telephony.ims.ProvisioningManager;
+import android.testing.TestableLooper;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.TestContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Replays recorded traces of the barring information, IMS state, network country, Wi-Fi
+ * availability, {@link EmergencyRegResult}s and call failures against
+ * {@link EmergencyCallDomainSelector}, and reports the domain selection decisions and the time
+ * taken from the dial request to the first dialing decision.
+ * <p>
+ * The replay runs on a virtual clock. The events of a trace are delivered at their recorded times
+ * and the scan and VoWi-Fi timers of the selector expire when the virtual clock reaches their
+ * expiry time, so a replay does not depend on how long it takes to run and always produces the
+ * same result for the same trace.
+ */
+public class EmergencyCallDomainSelectorReplayer {
+    private static final int SLOT_0 = 0;
+    private static final int SLOT_0_SUB_ID = 1;
+
+    /**
+     * A recorded sequence of events for a single emergency call.
+     * The events are replayed in the order of their times, and in the order in which they were
+     * added if their times are the same.
+     */
+    public static class Trace {
+        private final String mName;
+        private final PersistableBundle mCarrierConfig;
+        private final List<Event> mEvents = new ArrayList<>();
+        private String mSimCountryIso = "";
+
+        /**
+         * @param name The name of the trace used in the report.
+         * @param carrierConfig The carrier configuration used by the selector.
+         */
+        public Trace(@NonNull String name, @NonNull PersistableBundle carrierConfig) {
+            mName = name;
+            mCarrierConfig = carrierConfig;
+        }
+
+        /** Sets the country of the SIM, which determines whether the network is roaming. */
+        public Trace setSimCountryIso(@NonNull String iso) {
+            mSimCountryIso = iso;
+            return this;
+        }
+
+        /** Adds a barring information update for emergency services. */
+        public Trace barringInfo(long timeMs, boolean emergencyBarred) {
+            return add(timeMs, r -> r.updateBarringInfo(emergencyBarred));
+        }
+
+        /** Adds an IMS registration state and MMTEL capabilities update. */
+        public Trace imsState(long timeMs, boolean registered, boolean overWlan,
+                boolean voiceCapable) {
+            return add(timeMs, r -> r.updateImsState(registered, overWlan, voiceCapable));
+        }
+
+        /**
+         * Adds a network country update. The network country is the part of the service state
+         * that the selector uses to determine whether the network is roaming.
+         */
+        public Trace networkCountry(long timeMs, @NonNull String iso) {
+            return add(timeMs, r -> r.mNetworkCountryIso = iso);
+        }
+
+        /** Adds a change to the availability of Wi-Fi. */
+        public Trace wifi(long timeMs, boolean available) {
+            return add(timeMs, r -> r.updateWifi(available));
+        }
+
+        /** Adds the emergency call request with the registration result from the modem. */
+        public Trace dial(long timeMs, @NonNull EmergencyRegResult regResult) {
+            return add(timeMs, r -> r.dial(regResult));
+        }
+
+        /** Adds the completion of the last emergency network scan request. */
+        public Trace scanResult(long timeMs, @NonNull EmergencyRegResult result) {
+            return add(timeMs, r -> r.completeScan(result));
+        }
+
+        /** Adds the failure of the last dialing with the given CS disconnect cause. */
+        public Trace callFailed(long timeMs, int csDisconnectCause) {
+            return add(timeMs, r -> r.failCall(csDisconnectCause));
+        }
+
+        private Trace add(long timeMs, Consumer<EmergencyCallDomainSelectorReplayer> action) {
+            mEvents.add(new Event(timeMs, action));
+            return this;
+        }
+    }
+
+    /**
+     * The result of replaying a {@link Trace}.
+     */
+    public static class Result {
+        private final String mName;
+        private final List<String> mDecisions;
+        private final long mTimeToDialMs;
+
+        private Result(String name, List<String> decisions, long timeToDialMs) {
+            mName = name;
+            mDecisions = Collections.unmodifiableList(decisions);
+            mTimeToDialMs = timeToDialMs;
+        }
+
+        /** Returns the name of the replayed trace. */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the decisions of the selector in the order in which they were made, each
+         * formatted as "&lt;virtual time in ms&gt;: &lt;decision&gt;".
+         */
+        public List<String> getDecisions() {
+            return mDecisions;
+        }
+
+        /**
+         * Returns the virtual time from the dial request to the first selection of a domain or
+         * WLAN, or -1 if the call was not dialed.
+         */
+        public long getTimeToDialMs() {
+            return mTimeToDialMs;
+        }
+
+        @Override
+        public String toString() {
+            return mName + " timeToDial=" + mTimeToDialMs + "ms, decisions=" + mDecisions;
+        }
+    }
+
+    private static class Event {
+        final long mTimeMs;
+        final Consumer<EmergencyCallDomainSelectorReplayer> mAction;
+
+        Event(long timeMs, Consumer<EmergencyCallDomainSelectorReplayer> action) {
+            mTimeMs = timeMs;
+            mAction = action;
+        }
+    }
+
+    /**
+     * Runs the timers of the selector on the virtual clock of the replayer.
+     */
+    private class ReplaySelector extends EmergencyCallDomainSelector {
+        ReplaySelector(Context context, Looper looper, ImsStateTracker imsStateTracker,
+                CrossSimRedialingController csrController) {
+            super(context, SLOT_0, SLOT_0_SUB_ID, looper, imsStateTracker,
+                    mock(DomainSelectorBase.DestroyListener.class), csrController);
+        }
+
+        @Override
+        protected void startTimer(int what, long delayMillis) {
+            mTimerExpiryMs.put(what, mNowMs + delayMillis);
+            // Keeps the message in the queue, so that the selector can stop the timer by removing
+            // it, but never lets the looper deliver it. The replayer delivers it on expiry.
+            sendEmptyMessageAtTime(what, Long.MAX_VALUE);
+        }
+    }
+
+    private final Map<Integer, Long> mTimerExpiryMs = new ArrayMap<>();
+    private final List<String> mDecisions = new ArrayList<>();
+
+    private TestContext mContext;
+    private ConnectivityManager mConnectivityManager;
+    private PowerManager mPowerManager;
+    private TestableLooper mLooper;
+    private ImsStateTracker mImsStateTracker;
+    private ReplaySelector mDomainSelector;
+    private TransportSelectorCallback mTransportSelectorCallback;
+    private WwanSelectorCallback mWwanSelectorCallback;
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+    private Consumer<EmergencyRegResult> mScanResultConsumer;
+    private SelectionAttributes mSelectionAttributes;
+
+    private long mNowMs;
+    private long mDialTimeMs;
+    private long mTimeToDialMs;
+    private boolean mWifiAvailable;
+    private String mNetworkCountryIso;
+
+    /**
+     * Replays the given traces.
+     *
+     * @return The results in the order of the given traces.
+     */
+    public List<Result> replay(@NonNull List<Trace> traces) throws Exception {
+        List<Result> results = new ArrayList<>();
+        for (Trace trace : traces) {
+            results.add(replay(trace));
+        }
+        return results;
+    }
+
+    /**
+     * Replays the given trace on a new instance of {@link EmergencyCallDomainSelector}.
+     * The timers that expire after the last event of the trace are not replayed.
+     */
+    public Result replay(@NonNull Trace trace) throws Exception {
+        if (Looper.myLooper() == null) {
+            Looper.prepare();
+        }
+
+        mTimerExpiryMs.clear();
+        mDecisions.clear();
+        mNetworkCallback = null;
+        mScanResultConsumer = null;
+        mSelectionAttributes = null;
+        mNowMs = 0;
+        mDialTimeMs = -1;
+        mTimeToDialMs = -1;
+        mWifiAvailable = false;
+        mNetworkCountryIso = "";
+
+        HandlerThread handlerThread = new HandlerThread("EmergencyCallDomainSelectorReplayer");
+        handlerThread.start();
+        try {
+            mLooper = new TestableLooper(handlerThread.getLooper());
+            setUpDependencies(trace, handlerThread.getLooper());
+            mDomainSelector = new ReplaySelector(mContext, handlerThread.getLooper(),
+                    mImsStateTracker, mock(CrossSimRedialingController.class));
+
+            List<Event> events = new ArrayList<>(trace.mEvents);
+            // The sort is stable, so the events at the same time keep their order.
+            events.sort((e1, e2) -> Long.compare(e1.mTimeMs, e2.mTimeMs));
+            for (Event event : events) {
+                advanceTo(event.mTimeMs);
+                event.mAction.accept(this);
+                processAllMessages();
+            }
+            return new Result(trace.mName, new ArrayList<>(mDecisions), mTimeToDialMs);
+        } finally {
+            if (mDomainSelector != null) {
+                mDomainSelector.destroy();
+                mDomainSelector = null;
+            }
+            if (mLooper != null) {
+                mLooper.destroy();
+                mLooper = null;
+            }
+            handlerThread.quit();
+        }
+    }
+
+    /**
+     * Returns a summary of the time to dial of the given results for dumping benchmark results.
+     */
+    public static String summarize(@NonNull List<Result> results) {
+        LatencyStats timeToDial = new LatencyStats();
+        for (Result result : results) {
+            if (result.getTimeToDialMs() >= 0) {
+                timeToDial.add(result.getTimeToDialMs());
+            }
+        }
+        return "traces=" + results.size() + ", timeToDial={ " + timeToDial + " }";
+    }
+
+    private void setUpDependencies(Trace trace, Looper looper) {
+        mContext = new TestContext() {
+            @Override
+            public String getSystemServiceName(Class<?> serviceClass) {
+                if (serviceClass == ImsManager.class) {
+                    return Context.TELEPHONY_IMS_SERVICE;
+                } else if (serviceClass == TelephonyManager.class) {
+                    return Context.TELEPHONY_SERVICE;
+                } else if (serviceClass == CarrierConfigManager.class) {
+                    return Context.CARRIER_CONFIG_SERVICE;
+                } else if (serviceClass == PowerManager.class) {
+                    return Context.POWER_SERVICE;
+                } else if (serviceClass == ConnectivityManager.class) {
+                    return Context.CONNECTIVITY_SERVICE;
+                }
+                return super.getSystemServiceName(serviceClass);
+            }
+
+            @Override
+            public Object getSystemService(String name) {
+                switch (name) {
+                    case (Context.POWER_SERVICE) : {
+                        return mPowerManager;
+                    }
+                    case (Context.CONNECTIVITY_SERVICE) : {
+                        return mConnectivityManager;
+                    }
+                }
+                return super.getSystemService(name);
+            }
+
+            @Override
+            public String getOpPackageName() {
+                return "";
+            }
+        };
+
+        mConnectivityManager = mock(ConnectivityManager.class);
+        mPowerManager = new PowerManager(mContext, mock(IPowerManager.class),
+                mock(IThermalService.class), new Handler(looper));
+
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        doReturn(tm).when(tm).createForSubscriptionId(anyInt());
+        doReturn(1).when(tm).getActiveModemCount();
+        doReturn(TelephonyManager.SIM_STATE_READY).when(tm).getSimState(anyInt());
+        doReturn(trace.mSimCountryIso).when(tm).getSimCountryIso();
+        doAnswer(invocation -> mNetworkCountryIso).when(tm).getNetworkCountryIso();
+
+        CarrierConfigManager configManager = mContext.getSystemService(CarrierConfigManager.class);
+        doReturn(trace.mCarrierConfig).when(configManager).getConfigForSubId(anyInt());
+
+        ImsManager imsManager = mContext.getSystemService(ImsManager.class);
+        ImsMmTelManager mmTelManager = mock(ImsMmTelManager.class);
+        doReturn(mmTelManager).when(imsManager).getImsMmTelManager(anyInt());
+        doReturn(true).when(mmTelManager).isAdvancedCallingSettingEnabled();
+        doReturn(mock(ProvisioningManager.class)).when(imsManager).getProvisioningManager(anyInt());
+
+        doAnswer(invocation -> {
+            mNetworkCallback = (ConnectivityManager.NetworkCallback) invocation.getArguments()[1];
+            if (mWifiAvailable) {
+                mNetworkCallback.onAvailable(mock(Network.class));
+            }
+            return null;
+        }).when(mConnectivityManager).registerNetworkCallback(
+                any(NetworkRequest.class), any(ConnectivityManager.NetworkCallback.class));
+        doAnswer(invocation -> {
+            mNetworkCallback = null;
+            return null;
+        }).when(mConnectivityManager).unregisterNetworkCallback(
+                any(ConnectivityManager.NetworkCallback.class));
+
+        mImsStateTracker = mock(ImsStateTracker.class);
+        mWwanSelectorCallback = mock(WwanSelectorCallback.class);
+        mTransportSelectorCallback = mock(TransportSelectorCallback.class);
+
+        doAnswer(invocation -> {
+            addDecision("WLAN emergencyPdn=" + invocation.getArguments()[0]);
+            return null;
+        }).when(mTransportSelectorCallback).onWlanSelected(anyBoolean());
+        doAnswer(invocation -> {
+            addDecision("WWAN");
+            Consumer<WwanSelectorCallback> consumer =
+                    (Consumer<WwanSelectorCallback>) invocation.getArguments()[0];
+            consumer.accept(mWwanSelectorCallback);
+            return null;
+        }).when(mTransportSelectorCallback).onWwanSelected(any());
+        doAnswer(invocation -> {
+            addDecision("TERMINATED cause=" + invocation.getArguments()[0]);
+            return null;
+        }).when(mTransportSelectorCallback).onSelectionTerminated(anyInt());
+
+        doAnswer(invocation -> {
+            List<Integer> networks = (List<Integer>) invocation.getArguments()[0];
+            mScanResultConsumer = (Consumer<EmergencyRegResult>) invocation.getArguments()[3];
+            addDecision("SCAN " + networksToString(networks) + " "
+                    + scanTypeToString((int) invocation.getArguments()[1]));
+            return null;
+        }).when(mWwanSelectorCallback).onRequestEmergencyNetworkScan(
+                any(), anyInt(), any(), any());
+        doAnswer(invocation -> {
+            int domain = (int) invocation.getArguments()[0];
+            addDecision((domain == NetworkRegistrationInfo.DOMAIN_PS ? "PS" : "CS")
+                    + " emergencyPdn=" + invocation.getArguments()[1]);
+            return null;
+        }).when(mWwanSelectorCallback).onDomainSelected(anyInt(), anyBoolean());
+    }
+
+    /**
+     * Moves the virtual clock to the given time, delivering the timers that expire until then
+     * in the order of their expiry times.
+     */
+    private void advanceTo(long timeMs) {
+        while (true) {
+            int nextTimer = -1;
+            long nextExpiryMs = Long.MAX_VALUE;
+            for (Map.Entry<Integer, Long> entry : mTimerExpiryMs.entrySet()) {
+                if (entry.getValue() < nextExpiryMs) {
+                    nextTimer = entry.getKey();
+                    nextExpiryMs = entry.getValue();
+                }
+            }
+            if (nextExpiryMs > timeMs) break;
+
+            mTimerExpiryMs.remove(nextTimer);
+            // The timer has been stopped if the message was removed.
+            if (!mDomainSelector.hasMessages(nextTimer)) continue;
+
+            mNowMs = nextExpiryMs;
+            mDomainSelector.removeMessages(nextTimer);
+            mDomainSelector.handleMessage(mDomainSelector.obtainMessage(nextTimer));
+            processAllMessages();
+        }
+        mNowMs = Math.max(mNowMs, timeMs);
+    }
+
+    private void updateBarringInfo(boolean emergencyBarred) {
+        SparseArray<BarringInfo.BarringServiceInfo> serviceInfos = new SparseArray<>();
+        if (emergencyBarred) {
+            serviceInfos.put(BARRING_SERVICE_TYPE_EMERGENCY,
+                    new BarringInfo.BarringServiceInfo(BARRING_TYPE_UNCONDITIONAL, false, 0, 0));
+        }
+        mDomainSelector.onBarringInfoUpdated(new BarringInfo(new CellIdentityLte(), serviceInfos));
+    }
+
+    private void updateImsState(boolean registered, boolean overWlan, boolean voiceCapable) {
+        doReturn(registered).when(mImsStateTracker).isImsRegistered();
+        doReturn(registered && overWlan).when(mImsStateTracker).isImsRegisteredOverWlan();
+        doReturn(voiceCapable).when(mImsStateTracker).isImsVoiceCapable();
+        mDomainSelector.onImsRegistrationStateChanged();
+        mDomainSelector.onImsMmTelCapabilitiesChanged();
+    }
+
+    private void updateWifi(boolean available) {
+        mWifiAvailable = available;
+        if (mNetworkCallback == null) return;
+        if (available) {
+            mNetworkCallback.onAvailable(mock(Network.class));
+        } else {
+            mNetworkCallback.onLost(mock(Network.class));
+        }
+    }
+
+    private void dial(EmergencyRegResult regResult) {
+        mDialTimeMs = mNowMs;
+        mSelectionAttributes = new SelectionAttributes.Builder(
+                SLOT_0, SLOT_0_SUB_ID, SELECTOR_TYPE_CALLING)
+                .setEmergency(true)
+                .setEmergencyRegResult(regResult)
+                .build();
+        mDomainSelector.selectDomain(mSelectionAttributes, mTransportSelectorCallback);
+    }
+
+    private void completeScan(EmergencyRegResult result) {
+        if (mScanResultConsumer == null) return;
+        Consumer<EmergencyRegResult> consumer = mScanResultConsumer;
+        mScanResultConsumer = null;
+        consumer.accept(result);
+    }
+
+    private void failCall(int csDisconnectCause) {
+        if (mSelectionAttributes == null) return;
+        mSelectionAttributes = new SelectionAttributes.Builder(
+                SLOT_0, SLOT_0_SUB_ID, SELECTOR_TYPE_CALLING)
+                .setEmergency(true)
+                .setEmergencyRegResult(mSelectionAttributes.getEmergencyRegResult())
+                .setCsDisconnectCause(csDisconnectCause)
+                .build();
+        mDomainSelector.reselectDomain(mSelectionAttributes);
+    }
+
+    private void addDecision(String decision) {
+        mDecisions.add(mNowMs + ": " + decision);
+        boolean dialed = decision.startsWith("PS") || decision.startsWith("CS")
+                || decision.startsWith("WLAN");
+        if (dialed && mTimeToDialMs < 0 && mDialTimeMs >= 0) {
+            mTimeToDialMs = mNowMs - mDialTimeMs;
+        }
+    }
+
+    private void processAllMessages() {
+        while (!mLooper.getLooper().getQueue().isIdle()) {
+            mLooper.processAllMessages();
+        }
+    }
+
+    private static String networksToString(List<Integer> networks) {
+        List<String> names = new ArrayList<>();
+        for (int network : networks) {
+            names.add(ImsStateTracker.accessNetworkTypeToString(network));
+        }
+        return names.toString();
+    }
+
+    private static String scanTypeToString(int scanType) {
+        switch (scanType) {
+            case DomainSelectionService.SCAN_TYPE_NO_PREFERENCE: return "NO_PREFERENCE";
+            case DomainSelectionService.SCAN_TYPE_LIMITED_SERVICE: return "LIMITED_SERVICE";
+            case DomainSelectionService.SCAN_TYPE_FULL_SERVICE: return "FULL_SERVICE";
+            default: return Integer.toString(scanType);
+        }
+    }
+}
@@ -68,6 +68,7 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -312,6 +313,34 @@ public class EmergencyCallDomainSelectorTest {
         verifyPsDialed();
     }
 
+    @Test
+    public void testPrewarmedCarrierConfigurationSelectPs() throws Exception {
+        EmergencyReadinessTracker readinessTracker = new EmergencyReadinessTracker(mContext,
+                SLOT_0, mHandlerThread.getLooper());
+        readinessTracker.putCarrierConfigIfAbsent(SLOT_0_SUB_ID, getDefaultPersistableBundle());
+        mDomainSelector = new EmergencyCallDomainSelector(
+                mContext, SLOT_0, SLOT_0_SUB_ID, mHandlerThread.getLooper(),
+                mImsStateTracker, mDestroyListener, mCsrdCtrl, readinessTracker);
+        replaceInstance(DomainSelectorBase.class,
+                "mWwanSelectorCallback", mDomainSelector, mWwanSelectorCallback);
+        unsolBarringInfoChanged(false);
+
+        EmergencyRegResult regResult = getEmergencyRegResult(EUTRAN, REGISTRATION_STATE_HOME,
+                NetworkRegistrationInfo.DOMAIN_CS | NetworkRegistrationInfo.DOMAIN_PS,
+                true, true, 0, 0, "", "");
+        SelectionAttributes attr = getSelectionAttributes(SLOT_0, SLOT_0_SUB_ID, regResult);
+        mDomainSelector.selectDomain(attr, mTransportSelectorCallback);
+        processAllMessages();
+
+        bindImsService();
+
+        verifyPsDialed();
+        // The state fetched in advance by the readiness tracker is used.
+        verify(mCarrierConfigManager, never()).getConfigForSubId(anyInt());
+        verify(mTelephonyManager, times(1)).getActiveModemCount();
+        readinessTracker.destroy();
+    }
+
     @Test
     public void testDefaultCombinedImsRegisteredSelectPsThenCsfb() throws Exception {
         createSelector(SLOT_0_SUB_ID);
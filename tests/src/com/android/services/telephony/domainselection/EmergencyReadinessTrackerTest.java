@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.domainselection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.TestContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for EmergencyReadinessTracker.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EmergencyReadinessTrackerTest {
+    private static final int SLOT_0 = 0;
+    private static final int SLOT_1 = 1;
+    private static final int SUB_1 = 1;
+    private static final int SUB_2 = 2;
+    private static final long TIMEOUT_MS = 1000;
+
+    private TestContext mContext;
+    private HandlerThread mHandlerThread;
+    private EmergencyReadinessTracker mTracker;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = new TestContext();
+        mHandlerThread = new HandlerThread("EmergencyReadinessTrackerTest");
+        mHandlerThread.start();
+        mTracker = new EmergencyReadinessTracker(mContext, SLOT_0, mHandlerThread.getLooper());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mTracker != null) {
+            mTracker.destroy();
+            mTracker = null;
+        }
+        mHandlerThread.quit();
+    }
+
+    @Test
+    @SmallTest
+    public void testModemCountUpdatedWhenMultiSimConfigChanged() {
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        doReturn(2).when(tm).getActiveModemCount();
+
+        mContext.getBroadcastReceiver().onReceive(mContext,
+                new Intent(TelephonyManager.ACTION_MULTI_SIM_CONFIG_CHANGED));
+
+        assertEquals(2, mTracker.getModemCount());
+    }
+
+    @Test
+    @SmallTest
+    public void testCarrierConfigLoadedWhenChanged() {
+        assertNull(mTracker.getCarrierConfig(SUB_1));
+
+        sendCarrierConfigChanged(SLOT_0, SUB_1);
+
+        assertSame(mContext.getCarrierConfig(SUB_1), mTracker.getCarrierConfig(SUB_1));
+        // The configuration of another subscription is not returned.
+        assertNull(mTracker.getCarrierConfig(SUB_2));
+    }
+
+    @Test
+    @SmallTest
+    public void testActiveCarrierConfigLoadedWhenCreated() throws Exception {
+        SubscriptionInfo info = mock(SubscriptionInfo.class);
+        doReturn(SUB_1).when(info).getSubscriptionId();
+        SubscriptionManager sm = mContext.getSystemService(SubscriptionManager.class);
+        doReturn(info).when(sm).getActiveSubscriptionInfoForSimSlotIndex(SLOT_0);
+
+        mTracker.destroy();
+        mTracker = new EmergencyReadinessTracker(mContext, SLOT_0, mHandlerThread.getLooper());
+        waitForHandlerThread();
+
+        assertSame(mContext.getCarrierConfig(SUB_1), mTracker.getCarrierConfig(SUB_1));
+    }
+
+    @Test
+    @SmallTest
+    public void testPutCarrierConfigIfAbsent() {
+        PersistableBundle config = new PersistableBundle();
+
+        assertTrue(mTracker.putCarrierConfigIfAbsent(SUB_1, config));
+        assertSame(config, mTracker.getCarrierConfig(SUB_1));
+    }
+
+    @Test
+    @SmallTest
+    public void testPutCarrierConfigIfAbsentDoesNotReplaceLoadedConfig() {
+        sendCarrierConfigChanged(SLOT_0, SUB_1);
+
+        // The configuration loaded when it changed may be newer than the one fetched on demand.
+        assertFalse(mTracker.putCarrierConfigIfAbsent(SUB_1, new PersistableBundle()));
+        assertSame(mContext.getCarrierConfig(SUB_1), mTracker.getCarrierConfig(SUB_1));
+    }
+
+    @Test
+    @SmallTest
+    public void testCarrierConfigOfOtherSlotIgnored() {
+        sendCarrierConfigChanged(SLOT_1, SUB_2);
+
+        assertNull(mTracker.getCarrierConfig(SUB_2));
+    }
+
+    @Test
+    @SmallTest
+    public void testDumpReadinessAndLatency() {
+        sendCarrierConfigChanged(SLOT_0, SUB_1);
+
+        mTracker.onFirstTransportSelected(10, true);
+        mTracker.onFirstTransportSelected(30, true);
+        mTracker.onFirstTransportSelected(200, false);
+
+        StringWriter writer = new StringWriter();
+        mTracker.dump(new PrintWriter(writer));
+        String dump = writer.toString();
+        assertTrue(dump.contains("configSubId=" + SUB_1));
+        assertTrue(dump.contains("prewarmed: count=2, avg=20ms, max=30ms, last=30ms"));
+        assertTrue(dump.contains("cold: count=1, avg=200ms, max=200ms, last=200ms"));
+    }
+
+    private void waitForHandlerThread() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        new Handler(mHandlerThread.getLooper()).post(latch::countDown);
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void sendCarrierConfigChanged(int slotId, int subId) {
+        Intent intent = new Intent(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED);
+        intent.putExtra(CarrierConfigManager.EXTRA_SLOT_INDEX, slotId);
+        intent.putExtra(CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX, subId);
+        mContext.getBroadcastReceiver().onReceive(mContext, intent);
+    }
+}
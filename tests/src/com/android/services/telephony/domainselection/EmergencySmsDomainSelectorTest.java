@@ -29,6 +29,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.PersistableBundle;
@@ -121,13 +122,15 @@ public class EmergencySmsDomainSelectorTest {
 
         ArgumentCaptor<ImsStateTracker.ServiceStateListener> serviceStateListenerCaptor =
                 ArgumentCaptor.forClass(ImsStateTracker.ServiceStateListener.class);
-        verify(mImsStateTracker).addServiceStateListener(serviceStateListenerCaptor.capture());
+        verify(mImsStateTracker).addServiceStateListener(serviceStateListenerCaptor.capture(),
+                eq(mDomainSelector));
         mServiceStateListener = serviceStateListenerCaptor.getValue();
         assertNotNull(mServiceStateListener);
 
         ArgumentCaptor<ImsStateTracker.BarringInfoListener> barringInfoListenerCaptor =
                 ArgumentCaptor.forClass(ImsStateTracker.BarringInfoListener.class);
-        verify(mImsStateTracker).addBarringInfoListener(barringInfoListenerCaptor.capture());
+        verify(mImsStateTracker).addBarringInfoListener(barringInfoListenerCaptor.capture(),
+                eq(mDomainSelector));
         mBarringInfoListener = barringInfoListenerCaptor.getValue();
         assertNotNull(mBarringInfoListener);
     }
@@ -803,7 +806,8 @@ public class EmergencySmsDomainSelectorTest {
                 }
             });
             return null;
-        }).when(mImsStateTracker).addImsStateListener(any(ImsStateTracker.ImsStateListener.class));
+        }).when(mImsStateTracker).addImsStateListener(
+                any(ImsStateTracker.ImsStateListener.class), any(Handler.class));
     }
 
     private void processAllMessages() {
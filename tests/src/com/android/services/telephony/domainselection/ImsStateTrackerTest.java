@@ -270,6 +270,29 @@ public class ImsStateTrackerTest {
         verify(mServiceStateListener, never()).onServiceStateUpdated(eq(mServiceState));
     }
 
+    @Test
+    @SmallTest
+    public void testUpdateServiceStateNotifiesListenerOnItsHandler() {
+        HandlerThread listenerThread = new HandlerThread("ServiceStateListener");
+        listenerThread.start();
+        Handler listenerHandler = new Handler(listenerThread.getLooper());
+        Looper[] notifiedLooper = new Looper[1];
+        doAnswer(invocation -> {
+            notifiedLooper[0] = Looper.myLooper();
+            return null;
+        }).when(mServiceStateListener).onServiceStateUpdated(any(ServiceState.class));
+
+        mImsStateTracker.addServiceStateListener(mServiceStateListener, listenerHandler);
+        mImsStateTracker.updateServiceState(mServiceState);
+        waitForHandlerAction(mImsStateTracker.getHandler(), TIMEOUT_MS);
+        waitForHandlerAction(listenerHandler, TIMEOUT_MS);
+
+        verify(mServiceStateListener).onServiceStateUpdated(eq(mServiceState));
+        assertEquals(listenerThread.getLooper(), notifiedLooper[0]);
+
+        listenerThread.quit();
+    }
+
     @Test
     @SmallTest
     public void testUpdateBarringInfoBeforeAddingListener() {
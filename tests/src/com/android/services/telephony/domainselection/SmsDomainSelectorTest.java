@@ -29,6 +29,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.content.Context;
+import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.telephony.AccessNetworkConstants.AccessNetworkType;
@@ -431,7 +432,8 @@ public class SmsDomainSelectorTest {
                 }
             });
             return null;
-        }).when(mImsStateTracker).addImsStateListener(any(ImsStateTracker.ImsStateListener.class));
+        }).when(mImsStateTracker).addImsStateListener(
+                any(ImsStateTracker.ImsStateListener.class), any(Handler.class));
     }
 
     private void processAllMessages() {
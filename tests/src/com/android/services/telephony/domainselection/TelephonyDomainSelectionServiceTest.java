@@ -16,7 +16,9 @@
 
 package com.android.services.telephony.domainselection;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
@@ -50,13 +52,18 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for TelephonyDomainSelectionService.
@@ -78,7 +85,9 @@ public class TelephonyDomainSelectionServiceTest {
                         @SelectorType int selectorType, boolean isEmergency,
                         @NonNull Looper looper, @NonNull ImsStateTracker imsStateTracker,
                         @NonNull DomainSelectorBase.DestroyListener listener,
-                        @NonNull CrossSimRedialingController crossSimRedialingController) {
+                        @NonNull CrossSimRedialingController crossSimRedialingController,
+                        @NonNull EmergencyReadinessTracker emergencyReadinessTracker) {
+                    mDomainSelectorLooper = looper;
                     switch (selectorType) {
                         case DomainSelectionService.SELECTOR_TYPE_CALLING: // fallthrough
                         case DomainSelectionService.SELECTOR_TYPE_SMS: // fallthrough
@@ -95,12 +104,14 @@ public class TelephonyDomainSelectionServiceTest {
                 }
             };
     private static final int SLOT_0 = 0;
+    private static final int SLOT_1 = 1;
     private static final int SUB_1 = 1;
     private static final int SUB_2 = 2;
     private static final String CALL_ID = "Call_1";
     private static final @SelectorType int TEST_SELECTOR_TYPE =
             DomainSelectionService.SELECTOR_TYPE_CALLING;
     private static final @SelectorType int INVALID_SELECTOR_TYPE = -1;
+    private static final int TIMEOUT_MS = 1000;
 
     @Mock private DomainSelectorBase mDomainSelectorBase1;
     @Mock private DomainSelectorBase mDomainSelectorBase2;
@@ -116,6 +127,7 @@ public class TelephonyDomainSelectionServiceTest {
     private SubscriptionManager mSubscriptionManager;
     private OnSubscriptionsChangedListener mOnSubscriptionsChangedListener;
     private DomainSelectorBase.DestroyListener mDomainSelectorDestroyListener;
+    private Looper mDomainSelectorLooper;
     private TelephonyDomainSelectionService mDomainSelectionService;
 
     @Before
@@ -182,10 +194,49 @@ public class TelephonyDomainSelectionServiceTest {
         });
         processAllMessages();
 
-        verify(mImsStateTracker).start(eq(SUB_1));
+        // ImsStateTracker is started before the domain is selected.
+        InOrder inOrder = Mockito.inOrder(mImsStateTracker, mDomainSelectorBase1);
+        inOrder.verify(mImsStateTracker).start(eq(SUB_1));
+        inOrder.verify(mDomainSelectorBase1).selectDomain(eq(attr1), eq(mSelectorCallback1));
         verify(mSelectorCallback1).onCreated(eq(mDomainSelectorBase1));
         verifyNoMoreInteractions(mSelectorCallback1);
-        verify(mDomainSelectorBase1).selectDomain(eq(attr1), eq(mSelectorCallback1));
+    }
+
+    @Test
+    @SmallTest
+    public void testOnEmergencyDomainSelectionDoesNotBlockEmergencyLane() throws Exception {
+        SelectionAttributes attr1 = new SelectionAttributes.Builder(
+                SLOT_0, SUB_1, TEST_SELECTOR_TYPE)
+                .setCallId(CALL_ID)
+                .setEmergency(true)
+                .build();
+        CountDownLatch unblock = new CountDownLatch(1);
+        new Handler(mDomainSelectionService.getSlotLooper(SLOT_0)).post(() -> {
+            try {
+                unblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+        mServiceHandler.post(() -> {
+            mDomainSelectionService.onDomainSelection(attr1, mSelectorCallback1);
+        });
+        while (!mTestableLooper.getLooper().getQueue().isIdle()) {
+            mTestableLooper.processAllMessages();
+        }
+
+        // The emergency lane is not blocked while the lane of the slot is busy, but the domain
+        // is not selected until the ImsStateTracker has been started.
+        waitForLooper(mDomainSelectionService.getEmergencyLooper());
+        verify(mImsStateTracker, never()).start(anyInt());
+        verify(mDomainSelectorBase1, never()).selectDomain(any(), any());
+
+        unblock.countDown();
+        processAllMessages();
+
+        InOrder inOrder = Mockito.inOrder(mImsStateTracker, mDomainSelectorBase1);
+        inOrder.verify(mImsStateTracker).start(eq(SUB_1));
+        inOrder.verify(mDomainSelectorBase1).selectDomain(eq(attr1), eq(mSelectorCallback1));
     }
 
     @Test
@@ -278,10 +329,46 @@ public class TelephonyDomainSelectionServiceTest {
         verify(mDomainSelectorBase2).selectDomain(eq(attr2), eq(mSelectorCallback2));
     }
 
+    @Test
+    @SmallTest
+    public void testOnDomainSelectionRunsOnLanes() {
+        SelectionAttributes emergencyAttr = new SelectionAttributes.Builder(
+                SLOT_0, SUB_1, TEST_SELECTOR_TYPE)
+                .setCallId(CALL_ID)
+                .setEmergency(true)
+                .build();
+        mServiceHandler.post(() -> {
+            mDomainSelectionService.onDomainSelection(emergencyAttr, mSelectorCallback1);
+        });
+        processAllMessages();
+
+        assertEquals(mDomainSelectionService.getEmergencyLooper(), mDomainSelectorLooper);
+
+        SelectionAttributes smsAttr = new SelectionAttributes.Builder(
+                SLOT_1, SUB_2, DomainSelectionService.SELECTOR_TYPE_SMS)
+                .build();
+        mServiceHandler.post(() -> {
+            mDomainSelectionService.onDomainSelection(smsAttr, mSelectorCallback2);
+        });
+        processAllMessages();
+
+        assertEquals(mDomainSelectionService.getSlotLooper(SLOT_1), mDomainSelectorLooper);
+        assertTrue(mDomainSelectionService.getSlotLooper(SLOT_0)
+                != mDomainSelectionService.getSlotLooper(SLOT_1));
+        verify(mDomainSelectorBase2).selectDomain(eq(smsAttr), eq(mSelectorCallback2));
+
+        StringWriter writer = new StringWriter();
+        mDomainSelectionService.dump(null, new PrintWriter(writer), null);
+        String dump = writer.toString();
+        assertTrue(dump.contains("EMERGENCY_CALLING: count=1"));
+        assertTrue(dump.contains("SMS: count=1"));
+    }
+
     @Test
     @SmallTest
     public void testOnServiceStateUpdated() {
         mDomainSelectionService.onServiceStateUpdated(SLOT_0, SUB_1, mServiceState);
+        processAllMessages();
 
         verify(mImsStateTracker).updateServiceState(eq(mServiceState));
     }
@@ -290,6 +377,7 @@ public class TelephonyDomainSelectionServiceTest {
     @SmallTest
     public void testOnBarringInfoUpdated() {
         mDomainSelectionService.onBarringInfoUpdated(SLOT_0, SUB_1, mBarringInfo);
+        processAllMessages();
 
         verify(mImsStateTracker).updateBarringInfo(eq(mBarringInfo));
     }
@@ -353,6 +441,7 @@ public class TelephonyDomainSelectionServiceTest {
 
         mOnSubscriptionsChangedListener.onSubscriptionsChanged();
         mOnSubscriptionsChangedListener.onSubscriptionsChanged();
+        processAllMessages();
 
         verify(mImsStateTracker).start(eq(SubscriptionManager.INVALID_SUBSCRIPTION_ID));
         verify(mImsStateTracker).start(eq(SUB_1));
@@ -362,5 +451,21 @@ public class TelephonyDomainSelectionServiceTest {
         while (!mTestableLooper.getLooper().getQueue().isIdle()) {
             mTestableLooper.processAllMessages();
         }
+        // The emergency lane can post tasks to the lanes of the slots, which post the emergency
+        // domain selection back to the emergency lane.
+        waitForLooper(mDomainSelectionService.getEmergencyLooper());
+        waitForLooper(mDomainSelectionService.getSlotLooper(SLOT_0));
+        waitForLooper(mDomainSelectionService.getSlotLooper(SLOT_1));
+        waitForLooper(mDomainSelectionService.getEmergencyLooper());
+    }
+
+    private static void waitForLooper(Looper looper) {
+        CountDownLatch latch = new CountDownLatch(1);
+        new Handler(looper).post(latch::countDown);
+        try {
+            assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            // ignore
+        }
     }
 }
@@ -45,6 +45,7 @@ import androidx.test.runner.AndroidJUnit4;
 
 import com.android.TelephonyTestBase;
 import com.android.TestExecutorService;
+import com.android.services.telephony.rcs.validator.ParsedSipMessage;
 import com.android.services.telephony.rcs.validator.ValidationResult;
 
 import org.junit.After;
@@ -210,7 +211,7 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
         tracker.openTransport(mISipDelegate, Collections.emptySet(), Collections.emptySet());
         doReturn(ValidationResult.SUCCESS)
                 .when(mTransportSipSessionValidator)
-                .verifyOutgoingMessage(TEST_MESSAGE, 1 /*version*/);
+                .verifyOutgoingMessage(any(ParsedSipMessage.class), eq(1L) /*version*/);
         tracker.getDelegateConnection().sendMessage(TEST_MESSAGE, 1 /*version*/);
         verify(mISipDelegate).sendMessage(TEST_MESSAGE, 1 /*version*/);
 
@@ -222,7 +223,7 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
         doReturn(new ValidationResult(
                 SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED, ""))
                 .when(mTransportSipSessionValidator)
-                .verifyOutgoingMessage(TEST_MESSAGE, 1 /*version*/);
+                .verifyOutgoingMessage(any(ParsedSipMessage.class), eq(1L) /*version*/);
         tracker.getDelegateConnection().sendMessage(TEST_MESSAGE, 1 /*version*/);
         verify(mDelegateMessageCallback).onMessageSendFailure(TEST_TRANSACTION_ID,
                 SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED);
@@ -267,7 +268,8 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
         tracker.openTransport(mISipDelegate, Collections.emptySet(), Collections.emptySet());
 
         doReturn(ValidationResult.SUCCESS)
-                .when(mTransportSipSessionValidator).verifyIncomingMessage(TEST_MESSAGE);
+                .when(mTransportSipSessionValidator)
+                .verifyIncomingMessage(any(ParsedSipMessage.class));
         tracker.getMessageCallback().onMessageReceived(TEST_MESSAGE);
         verify(mDelegateMessageCallback).onMessageReceived(TEST_MESSAGE);
 
@@ -278,7 +280,8 @@ public class MessageTransportWrapperTest extends TelephonyTestBase {
 
         doReturn(new ValidationResult(
                 SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD, ""))
-                .when(mTransportSipSessionValidator).verifyIncomingMessage(TEST_MESSAGE);
+                .when(mTransportSipSessionValidator)
+                .verifyIncomingMessage(any(ParsedSipMessage.class));
         tracker.getMessageCallback().onMessageReceived(TEST_MESSAGE);
         verify(mISipDelegate, times(2)).notifyMessageReceiveError(TEST_TRANSACTION_ID,
                 SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD);
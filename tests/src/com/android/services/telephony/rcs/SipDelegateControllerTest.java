@@ -24,7 +24,10 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -51,9 +54,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
@@ -70,6 +76,7 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
     @Mock private ISipDelegateMessageCallback mMockMessageCallback;
     @Mock private DelegateStateTracker mMockDelegateStateTracker;
     @Mock private DelegateBinderStateManager mMockBinderConnection;
+    @Mock private TransportSipMessageValidator mMockSipSessionValidator;
     @Captor private ArgumentCaptor<BiConsumer<ISipDelegate, Set<FeatureTagState>>> mCreatedCaptor;
     @Captor private ArgumentCaptor<Consumer<Boolean>> mBooleanConsumerCaptor;
     @Captor private ArgumentCaptor<Consumer<Integer>> mIntegerConsumerCaptor;
@@ -80,6 +87,10 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
     public void setUp() throws Exception {
         super.setUp();
         when(mMockMessageTracker.getMessageCallback()).thenReturn(mMockMessageCallback);
+        when(mMockMessageTracker.close(anyInt())).thenReturn(
+                CompletableFuture.completedFuture(null));
+        when(mMockMessageTracker.closeGracefully(anyInt(), anyInt(), any())).thenReturn(
+                CompletableFuture.completedFuture(null));
         mExecutorService = new TestExecutorService();
     }
 
@@ -256,6 +267,101 @@ public class SipDelegateControllerTest extends TelephonyTestBase {
         verify(mMockDelegateStateTracker).sipDelegateConnected(newFts, Collections.emptySet());
     }
 
+    @SmallTest
+    @Test
+    public void testDestroyDelegateWaitsForTransportLane() throws Exception {
+        List<Runnable> laneTasks = new ArrayList<>();
+        MessageTransportWrapper transport = createLaneMessageTransport(laneTasks);
+        // There are no open SIP dialogs, so the transport closes as soon as the lane runs.
+        doAnswer(invocation -> {
+            Consumer<Set<String>> consumer = invocation.getArgument(0);
+            consumer.accept(Collections.emptySet());
+            return null;
+        }).when(mMockSipSessionValidator).closeSessionsGracefully(any(), anyInt(), anyInt());
+        DelegateRequest request = getBaseDelegateRequest();
+        SipDelegateController controller = createSipDelegateWithTransport(request, transport,
+                laneTasks);
+
+        CompletableFuture<Integer> pendingDestroy = controller.destroy(false /*force*/,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        // Nothing happens until the lane closes the transport.
+        verify(mMockSipSessionValidator, never()).closeSessionsGracefully(any(), anyInt(),
+                anyInt());
+        verify(mMockDelegateStateTracker, never()).sipDelegateChanging(anyInt());
+        verify(mMockBinderConnection, never()).destroy(anyInt(), any());
+
+        runLaneTasks(laneTasks);
+        // The transport closed without open dialogs, so the pending state is not sent.
+        verify(mMockDelegateStateTracker, never()).sipDelegateChanging(anyInt());
+        Consumer<Integer> pendingDestroyedConsumer = verifyBinderConnectionDestroy();
+        pendingDestroyedConsumer.accept(
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        assertEquals(SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP,
+                pendingDestroy.get().intValue());
+    }
+
+    @SmallTest
+    @Test
+    public void testDestroyDelegateForceWaitsForTransportLane() throws Exception {
+        List<Runnable> laneTasks = new ArrayList<>();
+        MessageTransportWrapper transport = createLaneMessageTransport(laneTasks);
+        when(mMockSipSessionValidator.closeSessions(anyInt())).thenReturn(Collections.emptySet());
+        DelegateRequest request = getBaseDelegateRequest();
+        SipDelegateController controller = createSipDelegateWithTransport(request, transport,
+                laneTasks);
+
+        CompletableFuture<Integer> pendingDestroy = controller.destroy(true /*force*/,
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        verify(mMockSipSessionValidator, never()).closeSessions(anyInt());
+        verify(mMockBinderConnection, never()).destroy(anyInt(), any());
+
+        runLaneTasks(laneTasks);
+        // The SipDelegate is only destroyed once the transport has been closed.
+        InOrder inOrder = inOrder(mMockSipSessionValidator, mMockBinderConnection);
+        inOrder.verify(mMockSipSessionValidator).closeSessions(
+                SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_CLOSED);
+        inOrder.verify(mMockBinderConnection).destroy(anyInt(), mIntegerConsumerCaptor.capture());
+        mIntegerConsumerCaptor.getValue().accept(
+                SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP);
+        verify(mMockDelegateStateTracker, never()).sipDelegateChanging(anyInt());
+        assertEquals(SipDelegateManager.SIP_DELEGATE_DESTROY_REASON_REQUESTED_BY_APP,
+                pendingDestroy.get().intValue());
+    }
+
+    private MessageTransportWrapper createLaneMessageTransport(List<Runnable> laneTasks) {
+        // The lane runs its tasks on this executor, which queues them until runLaneTasks.
+        ScheduledExecutorService laneExecutor = mock(ScheduledExecutorService.class);
+        doAnswer(invocation -> {
+            laneTasks.add(invocation.getArgument(0));
+            return null;
+        }).when(laneExecutor).execute(any());
+        return new MessageTransportWrapper(TEST_SUB_ID, laneExecutor, mMockMessageCallback,
+                mMockSipSessionValidator);
+    }
+
+    private SipDelegateController createSipDelegateWithTransport(DelegateRequest request,
+            MessageTransportWrapper transport, List<Runnable> laneTasks) throws Exception {
+        SipDelegateController controller = new SipDelegateController(TEST_SUB_ID,
+                Binder.getCallingUid(), request, "", mExecutorService, transport,
+                mMockDelegateStateTracker, (a, b, c, d, e) -> mMockBinderConnection);
+        doReturn(true).when(mMockBinderConnection).create(any(), any());
+        CompletableFuture<Boolean> future = controller.create(request.getFeatureTags(),
+                Collections.emptySet() /*denied tags*/);
+        verify(mMockBinderConnection).create(any(), mCreatedCaptor.capture());
+        mCreatedCaptor.getValue().accept(mMockSipDelegate, Collections.emptySet());
+        assertTrue(future.get());
+        runLaneTasks(laneTasks);
+        verify(mMockSipSessionValidator).onTransportOpened(request.getFeatureTags(),
+                Collections.emptySet());
+        return controller;
+    }
+
+    private void runLaneTasks(List<Runnable> laneTasks) {
+        while (!laneTasks.isEmpty()) {
+            laneTasks.remove(0).run();
+        }
+    }
+
     private void createSipDelegate(DelegateRequest request, SipDelegateController controller)
             throws Exception {
         doReturn(true).when(mMockBinderConnection).create(eq(mMockMessageCallback), any());
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.TestExecutorService;
+import com.android.internal.util.IndentingPrintWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class SipMessageLaneTest {
+    private static final int TIMEOUT_MS = 5000;
+
+    private ExecutorService mPool;
+
+    @Before
+    public void setUp() {
+        mPool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    @Test
+    public void testTasksRunInOrder() throws Exception {
+        SipMessageLane lane = new SipMessageLane(mPool);
+        List<Integer> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            lane.execute(() -> results.add(value));
+        }
+        lane.execute(done::countDown);
+
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(100, results.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) results.get(i));
+        }
+    }
+
+    @Test
+    public void testBlockedLaneDoesNotBlockOtherLanes() throws Exception {
+        SipMessageLane blockedLane = new SipMessageLane(mPool);
+        SipMessageLane otherLane = new SipMessageLane(mPool);
+        CountDownLatch unblock = new CountDownLatch(1);
+        CountDownLatch blockedTaskDone = new CountDownLatch(1);
+        CountDownLatch otherTaskDone = new CountDownLatch(1);
+        blockedLane.execute(() -> {
+            try {
+                unblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+        blockedLane.execute(blockedTaskDone::countDown);
+        otherLane.execute(otherTaskDone::countDown);
+
+        // The other lane progresses while the first one is blocked.
+        assertTrue(otherTaskDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, blockedTaskDone.getCount());
+        unblock.countDown();
+        assertTrue(blockedTaskDone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDumpHistograms() {
+        // Tasks are run immediately, so the queue is always empty.
+        SipMessageLane lane = new SipMessageLane(new TestExecutorService());
+        lane.execute(() -> { });
+        lane.execute(() -> { });
+
+        StringWriter writer = new StringWriter();
+        IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ");
+        lane.dump(pw);
+        pw.flush();
+        String dump = writer.toString();
+        assertEquals(0, lane.getQueueDepth());
+        assertTrue(dump.contains("Queue depth: current=0, max=0"));
+        assertTrue(dump.contains("<=0: 2"));
+        assertTrue(dump.contains("<1ms: 2"));
+    }
+}
@@ -23,9 +23,12 @@ import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.content.Context;
@@ -422,6 +425,45 @@ public class SipSessionTrackerTest {
         assertTrue(mTrackerUT.getClosedDialogs().isEmpty());
     }
 
+    @Test
+    public void testManyConcurrentDialogs() {
+        final int numDialogs = 2000;
+        List<DialogAttributes> attrs = new ArrayList<>(numDialogs);
+        for (int i = 0; i < numDialogs; i++) {
+            DialogAttributes attr = new DialogAttributes();
+            SipMessage inviteRequest = generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD,
+                    attr);
+            inviteRequest = new SipMessage(inviteRequest.getStartLine(),
+                    inviteRequest.getHeaderSection() + "\nAccept-Contact:*;+test" + (i % 10),
+                    new byte[0]);
+            filterMessage(inviteRequest, attr);
+            attrs.add(attr);
+        }
+        for (DialogAttributes attr : attrs) {
+            attr.setToTag();
+            filterMessage(generateSipResponse("200", "OK", attr), attr);
+        }
+        assertTrue(mTrackerUT.getEarlyDialogs().isEmpty());
+        assertEquals(numDialogs, mTrackerUT.getConfirmedDialogs().size());
+        assertEquals(numDialogs / 10, mTrackerUT.getCallIdsAssociatedWithFeatureTag(
+                Collections.singleton("+TEST3")).size());
+
+        // Close all of the dialogs without cleaning up the sessions, only the most recently
+        // closed sessions are kept.
+        for (DialogAttributes attr : attrs) {
+            filterMessage(generateSipRequest(SipMessageUtils.BYE_SIP_METHOD, attr), attr);
+        }
+        assertTrue(mTrackerUT.getConfirmedDialogs().isEmpty());
+        assertEquals(SipSessionTracker.MAX_CLOSED_SESSIONS,
+                mTrackerUT.getClosedDialogs().size());
+        assertEquals(SipSessionTracker.MAX_CLOSED_SESSIONS,
+                mTrackerUT.getTrackedDialogs().size());
+        verifyContainsCallIds(mTrackerUT.getClosedDialogs(), attrs.get(numDialogs - 1));
+        // Dropped sessions are not associated with feature tags anymore.
+        assertTrue(mTrackerUT.getCallIdsAssociatedWithFeatureTag(Collections.singleton("+test0"))
+                .size() <= SipSessionTracker.MAX_CLOSED_SESSIONS);
+    }
+
     @Test
     public void testAcknowledgeMessageFailed() {
         DialogAttributes attr = new DialogAttributes();
@@ -527,6 +569,34 @@ public class SipSessionTrackerTest {
         unRegisterCallback();
     }
 
+    @Test
+    public void testDialogsListenerOnlyNotifiedOfStateChanges() {
+        SipDialogsStateListener listener = mock(SipDialogsStateListener.class);
+        mTrackerUT.setSipDialogsListener(listener, false /*isNeedNotify*/);
+        DialogAttributes attr = new DialogAttributes();
+        filterMessage(generateSipRequest(SipMessageUtils.INVITE_SIP_METHOD, attr), attr);
+        attr.setToTag();
+        filterMessage(generateSipResponse("180", "Ringing", attr), attr);
+        verify(listener, times(1)).reMappingSipDelegateState(anyString(), anyList(),
+                eq(false));
+
+        // Another provisional response does not change the state of the dialog.
+        filterMessage(generateSipResponse("183", "Session Progress", attr), attr);
+        verify(listener, times(1)).reMappingSipDelegateState(anyString(), anyList(),
+                eq(false));
+
+        filterMessage(generateSipResponse("200", "OK", attr), attr);
+        ArgumentCaptor<List<SipDialogState>> captor = ArgumentCaptor.forClass(List.class);
+        verify(listener, times(2)).reMappingSipDelegateState(anyString(), captor.capture(),
+                eq(false));
+        assertEquals(1, captor.getValue().size());
+        assertEquals(SipDialogState.STATE_CONFIRMED, captor.getValue().get(0).getState());
+
+        // A new listener is always notified of the current state if requested.
+        mTrackerUT.setSipDialogsListener(listener, true /*isNeedNotify*/);
+        verify(listener).reMappingSipDelegateState(anyString(), anyList(), eq(true));
+    }
+
     private void sipDialogStateCallback() throws ImsException {
         mCallback = new SipDialogStateCallback() {
             @Override
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
@@ -30,18 +31,21 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.app.role.RoleManager;
 import android.os.IBinder;
 import android.os.PersistableBundle;
+import android.os.RemoteException;
 import android.os.UserHandle;
 import android.telephony.CarrierConfigManager;
 import android.telephony.ims.DelegateRequest;
 import android.telephony.ims.FeatureTagState;
 import android.telephony.ims.ImsException;
 import android.telephony.ims.SipDelegateManager;
+import android.telephony.ims.SipDialogState;
 import android.telephony.ims.aidl.IImsRegistration;
 import android.telephony.ims.aidl.ISipDelegate;
 import android.telephony.ims.aidl.ISipDelegateConnectionStateCallback;
@@ -56,6 +60,7 @@ import androidx.test.runner.AndroidJUnit4;
 import com.android.TelephonyTestBase;
 import com.android.TestExecutorService;
 import com.android.ims.RcsFeatureManager;
+import com.android.internal.telephony.ISipDialogStateCallback;
 import com.android.phone.RcsProvisioningMonitor;
 
 import org.junit.After;
@@ -67,6 +72,8 @@ import org.mockito.Mock;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
@@ -83,6 +90,7 @@ public class SipTransportControllerTest extends TelephonyTestBase {
     private static final String TEST_PACKAGE_NAME_2 = "com.test_pkg2";
     private static final int TIMEOUT_MS = 200;
     private static final int THROTTLE_MS = 50;
+    private static final int DIALOG_STATE_NOTIFY_INTERVAL_MS = 100;
 
     private class SipDelegateControllerContainer {
         public final int subId;
@@ -200,9 +208,12 @@ public class SipTransportControllerTest extends TelephonyTestBase {
         controller.onRcsConnected(mRcsManager);
         try {
             assertTrue(controller.isSupported(TEST_SUB_ID));
+            assertTrue(controller.isSupported(TEST_SUB_ID));
         } catch (ImsException e) {
             fail();
         }
+        // The ImsService is only queried once, when it is connected.
+        verify(mRcsManager, times(1)).getSipTransport();
     }
 
     @SmallTest
@@ -248,6 +259,44 @@ public class SipTransportControllerTest extends TelephonyTestBase {
         }
     }
 
+    @SmallTest
+    @Test
+    public void isSupportedDoesNotWaitForSlowReevaluate() throws Exception {
+        SipTransportController controller = setupLiveTransportController();
+        DelegateRequest r = getBaseDelegateRequest();
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME, r);
+        CountDownLatch reevaluateStarted = new CountDownLatch(1);
+        CountDownLatch finishReevaluate = new CountDownLatch(1);
+        // Block the executor while the feature tags of the new SipDelegate are changed.
+        doAnswer(invocation -> {
+            reevaluateStarted.countDown();
+            finishReevaluate.await(TIMEOUT_MS * 10, TimeUnit.MILLISECONDS);
+            return CompletableFuture.completedFuture(true);
+        }).when(c.delegateController).changeSupportedFeatureTags(any(), any());
+        controller.createSipDelegate(TEST_SUB_ID, TEST_UID, r, TEST_PACKAGE_NAME,
+                c.mockDelegateConnectionCallback, c.mockMessageCallback);
+        assertTrue(reevaluateStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // Binder calls are answered while the executor is blocked.
+        CompletableFuture<Boolean> isSupported = CompletableFuture.supplyAsync(() -> {
+            try {
+                return controller.isSupported(TEST_SUB_ID);
+            } catch (ImsException e) {
+                return false;
+            }
+        });
+        assertTrue(isSupported.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        SipTransportController.StateSnapshot state = controller.getStateSnapshot();
+        assertEquals(TEST_SUB_ID, state.subId);
+        assertTrue(state.isRcsConnected);
+        assertEquals(TEST_PACKAGE_NAME, state.smsRolePackageName);
+        assertTrue(state.featureTagsAllowed.contains(
+                ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG.toLowerCase(Locale.ROOT)));
+
+        finishReevaluate.countDown();
+        assertTrue(waitForExecutorAction(mExecutorService, TIMEOUT_MS));
+    }
+
     @SmallTest
     @Test
     public void createImsServiceAvailableSubIdIncorrect() throws Exception {
@@ -686,6 +735,78 @@ public class SipTransportControllerTest extends TelephonyTestBase {
                 Collections.emptySet(), 0);
     }
 
+    @SmallTest
+    @Test
+    public void testCarrierConfigChangeOnlyChangesAffectedDelegates() throws Exception {
+        SipTransportController controller = setupLiveTransportController();
+        DelegateRequest r = getBaseDelegateRequest();
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME, r);
+        createDelegateAndVerify(controller, c, r.getFeatureTags(), Collections.emptySet());
+        verifyDelegateRegistrationChangedEvent(1 /*times*/, 0 /*waitMs*/);
+
+        // Removing a tag that no SipDelegate uses does not change the SipDelegate or the IMS
+        // registration.
+        setFeatureAllowedConfig(TEST_SUB_ID, new String[]{ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG,
+                ImsSignallingUtils.GROUP_CHAT_TAG, ImsSignallingUtils.FILE_TRANSFER_HTTP_TAG});
+        controller.onCarrierConfigChanged();
+        // move to internal & schedule eval
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        // reeval
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        // evaluate delegate
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verify(c.delegateController, times(1)).changeSupportedFeatureTags(any(), any());
+        verifyDelegateRegistrationChangedEvent(1 /*times*/, 0 /*waitMs*/);
+        assertEquals(1, controller.getAvoidedRegistrationUpdateCount());
+
+        // Removing a tag that the SipDelegate uses changes it.
+        ArraySet<String> allowedTags = new ArraySet<>(r.getFeatureTags());
+        allowedTags.remove(ImsSignallingUtils.FILE_TRANSFER_HTTP_TAG);
+        Set<FeatureTagState> deniedTags = getDeniedTagsForReason(
+                Collections.singleton(ImsSignallingUtils.FILE_TRANSFER_HTTP_TAG),
+                SipDelegateManager.DENIED_REASON_NOT_ALLOWED);
+        CompletableFuture<Boolean> pendingChange = setChangeSupportedFeatureTagsFuture(
+                c.delegateController, allowedTags, deniedTags);
+        setFeatureAllowedConfig(TEST_SUB_ID, new String[]{ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG,
+                ImsSignallingUtils.GROUP_CHAT_TAG});
+        controller.onCarrierConfigChanged();
+        // move to internal & schedule eval
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        // reeval
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verifyDelegateChanged(c.delegateController, pendingChange, allowedTags, deniedTags, 0);
+        verifyDelegateRegistrationChangedEvent(2 /*times*/, 0 /*waitMs*/);
+        assertEquals(1, controller.getAvoidedRegistrationUpdateCount());
+    }
+
+    @SmallTest
+    @Test
+    public void testDestroyedDelegateIsChangedAgain() throws Exception {
+        SipTransportController controller = setupLiveTransportController();
+        DelegateRequest r = getBaseDelegateRequest();
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME, r);
+        createDelegateAndVerify(controller, c, r.getFeatureTags(), Collections.emptySet());
+        ArgumentCaptor<Runnable> destroyedListener = ArgumentCaptor.forClass(Runnable.class);
+        verify(c.delegateController).setDelegateDestroyedListener(destroyedListener.capture());
+
+        // The SipDelegate is destroyed because its binder died.
+        mExecutorService.execute(destroyedListener.getValue());
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+
+        // The next reevaluate applies the same feature tags again.
+        setFeatureAllowedConfig(TEST_SUB_ID, new String[]{ImsSignallingUtils.ONE_TO_ONE_CHAT_TAG,
+                ImsSignallingUtils.GROUP_CHAT_TAG, ImsSignallingUtils.FILE_TRANSFER_HTTP_TAG});
+        controller.onCarrierConfigChanged();
+        // move to internal & schedule eval
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        // reeval
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        // evaluate delegate
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verify(c.delegateController, times(2)).changeSupportedFeatureTags(r.getFeatureTags(),
+                Collections.emptySet());
+    }
+
     @SmallTest
     @Test
     public void testFeatureTagsDeniedByConfig() throws Exception {
@@ -959,6 +1080,92 @@ public class SipTransportControllerTest extends TelephonyTestBase {
         verify(mImsRegistration, never()).triggerUpdateSipDelegateRegistration();
     }
 
+    @SmallTest
+    @Test
+    public void testSipDialogStateChangesCoalescedWithinNotifyInterval() throws Exception {
+        mExecutorService = Executors.newSingleThreadScheduledExecutor();
+        SipTransportController controller = createControllerWithTimers(mExecutorService,
+                0 /*throttleMs*/, 0 /*regDelayMs*/, DIALOG_STATE_NOTIFY_INTERVAL_MS);
+        ISipDialogStateCallback cb = mock(ISipDialogStateCallback.class);
+        doReturn(mock(IBinder.class)).when(cb).asBinder();
+
+        // The first change is notified right away.
+        mExecutorService.execute(() -> controller.addCallbackForSipDialogState(TEST_SUB_ID, cb));
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verify(cb).onActiveSipDialogsChanged(Collections.emptyList());
+
+        // Changes within the interval are held back and notified together once it has passed.
+        SipDialogsStateListener listener = controller.getSipDialogsStateListener();
+        listener.reMappingSipDelegateState("delegate1",
+                List.of(new SipDialogState.Builder(SipDialogState.STATE_EARLY).build()),
+                false /*force*/);
+        listener.reMappingSipDelegateState("delegate2",
+                List.of(new SipDialogState.Builder(SipDialogState.STATE_CONFIRMED).build()),
+                false /*force*/);
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        verify(cb, times(1)).onActiveSipDialogsChanged(any());
+
+        ArgumentCaptor<List<SipDialogState>> captor = ArgumentCaptor.forClass(List.class);
+        verify(cb, timeout(TIMEOUT_MS).times(2)).onActiveSipDialogsChanged(captor.capture());
+        List<Integer> states = captor.getValue().stream().map(SipDialogState::getState)
+                .sorted().collect(Collectors.toList());
+        assertEquals(List.of(SipDialogState.STATE_EARLY, SipDialogState.STATE_CONFIRMED),
+                states);
+    }
+
+    @SmallTest
+    @Test
+    public void testSipDialogStateNotifiedToNewCallbacks() throws Exception {
+        SipTransportController controller = setupLiveTransportController();
+        ArraySet<String> tags = new ArraySet<>(getBaseDelegateRequest().getFeatureTags());
+        SipDelegateControllerContainer c = injectMockDelegateController(TEST_PACKAGE_NAME,
+                new DelegateRequest(tags));
+        createDelegateAndVerify(controller, c, tags, Collections.emptySet());
+        // The delegate already has a confirmed dialog, which it reports when its listener is set.
+        List<SipDialogState> dialogs =
+                List.of(new SipDialogState.Builder(SipDialogState.STATE_CONFIRMED).build());
+        doAnswer(invocation -> {
+            SipDialogsStateListener l = invocation.getArgument(0);
+            if (l != null) {
+                l.reMappingSipDelegateState("delegate1", dialogs, invocation.getArgument(1));
+            }
+            return null;
+        }).when(c.delegateController).setSipDialogsListener(any(), anyBoolean());
+
+        ISipDialogStateCallback cb1 = registerSipDialogStateCallback(controller);
+        verifySipDialogStateNotified(cb1, 1);
+        // A second callback receives the current state, which has not changed.
+        ISipDialogStateCallback cb2 = registerSipDialogStateCallback(controller);
+        verifySipDialogStateNotified(cb2, 1);
+
+        // Once all callbacks are gone, a new callback receives the current state again.
+        mExecutorService.execute(() -> {
+            controller.removeCallbackForSipDialogState(TEST_SUB_ID, cb1);
+            controller.removeCallbackForSipDialogState(TEST_SUB_ID, cb2);
+        });
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        ISipDialogStateCallback cb3 = registerSipDialogStateCallback(controller);
+        verifySipDialogStateNotified(cb3, 1);
+    }
+
+    private ISipDialogStateCallback registerSipDialogStateCallback(
+            SipTransportController controller) {
+        ISipDialogStateCallback cb = mock(ISipDialogStateCallback.class);
+        doReturn(mock(IBinder.class)).when(cb).asBinder();
+        mExecutorService.execute(() -> controller.addCallbackForSipDialogState(TEST_SUB_ID, cb));
+        // The registration, then the state reported by the delegate.
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        waitForExecutorAction(mExecutorService, TIMEOUT_MS);
+        return cb;
+    }
+
+    private void verifySipDialogStateNotified(ISipDialogStateCallback cb, int numDialogs)
+            throws RemoteException {
+        ArgumentCaptor<List<SipDialogState>> captor = ArgumentCaptor.forClass(List.class);
+        verify(cb, timeout(TIMEOUT_MS)).onActiveSipDialogsChanged(captor.capture());
+        assertEquals(numDialogs, captor.getValue().size());
+    }
+
     private void verifyDelegateRegistrationChangedEvent(int times, int waitMs)
             throws Exception {
         // event is scheduled and then executed.
@@ -978,6 +1185,12 @@ public class SipTransportControllerTest extends TelephonyTestBase {
 
     private SipTransportController createControllerAndThrottle(ScheduledExecutorService e,
             int throttleMs, int regDelayMs) {
+        return createControllerWithTimers(e, throttleMs, regDelayMs,
+                0 /*dialogStateNotifyIntervalMs*/);
+    }
+
+    private SipTransportController createControllerWithTimers(ScheduledExecutorService e,
+            int throttleMs, int regDelayMs, int dialogStateNotifyIntervalMs) {
         return new SipTransportController(mContext, 0 /*slotId*/, TEST_SUB_ID,
                 mMockDelegateControllerFactory, mMockRoleManager,
                 // Remove delays for testing.
@@ -991,6 +1204,11 @@ public class SipTransportControllerTest extends TelephonyTestBase {
                     public int getUpdateRegistrationDelayMilliseconds() {
                         return regDelayMs;
                     }
+
+                    @Override
+                    public int getSipDialogStateNotifyIntervalMilliseconds() {
+                        return dialogStateNotifyIntervalMs;
+                    }
                 }, e);
     }
 
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import android.telephony.ims.SipDelegateManager;
+import android.telephony.ims.SipMessage;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.android.services.telephony.rcs.validator.ParsedSipMessage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@RunWith(AndroidJUnit4.class)
+public class SipTransportEventLogTest {
+    private static final String HEADERS =
+            "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bK776asdhds\n"
+                    + "Max-Forwards: 70\n"
+                    + "To: Bob <sip:bob@biloxi.com>\n"
+                    + "From: Alice <sip:alice@atlanta.com>;tag=1928301774\n"
+                    + "Call-ID: a84b4c76e66710@pc33.atlanta.com\n"
+                    + "CSeq: 314159 INVITE\n"
+                    + "Contact: <sip:alice@pc33.atlanta.com>\n"
+                    + "Content-Length: 0";
+    private static final ParsedSipMessage INVITE = new ParsedSipMessage(new SipMessage(
+            "INVITE sip:bob@biloxi.com SIP/2.0", HEADERS, new byte[0]));
+
+    @Test
+    public void testEventsAreFormattedOnDump() {
+        SipTransportEventLog log = new SipTransportEventLog(10, true);
+        log.logMessage(SipTransportEventLog.EVENT_VERIFY_OUTGOING, INVITE, true,
+                SipDelegateManager.MESSAGE_FAILURE_REASON_UNKNOWN, "");
+        log.logTransaction(SipTransportEventLog.EVENT_DELEGATE_SEND_ERROR, "z9hG4bK776asdhds",
+                SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD, "No SipDelegate");
+        log.logDialog("a84b4c76e66710@pc33.atlanta.com", 200, SipDialog.STATE_CONFIRMED);
+
+        String[] lines = dump(log);
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].contains("verifyOutgoingMessage: validated=true"));
+        assertTrue(lines[0].contains("callId=a84b4c76e66710@pc33.atlanta.com"));
+        assertTrue(lines[0].contains("branch=z9hG4bK776asdhds"));
+        assertTrue(lines[1].contains("delegateSendError: id=z9hG4bK776asdhds, code="
+                + SipDelegateManager.MESSAGE_FAILURE_REASON_DELEGATE_DEAD
+                + ", reason=No SipDelegate"));
+        assertTrue(lines[2].contains("dialogUpdated: callId=a84b4c76e66710@pc33.atlanta.com, "
+                + "statusCode=200, state=confirmed"));
+    }
+
+    @Test
+    public void testRedaction() {
+        SipTransportEventLog redacted = new SipTransportEventLog(10, true);
+        redacted.logMessage(SipTransportEventLog.EVENT_VERIFY_INCOMING, INVITE, true,
+                SipDelegateManager.MESSAGE_FAILURE_REASON_UNKNOWN, "");
+        String line = dump(redacted)[0];
+        assertTrue(line.contains("message=[INVITE]"));
+        assertFalse(line.contains("sip:bob@biloxi.com"));
+
+        SipTransportEventLog unredacted = new SipTransportEventLog(10, false);
+        unredacted.logMessage(SipTransportEventLog.EVENT_VERIFY_INCOMING, INVITE, true,
+                SipDelegateManager.MESSAGE_FAILURE_REASON_UNKNOWN, "");
+        assertTrue(dump(unredacted)[0].contains("message=" + INVITE.getMessage()));
+    }
+
+    @Test
+    public void testOldestEventsAreOverwritten() {
+        SipTransportEventLog log = new SipTransportEventLog(3, true);
+        for (int i = 0; i < 5; i++) {
+            log.logTransaction(SipTransportEventLog.EVENT_ACKNOWLEDGED, "id" + i, 0, null);
+        }
+
+        assertEquals(3, log.size());
+        String[] lines = dump(log);
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith("acknowledgePendingMessage: id=id2"));
+        assertTrue(lines[1].endsWith("acknowledgePendingMessage: id=id3"));
+        assertTrue(lines[2].endsWith("acknowledgePendingMessage: id=id4"));
+    }
+
+    private static String[] dump(SipTransportEventLog log) {
+        StringWriter writer = new StringWriter();
+        PrintWriter pw = new PrintWriter(writer);
+        log.dump(pw);
+        pw.flush();
+        return writer.toString().split("\n");
+    }
+}
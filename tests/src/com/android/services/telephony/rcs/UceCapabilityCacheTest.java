@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import android.net.Uri;
+import android.telephony.ims.RcsContactUceCapability;
+import android.telephony.ims.aidl.IRcsUceControllerCallback;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(AndroidJUnit4.class)
+public class UceCapabilityCacheTest {
+    private static final long CAPABLE_EXPIRATION_MS = 1000;
+    private static final long NON_CAPABLE_EXPIRATION_MS = 5000;
+
+    private static final Uri CONTACT_1 = Uri.parse("tel:+1-555-555-0101");
+    private static final Uri CONTACT_2 = Uri.parse("sip:bob@Biloxi.COM");
+    private static final Uri CONTACT_3 = Uri.parse("tel:+15555550103");
+
+    private final AtomicLong mTimeMs = new AtomicLong(0);
+
+    @Test
+    public void testCacheKeyNormalization() {
+        assertEquals(UceCapabilityCache.getCacheKey(Uri.parse("tel:+15555550101")),
+                UceCapabilityCache.getCacheKey(Uri.parse("TEL:+1 (555) 555-0101;phone-context=x")));
+        assertEquals(UceCapabilityCache.getCacheKey(Uri.parse("sip:bob@biloxi.com")),
+                UceCapabilityCache.getCacheKey(CONTACT_2));
+        // The user part of a SIP URI is case sensitive.
+        assertTrue(!UceCapabilityCache.getCacheKey(Uri.parse("sip:Bob@biloxi.com")).equals(
+                UceCapabilityCache.getCacheKey(CONTACT_2)));
+    }
+
+    @Test
+    public void testCachedCapabilitiesExpire() throws Exception {
+        UceCapabilityCache cache = createCache(10);
+        RcsContactUceCapability capable = createCapability(CONTACT_1,
+                RcsContactUceCapability.REQUEST_RESULT_FOUND);
+        RcsContactUceCapability nonCapable = createCapability(CONTACT_2,
+                RcsContactUceCapability.REQUEST_RESULT_NOT_FOUND);
+        IRcsUceControllerCallback callback = mock(IRcsUceControllerCallback.class);
+        cache.wrapCallback(callback).onCapabilitiesReceived(List.of(capable, nonCapable));
+        verify(callback).onCapabilitiesReceived(List.of(capable, nonCapable));
+
+        // Contacts are found with a differently formatted URI and are returned with the URI
+        // they were requested with.
+        List<Uri> missing = new ArrayList<>();
+        Uri capableUri = Uri.parse("tel:+15555550101");
+        Uri nonCapableUri = Uri.parse("sip:bob@biloxi.com");
+        List<RcsContactUceCapability> cached = cache.get(
+                List.of(capableUri, nonCapableUri, CONTACT_3), missing);
+        assertEquals(2, cached.size());
+        assertEquals(capableUri, cached.get(0).getContactUri());
+        assertEquals(capable.getRequestResult(), cached.get(0).getRequestResult());
+        assertEquals(nonCapableUri, cached.get(1).getContactUri());
+        assertEquals(nonCapable.getRequestResult(), cached.get(1).getRequestResult());
+        assertEquals(List.of(CONTACT_3), missing);
+
+        mTimeMs.set(CAPABLE_EXPIRATION_MS);
+        assertNull(cache.get(CONTACT_1));
+        assertSame(nonCapable, cache.get(CONTACT_2));
+        mTimeMs.set(NON_CAPABLE_EXPIRATION_MS);
+        assertNull(cache.get(CONTACT_2));
+        assertEquals(0, cache.size());
+        assertEquals("size=0/10, hits=3, misses=3, hitRate=50%, expired=2, evictions=0, "
+                + "invalidations=0", cache.getStatistics());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        UceCapabilityCache cache = createCache(2);
+        IRcsUceControllerCallback callback = cache.wrapCallback(
+                mock(IRcsUceControllerCallback.class));
+        callback.onCapabilitiesReceived(List.of(
+                createCapability(CONTACT_1, RcsContactUceCapability.REQUEST_RESULT_FOUND),
+                createCapability(CONTACT_2, RcsContactUceCapability.REQUEST_RESULT_FOUND)));
+        // Use CONTACT_1, so CONTACT_2 is the least recently used.
+        cache.get(CONTACT_1);
+        callback.onCapabilitiesReceived(List.of(
+                createCapability(CONTACT_3, RcsContactUceCapability.REQUEST_RESULT_FOUND)));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(CONTACT_2));
+        assertEquals(CONTACT_1, cache.get(CONTACT_1).getContactUri());
+        assertEquals(CONTACT_3, cache.get(CONTACT_3).getContactUri());
+    }
+
+    @Test
+    public void testUnknownResultsAreNotCached() throws Exception {
+        UceCapabilityCache cache = createCache(10);
+        cache.wrapCallback(mock(IRcsUceControllerCallback.class)).onCapabilitiesReceived(List.of(
+                createCapability(CONTACT_1, RcsContactUceCapability.REQUEST_RESULT_UNKNOWN)));
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testResultsOfRequestsBeforeInvalidationAreNotCached() throws Exception {
+        UceCapabilityCache cache = createCache(10);
+        IRcsUceControllerCallback staleCallback = cache.wrapCallback(
+                mock(IRcsUceControllerCallback.class));
+        cache.wrapCallback(mock(IRcsUceControllerCallback.class)).onCapabilitiesReceived(
+                List.of(createCapability(CONTACT_1, RcsContactUceCapability.REQUEST_RESULT_FOUND)));
+
+        cache.invalidate("test");
+        assertEquals(0, cache.size());
+        staleCallback.onCapabilitiesReceived(
+                List.of(createCapability(CONTACT_2, RcsContactUceCapability.REQUEST_RESULT_FOUND)));
+        assertEquals(0, cache.size());
+        assertTrue(cache.getStatistics().endsWith("invalidations=1"));
+    }
+
+    @Test
+    public void testWithContactUri() throws Exception {
+        RcsContactUceCapability options = new RcsContactUceCapability.OptionsBuilder(CONTACT_1,
+                RcsContactUceCapability.SOURCE_TYPE_NETWORK)
+                .setRequestResult(RcsContactUceCapability.REQUEST_RESULT_FOUND)
+                .addFeatureTag("+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.mmtel\"")
+                .build();
+
+        assertSame(options, UceCapabilityCache.withContactUri(options, CONTACT_1));
+        RcsContactUceCapability rebuilt = UceCapabilityCache.withContactUri(options, CONTACT_3);
+        assertEquals(CONTACT_3, rebuilt.getContactUri());
+        assertEquals(RcsContactUceCapability.CAPABILITY_MECHANISM_OPTIONS,
+                rebuilt.getCapabilityMechanism());
+        assertEquals(options.getRequestResult(), rebuilt.getRequestResult());
+        assertEquals(options.getFeatureTags(), rebuilt.getFeatureTags());
+    }
+
+    private UceCapabilityCache createCache(int maxSize) {
+        return new UceCapabilityCache(maxSize, CAPABLE_EXPIRATION_MS, NON_CAPABLE_EXPIRATION_MS,
+                mTimeMs::get);
+    }
+
+    private static RcsContactUceCapability createCapability(Uri contact, int result) {
+        return new RcsContactUceCapability.PresenceBuilder(contact,
+                RcsContactUceCapability.SOURCE_TYPE_NETWORK, result).build();
+    }
+}
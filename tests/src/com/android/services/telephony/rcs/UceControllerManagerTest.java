@@ -19,13 +19,18 @@ package com.android.services.telephony.rcs;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import android.net.Uri;
 import android.telephony.ims.ImsException;
+import android.telephony.ims.PublishAttributes;
+import android.telephony.ims.RcsContactUceCapability;
+import android.telephony.ims.RcsUceAdapter;
 import android.telephony.ims.aidl.IRcsUceControllerCallback;
 import android.telephony.ims.aidl.IRcsUcePublishStateCallback;
 
@@ -40,6 +45,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 
@@ -258,6 +264,258 @@ public class UceControllerManagerTest extends TelephonyTestBase {
         verify(mUceController).unregisterPublishStateCallback(callback);
     }
 
+    @Test
+    public void testRequestCapabilitiesMergesOverlappingRequests() throws Exception {
+        TestExecutorService executor = new TestExecutorService(true /*wait*/);
+        UceControllerManager uceCtrlManager = new UceControllerManager(mContext, mSlotId,
+                executor, mUceController);
+        doReturn(false).when(mUceController).isUnavailable();
+        Uri contact1 = Uri.fromParts("sip", "00001", null);
+        Uri contact2 = Uri.fromParts("sip", "00002", null);
+        Uri contact3 = Uri.fromParts("sip", "00003", null);
+        Uri contact4 = Uri.fromParts("sip", "00004", null);
+        IRcsUceControllerCallback callback1 = Mockito.mock(IRcsUceControllerCallback.class);
+        IRcsUceControllerCallback callback2 = Mockito.mock(IRcsUceControllerCallback.class);
+        IRcsUceControllerCallback callback3 = Mockito.mock(IRcsUceControllerCallback.class);
+        UceControllerManager.RequestCallback<Void> requestCallback =
+                Mockito.mock(UceControllerManager.RequestCallback.class);
+
+        // Requests made before the executor runs are batched.
+        uceCtrlManager.requestCapabilitiesAsync(Arrays.asList(contact1, contact2), callback1,
+                requestCallback);
+        uceCtrlManager.requestCapabilitiesAsync(Arrays.asList(contact2, contact3), callback2,
+                requestCallback);
+        uceCtrlManager.requestCapabilitiesAsync(Arrays.asList(contact4), callback3,
+                requestCallback);
+        executor.executePending();
+
+        // The first two requests overlap and are merged in the order the contacts were
+        // requested, the third one is sent as is.
+        ArgumentCaptor<List<Uri>> contactsCaptor = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<IRcsUceControllerCallback> callbackCaptor =
+                ArgumentCaptor.forClass(IRcsUceControllerCallback.class);
+        verify(mUceController, times(2)).requestCapabilities(contactsCaptor.capture(),
+                callbackCaptor.capture());
+        assertEquals(Arrays.asList(contact1, contact2, contact3),
+                contactsCaptor.getAllValues().get(0));
+        assertEquals(Arrays.asList(contact4), contactsCaptor.getAllValues().get(1));
+        assertEquals(callback3, callbackCaptor.getAllValues().get(1));
+        verify(requestCallback, times(3)).onResult(null);
+
+        // Each caller only receives the capabilities of the contacts it requested.
+        IRcsUceControllerCallback mergedCallback = callbackCaptor.getAllValues().get(0);
+        RcsContactUceCapability capability1 = createCapability(contact1);
+        RcsContactUceCapability capability3 = createCapability(contact3);
+        mergedCallback.onCapabilitiesReceived(Arrays.asList(capability1, capability3));
+        verify(callback1).onCapabilitiesReceived(Arrays.asList(capability1));
+        verify(callback2).onCapabilitiesReceived(Arrays.asList(capability3));
+        mergedCallback.onComplete(null);
+        verify(callback1).onComplete(null);
+        verify(callback2).onComplete(null);
+    }
+
+    @Test
+    public void testRequestCapabilitiesMergesContactsWithSameCacheKey() throws Exception {
+        TestExecutorService executor = new TestExecutorService(true /*wait*/);
+        UceControllerManager uceCtrlManager = new UceControllerManager(mContext, mSlotId,
+                executor, mUceController);
+        doReturn(false).when(mUceController).isUnavailable();
+        Uri contact = Uri.parse("tel:+1-555-0100");
+        Uri sameContact = Uri.parse("tel:+15550100");
+        IRcsUceControllerCallback callback1 = Mockito.mock(IRcsUceControllerCallback.class);
+        IRcsUceControllerCallback callback2 = Mockito.mock(IRcsUceControllerCallback.class);
+        UceControllerManager.RequestCallback<Void> requestCallback =
+                Mockito.mock(UceControllerManager.RequestCallback.class);
+
+        uceCtrlManager.requestCapabilitiesAsync(Arrays.asList(contact), callback1,
+                requestCallback);
+        uceCtrlManager.requestCapabilitiesAsync(Arrays.asList(sameContact), callback2,
+                requestCallback);
+        executor.executePending();
+
+        // Both requests are for the same contact, so it is only requested once.
+        ArgumentCaptor<IRcsUceControllerCallback> callbackCaptor =
+                ArgumentCaptor.forClass(IRcsUceControllerCallback.class);
+        verify(mUceController).requestCapabilities(eq(Arrays.asList(contact)),
+                callbackCaptor.capture());
+
+        // Both callers receive the capabilities of the contact.
+        RcsContactUceCapability capability = createCapability(contact);
+        callbackCaptor.getValue().onCapabilitiesReceived(Arrays.asList(capability));
+        verify(callback1).onCapabilitiesReceived(Arrays.asList(capability));
+        // The second caller receives the contact as it requested it.
+        ArgumentCaptor<List<RcsContactUceCapability>> capabilitiesCaptor =
+                ArgumentCaptor.forClass(List.class);
+        verify(callback2).onCapabilitiesReceived(capabilitiesCaptor.capture());
+        assertEquals(1, capabilitiesCaptor.getValue().size());
+        assertEquals(sameContact, capabilitiesCaptor.getValue().get(0).getContactUri());
+    }
+
+    @Test
+    public void testRequestCapabilitiesAsyncWithRcsUnavailable() throws Exception {
+        UceControllerManager uceCtrlManager = getUceControllerManager();
+        doReturn(true).when(mUceController).isUnavailable();
+        UceControllerManager.RequestCallback<Void> requestCallback =
+                Mockito.mock(UceControllerManager.RequestCallback.class);
+
+        uceCtrlManager.requestCapabilitiesAsync(
+                Arrays.asList(Uri.fromParts("sip", "00000", null)),
+                Mockito.mock(IRcsUceControllerCallback.class), requestCallback);
+
+        ArgumentCaptor<ImsException> captor = ArgumentCaptor.forClass(ImsException.class);
+        verify(requestCallback).onError(captor.capture());
+        assertEquals(ImsException.CODE_ERROR_SERVICE_UNAVAILABLE, captor.getValue().getCode());
+        verify(mUceController, never()).requestCapabilities(any(), any());
+    }
+
+    @Test
+    public void testGetPublishStateAsync() throws Exception {
+        UceControllerManager uceCtrlManager = getUceControllerManager();
+        doReturn(false).when(mUceController).isUnavailable();
+        doReturn(RcsUceAdapter.PUBLISH_STATE_OK).when(mUceController).getUcePublishState(true);
+        UceControllerManager.RequestCallback<Integer> callback =
+                Mockito.mock(UceControllerManager.RequestCallback.class);
+
+        uceCtrlManager.getUcePublishStateAsync(true, callback);
+
+        verify(callback).onResult(RcsUceAdapter.PUBLISH_STATE_OK);
+    }
+
+    @Test
+    public void testGetLastPidfXmlAsyncWithRcsUnavailable() throws Exception {
+        UceControllerManager uceCtrlManager = getUceControllerManager();
+        doReturn(true).when(mUceController).isUnavailable();
+        UceControllerManager.RequestCallback<String> callback =
+                Mockito.mock(UceControllerManager.RequestCallback.class);
+
+        uceCtrlManager.getLastPidfXmlAsync(callback);
+
+        verify(callback).onError(any(ImsException.class));
+        verify(callback, never()).onResult(any());
+    }
+
+    @Test
+    public void testRequestCapabilitiesUsesCapabilityCache() throws Exception {
+        UceCapabilityCache cache = new UceCapabilityCache(10, 60000, 60000);
+        UceControllerManager uceCtrlManager = new UceControllerManager(mContext, mSlotId,
+                mExecutorService, mUceController, cache);
+        doReturn(false).when(mUceController).isUnavailable();
+        Uri contact1 = Uri.fromParts("sip", "00001", null);
+        Uri contact2 = Uri.fromParts("sip", "00002", null);
+        IRcsUceControllerCallback callback1 = Mockito.mock(IRcsUceControllerCallback.class);
+        IRcsUceControllerCallback callback2 = Mockito.mock(IRcsUceControllerCallback.class);
+
+        // The first request is sent to the UceController and its result is cached.
+        uceCtrlManager.requestCapabilities(Arrays.asList(contact1), callback1);
+        ArgumentCaptor<IRcsUceControllerCallback> callbackCaptor =
+                ArgumentCaptor.forClass(IRcsUceControllerCallback.class);
+        verify(mUceController).requestCapabilities(eq(Arrays.asList(contact1)),
+                callbackCaptor.capture());
+        RcsContactUceCapability capability1 = createCapability(contact1);
+        callbackCaptor.getValue().onCapabilitiesReceived(Arrays.asList(capability1));
+        callbackCaptor.getValue().onComplete(null);
+        verify(callback1).onCapabilitiesReceived(Arrays.asList(capability1));
+        verify(callback1).onComplete(null);
+
+        // Only the contact that is not cached is requested again.
+        uceCtrlManager.requestCapabilities(Arrays.asList(contact1, contact2), callback2);
+        verify(callback2).onCapabilitiesReceived(Arrays.asList(capability1));
+        verify(mUceController).requestCapabilities(eq(Arrays.asList(contact2)), any());
+
+        // A fully cached request is not sent to the UceController.
+        IRcsUceControllerCallback callback3 = Mockito.mock(IRcsUceControllerCallback.class);
+        uceCtrlManager.requestCapabilities(Arrays.asList(contact1), callback3);
+        verify(callback3).onCapabilitiesReceived(Arrays.asList(capability1));
+        verify(callback3).onComplete(null);
+        verify(mUceController, times(2)).requestCapabilities(any(), any());
+        assertEquals("size=1/10, hits=2, misses=2, hitRate=50%, expired=0, evictions=0, "
+                + "invalidations=0", uceCtrlManager.getCapabilityCacheStatistics());
+
+        // The cache is invalidated when the carrier config changes.
+        uceCtrlManager.onCarrierConfigChanged();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testPublishStateChangeInvalidatesCapabilityCache() throws Exception {
+        UceCapabilityCache cache = new UceCapabilityCache(10, 60000, 60000);
+        UceControllerManager uceCtrlManager = new UceControllerManager(mContext, mSlotId,
+                mExecutorService, mUceController, cache);
+        doReturn(false).when(mUceController).isUnavailable();
+        ArgumentCaptor<IRcsUcePublishStateCallback> publishCaptor =
+                ArgumentCaptor.forClass(IRcsUcePublishStateCallback.class);
+        verify(mUceController).registerPublishStateCallback(publishCaptor.capture(), eq(false));
+        IRcsUcePublishStateCallback publishCallback = publishCaptor.getValue();
+        publishCallback.onPublishUpdated(
+                new PublishAttributes.Builder(RcsUceAdapter.PUBLISH_STATE_OK).build());
+        Uri contact = Uri.fromParts("sip", "00001", null);
+        cache.wrapCallback(Mockito.mock(IRcsUceControllerCallback.class))
+                .onCapabilitiesReceived(Arrays.asList(createCapability(contact)));
+
+        // Polling the publish state, in either form, does not invalidate the cache.
+        doReturn(RcsUceAdapter.PUBLISH_STATE_PUBLISHING).when(mUceController)
+                .getUcePublishState(true);
+        doReturn(RcsUceAdapter.PUBLISH_STATE_OK).when(mUceController).getUcePublishState(false);
+        uceCtrlManager.getUcePublishState(true);
+        uceCtrlManager.getUcePublishState(false);
+        assertEquals(1, cache.size());
+
+        // Reporting the same publish state again does not invalidate the cache either.
+        publishCallback.onPublishUpdated(
+                new PublishAttributes.Builder(RcsUceAdapter.PUBLISH_STATE_OK).build());
+        assertEquals(1, cache.size());
+
+        publishCallback.onPublishUpdated(new PublishAttributes.Builder(
+                RcsUceAdapter.PUBLISH_STATE_NOT_PUBLISHED).build());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCachedCapabilitiesUseRequestedContactUri() throws Exception {
+        UceCapabilityCache cache = new UceCapabilityCache(10, 60000, 60000);
+        UceControllerManager uceCtrlManager = new UceControllerManager(mContext, mSlotId,
+                mExecutorService, mUceController, cache);
+        doReturn(false).when(mUceController).isUnavailable();
+        cache.wrapCallback(Mockito.mock(IRcsUceControllerCallback.class)).onCapabilitiesReceived(
+                Arrays.asList(createCapability(Uri.parse("tel:+1-555-0100"))));
+        Uri contact = Uri.parse("tel:+15550100");
+        IRcsUceControllerCallback callback = Mockito.mock(IRcsUceControllerCallback.class);
+
+        uceCtrlManager.requestCapabilities(Arrays.asList(contact), callback);
+
+        ArgumentCaptor<List<RcsContactUceCapability>> captor =
+                ArgumentCaptor.forClass(List.class);
+        verify(callback).onCapabilitiesReceived(captor.capture());
+        assertEquals(contact, captor.getValue().get(0).getContactUri());
+        verify(mUceController, never()).requestCapabilities(any(), any());
+    }
+
+    @Test
+    public void testRequestNetworkAvailabilityIgnoresCapabilityCache() throws Exception {
+        UceCapabilityCache cache = new UceCapabilityCache(10, 60000, 60000);
+        UceControllerManager uceCtrlManager = new UceControllerManager(mContext, mSlotId,
+                mExecutorService, mUceController, cache);
+        doReturn(false).when(mUceController).isUnavailable();
+        Uri contact = Uri.fromParts("sip", "00001", null);
+        cache.wrapCallback(Mockito.mock(IRcsUceControllerCallback.class))
+                .onCapabilitiesReceived(Arrays.asList(createCapability(contact)));
+        IRcsUceControllerCallback callback = Mockito.mock(IRcsUceControllerCallback.class);
+
+        uceCtrlManager.requestNetworkAvailability(contact, callback);
+
+        // The cached capabilities are not returned, the network is always queried.
+        verify(mUceController).requestAvailability(contact, callback);
+        verify(callback, never()).onCapabilitiesReceived(any());
+        assertEquals("size=1/10, hits=0, misses=0, hitRate=0%, expired=0, evictions=0, "
+                + "invalidations=0", uceCtrlManager.getCapabilityCacheStatistics());
+    }
+
+    private RcsContactUceCapability createCapability(Uri contact) {
+        return new RcsContactUceCapability.PresenceBuilder(contact,
+                RcsContactUceCapability.SOURCE_TYPE_NETWORK,
+                RcsContactUceCapability.REQUEST_RESULT_FOUND).build();
+    }
+
     private UceControllerManager getUceControllerManager() {
         UceControllerManager manager = new UceControllerManager(mContext, mSlotId,
                 mExecutorService, mUceController);
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.services.telephony.rcs.validator;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import android.telephony.ims.SipMessage;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class ParsedSipMessageTest {
+    private static final String HEADERS =
+            "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bK776asdhds\n"
+                    + "Max-Forwards: 70\n"
+                    + "To: Bob <sip:bob@biloxi.com>;tag=a6c85cf\n"
+                    + "From: Alice <sip:alice@atlanta.com>;tag=1928301774\n"
+                    + "Call-ID: a84b4c76e66710@pc33.atlanta.com\n"
+                    + "CSeq: 314159 INVITE\n"
+                    + "Accept-Contact: *;+g.3gpp.icsi-ref=\"urn%3Aurn-7%3A3gpp-service.ims.icsi.oma"
+                    + ".cpm.session\"\n"
+                    + "Contact: <sip:alice@pc33.atlanta.com>\n"
+                    + "Content-Length: 0";
+
+    @Test
+    public void testRequest() {
+        SipMessage message = new SipMessage("INVITE sip:bob@biloxi.com SIP/2.0", HEADERS,
+                new byte[0]);
+        ParsedSipMessage parsed = new ParsedSipMessage(message);
+
+        assertSame(message, parsed.getMessage());
+        assertTrue(parsed.isRequest());
+        assertFalse(parsed.isResponse());
+        assertEquals("invite", parsed.getMethod());
+        assertEquals(ParsedSipMessage.STATUS_CODE_INVALID, parsed.getStatusCode());
+        assertEquals("a84b4c76e66710@pc33.atlanta.com", parsed.getCallId());
+        assertEquals("z9hG4bK776asdhds", parsed.getViaBranchParameter());
+        assertEquals("1928301774", parsed.getFromTag());
+        assertEquals("a6c85cf", parsed.getToTag());
+        assertEquals(1, parsed.getAcceptContactFeatureTags().size());
+        // Parsed parts are cached.
+        assertSame(parsed.getStartLineSegments(), parsed.getStartLineSegments());
+        assertSame(parsed.getAcceptContactFeatureTags(), parsed.getAcceptContactFeatureTags());
+    }
+
+    @Test
+    public void testResponse() {
+        ParsedSipMessage parsed = new ParsedSipMessage(new SipMessage("SIP/2.0 180 Ringing",
+                HEADERS, new byte[0]));
+
+        assertFalse(parsed.isRequest());
+        assertTrue(parsed.isResponse());
+        assertNull(parsed.getMethod());
+        assertEquals(180, parsed.getStatusCode());
+    }
+
+    @Test
+    public void testMalformedStartLine() {
+        ParsedSipMessage parsed = new ParsedSipMessage(new SipMessage(
+                "INVITE sip:bob@biloxi.comSIP/2.0", HEADERS, new byte[0]));
+
+        assertFalse(parsed.isRequest());
+        assertFalse(parsed.isResponse());
+        assertNull(parsed.getMethod());
+        assertEquals(ParsedSipMessage.STATUS_CODE_INVALID, parsed.getStatusCode());
+    }
+}